@@ -0,0 +1,110 @@
+package akovari.antlr4.autocomplete.lsp;
+
+import akovari.antlr4.autocomplete.Antlr4Completer;
+import akovari.antlr4.autocomplete.GrammarRegistry;
+import org.eclipse.lsp4j.*;
+import org.eclipse.lsp4j.jsonrpc.Launcher;
+import org.eclipse.lsp4j.launch.LSPLauncher;
+import org.eclipse.lsp4j.services.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+/**
+ * Language server answering {@code textDocument/completion} for the grammars of a {@link GrammarRegistry}. Documents
+ * are synchronized incrementally and kept as {@link akovari.antlr4.autocomplete.CompletionDocument}s, engines stay warm
+ * in the registry. Bursts of changes and completion requests are coalesced per document, see {@link DocumentSession}.
+ */
+public class Antlr4LanguageServer implements LanguageServer {
+  private final ExecutorService executor;
+  private final CompletionTextDocumentService textDocumentService;
+  private final WorkspaceService workspaceService = new WorkspaceService() {
+    @Override
+    public void didChangeConfiguration(DidChangeConfigurationParams params) {
+    }
+
+    @Override
+    public void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
+    }
+  };
+  private final CompletableFuture<Integer> exitCode = new CompletableFuture<>();
+  private volatile boolean shutDown;
+
+  /**
+   * @param grammarRegistry grammars to complete documents with
+   * @param defaultGrammarName grammar of documents whose language id is not a registered grammar name
+   */
+  public Antlr4LanguageServer(GrammarRegistry grammarRegistry, String defaultGrammarName) {
+    this(grammarRegistry, defaultGrammarName, UnaryOperator.identity());
+  }
+
+  /**
+   * @param options options applied to every completer, e.g. {@code Antlr4Completer::withCaseInsensitiveMatching}
+   */
+  public Antlr4LanguageServer(GrammarRegistry grammarRegistry, String defaultGrammarName,
+                              UnaryOperator<Antlr4Completer> options) {
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+      Thread thread = new Thread(runnable, "completion-server-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.textDocumentService = new CompletionTextDocumentService(grammarRegistry, defaultGrammarName, executor,
+        completer -> options.apply(completer.withoutTokens()));
+  }
+
+  /**
+   * Serves the client connected by the given streams, e.g. standard input and output or a socket.
+   * @return future done when the connection is closed
+   */
+  public Future<Void> launch(InputStream in, OutputStream out) {
+    Launcher<LanguageClient> launcher = LSPLauncher.createServerLauncher(this, in, out);
+    return launcher.startListening();
+  }
+
+  /**
+   * @return future of the process exit code, done when the client sent {@code exit}: 0 after {@code shutdown}, 1
+   * otherwise
+   */
+  public CompletableFuture<Integer> getExitCode() {
+    return exitCode;
+  }
+
+  @Override
+  public CompletableFuture<InitializeResult> initialize(InitializeParams params) {
+    ServerCapabilities capabilities = new ServerCapabilities();
+    capabilities.setTextDocumentSync(TextDocumentSyncKind.Incremental);
+    capabilities.setCompletionProvider(new CompletionOptions(false, null));
+    return CompletableFuture.completedFuture(new InitializeResult(capabilities));
+  }
+
+  @Override
+  public CompletableFuture<Object> shutdown() {
+    textDocumentService.closeAll();
+    executor.shutdown();
+    shutDown = true;
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public void exit() {
+    executor.shutdownNow();
+    exitCode.complete(shutDown ? 0 : 1);
+  }
+
+  @Override
+  public TextDocumentService getTextDocumentService() {
+    return textDocumentService;
+  }
+
+  @Override
+  public WorkspaceService getWorkspaceService() {
+    return workspaceService;
+  }
+}
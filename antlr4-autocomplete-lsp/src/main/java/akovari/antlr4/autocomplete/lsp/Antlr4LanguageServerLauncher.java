@@ -0,0 +1,59 @@
+package akovari.antlr4.autocomplete.lsp;
+
+import akovari.antlr4.autocomplete.GrammarRegistry;
+import akovari.antlr4.autocomplete.ReflectionLexerAndParserFactory;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Runs {@link Antlr4LanguageServer} for a generated lexer and parser, on standard input and output, or on a socket:
+ * {@code <lexer class> <parser class> [--port <port>]}.
+ */
+public class Antlr4LanguageServerLauncher {
+  private static final String GRAMMAR_NAME = "default";
+
+  public static void main(String[] args) throws IOException, ReflectiveOperationException, InterruptedException {
+    if (args.length != 2 && !(args.length == 4 && "--port".equals(args[2]))) {
+      System.err.println("Usage: " + Antlr4LanguageServerLauncher.class.getName()
+          + " <lexer class> <parser class> [--port <port>]");
+      System.exit(2);
+    }
+    Class<? extends Lexer> lexerClass = Class.forName(args[0]).asSubclass(Lexer.class);
+    Class<? extends Parser> parserClass = Class.forName(args[1]).asSubclass(Parser.class);
+    GrammarRegistry grammarRegistry = new GrammarRegistry()
+        .register(GRAMMAR_NAME, new ReflectionLexerAndParserFactory(lexerClass, parserClass));
+    Antlr4LanguageServer server = new Antlr4LanguageServer(grammarRegistry, GRAMMAR_NAME);
+    if (args.length == 2) {
+      System.exit(serve(server, server.launch(System.in, System.out)));
+    }
+    try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[3]));
+         Socket socket = serverSocket.accept()) {
+      System.exit(serve(server, server.launch(socket.getInputStream(), socket.getOutputStream())));
+    }
+  }
+
+  /**
+   * @return exit code, once the client sent {@code exit} or closed the connection
+   */
+  private static int serve(Antlr4LanguageServer server, Future<Void> connection) throws InterruptedException {
+    CompletableFuture<Void> connectionClosed = CompletableFuture.runAsync(() -> {
+      try {
+        connection.get();
+      } catch (InterruptedException | ExecutionException e) {
+        // closed either way
+      }
+    });
+    try {
+      return (Integer) CompletableFuture.anyOf(server.getExitCode(), connectionClosed.thenApply(closed -> 1)).get();
+    } catch (ExecutionException e) {
+      return 1;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package akovari.antlr4.autocomplete.lsp;
+
+import akovari.antlr4.autocomplete.Antlr4Completer;
+import akovari.antlr4.autocomplete.GrammarRegistry;
+import org.eclipse.lsp4j.*;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+import org.eclipse.lsp4j.services.TextDocumentService;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
+
+/**
+ * Keeps the open documents and completes them. The grammar of a document is the one registered under its language id,
+ * or the default grammar.
+ */
+class CompletionTextDocumentService implements TextDocumentService {
+  private final GrammarRegistry grammarRegistry;
+  private final String defaultGrammarName;
+  private final Executor executor;
+  private final UnaryOperator<Antlr4Completer> options;
+  private final Map<String, DocumentSession> sessions = new ConcurrentHashMap<>();
+
+  CompletionTextDocumentService(GrammarRegistry grammarRegistry, String defaultGrammarName, Executor executor,
+                                UnaryOperator<Antlr4Completer> options) {
+    this.grammarRegistry = grammarRegistry;
+    this.defaultGrammarName = defaultGrammarName;
+    this.executor = executor;
+    this.options = options;
+  }
+
+  @Override
+  public void didOpen(DidOpenTextDocumentParams params) {
+    TextDocumentItem textDocument = params.getTextDocument();
+    String grammarName = grammarRegistry.getGrammarNames().contains(textDocument.getLanguageId())
+        ? textDocument.getLanguageId() : defaultGrammarName;
+    DocumentSession session = new DocumentSession(grammarRegistry.getEngine(grammarName), textDocument.getText(),
+        executor, options);
+    DocumentSession previousSession = sessions.put(textDocument.getUri(), session);
+    if (previousSession != null) {
+      previousSession.close();
+    }
+  }
+
+  @Override
+  public void didChange(DidChangeTextDocumentParams params) {
+    DocumentSession session = sessions.get(params.getTextDocument().getUri());
+    if (session != null) {
+      session.change(params.getContentChanges());
+    }
+  }
+
+  @Override
+  public void didClose(DidCloseTextDocumentParams params) {
+    DocumentSession session = sessions.remove(params.getTextDocument().getUri());
+    if (session != null) {
+      session.close();
+    }
+  }
+
+  @Override
+  public void didSave(DidSaveTextDocumentParams params) {
+  }
+
+  @Override
+  public CompletableFuture<Either<List<CompletionItem>, CompletionList>> completion(CompletionParams params) {
+    DocumentSession session = sessions.get(params.getTextDocument().getUri());
+    if (session == null) {
+      return CompletableFuture.completedFuture(Either.forRight(new CompletionList(false, Collections.emptyList())));
+    }
+    return session.complete(params.getPosition());
+  }
+
+  void closeAll() {
+    sessions.values().forEach(DocumentSession::close);
+    sessions.clear();
+  }
+}
@@ -0,0 +1,213 @@
+package akovari.antlr4.autocomplete.lsp;
+
+import akovari.antlr4.autocomplete.Antlr4Completer;
+import akovari.antlr4.autocomplete.CompletionDocument;
+import akovari.antlr4.autocomplete.CompletionEngine;
+import akovari.antlr4.autocomplete.CompletionResult;
+import org.eclipse.lsp4j.*;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
+
+/**
+ * One open document. Changes and completion requests are queued and processed by one task at a time on the shared
+ * executor, so a burst of keystrokes is applied in one go, and only the last completion request of a burst reaches the
+ * engine. A completion request followed by a change or by another completion request is superseded: it is answered with
+ * an empty, incomplete list without completing, so that the client asks again.
+ */
+class DocumentSession {
+  private static final Either<List<CompletionItem>, CompletionList> SUPERSEDED =
+      Either.forRight(new CompletionList(true, Collections.emptyList()));
+
+  private final CompletionDocument document;
+  private final Executor executor;
+  private final UnaryOperator<Antlr4Completer> options;
+
+  private final List<TextDocumentContentChangeEvent> pendingChanges = new ArrayList<>();
+  private PendingCompletion pendingCompletion;
+  private boolean processing;
+
+  DocumentSession(CompletionEngine engine, String text, Executor executor, UnaryOperator<Antlr4Completer> options) {
+    this.document = new CompletionDocument(engine, "");
+    this.executor = executor;
+    this.options = options;
+    change(Collections.singletonList(new TextDocumentContentChangeEvent(text)));
+  }
+
+  synchronized void change(List<TextDocumentContentChangeEvent> changes) {
+    pendingChanges.addAll(changes);
+    if (pendingCompletion != null) {
+      pendingCompletion.result.complete(SUPERSEDED);
+      pendingCompletion = null;
+    }
+    scheduleProcessing();
+  }
+
+  synchronized CompletableFuture<Either<List<CompletionItem>, CompletionList>> complete(Position position) {
+    if (pendingCompletion != null) {
+      pendingCompletion.result.complete(SUPERSEDED);
+    }
+    pendingCompletion = new PendingCompletion(position);
+    scheduleProcessing();
+    return pendingCompletion.result;
+  }
+
+  synchronized void close() {
+    pendingChanges.clear();
+    if (pendingCompletion != null) {
+      pendingCompletion.result.complete(SUPERSEDED);
+      pendingCompletion = null;
+    }
+  }
+
+  private void scheduleProcessing() {
+    if (!processing) {
+      processing = true;
+      executor.execute(this::process);
+    }
+  }
+
+  private void process() {
+    PendingCompletion completion = null;
+    boolean drained = false;
+    try {
+      while (true) {
+        List<TextDocumentContentChangeEvent> changes;
+        synchronized (this) {
+          if (pendingChanges.isEmpty() && pendingCompletion == null) {
+            processing = false;
+            drained = true;
+            return;
+          }
+          changes = new ArrayList<>(pendingChanges);
+          pendingChanges.clear();
+          completion = pendingCompletion;
+          pendingCompletion = null;
+        }
+        changes.forEach(this::applyChange);
+        if (completion != null && !completion.result.isDone()) {
+          completion.answer();
+        }
+        completion = null;
+      }
+    } catch (RuntimeException e) {
+      if (completion != null) {
+        completion.result.completeExceptionally(e);
+      }
+      throw e;
+    } finally {
+      if (!drained) {
+        synchronized (this) {
+          // Requests queued meanwhile get their own task rather than waiting forever
+          processing = false;
+          if (!pendingChanges.isEmpty() || pendingCompletion != null) {
+            scheduleProcessing();
+          }
+        }
+      }
+    }
+  }
+
+  private void applyChange(TextDocumentContentChangeEvent change) {
+    String text = document.getText();
+    if (change.getRange() == null) {
+      document.replace(0, text.length(), change.getText());
+      return;
+    }
+    int start = offsetOf(text, change.getRange().getStart());
+    int end = offsetOf(text, change.getRange().getEnd());
+    document.replace(start, end - start, change.getText());
+  }
+
+  /**
+   * @return offset of the position in the text, lines ending with any of {@code \n}, {@code \r\n} and {@code \r},
+   * characters counted in UTF-16 code units like in Java strings
+   */
+  static int offsetOf(String text, Position position) {
+    int lineStart = 0;
+    for (int line = 0; line < position.getLine() && lineStart < text.length(); ++line) {
+      int lineEnd = lineStart;
+      while (lineEnd < text.length() && text.charAt(lineEnd) != '\n' && text.charAt(lineEnd) != '\r') {
+        ++lineEnd;
+      }
+      if (lineEnd == text.length()) {
+        return text.length();
+      }
+      lineStart = text.startsWith("\r\n", lineEnd) ? lineEnd + 2 : lineEnd + 1;
+    }
+    int lineEnd = lineStart;
+    while (lineEnd < text.length() && text.charAt(lineEnd) != '\n' && text.charAt(lineEnd) != '\r') {
+      ++lineEnd;
+    }
+    return Math.min(lineStart + position.getCharacter(), lineEnd);
+  }
+
+  static Position positionOf(String text, int offset) {
+    int line = 0;
+    int lineStart = 0;
+    for (int i = 0; i < offset; ++i) {
+      char c = text.charAt(i);
+      if (c == '\n' || (c == '\r' && !text.startsWith("\r\n", i))) {
+        ++line;
+        lineStart = i + 1;
+      }
+    }
+    return new Position(line, offset - lineStart);
+  }
+
+  private final class PendingCompletion {
+    final Position position;
+    final CompletableFuture<Either<List<CompletionItem>, CompletionList>> result = new CompletableFuture<>();
+
+    PendingCompletion(Position position) {
+      this.position = position;
+    }
+
+    void answer() {
+      try {
+        String text = document.getText();
+        int caret = offsetOf(text, position);
+        CompletionResult completionResult = document.complete(caret, options);
+        result.complete(Either.forRight(new CompletionList(false, toItems(text, caret, completionResult))));
+      } catch (RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    }
+
+    /**
+     * Suggestions continue the text at the caret. Clients filter items by the word before the caret, so every item
+     * replaces that word with itself followed by the suggestion.
+     */
+    private List<CompletionItem> toItems(String text, int caret, CompletionResult completionResult) {
+      int wordStart = caret;
+      while (wordStart > 0 && (Character.isLetterOrDigit(text.charAt(wordStart - 1)) || text.charAt(wordStart - 1) == '_')) {
+        --wordStart;
+      }
+      String word = text.substring(wordStart, caret);
+      Position caretPosition = positionOf(text, caret);
+      Range wordRange = new Range(positionOf(text, wordStart), caretPosition);
+      List<CompletionItem> items = new ArrayList<>();
+      for (String suggestion : completionResult.getSuggestions()) {
+        items.add(item(word + suggestion, wordRange, CompletionItemKind.Keyword));
+      }
+      // Replacements replace the partial token, which is the end of the text before the caret
+      int partialTokenStart = caret - completionResult.getUntokenizedText().length();
+      Range partialTokenRange = new Range(positionOf(text, partialTokenStart), caretPosition);
+      for (String replacement : completionResult.getReplacements()) {
+        items.add(item(replacement, partialTokenRange, CompletionItemKind.Text));
+      }
+      return items;
+    }
+
+    private CompletionItem item(String newText, Range range, CompletionItemKind kind) {
+      CompletionItem item = new CompletionItem(newText);
+      item.setKind(kind);
+      item.setFilterText(newText);
+      item.setTextEdit(Either.forLeft(new TextEdit(range, newText)));
+      return item;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package akovari.antlr4.autocomplete.lsp;
+
+import akovari.antlr4.autocomplete.Antlr4Completer;
+import akovari.antlr4.autocomplete.GrammarRegistry;
+import akovari.antlr4.autocomplete.TestGrammars;
+import org.eclipse.lsp4j.*;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Antlr4LanguageServerTest {
+  private static final String URI = "file:///query.sql";
+
+  private final GrammarRegistry grammarRegistry = new GrammarRegistry()
+      .register("sql", TestGrammars.load(
+          "query: 'SELECT' ID (',' ID)* 'FROM' ID ('WHERE' ID '=' ID)?",
+          "ID: [a-z]+",
+          "WS: [ \\n] -> skip"));
+
+  @Test
+  public void completion_overLsp_shouldCompleteIncrementallyChangedDocument() {
+    try (LspTestClient client = new LspTestClient(new Antlr4LanguageServer(grammarRegistry, "sql"))) {
+      assertEquals(Either.forLeft(TextDocumentSyncKind.Incremental),
+          client.initialize().getCapabilities().getTextDocumentSync());
+      client.open(URI, "sql", "SELECT a\nFR");
+      CompletionList completions = client.complete(URI, 1, 2);
+      assertEquals(Collections.singleton("FROM"), labels(completions));
+      CompletionItem item = completions.getItems().get(0);
+      assertEquals(new Range(new Position(1, 0), new Position(1, 2)), item.getTextEdit().getLeft().getRange());
+
+      client.change(URI, new Range(new Position(1, 0), new Position(1, 2)), "FROM t ");
+      assertEquals(Collections.singleton("WHERE"), labels(client.complete(URI, 1, 7)));
+    }
+  }
+
+  @Test
+  public void completion_inBurst_shouldAnswerOnlyTheLastRequest() throws InterruptedException {
+    // The first completion reaching the engine waits until the burst is over, so the requests behind it queue up
+    CountDownLatch burstOver = new CountDownLatch(1);
+    AtomicBoolean blocked = new AtomicBoolean();
+    UnaryOperator<Antlr4Completer> options = completer -> {
+      if (blocked.compareAndSet(false, true)) {
+        try {
+          burstOver.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return completer;
+    };
+    try (LspTestClient client = new LspTestClient(new Antlr4LanguageServer(grammarRegistry, "sql", options))) {
+      client.initialize();
+      client.open(URI, "sql", "");
+      List<CompletableFuture<Either<List<CompletionItem>, CompletionList>>> requests = new ArrayList<>();
+      String typed = "";
+      for (String keystroke : new String[]{"S", "E", "L", "E", "C", "T", " ", "a", " ", "F"}) {
+        client.change(URI, new Range(new Position(0, typed.length()), new Position(0, typed.length())), keystroke);
+        typed += keystroke;
+        requests.add(client.requestCompletion(URI, 0, typed.length()));
+      }
+      List<CompletableFuture<Either<List<CompletionItem>, CompletionList>>> earlier =
+          requests.subList(0, requests.size() - 1);
+      // All earlier requests but the blocked one are superseded by the changes after them
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (earlier.stream().filter(CompletableFuture::isDone).count() < earlier.size() - 1
+          && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      burstOver.countDown();
+
+      CompletionList last = LspTestClient.await(requests.get(requests.size() - 1)).getRight();
+      assertEquals(Collections.singleton("FROM"), labels(last));
+      int superseded = 0;
+      for (CompletableFuture<Either<List<CompletionItem>, CompletionList>> request : earlier) {
+        CompletionList completions = LspTestClient.await(request).getRight();
+        if (completions.isIncomplete() && completions.getItems().isEmpty()) {
+          ++superseded;
+        }
+      }
+      assertTrue("superseded " + superseded, superseded >= earlier.size() - 1);
+    }
+  }
+
+  private static Set<String> labels(CompletionList completions) {
+    return completions.getItems().stream().map(CompletionItem::getLabel).collect(Collectors.toSet());
+  }
+}
@@ -0,0 +1,77 @@
+package akovari.antlr4.autocomplete.lsp;
+
+import akovari.antlr4.autocomplete.CompletionEngine;
+import akovari.antlr4.autocomplete.TestGrammars;
+import org.eclipse.lsp4j.*;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.UnaryOperator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DocumentSessionTest {
+  private final CompletionEngine engine = new CompletionEngine(TestGrammars.load(
+      "query: 'SELECT' ID 'FROM' ID",
+      "ID: [a-z]+",
+      "WS: [ \\r\\n] -> skip"));
+  private final List<Runnable> queue = new ArrayList<>();
+
+  @Test
+  public void complete_supersededBeforeProcessing_shouldNotReachTheEngine() {
+    DocumentSession session = new DocumentSession(engine, "SELECT a F", queue::add, UnaryOperator.identity());
+    CompletableFuture<Either<List<CompletionItem>, CompletionList>> first = session.complete(new Position(0, 10));
+    session.change(Collections.singletonList(
+        new TextDocumentContentChangeEvent(new Range(new Position(0, 10), new Position(0, 10)), null, "R")));
+    CompletableFuture<Either<List<CompletionItem>, CompletionList>> second = session.complete(new Position(0, 11));
+    assertTrue(first.isDone());
+    assertTrue(first.join().getRight().isIncomplete());
+    assertTrue(first.join().getRight().getItems().isEmpty());
+    assertEquals(1, queue.size());
+
+    queue.remove(0).run();
+    assertEquals("FROM", second.join().getRight().getItems().get(0).getLabel());
+  }
+
+  @Test
+  public void complete_afterFailedChange_shouldFailCompletionAndKeepProcessing() {
+    DocumentSession session = new DocumentSession(engine, "SELECT a F", queue::add, UnaryOperator.identity());
+    queue.remove(0).run();
+    session.change(Collections.singletonList(new TextDocumentContentChangeEvent(null)));
+    CompletableFuture<Either<List<CompletionItem>, CompletionList>> failed = session.complete(new Position(0, 10));
+    try {
+      queue.remove(0).run();
+      fail();
+    } catch (RuntimeException e) {
+      assertTrue(failed.isCompletedExceptionally());
+    }
+
+    CompletableFuture<Either<List<CompletionItem>, CompletionList>> next = session.complete(new Position(0, 10));
+    assertEquals(1, queue.size());
+    queue.remove(0).run();
+    assertEquals("FROM", next.join().getRight().getItems().get(0).getLabel());
+  }
+
+  @Test
+  public void offsetOf_shouldCountAllLineTerminators() {
+    String text = "a\r\nbc\rd\ne";
+    assertEquals(0, DocumentSession.offsetOf(text, new Position(0, 0)));
+    assertEquals(1, DocumentSession.offsetOf(text, new Position(0, 5)));
+    assertEquals(4, DocumentSession.offsetOf(text, new Position(1, 1)));
+    assertEquals(6, DocumentSession.offsetOf(text, new Position(2, 0)));
+    assertEquals(9, DocumentSession.offsetOf(text, new Position(3, 1)));
+    assertEquals(text.length(), DocumentSession.offsetOf(text, new Position(7, 0)));
+    for (int offset = 0; offset <= text.length(); ++offset) {
+      if (offset == 2) {
+        continue; // between \r and \n
+      }
+      assertEquals(offset, DocumentSession.offsetOf(text, DocumentSession.positionOf(text, offset)));
+    }
+  }
+}
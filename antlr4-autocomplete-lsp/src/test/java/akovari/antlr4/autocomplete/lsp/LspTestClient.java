@@ -0,0 +1,105 @@
+package akovari.antlr4.autocomplete.lsp;
+
+import org.eclipse.lsp4j.*;
+import org.eclipse.lsp4j.jsonrpc.Launcher;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+import org.eclipse.lsp4j.launch.LSPLauncher;
+import org.eclipse.lsp4j.services.LanguageClient;
+import org.eclipse.lsp4j.services.LanguageServer;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * LSP client talking JSON-RPC to a server over in-memory pipes, for end to end tests.
+ */
+public class LspTestClient implements LanguageClient, AutoCloseable {
+  private final LanguageServer server;
+  private final Future<Void> serverConnection;
+  private final Future<Void> clientConnection;
+  private final PipedOutputStream clientOut;
+  private final PipedOutputStream serverOut;
+
+  public LspTestClient(Antlr4LanguageServer languageServer) {
+    try {
+      PipedInputStream serverIn = new PipedInputStream(1 << 16);
+      PipedInputStream clientIn = new PipedInputStream(1 << 16);
+      this.clientOut = new PipedOutputStream(serverIn);
+      this.serverOut = new PipedOutputStream(clientIn);
+      this.serverConnection = languageServer.launch(serverIn, serverOut);
+      Launcher<LanguageServer> launcher = LSPLauncher.createClientLauncher(this, clientIn, clientOut);
+      this.server = launcher.getRemoteProxy();
+      this.clientConnection = launcher.startListening();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public InitializeResult initialize() {
+    return await(server.initialize(new InitializeParams()));
+  }
+
+  public void open(String uri, String languageId, String text) {
+    server.getTextDocumentService().didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(uri, languageId, 1, text)));
+  }
+
+  public void change(String uri, Range range, String text) {
+    server.getTextDocumentService().didChange(new DidChangeTextDocumentParams(new VersionedTextDocumentIdentifier(uri, null),
+        Collections.singletonList(new TextDocumentContentChangeEvent(range, null, text))));
+  }
+
+  public CompletableFuture<Either<List<CompletionItem>, CompletionList>> requestCompletion(String uri, int line, int character) {
+    return server.getTextDocumentService().completion(
+        new CompletionParams(new TextDocumentIdentifier(uri), new Position(line, character)));
+  }
+
+  public CompletionList complete(String uri, int line, int character) {
+    return await(requestCompletion(uri, line, character)).getRight();
+  }
+
+  public static <T> T await(CompletableFuture<T> future) {
+    try {
+      return future.get(10, TimeUnit.SECONDS);
+    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    await(server.shutdown());
+    server.exit();
+    serverConnection.cancel(true);
+    clientConnection.cancel(true);
+  }
+
+  @Override
+  public void telemetryEvent(Object object) {
+  }
+
+  @Override
+  public void publishDiagnostics(PublishDiagnosticsParams diagnostics) {
+  }
+
+  @Override
+  public void showMessage(MessageParams messageParams) {
+  }
+
+  @Override
+  public CompletableFuture<MessageActionItem> showMessageRequest(ShowMessageRequestParams requestParams) {
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public void logMessage(MessageParams message) {
+  }
+}
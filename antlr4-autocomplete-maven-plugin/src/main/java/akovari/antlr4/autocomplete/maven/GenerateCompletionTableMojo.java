@@ -0,0 +1,74 @@
+package akovari.antlr4.autocomplete.maven;
+
+import akovari.antlr4.autocomplete.CompletionTableGenerator;
+import akovari.antlr4.autocomplete.ReflectionLexerAndParserFactory;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Generates the completion table of a compiled grammar into the class output directory, next to the parser class.
+ */
+@Mojo(name = "generate", defaultPhase = LifecyclePhase.PROCESS_CLASSES,
+    requiresDependencyResolution = ResolutionScope.COMPILE, threadSafe = true)
+public class GenerateCompletionTableMojo extends AbstractMojo {
+  @Parameter(required = true)
+  private String lexerClass;
+
+  @Parameter(required = true)
+  private String parserClass;
+
+  @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+  private File outputDirectory;
+
+  @Parameter(defaultValue = "${project.compileClasspathElements}", readonly = true, required = true)
+  private List<String> classpathElements;
+
+  @Parameter(defaultValue = "false")
+  private boolean skip;
+
+  @Override
+  public void execute() throws MojoExecutionException {
+    if (skip) {
+      getLog().info("Skipping completion table generation");
+      return;
+    }
+    try (URLClassLoader grammarClassLoader = new URLClassLoader(toUrls(classpathElements),
+        getClass().getClassLoader())) {
+      ReflectionLexerAndParserFactory factory = new ReflectionLexerAndParserFactory(
+          grammarClassLoader.loadClass(lexerClass).asSubclass(Lexer.class),
+          grammarClassLoader.loadClass(parserClass).asSubclass(Parser.class));
+      Path tableFile = new CompletionTableGenerator(factory).generateInto(outputDirectory.toPath());
+      getLog().info("Generated completion table " + tableFile);
+    } catch (ClassNotFoundException | ClassCastException e) {
+      throw new MojoExecutionException("Cannot load grammar classes " + lexerClass + ", " + parserClass, e);
+    } catch (IOException e) {
+      throw new MojoExecutionException("Cannot write completion table into " + outputDirectory, e);
+    }
+  }
+
+  private static URL[] toUrls(List<String> classpathElements) throws MojoExecutionException {
+    URL[] urls = new URL[classpathElements.size()];
+    for (int i = 0; i < urls.length; ++i) {
+      try {
+        urls[i] = new File(classpathElements.get(i)).toURI().toURL();
+      } catch (MalformedURLException e) {
+        throw new MojoExecutionException("Invalid classpath element " + classpathElements.get(i), e);
+      }
+    }
+    return urls;
+  }
+}
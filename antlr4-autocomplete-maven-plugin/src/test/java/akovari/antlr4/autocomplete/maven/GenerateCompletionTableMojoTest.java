@@ -0,0 +1,108 @@
+package akovari.antlr4.autocomplete.maven;
+
+import akovari.antlr4.autocomplete.ReflectionLexerAndParserFactory;
+import akovari.antlr4.autocomplete.impl.CompletionTable;
+import org.antlr.v4.Tool;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class GenerateCompletionTableMojoTest {
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void execute_shouldGenerateALoadableTable() throws Exception {
+    Path classesDirectory = compileGrammar("grammar Query;",
+        "query: 'SELECT' ID (',' ID)* 'FROM' ID;",
+        "ID: [a-z]+;",
+        "WS: [ \\n] -> skip;");
+
+    GenerateCompletionTableMojo mojo = new GenerateCompletionTableMojo();
+    set(mojo, "lexerClass", "query.QueryLexer");
+    set(mojo, "parserClass", "query.QueryParser");
+    set(mojo, "outputDirectory", classesDirectory.toFile());
+    set(mojo, "classpathElements", Collections.singletonList(classesDirectory.toString()));
+    mojo.execute();
+
+    try (URLClassLoader classLoader = new URLClassLoader(new URL[]{classesDirectory.toUri().toURL()},
+        getClass().getClassLoader())) {
+      Class<? extends Lexer> lexerClass = classLoader.loadClass("query.QueryLexer").asSubclass(Lexer.class);
+      Class<? extends Parser> parserClass = classLoader.loadClass("query.QueryParser").asSubclass(Parser.class);
+      assertTrue(Files.exists(classesDirectory.resolve(CompletionTable.resourceNameFor(parserClass))));
+      CompletionTable table = CompletionTable.findFor(parserClass);
+      assertNotNull(table);
+      ReflectionLexerAndParserFactory factory = new ReflectionLexerAndParserFactory(lexerClass, parserClass);
+      assertTrue(table.matches(factory.createLexer(null).getATN(), factory.createParser(null).getATN()));
+    }
+  }
+
+  @Test
+  public void execute_skipped_shouldNotWriteAnything() throws Exception {
+    Path outputDirectory = temporaryFolder.newFolder("classes").toPath();
+    GenerateCompletionTableMojo mojo = new GenerateCompletionTableMojo();
+    set(mojo, "lexerClass", "missing.Lexer");
+    set(mojo, "parserClass", "missing.Parser");
+    set(mojo, "outputDirectory", outputDirectory.toFile());
+    set(mojo, "classpathElements", Collections.emptyList());
+    set(mojo, "skip", true);
+    mojo.execute();
+    try (Stream<Path> files = Files.list(outputDirectory)) {
+      assertEquals(0, files.count());
+    }
+  }
+
+  /**
+   * Generates the recognizers of the grammar into package query and compiles them.
+   * @return class output directory
+   */
+  private Path compileGrammar(String... grammarLines) throws Exception {
+    Path grammarDirectory = temporaryFolder.newFolder("grammar").toPath();
+    Path sourceDirectory = temporaryFolder.newFolder("generated-sources").toPath();
+    Path classesDirectory = temporaryFolder.newFolder("classes").toPath();
+    Path grammarFile = Files.write(grammarDirectory.resolve("Query.g4"), String.join("\n", grammarLines).getBytes());
+
+    Tool tool = new Tool(new String[]{"-o", sourceDirectory.toString(), "-package", "query", "-no-listener",
+        grammarFile.toString()});
+    tool.processGrammarsOnCommandLine();
+    assertEquals(0, tool.getNumErrors());
+
+    List<String> javacArguments = new ArrayList<>();
+    javacArguments.add("-classpath");
+    javacArguments.add(System.getProperty("java.class.path"));
+    javacArguments.add("-d");
+    javacArguments.add(classesDirectory.toString());
+    try (Stream<Path> files = Files.walk(sourceDirectory)) {
+      javacArguments.addAll(files.filter(file -> file.toString().endsWith(".java")).map(Path::toString)
+          .collect(Collectors.toList()));
+    }
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    assertEquals(0, compiler.run(null, null, null, javacArguments.toArray(new String[0])));
+    return classesDirectory;
+  }
+
+  private static void set(GenerateCompletionTableMojo mojo, String fieldName, Object value) throws Exception {
+    Field field = GenerateCompletionTableMojo.class.getDeclaredField(fieldName);
+    field.setAccessible(true);
+    field.set(mojo, value);
+  }
+}
@@ -4,47 +4,432 @@ import akovari.antlr4.autocomplete.impl.*;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.atn.ATNState;
 import org.antlr.v4.runtime.atn.AtomTransition;
+import org.antlr.v4.runtime.atn.RuleStopState;
+import org.antlr.v4.runtime.atn.RuleTransition;
 import org.antlr.v4.runtime.atn.SetTransition;
 import org.antlr.v4.runtime.atn.Transition;
-import org.antlr.v4.runtime.misc.Interval;
 
 import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * Suggests completions for given text, using a given ANTLR4 grammar.
  */
 public class Antlr4Completer {
   private static final Logger logger = Logger.getLogger(Antlr4Completer.class.getName());
+  private static final int DEGRADED_MAX_LEXER_STATES = 256;
 
   private final ParserWrapper parserWrapper;
   private final LexerWrapper lexerWrapper;
   private final String input;
 
   private final Map<ATNState, Integer> parserStateToTokenListIndexWhereLastVisited = new HashMap<>();
+  private final Map<ATNState, Set<String>> suggestionsByCaretParserState = new HashMap<>();
+
+  private Set<Integer> preferredRules = Collections.emptySet();
+  private final Deque<RuleFrame> ruleStack = new ArrayDeque<>();
+  private final Set<CompletionResult.CandidateRule> candidateRules = new HashSet<>();
+  private RuleFollowAnalyzer ruleFollowAnalyzer;
+
+  private int symbolLimit = 100;
+  private SymbolBatch symbolBatch;
+
+  private boolean caseInsensitive;
+  private int maxEditDistance;
+  private final Set<String> replacements = new HashSet<>();
+
+  private PrefixValidator prefixValidator;
+  private final Map<String, Boolean> viablePrefixes = new HashMap<>();
+
+  private final GrammarVersion version;
+  private int maxPhraseTokens = 1;
+  private boolean referenceWalk;
+  private CompletionResult.Quality quality = CompletionResult.Quality.FULL;
+  private DegradationPolicy degradationPolicy;
+  private boolean reportTokens = true;
+  private boolean collectStats;
+  private CompletionCounters counters;
+  private AtnProfile atnProfile;
+  private BooleanSupplier cancellation;
+  private CompletionDfa.State initialDfaState;
+  private CompletionDfa.State caretDfaState;
 
   public Antlr4Completer(LexerAndParserFactory lexerAndParserFactory, String input) {
-    this.lexerWrapper = new LexerWrapper(lexerAndParserFactory);
-    this.parserWrapper = new ParserWrapper(lexerAndParserFactory, lexerWrapper.getVocabulary());
+    this(new CompletionEngine(lexerAndParserFactory), input);
+  }
+
+  /**
+   * Completes the input with an engine shared between requests, see {@link CompletionEngine#newCompleter(String)}.
+   * @param engine engine of the grammar
+   * @param input text to complete
+   */
+  public Antlr4Completer(CompletionEngine engine, String input) {
+    this(engine.getVersion(), input);
+  }
+
+  /**
+   * @param version grammar version the completer sticks to, even when the engine is reloaded meanwhile
+   */
+  Antlr4Completer(GrammarVersion version, String input) {
+    this.version = version;
+    this.lexerWrapper = version.getLexerWrapper();
+    this.parserWrapper = version.getParserWrapper();
     this.input = input;
   }
 
+  /**
+   * Reports the given parser rules in {@link CompletionResult#getCandidateRules()} whenever the caret sits inside
+   * them, so that callers can complete e.g. table or column names from their own indexes.
+   * @param ruleNames names of the preferred parser rules, as defined in the grammar
+   * @return this completer
+   */
+  public Antlr4Completer withPreferredRules(String... ruleNames) {
+    Set<Integer> ruleIndices = new HashSet<>();
+    for (String ruleName : ruleNames) {
+      ruleIndices.add(parserWrapper.getRuleIndex(ruleName));
+    }
+    this.preferredRules = Collections.unmodifiableSet(ruleIndices);
+    return this;
+  }
+
+  /**
+   * Limits how many symbols are requested from each symbol provider, see
+   * {@link akovari.antlr4.autocomplete.impl.LexerFactory#getSymbolProvider(int, String)}.
+   * @param symbolLimit maximum number of symbols per provider, 100 by default
+   * @return this completer
+   */
+  public Antlr4Completer withSymbolLimit(int symbolLimit) {
+    this.symbolLimit = symbolLimit;
+    return this;
+  }
+
+  /**
+   * Matches the partial token at the caret case-insensitively and collapses casing variants of a token into one
+   * canonical suggestion. Tokens that do not extend the typed text exactly are reported in
+   * {@link CompletionResult#getReplacements()}.
+   * @return this completer
+   */
+  public Antlr4Completer withCaseInsensitiveMatching() {
+    return withFuzzyMatching(0);
+  }
+
+  /**
+   * Like {@link #withCaseInsensitiveMatching()}, additionally matching keywords within the given number of edits
+   * (insertions, deletions or substitutions) of the partial token.
+   * @param maxEditDistance maximum number of edits
+   * @return this completer
+   */
+  public Antlr4Completer withFuzzyMatching(int maxEditDistance) {
+    this.caseInsensitive = true;
+    this.maxEditDistance = maxEditDistance;
+    return this;
+  }
+
+  /**
+   * Validates suggestions by parsing the text completed with them with ANTLR's {@link org.antlr.v4.runtime.ParserInterpreter},
+   * SLL prediction first, on caches shared by the engine, see {@link PrefixValidator}. Unlike the default validation,
+   * which follows the parser ATN from the caret state only, it knows the rules being called, so it drops tokens that
+   * may only follow a rule when called from elsewhere, and it handles predicates and precedence.
+   * @return this completer
+   */
+  public Antlr4Completer withInterpreterValidation() {
+    this.prefixValidator = version.getPrefixValidator();
+    return this;
+  }
+
+  /**
+   * Completes whole phrases such as {@code ORDER BY}: a suggested token is followed by the keywords the grammar forces
+   * after it, up to the given number of tokens in total. Forced keywords are precomputed per grammar, see
+   * {@link PhraseIndex}, so phrases cost about as much as single tokens.
+   * @param maxPhraseTokens maximum number of tokens of a suggestion, 1 for single tokens
+   * @return this completer
+   */
+  public Antlr4Completer withPhrases(int maxPhraseTokens) {
+    if (maxPhraseTokens < 1) {
+      throw new IllegalArgumentException("A phrase has at least one token");
+    }
+    this.maxPhraseTokens = Math.min(maxPhraseTokens, PhraseIndex.MAX_PHRASE_TOKENS + 1);
+    return this;
+  }
+
+  /**
+   * Completes at the given quality level, cheaper but less precise than {@link CompletionResult.Quality#FULL}.
+   * Engines with a {@link DegradationPolicy} choose the level on their own.
+   * @param quality the quality level
+   * @return this completer
+   */
+  public Antlr4Completer withQuality(CompletionResult.Quality quality) {
+    this.quality = quality;
+    return this;
+  }
+
+  /**
+   * Completes at the level of the policy and reports the latency to it.
+   */
+  Antlr4Completer withDegradationPolicy(DegradationPolicy degradationPolicy) {
+    this.degradationPolicy = degradationPolicy;
+    return withQuality(degradationPolicy.getQuality());
+  }
+
+  /**
+   * Completes with the original algorithm, see {@link ReferenceWalk}: slower, sharing no code or cache with the faster
+   * modes, kept as the reference they are tested against. Options other than {@link #withoutTokens()} are ignored
+   * then.
+   * @return this completer
+   */
+  public Antlr4Completer withReferenceWalk() {
+    this.referenceWalk = true;
+    return this;
+  }
+
+  /**
+   * Leaves {@link CompletionResult#getTokens()} empty, for callers that only need the suggestions.
+   * @return this completer
+   */
+  public Antlr4Completer withoutTokens() {
+    this.reportTokens = false;
+    return this;
+  }
+
+  /**
+   * Attaches phase timings and work counters to the result, see {@link CompletionResult#getStats()}.
+   * @return this completer
+   */
+  public Antlr4Completer withStats() {
+    this.collectStats = true;
+    return this;
+  }
+
+  /**
+   * Records visits and time per ATN state into the given profiler, see {@link CompletionProfiler}.
+   * @param profiler profiler created for the engine of this completer
+   * @return this completer
+   */
+  public Antlr4Completer withProfiler(CompletionProfiler profiler) {
+    if (!profiler.isFor(version)) {
+      throw new IllegalArgumentException("The profiler was created for another engine or grammar version");
+    }
+    this.atnProfile = profiler.getAtnProfile();
+    return this;
+  }
+
+  /**
+   * Checks the given condition while walking the ATNs and aborts with {@link CompletionCancelledException} once it
+   * holds, e.g. when a newer request of the same user arrived, see {@link CompletionScheduler}.
+   * @param cancellation returns true when the completion is no longer needed
+   * @return this completer
+   */
+  public Antlr4Completer withCancellation(BooleanSupplier cancellation) {
+    this.cancellation = cancellation;
+    return this;
+  }
+
+  /**
+   * Starts the parser ATN walk from the kernel states of the given DFA state instead of the start state, the input
+   * being the text after the tokens that led to the kernel, see {@link ParserStateSimulator}. Rule context is not known
+   * then, so preferred rules cannot be tracked.
+   */
+  Antlr4Completer startingFrom(CompletionDfa.State kernel) {
+    this.initialDfaState = kernel;
+    return this;
+  }
+
+  /**
+   * @return whether the completion needs the whole input, so it cannot start from kernel states
+   */
+  boolean needsWholeInput() {
+    return isTrackingRuleContext() || prefixValidator != null || referenceWalk;
+  }
+
+  private boolean isTrackingRuleContext() {
+    return !preferredRules.isEmpty();
+  }
+
   public CompletionResult complete() {
+    // Counted as running, so that a reload releases this version only afterwards
+    version.enter();
+    long requestStartNanos = (degradationPolicy != null) ? System.nanoTime() : 0;
+    try {
+      return completeTokens();
+    } finally {
+      // Cancelled and failed requests count as well, they took the time too
+      if (degradationPolicy != null) {
+        degradationPolicy.recordLatency(System.nanoTime() - requestStartNanos);
+      }
+      version.exit();
+    }
+  }
+
+  private CompletionResult completeTokens() {
     // TODO filter suggestion from line
-    return runParserAtnAndCollectSuggestions(lexerWrapper.tokenizeNonDefaultChannel(this.input));
+    candidateRules.clear();
+    replacements.clear();
+    viablePrefixes.clear();
+    ruleFollowAnalyzer = new RuleFollowAnalyzer(parserWrapper, version.getCompletionTable());
+    symbolBatch = new SymbolBatch(symbolLimit);
+    counters = collectStats ? new CompletionCounters() : null;
+    CompletionEvent completionEvent = new CompletionEvent();
+    completionEvent.begin();
+    long startNanos = (counters != null) ? System.nanoTime() : 0;
+    TokenizationEvent tokenizationEvent = new TokenizationEvent();
+    tokenizationEvent.begin();
+    LexerWrapper.TokenizationResult tokenizationResult = lexerWrapper.tokenizeNonDefaultChannel(this.input);
+    tokenizationEvent.end();
+    if (counters != null) {
+      counters.tokenizationNanos = System.nanoTime() - startNanos;
+    }
+    if (tokenizationEvent.shouldCommit()) {
+      tokenizationEvent.inputLength = input.length();
+      tokenizationEvent.tokens = tokenizationResult.tokens.size();
+      tokenizationEvent.untokenizedLength = tokenizationResult.untokenizedText.length();
+      tokenizationEvent.commit(parserWrapper, lexerWrapper);
+    }
+    CompletionResult result = referenceWalk
+        ? completeWithReferenceWalk(tokenizationResult) : runParserAtnAndCollectSuggestions(tokenizationResult);
+    completionEvent.end();
+    if (completionEvent.shouldCommit()) {
+      completionEvent.inputLength = input.length();
+      completionEvent.tokens = tokenizationResult.tokens.size();
+      completionEvent.suggestions = result.getSuggestions().size();
+      completionEvent.commit(parserWrapper, lexerWrapper);
+    }
+    return result;
+  }
+
+  private CompletionResult completeWithReferenceWalk(LexerWrapper.TokenizationResult tokenizationResult) {
+    List<CompletionResult.InputToken> tokens = reportTokens
+        ? new TokenArrayList(input, tokenizationResult.tokens, lexerWrapper.getVocabulary())
+        : Collections.emptyList();
+    Set<String> suggestions = new ReferenceWalk(lexerWrapper, parserWrapper, input).suggest(tokenizationResult);
+    return new CompletionResult(tokens, tokenizationResult.untokenizedText, suggestions, Collections.emptySet(),
+        Collections.emptySet(), null, CompletionResult.Quality.FULL);
   }
 
   private CompletionResult runParserAtnAndCollectSuggestions(LexerWrapper.TokenizationResult tokenizationResult) {
-    ATNState initialState = this.parserWrapper.getAtnState(0);
-    logger.fine("Parser initial state: " + initialState);
-    List<CompletionResult.InputToken> tokens = tokenizationResult.tokens
-        .stream()
-        .map(token -> new CompletionResult.InputToken(lexerWrapper.getVocabulary().getDisplayName(token.getType()), token.getText()))
-        .collect(Collectors.toUnmodifiableList());
+    Set<ATNState> initialStates = (initialDfaState != null)
+        ? initialDfaState.getKernel() : Collections.singleton(this.parserWrapper.getAtnState(0));
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Parser initial states: " + initialStates);
+    }
+    List<CompletionResult.InputToken> tokens = reportTokens
+        ? new TokenArrayList(input, tokenizationResult.tokens, lexerWrapper.getVocabulary())
+        : Collections.emptyList();
     String untokenizedText = tokenizationResult.untokenizedText;
-    return new CompletionResult(tokens, untokenizedText, parseAndCollectTokenSuggestions(initialState, tokenizationResult, 0));
+    long startNanos = (counters != null) ? System.nanoTime() : 0;
+    caretDfaState = null;
+    Set<String> suggestions = new HashSet<>(collectTokenSuggestions(initialStates, tokenizationResult));
+    UsageCounters usageCounters = version.getUsageCounters();
+    Set<ATNState> caretKernel = (usageCounters != null) ? caretKernel(tokenizationResult) : null;
+    LexerWrapper.TokenizationResult partialSymbolTokenizationResult = asPartialSymbol(tokenizationResult);
+    if (partialSymbolTokenizationResult != null) {
+      suggestions.addAll(collectTokenSuggestions(initialStates, partialSymbolTokenizationResult));
+    }
+    if (counters != null) {
+      counters.parserAtnNanos = System.nanoTime() - startNanos - counters.lexerSuggestionNanos - counters.validationNanos;
+    }
+    CompletionResult result = new CompletionResult(tokens, untokenizedText, Collections.unmodifiableSet(suggestions),
+        Collections.unmodifiableSet(new HashSet<>(replacements)), Collections.unmodifiableSet(new HashSet<>(candidateRules)),
+        (counters != null) ? new CompletionStats(counters) : null, quality);
+    return (caretKernel != null) ? result.withUsage(usageCounters, caretKernel) : result;
+  }
+
+  /**
+   * @return parser states after the tokens, the context usage is counted in, from the DFA walk when there was one
+   */
+  private Set<ATNState> caretKernel(LexerWrapper.TokenizationResult tokenizationResult) {
+    if (caretDfaState != null) {
+      return caretDfaState.getKernel();
+    }
+    CompletionDfa completionDfa = version.getCompletionDfa();
+    CompletionDfa.State dfaState = (initialDfaState != null) ? initialDfaState : completionDfa.getStartState();
+    for (int i = 0; i < tokenizationResult.tokens.size() && !dfaState.getKernel().isEmpty(); ++i) {
+      dfaState = completionDfa.advance(dfaState, tokenizationResult.tokens.get(i).getType());
+    }
+    return dfaState.getKernel();
+  }
+
+  private Set<String> collectTokenSuggestions(Set<ATNState> initialStates, LexerWrapper.TokenizationResult tokenizationResult) {
+    suggestionsByCaretParserState.clear();
+    if (!isTrackingRuleContext()) {
+      return collectTokenSuggestionsFromDfa(tokenizationResult);
+    }
+    Set<String> suggestions = new HashSet<>();
+    for (ATNState initialState : initialStates) {
+      parserStateToTokenListIndexWhereLastVisited.clear();
+      ruleStack.clear();
+      ruleStack.push(new RuleFrame(candidateRule(initialState.ruleIndex, 0), null));
+      suggestions.addAll(parseAndCollectTokenSuggestions(initialState, tokenizationResult, 0));
+    }
+    return suggestions;
+  }
+
+  /**
+   * Without rule context, the parser states reached after the tokens are all that matters, and the shared
+   * {@link CompletionDfa} knows them for token sequences seen before, see {@link ParserStateSimulator}.
+   */
+  private Set<String> collectTokenSuggestionsFromDfa(LexerWrapper.TokenizationResult tokenizationResult) {
+    CompletionDfa completionDfa = version.getCompletionDfa();
+    CompletionDfa.State dfaState = (initialDfaState != null) ? initialDfaState : completionDfa.getStartState();
+    int tokenCount = tokenizationResult.tokens.size();
+    IntConsumer stateVisitor = this::visitSimulatedParserState;
+    for (int i = 0; i < tokenCount && !dfaState.getKernel().isEmpty(); ++i) {
+      checkCancellation();
+      dfaState = completionDfa.advance(dfaState, tokenizationResult.tokens.get(i).getType(), stateVisitor);
+      if (counters != null) {
+        counters.parserTransitionsFollowed++;
+      }
+    }
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Parser states after " + tokenCount + " tokens: " + dfaState);
+    }
+    if (caretDfaState == null) {
+      caretDfaState = dfaState;
+    }
+    Set<String> suggestions = new HashSet<>();
+    for (ATNState caretState : dfaState.getKernel()) {
+      parserStateToTokenListIndexWhereLastVisited.clear();
+      suggestions.addAll(parseAndCollectTokenSuggestions(caretState, tokenizationResult, tokenCount));
+    }
+    return suggestions;
+  }
+
+  /**
+   * Counts a parser state the {@link CompletionDfa} visited computing a transition it had not memoized yet.
+   */
+  private void visitSimulatedParserState(int stateNumber) {
+    if (counters != null) {
+      counters.parserStatesVisited++;
+    }
+    if (atnProfile != null) {
+      atnProfile.visitParserState(stateNumber);
+    }
+  }
+
+  /**
+   * A name typed right before the caret usually lexes as a complete identifier token. When a symbol provider serves
+   * the type of that token, the token is completed as a partial token as well.
+   */
+  private LexerWrapper.TokenizationResult asPartialSymbol(LexerWrapper.TokenizationResult tokenizationResult) {
+    if (!tokenizationResult.untokenizedText.isEmpty() || tokenizationResult.tokens.isEmpty()) {
+      return null;
+    }
+    int lastTokenIndex = tokenizationResult.tokens.size() - 1;
+    Token lastToken = tokenizationResult.tokens.get(lastTokenIndex);
+    boolean lastTokenEndsAtCaret = (lastToken.getStopIndex() + 1 == input.codePointCount(0, input.length()));
+    if (!lastTokenEndsAtCaret || lexerWrapper.getSymbolProvider(lastToken.getType()) == null) {
+      return null;
+    }
+    LexerWrapper.TokenizationResult result = new LexerWrapper.TokenizationResult();
+    result.tokens = tokenizationResult.tokens.subList(0, lastTokenIndex);
+    result.untokenizedText = lastToken.getText();
+    return result;
+  }
+
+  private CompletionResult.CandidateRule candidateRule(int ruleIndex, int startTokenIndex) {
+    return new CompletionResult.CandidateRule(parserWrapper.getRuleName(ruleIndex), ruleIndex, startTokenIndex);
   }
 
   /**
@@ -54,11 +439,20 @@ public class Antlr4Completer {
   private Set<String> parseAndCollectTokenSuggestions(ATNState parserState, LexerWrapper.TokenizationResult tokenizationResult, int tokenListIndex) {
     Set<String> candidates = new HashSet<>();
     if (didVisitParserStateOnThisTokenIndex(parserState, tokenListIndex)) {
-      logger.fine("State " + parserState + " had already been visited while processing token "
-          + tokenListIndex + ", backtracking to avoid infinite loop.");
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("State " + parserState + " had already been visited while processing token "
+            + tokenListIndex + ", backtracking to avoid infinite loop.");
+      }
       return candidates;
     }
+    checkCancellation();
     Integer previousTokenListIndexForThisState = setParserStateLastVisitedOnThisTokenIndex(parserState, tokenListIndex);
+    if (counters != null) {
+      counters.parserStatesVisited++;
+    }
+    if (atnProfile != null) {
+      atnProfile.visitParserState(parserState.stateNumber);
+    }
     try {
       if (logger.isLoggable(Level.FINE)) {
         logger.fine("State: " + parserWrapper.toString(parserState));
@@ -67,11 +461,15 @@ public class Antlr4Completer {
 
       if (!haveMoreTokens(tokenizationResult, tokenListIndex)) { // stop condition for recursion
         candidates.addAll(suggestNextTokensForParserState(parserState, tokenizationResult));
+        collectCandidateRules(parserState, tokenListIndex);
         return candidates;
       }
       for (Transition trans : parserState.getTransitions()) {
+        if (counters != null && trans.isEpsilon()) {
+          counters.parserTransitionsFollowed++;
+        }
         if (trans.isEpsilon()) {
-          candidates.addAll(handleEpsilonTransition(trans, tokenizationResult, tokenListIndex));
+          candidates.addAll(handleEpsilonTransition(parserState, trans, tokenizationResult, tokenListIndex));
         } else if (trans instanceof AtomTransition) {
           candidates.addAll(handleAtomicTransition((AtomTransition) trans, tokenizationResult, tokenListIndex));
         } else {
@@ -84,6 +482,12 @@ public class Antlr4Completer {
     return candidates;
   }
 
+  private void checkCancellation() {
+    if (cancellation != null && cancellation.getAsBoolean()) {
+      throw new CompletionCancelledException();
+    }
+  }
+
   private boolean didVisitParserStateOnThisTokenIndex(ATNState parserState, Integer currentTokenListIndex) {
     Integer lastVisitedThisStateAtTokenListIndex = parserStateToTokenListIndexWhereLastVisited.get(parserState);
     return currentTokenListIndex.equals(lastVisitedThisStateAtTokenListIndex);
@@ -101,21 +505,73 @@ public class Antlr4Completer {
     return tokenListIndex < tokenizationResult.tokens.size();
   }
 
-  private Set<String> handleEpsilonTransition(Transition trans, LexerWrapper.TokenizationResult tokenizationResult, int tokenListIndex) {
+  private Set<String> handleEpsilonTransition(ATNState parserState, Transition trans, LexerWrapper.TokenizationResult tokenizationResult, int tokenListIndex) {
     // Epsilon transitions don't consume a token, so don't move the index
+    if (!isTrackingRuleContext()) {
+      return parseAndCollectTokenSuggestions(trans.target, tokenizationResult, tokenListIndex);
+    }
+    if (trans instanceof RuleTransition) {
+      ruleStack.push(new RuleFrame(candidateRule(trans.target.ruleIndex, tokenListIndex),
+          ((RuleTransition) trans).followState));
+      try {
+        return parseAndCollectTokenSuggestions(trans.target, tokenizationResult, tokenListIndex);
+      } finally {
+        ruleStack.pop();
+      }
+    }
+    if (parserState instanceof RuleStopState) {
+      // Leaving a rule returns to its caller only, the other transitions lead to the follow states of other callers
+      RuleFrame leftRule = ruleStack.peek();
+      if (leftRule == null || leftRule.followState != trans.target) {
+        return Collections.emptySet();
+      }
+      ruleStack.pop();
+      try {
+        return parseAndCollectTokenSuggestions(trans.target, tokenizationResult, tokenListIndex);
+      } finally {
+        ruleStack.push(leftRule);
+      }
+    }
     return parseAndCollectTokenSuggestions(trans.target, tokenizationResult, tokenListIndex);
   }
 
+  private void collectCandidateRules(ATNState parserState, int tokenListIndex) {
+    if (!isTrackingRuleContext()) {
+      return;
+    }
+    List<ATNState> returnStates = new ArrayList<>(ruleStack.size());
+    for (RuleFrame frame : ruleStack) {
+      if (frame.followState != null) {
+        returnStates.add(frame.followState);
+      }
+    }
+    RuleFollowAnalyzer.FollowSet followSet = ruleFollowAnalyzer.followSetOf(parserState, returnStates);
+    // The innermost rules the caret can only leave are not reported
+    int depth = 0;
+    for (RuleFrame frame : ruleStack) {
+      if (depth++ >= followSet.rulesLeft && preferredRules.contains(frame.rule.getRuleIndex())) {
+        candidateRules.add(frame.rule);
+      }
+    }
+    for (int ruleIndex : followSet.enteredRules) {
+      if (preferredRules.contains(ruleIndex)) {
+        candidateRules.add(candidateRule(ruleIndex, tokenListIndex));
+      }
+    }
+  }
+
   private Set<String> handleAtomicTransition(AtomTransition trans, LexerWrapper.TokenizationResult tokenizationResult, int tokenListIndex) {
     Token nextToken = tokenizationResult.tokens.get(tokenListIndex);
-    int nextTokenType = tokenizationResult.tokens.get(tokenListIndex).getType();
+    int nextTokenType = nextToken.getType();
     boolean nextTokenMatchesTransition = (trans.label == nextTokenType);
+    logTransition(nextToken, trans, nextTokenMatchesTransition, Token.INVALID_TYPE);
     if (nextTokenMatchesTransition) {
-      logger.fine("Token " + nextToken + " following transition: " + parserWrapper.toString(trans));
+      if (counters != null) {
+        counters.parserTransitionsFollowed++;
+      }
       return Collections.unmodifiableSet(parseAndCollectTokenSuggestions(trans.target, tokenizationResult, tokenListIndex + 1));
     } else {
-      logger.fine("Token " + nextToken + " NOT following transition: " + parserWrapper.toString(trans));
-      return Collections.unmodifiableSet(new HashSet<>());
+      return Collections.emptySet();
     }
   }
 
@@ -125,76 +581,178 @@ public class Antlr4Completer {
     int nextTokenType = nextToken.getType();
     for (int transitionTokenType : trans.label().toList()) {
       boolean nextTokenMatchesTransition = (transitionTokenType == nextTokenType);
+      logTransition(nextToken, trans, nextTokenMatchesTransition, transitionTokenType);
       if (nextTokenMatchesTransition) {
-        logger.fine("Token " + nextToken + " following transition: " + parserWrapper.toString(trans) + " to " + transitionTokenType);
+        if (counters != null) {
+          counters.parserTransitionsFollowed++;
+        }
         candidates.addAll(parseAndCollectTokenSuggestions(trans.target, tokenizationResult, tokenListIndex + 1));
-      } else {
-        logger.fine("Token " + nextToken + " NOT following transition: " + parserWrapper.toString(trans) + " to " + transitionTokenType);
       }
     }
     return Collections.unmodifiableSet(candidates);
   }
 
+  private void logTransition(Token nextToken, Transition trans, boolean followed, int setTokenType) {
+    if (!logger.isLoggable(Level.FINE)) {
+      return;
+    }
+    String setTokenTypeStr = (setTokenType == Token.INVALID_TYPE) ? "" : " to " + setTokenType;
+    logger.fine("Token " + nextToken + (followed ? " following" : " NOT following") + " transition: "
+        + parserWrapper.toString(trans) + setTokenTypeStr);
+  }
+
   private Set<String> suggestNextTokensForParserState(ATNState parserState, LexerWrapper.TokenizationResult tokenizationResult) {
-    Set<Integer> transitionLabels = new HashSet<>();
-    fillParserTransitionLabels(parserState, transitionLabels, new HashSet<>());
-    TokenSuggester tokenSuggester = new TokenSuggester(tokenizationResult.untokenizedText, lexerWrapper);
+    Set<String> suggestions = suggestionsByCaretParserState.get(parserState);
+    if (counters != null) {
+      if (suggestions == null) {
+        counters.cacheMisses++;
+      } else {
+        counters.cacheHits++;
+      }
+    }
+    if (suggestions == null) {
+      suggestions = computeNextTokensForParserState(parserState, tokenizationResult);
+      suggestionsByCaretParserState.put(parserState, suggestions);
+    }
+    return suggestions;
+  }
+
+  private Set<String> computeNextTokensForParserState(ATNState parserState, LexerWrapper.TokenizationResult tokenizationResult) {
+    SuggestionExpansionEvent expansionEvent = new SuggestionExpansionEvent();
+    expansionEvent.begin();
+    long expansionStartNanos = (atnProfile != null) ? System.nanoTime() : 0;
+    Set<Integer> transitionLabels = ruleFollowAnalyzer.followSetOf(parserState).tokenTypes;
+    TokenSuggester tokenSuggester = new TokenSuggester(tokenizationResult.untokenizedText, lexerWrapper, symbolBatch);
+    if (caseInsensitive) {
+      tokenSuggester.withCaseInsensitiveMatching(maxEditDistance);
+    }
+    long startNanos = 0;
+    if (counters != null) {
+      tokenSuggester.withCounters(counters);
+      startNanos = System.nanoTime();
+    }
+    if (atnProfile != null) {
+      tokenSuggester.withProfile(atnProfile);
+    }
+    if (cancellation != null) {
+      tokenSuggester.withCancellation(cancellation);
+    }
+    if (quality == CompletionResult.Quality.CAPPED) {
+      tokenSuggester.withMaxLexerStates(DEGRADED_MAX_LEXER_STATES);
+    } else if (quality == CompletionResult.Quality.CACHED_ONLY) {
+      tokenSuggester.withCachedSuggestionsOnly();
+    }
     Collection<String> suggestions = tokenSuggester.suggest(transitionLabels);
-    logger.fine("WILL SUGGEST TOKENS FOR STATE: " + parserState);
-    return parseSuggestionsAndAddValidOnes(parserState, suggestions, tokenizationResult);
+    if (counters != null) {
+      counters.lexerSuggestionNanos += System.nanoTime() - startNanos;
+    }
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("WILL SUGGEST TOKENS FOR STATE: " + parserState);
+    }
+    Map<String, Token> suggestedTokens = (maxPhraseTokens > 1) ? new HashMap<>() : null;
+    Set<String> validSuggestions = parseSuggestionsAndAddValidOnes(parserState, suggestions, this.input, tokenizationResult,
+        suggestedTokens);
+    if (caseInsensitive) {
+      collectReplacements(parserState, tokenSuggester, validSuggestions, tokenizationResult);
+    }
+    if (suggestedTokens != null) {
+      validSuggestions = appendPhrases(parserState, validSuggestions, suggestedTokens);
+    }
+    if (atnProfile != null) {
+      atnProfile.addParserStateNanos(parserState.stateNumber, System.nanoTime() - expansionStartNanos);
+    }
+    expansionEvent.end();
+    if (expansionEvent.shouldCommit()) {
+      expansionEvent.parserState = parserState.stateNumber;
+      expansionEvent.inputLength = input.length();
+      expansionEvent.expectedTokenTypes = transitionLabels.size();
+      expansionEvent.candidates = suggestions.size();
+      expansionEvent.suggestions = validSuggestions.size();
+      expansionEvent.commit(parserWrapper, lexerWrapper);
+    }
+    return validSuggestions;
   }
 
-  private void fillParserTransitionLabels(ATNState parserState, Collection<Integer> result, Set<TransitionWrapper> visitedTransitions) {
-    for (Transition trans : parserState.getTransitions()) {
-      TransitionWrapper transWrapper = new TransitionWrapper(parserState, trans);
-      if (visitedTransitions.contains(transWrapper)) {
-        logger.fine("Not following visited " + transWrapper);
-        continue;
+  private void collectReplacements(ATNState parserState, TokenSuggester tokenSuggester, Set<String> validSuggestions, LexerWrapper.TokenizationResult tokenizationResult) {
+    Set<String> replacementCandidates = new HashSet<>(tokenSuggester.getReplacements());
+    tokenSuggester.getReplacementsByCaseAdaptedSuggestion().forEach((suggestion, replacement) -> {
+      if (validSuggestions.contains(suggestion)) {
+        replacementCandidates.remove(replacement); // the lexer accepts the typed casing, no need to replace it
       }
-      if (trans.isEpsilon()) {
-        try {
-          visitedTransitions.add(transWrapper);
-          fillParserTransitionLabels(trans.target, result, visitedTransitions);
-        } finally {
-          visitedTransitions.remove(transWrapper);
-        }
-      } else if (trans instanceof AtomTransition) {
-        int label = ((AtomTransition) trans).label;
-        if (label >= 1) { // EOF would be -1
-          result.add(label);
-        }
-      } else if (trans instanceof SetTransition) {
-        for (Interval interval : trans.label().getIntervals()) {
-          for (int i = interval.a; i <= interval.b; ++i) {
-            result.add(i);
-          }
-        }
-      }
-    }
+    });
+    String inputBeforePartialToken = input.substring(0, input.length() - tokenizationResult.untokenizedText.length());
+    replacements.addAll(parseSuggestionsAndAddValidOnes(parserState, replacementCandidates, inputBeforePartialToken,
+        tokenizationResult, null));
   }
 
-  private Set<String> parseSuggestionsAndAddValidOnes(ATNState parserState, Collection<String> suggestions, LexerWrapper.TokenizationResult tokenizationResult) {
+  /**
+   * @param suggestedTokens receives the token each valid suggestion completes, if not null
+   */
+  private Set<String> parseSuggestionsAndAddValidOnes(ATNState parserState, Collection<String> suggestions, String inputBeforeSuggestion, LexerWrapper.TokenizationResult tokenizationResult,
+                                                      Map<String, Token> suggestedTokens) {
+    if (quality != CompletionResult.Quality.FULL) {
+      return Collections.unmodifiableSet(new HashSet<>(suggestions));
+    }
     Set<String> candidates = new HashSet<>();
+    long startNanos = (counters != null) ? System.nanoTime() : 0;
     for (String suggestion : suggestions) {
-      logger.fine("CHECKING suggestion: " + suggestion);
-      Token addedToken = getAddedToken(suggestion, tokenizationResult);
-      if (isParseableWithAddedToken(parserState, addedToken, new HashSet<>())) {
+      checkCancellation();
+      String completedText = inputBeforeSuggestion + suggestion;
+      List<? extends Token> completedTextTokens = this.lexerWrapper.tokenizeNonDefaultChannel(completedText).tokens;
+      if (isParseableWithSuggestion(parserState, completedText, completedTextTokens, tokenizationResult)) {
         candidates.add(suggestion);
-      } else {
+        if (suggestedTokens != null) {
+          suggestedTokens.put(suggestion, completedTextTokens.get(completedTextTokens.size() - 1));
+        }
+      } else if (logger.isLoggable(Level.FINE)) {
         logger.fine("DROPPING non-parseable suggestion: " + suggestion);
       }
     }
+    if (counters != null) {
+      counters.validationNanos += System.nanoTime() - startNanos;
+      counters.candidatesProduced += suggestions.size();
+      counters.candidatesRejected += suggestions.size() - candidates.size();
+    }
     return Collections.unmodifiableSet(candidates);
   }
 
-  private Token getAddedToken(String suggestedCompletion, LexerWrapper.TokenizationResult tokenizationResult) {
-    String completedText = this.input + suggestedCompletion;
-    List<? extends Token> completedTextTokens = this.lexerWrapper.tokenizeNonDefaultChannel(completedText).tokens;
+  /**
+   * Extends each suggestion by the keywords the grammar forces after its token.
+   */
+  private Set<String> appendPhrases(ATNState parserState, Set<String> suggestions, Map<String, Token> suggestedTokens) {
+    PhraseIndex phraseIndex = version.getPhraseIndex();
+    Set<String> phrases = new HashSet<>();
+    for (String suggestion : suggestions) {
+      Token suggestedToken = suggestedTokens.get(suggestion);
+      if (suggestedToken == null) {
+        phrases.add(suggestion); // not validated, so its token is not known
+        continue;
+      }
+      PhraseIndex.Phrase phrase = phraseIndex.phraseAfter(parserState, suggestedToken.getType());
+      phrases.add(phrase.appendTo(suggestion, suggestedToken.getText(), maxPhraseTokens - 1));
+    }
+    return Collections.unmodifiableSet(phrases);
+  }
+
+  private boolean isParseableWithSuggestion(ATNState parserState, String completedText, List<? extends Token> completedTextTokens,
+                                            LexerWrapper.TokenizationResult tokenizationResult) {
     if (completedTextTokens.size() <= tokenizationResult.tokens.size()) {
-      return null; // Completion didn't yield whole token, could be just a token fragment
+      return false; // Completion didn't yield whole token, could be just a token fragment
+    }
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("TOKENS IN COMPLETED TEXT: " + completedTextTokens);
+    }
+    if (prefixValidator != null) {
+      // Independent of the caret state, so each completed text is parsed once per request
+      Boolean viablePrefix = viablePrefixes.get(completedText);
+      if (viablePrefix == null) {
+        viablePrefix = prefixValidator.isViablePrefix(completedTextTokens);
+        viablePrefixes.put(completedText, viablePrefix);
+      }
+      return viablePrefix;
     }
-    logger.fine("TOKENS IN COMPLETED TEXT: " + completedTextTokens);
-    return completedTextTokens.get(completedTextTokens.size() - 1);
+    Token addedToken = completedTextTokens.get(completedTextTokens.size() - 1);
+    return isParseableWithAddedToken(parserState, addedToken, new HashSet<>());
   }
 
   private boolean isParseableWithAddedToken(ATNState parserState, Token newToken, Set<TransitionWrapper> visitedTransitions) {
@@ -234,4 +792,20 @@ public class Antlr4Completer {
     }
     return false;
   }
+
+  /**
+   * A rule being walked, with the state its caller continues in.
+   */
+  private static final class RuleFrame {
+    final CompletionResult.CandidateRule rule;
+    /**
+     * Follow state of the rule transition that entered the rule, null for the start rule.
+     */
+    final ATNState followState;
+
+    RuleFrame(CompletionResult.CandidateRule rule, ATNState followState) {
+      this.rule = rule;
+      this.followState = followState;
+    }
+  }
 }
@@ -0,0 +1,13 @@
+package akovari.antlr4.autocomplete;
+
+/**
+ * Thrown by {@link Antlr4Completer#complete()} when its cancellation check, see
+ * {@link Antlr4Completer#withCancellation(java.util.function.BooleanSupplier)}, reported the request as cancelled.
+ */
+public class CompletionCancelledException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public CompletionCancelledException() {
+    super("Completion cancelled", null, false, false);
+  }
+}
@@ -0,0 +1,778 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.impl.AtnFingerprint;
+import akovari.antlr4.autocomplete.impl.LexerAndParserFactory;
+import akovari.antlr4.autocomplete.impl.LexerWrapper;
+import akovari.antlr4.autocomplete.impl.ParserWrapper;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.*;
+import org.antlr.v4.runtime.misc.IntervalSet;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Predicts the completion cost of a grammar from its ATNs alone, without completing anything, e.g. to fail the build of
+ * a grammar change that would make completion slow. Run it from the command line:
+ * <pre>
+ * java akovari.antlr4.autocomplete.CompletionCostAnalyzer my.Lexer my.Parser --max-expansion 500
+ * </pre>
+ * The report is printed as JSON, and the exit code is 1 when the grammar exceeds one of the given thresholds. Use
+ * {@link CompletionProfiler} to measure the cost of an actual workload instead.
+ */
+public class CompletionCostAnalyzer {
+  /**
+   * Languages with more words are not enumerated as keywords.
+   */
+  public static final long HUGE_LANGUAGE_SIZE = 256;
+  private static final int DEFAULT_STATE_LIMIT = 20;
+
+  private final LexerAndParserFactory lexerAndParserFactory;
+  private int stateLimit = DEFAULT_STATE_LIMIT;
+
+  public CompletionCostAnalyzer(LexerAndParserFactory lexerAndParserFactory) {
+    this.lexerAndParserFactory = lexerAndParserFactory;
+  }
+
+  /**
+   * @param stateLimit maximum number of parser states with the highest epsilon-closure fan-out in the report, 20 by
+   * default
+   */
+  public CompletionCostAnalyzer withStateLimit(int stateLimit) {
+    this.stateLimit = stateLimit;
+    return this;
+  }
+
+  public Report analyze() {
+    LexerWrapper lexerWrapper = new LexerWrapper(lexerAndParserFactory);
+    ParserWrapper parserWrapper = new ParserWrapper(lexerAndParserFactory, lexerWrapper.getVocabulary());
+    ATN parserAtn = parserWrapper.getAtn();
+    int[][] closures = new int[parserAtn.states.size()][];
+    for (ATNState parserState : parserAtn.states) {
+      if (parserState != null) {
+        closures[parserState.stateNumber] = epsilonClosure(parserAtn, parserState);
+      }
+    }
+    List<List<String>> leftRecursiveCycles = findLeftRecursiveCycles(parserWrapper);
+    return new Report(AtnFingerprint.of(lexerWrapper.getAtn(), parserAtn), analyzeLexerRules(lexerWrapper),
+        analyzeParserRules(parserWrapper, closures, leftRecursiveCycles), analyzeParserStates(parserWrapper, closures),
+        leftRecursiveCycles);
+  }
+
+  private List<LexerRuleCost> analyzeLexerRules(LexerWrapper lexerWrapper) {
+    ATN atn = lexerWrapper.getAtn();
+    String[] ruleNames = lexerWrapper.getRuleNames();
+    // TokenSuggester leaves rule stop states to every caller, so it walks the ATN exactly as the transitions go, and
+    // its loop guard stops the walk in every state of a cycle
+    boolean[] onCycle = statesOnCycles(atn.states.size(), stateNumber -> successors(atn.states.get(stateNumber)));
+    long[] languageSizes = new long[ruleNames.length];
+    Arrays.fill(languageSizes, -2);
+    List<LexerRuleCost> costs = new ArrayList<>();
+    for (int ruleIndex = 0; ruleIndex < ruleNames.length; ++ruleIndex) {
+      long languageSize = languageSize(atn, ruleIndex, languageSizes);
+      int setTransitions = 0;
+      long maxSetTransitionSize = 0;
+      int loopGuardStates = 0;
+      for (int stateNumber : reachableStates(atn.ruleToStartState[ruleIndex])) {
+        ATNState lexerState = atn.states.get(stateNumber);
+        if (onCycle[stateNumber]) {
+          ++loopGuardStates;
+        }
+        if (lexerState.ruleIndex != ruleIndex) {
+          continue;
+        }
+        for (Transition trans : lexerState.getTransitions()) {
+          if (trans instanceof SetTransition || trans instanceof RangeTransition) {
+            ++setTransitions;
+            maxSetTransitionSize = Math.max(maxSetTransitionSize, labelSize(trans, Lexer.MIN_CHAR_VALUE, Lexer.MAX_CHAR_VALUE));
+          }
+        }
+      }
+      int tokenType = (atn.ruleToTokenType == null) ? 0 : atn.ruleToTokenType[ruleIndex];
+      costs.add(new LexerRuleCost(ruleNames[ruleIndex], tokenType, languageSize, setTransitions, maxSetTransitionSize,
+          loopGuardStates));
+    }
+    return costs;
+  }
+
+  /**
+   * @return number of paths through the rule, which bounds the number of words of its language, -1 when it is
+   * infinite, {@link Long#MAX_VALUE} when it does not fit
+   */
+  private static long languageSize(ATN atn, int ruleIndex, long[] languageSizes) {
+    if (languageSizes[ruleIndex] == -3) {
+      return -1; // recursive rule
+    }
+    if (languageSizes[ruleIndex] == -2) {
+      languageSizes[ruleIndex] = -3;
+      languageSizes[ruleIndex] = pathCount(atn, atn.ruleToStartState[ruleIndex], languageSizes, new HashMap<>());
+    }
+    return languageSizes[ruleIndex];
+  }
+
+  private static long pathCount(ATN atn, ATNState lexerState, long[] languageSizes, Map<ATNState, Long> pathCounts) {
+    if (lexerState instanceof RuleStopState) {
+      return 1;
+    }
+    Long known = pathCounts.get(lexerState);
+    if (known != null) {
+      return known;
+    }
+    pathCounts.put(lexerState, -1L); // a cycle within the rule
+    long count = 0;
+    for (Transition trans : lexerState.getTransitions()) {
+      long words;
+      ATNState next = trans.target;
+      if (trans instanceof RuleTransition) {
+        words = languageSize(atn, ((RuleTransition) trans).ruleIndex, languageSizes);
+        next = ((RuleTransition) trans).followState;
+      } else {
+        words = trans.isEpsilon() ? 1 : labelSize(trans, Lexer.MIN_CHAR_VALUE, Lexer.MAX_CHAR_VALUE);
+      }
+      long continuations = pathCount(atn, next, languageSizes, pathCounts);
+      if (words < 0 || continuations < 0) {
+        count = -1;
+        break;
+      }
+      count = saturatedAdd(count, saturatedMultiply(words, continuations));
+    }
+    pathCounts.put(lexerState, count);
+    return count;
+  }
+
+  private List<ParserRuleCost> analyzeParserRules(ParserWrapper parserWrapper, int[][] closures,
+                                                  List<List<String>> leftRecursiveCycles) {
+    ATN atn = parserWrapper.getAtn();
+    boolean[] nullable = nullableRules(atn);
+    Set<Integer> leftRecursiveRules = new HashSet<>();
+    leftRecursiveCycles.forEach(cycle -> cycle.forEach(
+        ruleName -> leftRecursiveRules.add(parserWrapper.getRuleIndex(ruleName))));
+    int[] stateCounts = new int[atn.ruleToStartState.length];
+    int[] expansions = new int[stateCounts.length];
+    int[] tokenFanOuts = new int[stateCounts.length];
+    for (ATNState parserState : atn.states) {
+      if (parserState == null) {
+        continue;
+      }
+      int[] closure = closures[parserState.stateNumber];
+      ++stateCounts[parserState.ruleIndex];
+      expansions[parserState.ruleIndex] = Math.max(expansions[parserState.ruleIndex], closure[0]);
+      tokenFanOuts[parserState.ruleIndex] = Math.max(tokenFanOuts[parserState.ruleIndex], closure[1]);
+    }
+    List<ParserRuleCost> costs = new ArrayList<>();
+    for (int ruleIndex = 0; ruleIndex < stateCounts.length; ++ruleIndex) {
+      costs.add(new ParserRuleCost(parserWrapper.getRuleName(ruleIndex), stateCounts[ruleIndex], nullable[ruleIndex],
+          leftRecursiveRules.contains(ruleIndex), expansions[ruleIndex], tokenFanOuts[ruleIndex]));
+    }
+    return costs;
+  }
+
+  private List<StateCost> analyzeParserStates(ParserWrapper parserWrapper, int[][] closures) {
+    List<StateCost> costs = new ArrayList<>();
+    for (ATNState parserState : parserWrapper.getAtn().states) {
+      if (parserState != null) {
+        int[] closure = closures[parserState.stateNumber];
+        costs.add(new StateCost(parserState.stateNumber, parserWrapper.getRuleName(parserState.ruleIndex), closure[0],
+            closure[1]));
+      }
+    }
+    costs.sort(Comparator.comparingInt(StateCost::getClosureSize).reversed()
+        .thenComparing(Comparator.comparingInt(StateCost::getTokenTypes).reversed()));
+    return new ArrayList<>(costs.subList(0, Math.min(stateLimit, costs.size())));
+  }
+
+  /**
+   * The states the completer visits for one token with the caret in the given state: epsilon transitions are
+   * followed into called rules and, as the caller is not known, out of rule stop states to every caller.
+   * @return number of states in the closure and number of token types they can match
+   */
+  private static int[] epsilonClosure(ATN atn, ATNState parserState) {
+    Set<ATNState> closure = new HashSet<>();
+    Deque<ATNState> pending = new ArrayDeque<>();
+    closure.add(parserState);
+    pending.add(parserState);
+    IntervalSet tokenTypes = new IntervalSet();
+    while (!pending.isEmpty()) {
+      for (Transition trans : pending.poll().getTransitions()) {
+        if (!trans.isEpsilon()) {
+          tokenTypes.addAll(label(trans, Token.MIN_USER_TOKEN_TYPE, atn.maxTokenType));
+        } else if (closure.add(trans.target)) {
+          pending.add(trans.target);
+        }
+      }
+    }
+    return new int[]{closure.size(), tokenTypes.size()};
+  }
+
+  /**
+   * @return rules that can match the empty input
+   */
+  private static boolean[] nullableRules(ATN atn) {
+    boolean[] nullable = new boolean[atn.ruleToStartState.length];
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int ruleIndex = 0; ruleIndex < nullable.length; ++ruleIndex) {
+        if (!nullable[ruleIndex] && reachesStopWithoutTokens(atn.ruleToStartState[ruleIndex], nullable, null)) {
+          nullable[ruleIndex] = true;
+          changed = true;
+        }
+      }
+    }
+    return nullable;
+  }
+
+  /**
+   * Walks a rule without matching tokens, stepping over calls of nullable rules.
+   * @param calledRules receives the rules called before the first token, if not null
+   */
+  private static boolean reachesStopWithoutTokens(RuleStartState startState, boolean[] nullable,
+                                                  Set<Integer> calledRules) {
+    Set<ATNState> visited = new HashSet<>();
+    Deque<ATNState> pending = new ArrayDeque<>();
+    visited.add(startState);
+    pending.add(startState);
+    boolean reachesStop = false;
+    while (!pending.isEmpty()) {
+      ATNState state = pending.poll();
+      if (state instanceof RuleStopState) {
+        reachesStop = true;
+        continue;
+      }
+      for (Transition trans : state.getTransitions()) {
+        ATNState next = null;
+        if (trans instanceof RuleTransition) {
+          RuleTransition ruleTransition = (RuleTransition) trans;
+          if (calledRules != null) {
+            calledRules.add(ruleTransition.ruleIndex);
+          }
+          if (nullable[ruleTransition.ruleIndex]) {
+            next = ruleTransition.followState;
+          }
+        } else if (trans.isEpsilon()) {
+          next = trans.target;
+        }
+        if (next != null && visited.add(next)) {
+          pending.add(next);
+        }
+      }
+    }
+    return reachesStop;
+  }
+
+  /**
+   * Rules that can call themselves before matching a token. ANTLR rewrites direct left recursion into a loop, such
+   * rules are reported as cycles of one rule.
+   */
+  private static List<List<String>> findLeftRecursiveCycles(ParserWrapper parserWrapper) {
+    ATN atn = parserWrapper.getAtn();
+    boolean[] nullable = nullableRules(atn);
+    int[][] leftCalls = new int[atn.ruleToStartState.length][];
+    for (int ruleIndex = 0; ruleIndex < leftCalls.length; ++ruleIndex) {
+      Set<Integer> calledRules = new TreeSet<>();
+      reachesStopWithoutTokens(atn.ruleToStartState[ruleIndex], nullable, calledRules);
+      leftCalls[ruleIndex] = calledRules.stream().mapToInt(Integer::intValue).toArray();
+    }
+    List<List<String>> cycles = new ArrayList<>();
+    for (List<Integer> component : stronglyConnectedComponents(leftCalls.length, ruleIndex -> leftCalls[ruleIndex])) {
+      int ruleIndex = component.get(0);
+      boolean cycle = component.size() > 1 || atn.ruleToStartState[ruleIndex].isLeftRecursiveRule
+          || Arrays.stream(leftCalls[ruleIndex]).anyMatch(calledRule -> calledRule == ruleIndex);
+      if (cycle) {
+        List<String> ruleNames = new ArrayList<>();
+        component.stream().sorted().forEach(index -> ruleNames.add(parserWrapper.getRuleName(index)));
+        cycles.add(ruleNames);
+      }
+    }
+    cycles.sort(Comparator.comparing(ruleNames -> ruleNames.get(0)));
+    return cycles;
+  }
+
+  private static int[] successors(ATNState state) {
+    return Arrays.stream(state.getTransitions()).mapToInt(trans -> trans.target.stateNumber).toArray();
+  }
+
+  private static Set<Integer> reachableStates(ATNState startState) {
+    Set<Integer> reachable = new HashSet<>();
+    Deque<ATNState> pending = new ArrayDeque<>();
+    reachable.add(startState.stateNumber);
+    pending.add(startState);
+    while (!pending.isEmpty()) {
+      for (Transition trans : pending.poll().getTransitions()) {
+        if (reachable.add(trans.target.stateNumber)) {
+          pending.add(trans.target);
+        }
+      }
+    }
+    return reachable;
+  }
+
+  private static boolean[] statesOnCycles(int nodeCount, IntFunction<int[]> successors) {
+    boolean[] onCycle = new boolean[nodeCount];
+    for (List<Integer> component : stronglyConnectedComponents(nodeCount, successors)) {
+      int node = component.get(0);
+      boolean cycle = component.size() > 1 || Arrays.stream(successors.apply(node)).anyMatch(next -> next == node);
+      if (cycle) {
+        component.forEach(member -> onCycle[member] = true);
+      }
+    }
+    return onCycle;
+  }
+
+  /**
+   * Tarjan's algorithm, iterative, as lexer ATNs are too deep for the stack.
+   */
+  static List<List<Integer>> stronglyConnectedComponents(int nodeCount, IntFunction<int[]> successors) {
+    int[] index = new int[nodeCount];
+    int[] lowLink = new int[nodeCount];
+    int[] nextSuccessor = new int[nodeCount];
+    boolean[] onStack = new boolean[nodeCount];
+    Arrays.fill(index, -1);
+    Deque<Integer> stack = new ArrayDeque<>();
+    Deque<Integer> callStack = new ArrayDeque<>();
+    List<List<Integer>> components = new ArrayList<>();
+    int nextIndex = 0;
+    for (int root = 0; root < nodeCount; ++root) {
+      if (index[root] >= 0) {
+        continue;
+      }
+      index[root] = lowLink[root] = nextIndex++;
+      stack.push(root);
+      onStack[root] = true;
+      callStack.push(root);
+      while (!callStack.isEmpty()) {
+        int node = callStack.peek();
+        int[] next = successors.apply(node);
+        if (nextSuccessor[node] < next.length) {
+          int successor = next[nextSuccessor[node]++];
+          if (index[successor] < 0) {
+            index[successor] = lowLink[successor] = nextIndex++;
+            stack.push(successor);
+            onStack[successor] = true;
+            callStack.push(successor);
+          } else if (onStack[successor]) {
+            lowLink[node] = Math.min(lowLink[node], index[successor]);
+          }
+          continue;
+        }
+        callStack.pop();
+        if (!callStack.isEmpty()) {
+          lowLink[callStack.peek()] = Math.min(lowLink[callStack.peek()], lowLink[node]);
+        }
+        if (lowLink[node] == index[node]) {
+          List<Integer> component = new ArrayList<>();
+          int member;
+          do {
+            member = stack.pop();
+            onStack[member] = false;
+            component.add(member);
+          } while (member != node);
+          components.add(component);
+        }
+      }
+    }
+    return components;
+  }
+
+  private static IntervalSet label(Transition trans, int minSymbol, int maxSymbol) {
+    if (trans instanceof NotSetTransition) {
+      return trans.label().complement(minSymbol, maxSymbol);
+    } else if (trans instanceof WildcardTransition) {
+      return IntervalSet.of(minSymbol, maxSymbol);
+    }
+    return trans.label();
+  }
+
+  private static long labelSize(Transition trans, int minSymbol, int maxSymbol) {
+    IntervalSet label = label(trans, minSymbol, maxSymbol);
+    return (label == null) ? 0 : label.size();
+  }
+
+  private static long saturatedAdd(long a, long b) {
+    long sum = a + b;
+    return (sum < 0) ? Long.MAX_VALUE : sum;
+  }
+
+  private static long saturatedMultiply(long a, long b) {
+    if (a != 0 && b > Long.MAX_VALUE / a) {
+      return Long.MAX_VALUE;
+    }
+    return a * b;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2 || args.length % 2 != 0) {
+      System.err.println("Usage: CompletionCostAnalyzer <lexer class> <parser class> [--max-expansion N]"
+          + " [--max-language-size N] [--states N]");
+      System.exit(2);
+    }
+    Class<? extends Lexer> lexerClass = Class.forName(args[0]).asSubclass(Lexer.class);
+    Class<? extends Parser> parserClass = Class.forName(args[1]).asSubclass(Parser.class);
+    CompletionCostAnalyzer analyzer = new CompletionCostAnalyzer(
+        new ReflectionLexerAndParserFactory(lexerClass, parserClass));
+    long maxExpansion = Long.MAX_VALUE;
+    long maxLanguageSize = Long.MAX_VALUE;
+    for (int i = 2; i < args.length; i += 2) {
+      switch (args[i]) {
+        case "--max-expansion":
+          maxExpansion = Long.parseLong(args[i + 1]);
+          break;
+        case "--max-language-size":
+          maxLanguageSize = Long.parseLong(args[i + 1]);
+          break;
+        case "--states":
+          analyzer.withStateLimit(Integer.parseInt(args[i + 1]));
+          break;
+        default:
+          System.err.println("Unknown option " + args[i]);
+          System.exit(2);
+      }
+    }
+    Report report = analyzer.analyze();
+    System.out.println(report.toJson());
+    List<String> violations = report.getViolations(maxExpansion, maxLanguageSize);
+    violations.forEach(System.err::println);
+    System.exit(violations.isEmpty() ? 0 : 1);
+  }
+
+  /**
+   * Cost of a grammar, see {@link #toJson()} for the machine-readable form.
+   */
+  public static final class Report {
+    private final String fingerprint;
+    private final List<LexerRuleCost> lexerRules;
+    private final List<ParserRuleCost> parserRules;
+    private final List<StateCost> highFanOutStates;
+    private final List<List<String>> leftRecursiveCycles;
+
+    Report(String fingerprint, List<LexerRuleCost> lexerRules, List<ParserRuleCost> parserRules,
+           List<StateCost> highFanOutStates, List<List<String>> leftRecursiveCycles) {
+      this.fingerprint = fingerprint;
+      this.lexerRules = Collections.unmodifiableList(lexerRules);
+      this.parserRules = Collections.unmodifiableList(parserRules);
+      this.highFanOutStates = Collections.unmodifiableList(highFanOutStates);
+      this.leftRecursiveCycles = Collections.unmodifiableList(leftRecursiveCycles);
+    }
+
+    public String getFingerprint() {
+      return fingerprint;
+    }
+
+    public List<LexerRuleCost> getLexerRules() {
+      return lexerRules;
+    }
+
+    public LexerRuleCost getLexerRule(String name) {
+      return lexerRules.stream().filter(rule -> rule.getName().equals(name)).findFirst().orElse(null);
+    }
+
+    public List<ParserRuleCost> getParserRules() {
+      return parserRules;
+    }
+
+    public ParserRuleCost getParserRule(String name) {
+      return parserRules.stream().filter(rule -> rule.getName().equals(name)).findFirst().orElse(null);
+    }
+
+    /**
+     * @return parser states with the largest epsilon closures, largest first
+     */
+    public List<StateCost> getHighFanOutStates() {
+      return highFanOutStates;
+    }
+
+    /**
+     * @return rules that can call each other, or themselves, before matching a token, by cycle
+     */
+    public List<List<String>> getLeftRecursiveCycles() {
+      return leftRecursiveCycles;
+    }
+
+    /**
+     * @return largest estimated expansion of any parser rule
+     */
+    public int getMaxExpansion() {
+      return parserRules.stream().mapToInt(ParserRuleCost::getExpansion).max().orElse(0);
+    }
+
+    /**
+     * @param maxExpansion largest acceptable expansion of a parser rule
+     * @param maxLanguageSize largest acceptable size of a finite lexer rule language
+     * @return descriptions of the rules exceeding the thresholds, empty when none does
+     */
+    public List<String> getViolations(long maxExpansion, long maxLanguageSize) {
+      List<String> violations = new ArrayList<>();
+      for (ParserRuleCost rule : parserRules) {
+        if (rule.getExpansion() > maxExpansion) {
+          violations.add("Parser rule " + rule.getName() + " expands to " + rule.getExpansion() + " states, more than "
+              + maxExpansion);
+        }
+      }
+      for (LexerRuleCost rule : lexerRules) {
+        if (!rule.isInfinite() && rule.getLanguageSize() > maxLanguageSize) {
+          violations.add("Lexer rule " + rule.getName() + " has " + rule.getLanguageSize() + " words, more than "
+              + maxLanguageSize);
+        }
+      }
+      return violations;
+    }
+
+    public String toJson() {
+      StringBuilder json = new StringBuilder("{\n");
+      json.append("  \"fingerprint\": ").append(quote(fingerprint)).append(",\n");
+      json.append("  \"maxExpansion\": ").append(getMaxExpansion()).append(",\n");
+      appendArray(json, "lexerRules", lexerRules, rule -> "{\"name\": " + quote(rule.name)
+          + ", \"tokenType\": " + rule.tokenType + ", \"infinite\": " + rule.isInfinite() + ", \"huge\": " + rule.isHuge()
+          + ", \"languageSize\": " + rule.languageSize + ", \"setTransitions\": " + rule.setTransitions
+          + ", \"maxSetTransitionSize\": " + rule.maxSetTransitionSize + ", \"loopGuard\": " + rule.hitsLoopGuard()
+          + ", \"loopGuardStates\": " + rule.loopGuardStates + "}");
+      json.append(",\n");
+      appendArray(json, "parserRules", parserRules, rule -> "{\"name\": " + quote(rule.name)
+          + ", \"states\": " + rule.states + ", \"nullable\": " + rule.nullable + ", \"leftRecursive\": "
+          + rule.leftRecursive + ", \"expansion\": " + rule.expansion + ", \"tokenFanOut\": " + rule.tokenFanOut + "}");
+      json.append(",\n");
+      appendArray(json, "highFanOutStates", highFanOutStates, state -> "{\"state\": " + state.stateNumber
+          + ", \"rule\": " + quote(state.ruleName) + ", \"closureSize\": " + state.closureSize + ", \"tokenTypes\": "
+          + state.tokenTypes + "}");
+      json.append(",\n");
+      appendArray(json, "leftRecursiveCycles", leftRecursiveCycles, cycle -> "[" + String.join(", ",
+          cycle.stream().map(Report::quote).toArray(String[]::new)) + "]");
+      return json.append("\n}").toString();
+    }
+
+    private static <T> void appendArray(StringBuilder json, String name, List<T> elements,
+                                        Function<T, String> toJson) {
+      json.append("  ").append(quote(name)).append(": [");
+      for (int i = 0; i < elements.size(); ++i) {
+        json.append((i == 0) ? "\n    " : ",\n    ").append(toJson.apply(elements.get(i)));
+      }
+      json.append(elements.isEmpty() ? "]" : "\n  ]");
+    }
+
+    private static String quote(String text) {
+      StringBuilder quoted = new StringBuilder("\"");
+      for (char c : text.toCharArray()) {
+        if (c == '"' || c == '\\') {
+          quoted.append('\\').append(c);
+        } else if (c < 0x20) {
+          quoted.append(String.format("\\u%04x", (int) c));
+        } else {
+          quoted.append(c);
+        }
+      }
+      return quoted.append('"').toString();
+    }
+
+    @Override
+    public String toString() {
+      return toJson();
+    }
+  }
+
+  /**
+   * Cost of suggesting the tokens of a lexer rule.
+   */
+  public static final class LexerRuleCost {
+    private final String name;
+    private final int tokenType;
+    private final long languageSize;
+    private final int setTransitions;
+    private final long maxSetTransitionSize;
+    private final int loopGuardStates;
+
+    LexerRuleCost(String name, int tokenType, long languageSize, int setTransitions, long maxSetTransitionSize,
+                  int loopGuardStates) {
+      this.name = name;
+      this.tokenType = tokenType;
+      this.languageSize = languageSize;
+      this.setTransitions = setTransitions;
+      this.maxSetTransitionSize = maxSetTransitionSize;
+      this.loopGuardStates = loopGuardStates;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return token type of the rule, 0 for fragments
+     */
+    public int getTokenType() {
+      return tokenType;
+    }
+
+    public boolean isInfinite() {
+      return languageSize < 0;
+    }
+
+    /**
+     * @return whether the language is infinite or has more than {@link #HUGE_LANGUAGE_SIZE} words
+     */
+    public boolean isHuge() {
+      return isInfinite() || languageSize > HUGE_LANGUAGE_SIZE;
+    }
+
+    /**
+     * @return upper bound of the number of words of the language, -1 when it is infinite, {@link Long#MAX_VALUE} when
+     * it does not fit
+     */
+    public long getLanguageSize() {
+      return languageSize;
+    }
+
+    /**
+     * @return number of set and range transitions of the rule, each one suggests every character it matches
+     */
+    public int getSetTransitions() {
+      return setTransitions;
+    }
+
+    public long getMaxSetTransitionSize() {
+      return maxSetTransitionSize;
+    }
+
+    /**
+     * @return whether the walk of the lexer ATN from the rule reaches a cycle, where {@code TokenSuggester} stops
+     * it and suggests less than the language of the rule
+     */
+    public boolean hitsLoopGuard() {
+      return loopGuardStates > 0;
+    }
+
+    /**
+     * @return number of states on cycles reachable from the rule, including states of other rules reached through
+     * rule stop states
+     */
+    public int getLoopGuardStates() {
+      return loopGuardStates;
+    }
+
+    @Override
+    public String toString() {
+      return "LexerRuleCost{" +
+          "name='" + name + '\'' +
+          ", tokenType=" + tokenType +
+          ", languageSize=" + languageSize +
+          ", setTransitions=" + setTransitions +
+          ", maxSetTransitionSize=" + maxSetTransitionSize +
+          ", loopGuardStates=" + loopGuardStates +
+          '}';
+    }
+  }
+
+  /**
+   * Cost of completing with the caret in a parser rule.
+   */
+  public static final class ParserRuleCost {
+    private final String name;
+    private final int states;
+    private final boolean nullable;
+    private final boolean leftRecursive;
+    private final int expansion;
+    private final int tokenFanOut;
+
+    ParserRuleCost(String name, int states, boolean nullable, boolean leftRecursive, int expansion, int tokenFanOut) {
+      this.name = name;
+      this.states = states;
+      this.nullable = nullable;
+      this.leftRecursive = leftRecursive;
+      this.expansion = expansion;
+      this.tokenFanOut = tokenFanOut;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getStates() {
+      return states;
+    }
+
+    public boolean isNullable() {
+      return nullable;
+    }
+
+    public boolean isLeftRecursive() {
+      return leftRecursive;
+    }
+
+    /**
+     * @return estimated worst-case expansion: the largest number of parser states the completer visits for one token
+     * with the caret in the rule
+     */
+    public int getExpansion() {
+      return expansion;
+    }
+
+    /**
+     * @return largest number of token types suggested with the caret in the rule
+     */
+    public int getTokenFanOut() {
+      return tokenFanOut;
+    }
+
+    @Override
+    public String toString() {
+      return "ParserRuleCost{" +
+          "name='" + name + '\'' +
+          ", states=" + states +
+          ", nullable=" + nullable +
+          ", leftRecursive=" + leftRecursive +
+          ", expansion=" + expansion +
+          ", tokenFanOut=" + tokenFanOut +
+          '}';
+    }
+  }
+
+  /**
+   * Epsilon-closure fan-out of a parser state.
+   */
+  public static final class StateCost {
+    private final int stateNumber;
+    private final String ruleName;
+    private final int closureSize;
+    private final int tokenTypes;
+
+    StateCost(int stateNumber, String ruleName, int closureSize, int tokenTypes) {
+      this.stateNumber = stateNumber;
+      this.ruleName = ruleName;
+      this.closureSize = closureSize;
+      this.tokenTypes = tokenTypes;
+    }
+
+    public int getStateNumber() {
+      return stateNumber;
+    }
+
+    public String getRuleName() {
+      return ruleName;
+    }
+
+    /**
+     * @return number of states reachable by epsilon transitions, leaving rules to every caller
+     */
+    public int getClosureSize() {
+      return closureSize;
+    }
+
+    /**
+     * @return number of token types matched by transitions out of the closure
+     */
+    public int getTokenTypes() {
+      return tokenTypes;
+    }
+
+    @Override
+    public String toString() {
+      return "StateCost{" +
+          "stateNumber=" + stateNumber +
+          ", ruleName='" + ruleName + '\'' +
+          ", closureSize=" + closureSize +
+          ", tokenTypes=" + tokenTypes +
+          '}';
+    }
+  }
+}
@@ -0,0 +1,542 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.impl.CompletionDfa;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Interval;
+
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+/**
+ * An editable document completed at any caret position, for editors that insert, delete and paste anywhere. The
+ * document keeps its tokens, and checkpoints of the parser states reached every few tokens. An edit re-lexes the text
+ * from shortly before the edit until the lexer produces the old tokens again. A completion only re-lexes the last
+ * tokens before the caret and resumes the parser walk from the nearest checkpoint, so its latency does not grow with
+ * the document: the re-lexed text is read in place, and the tokens of a result before the re-lexed ones are a view of
+ * the document's tokens, which are copied only when edited while a result refers to them.
+ * <p>
+ * Results are the same as completing the text before the caret with {@link CompletionEngine#newCompleter(String)}.
+ * When the lexer failed on text before the re-lexed part, or with preferred rules or interpreter validation, the whole
+ * text before the caret is completed instead. A document is not thread-safe.
+ */
+public final class CompletionDocument {
+  private static final int DEFAULT_CHECKPOINT_INTERVAL = 64;
+
+  private final CompletionEngine engine;
+  private GrammarVersion version;
+  private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+  private String text;
+  private ArrayList<LexedToken> tokens = new ArrayList<>();
+  /**
+   * Whether a result refers to the tokens, so that they are copied before the next edit changes them.
+   */
+  private boolean tokensShared;
+  /**
+   * Tokens from this index on are stored at offsets {@link #pendingShift} before their actual ones, so that an edit only
+   * rewrites the tokens between it and the previous edit, instead of all tokens after it.
+   */
+  private int pendingShiftIndex;
+  private int pendingShift;
+  private final TreeSet<Integer> errorOffsets = new TreeSet<>();
+  private final List<Checkpoint> checkpoints = new ArrayList<>();
+  private int lastSimulatedTokenCount;
+
+  public CompletionDocument(CompletionEngine engine, String text) {
+    this.engine = engine;
+    this.version = engine.getVersion();
+    this.text = "";
+    replace(0, 0, text);
+  }
+
+  /**
+   * @param checkpointInterval number of tokens between parser state checkpoints, 64 by default
+   * @return this document
+   */
+  public CompletionDocument withCheckpointInterval(int checkpointInterval) {
+    if (checkpointInterval < 1) {
+      throw new IllegalArgumentException("Checkpoint interval must be positive: " + checkpointInterval);
+    }
+    this.checkpointInterval = checkpointInterval;
+    checkpoints.clear();
+    return this;
+  }
+
+  public String getText() {
+    return text;
+  }
+
+  public void insert(int offset, String insertedText) {
+    replace(offset, 0, insertedText);
+  }
+
+  public void delete(int offset, int length) {
+    replace(offset, length, "");
+  }
+
+  /**
+   * Replaces a range of the text, re-lexing it until the lexer resynchronizes with the old tokens.
+   * @param offset start of the replaced range
+   * @param length length of the replaced range
+   * @param replacement new text of the range
+   */
+  public void replace(int offset, int length, String replacement) {
+    if (offset < 0 || length < 0 || offset + length > text.length()) {
+      throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " outside of text of length " + text.length());
+    }
+    followReload();
+    if (tokensShared) {
+      tokens = new ArrayList<>(tokens);
+      tokensShared = false;
+    }
+    String newText = text.substring(0, offset) + replacement + text.substring(offset + length);
+    int delta = replacement.length() - length;
+    int editEnd = offset + replacement.length();
+
+    int restartIndex = firstTokenAffectedBy(offset);
+    int restartOffset = (restartIndex == 0) ? 0 : start(restartIndex);
+
+    List<LexedToken> relexedTokens = new ArrayList<>();
+    TreeSet<Integer> relexedErrorOffsets = new TreeSet<>();
+    TextCharStream charStream = new TextCharStream(newText, restartOffset);
+    Lexer lexer = createLexer(charStream, relexedErrorOffsets);
+    int codePointIndex = 0;
+    int charIndex = restartOffset;
+    int oldTokenIndex = restartIndex;
+    boolean resynchronized = false;
+    while (true) {
+      boolean restartable = lexer._mode == Lexer.DEFAULT_MODE && lexer._modeStack.isEmpty();
+      charStream.resetLookahead();
+      Token token = lexer.nextToken();
+      if (token.getType() == Token.EOF) {
+        break;
+      }
+      charIndex = newText.offsetByCodePoints(charIndex, token.getStartIndex() - codePointIndex);
+      codePointIndex = token.getStartIndex();
+      int start = charIndex;
+      charIndex = newText.offsetByCodePoints(charIndex, token.getStopIndex() + 1 - codePointIndex);
+      codePointIndex = token.getStopIndex() + 1;
+      int lookaheadEnd = charStream.sawEnd
+          ? Integer.MAX_VALUE // saw the end of the text
+          : newText.offsetByCodePoints(charIndex, charStream.maxLookaheadIndex - codePointIndex);
+      LexedToken lexedToken = new LexedToken(token.getType(), token.getChannel(), start, charIndex, lookaheadEnd,
+          restartable);
+
+      if (start >= editEnd) {
+        while (oldTokenIndex < tokens.size() && start(oldTokenIndex) + delta < start) {
+          ++oldTokenIndex;
+        }
+        if (oldTokenIndex < tokens.size() && lexedToken.isSameAs(tokens.get(oldTokenIndex), shiftOf(oldTokenIndex) + delta)) {
+          // Resynchronized: from here on the lexer produces the old tokens again
+          resynchronized = true;
+          break;
+        }
+      }
+      relexedTokens.add(lexedToken);
+    }
+
+    int tailIndex = resynchronized ? oldTokenIndex : tokens.size();
+    List<Integer> tailErrorOffsets = resynchronized
+        ? new ArrayList<>(errorOffsets.tailSet(start(tailIndex))) : Collections.emptyList();
+    errorOffsets.tailSet(restartOffset).clear();
+    errorOffsets.addAll(relexedErrorOffsets);
+    for (int errorOffset : tailErrorOffsets) {
+      errorOffsets.add(errorOffset + delta);
+    }
+    // Tokens before the restart index keep their offsets, the old tokens after the re-lexed ones move by the edit.
+    // Only the tokens between this edit and the previous one are rewritten, the tail is shifted lazily.
+    int newShift = pendingShift + delta;
+    if (pendingShiftIndex < restartIndex) {
+      shiftStoredOffsets(pendingShiftIndex, restartIndex, pendingShift);
+    }
+    if (pendingShiftIndex > tailIndex) {
+      shiftStoredOffsets(tailIndex, Math.min(pendingShiftIndex, tokens.size()), -pendingShift);
+    }
+    tokens.subList(restartIndex, tailIndex).clear();
+    tokens.addAll(restartIndex, relexedTokens);
+    pendingShiftIndex = restartIndex + relexedTokens.size();
+    pendingShift = newShift;
+    this.text = newText;
+    // A checkpoint depends on the tokens before it only, and tokens before the restart index did not change
+    int lastValidTokenIndex = restartIndex;
+    checkpoints.removeIf(checkpoint -> checkpoint.tokenIndex > lastValidTokenIndex);
+  }
+
+  /**
+   * @return how far the token at the given index moved since it was stored, see {@link #pendingShiftIndex}
+   */
+  private int shiftOf(int tokenIndex) {
+    return (tokenIndex >= pendingShiftIndex) ? pendingShift : 0;
+  }
+
+  private int start(int tokenIndex) {
+    return tokens.get(tokenIndex).start + shiftOf(tokenIndex);
+  }
+
+  private int end(int tokenIndex) {
+    return tokens.get(tokenIndex).end + shiftOf(tokenIndex);
+  }
+
+  private int lookaheadEnd(int tokenIndex) {
+    int lookaheadEnd = tokens.get(tokenIndex).lookaheadEnd;
+    return (lookaheadEnd == Integer.MAX_VALUE) ? lookaheadEnd : lookaheadEnd + shiftOf(tokenIndex);
+  }
+
+  private void shiftStoredOffsets(int fromIndex, int toIndex, int shift) {
+    for (int i = fromIndex; i < toIndex; ++i) {
+      tokens.set(i, tokens.get(i).shiftedBy(shift));
+    }
+  }
+
+  /**
+   * @param caretOffset offset of the caret in the text
+   * @return completions at the caret
+   */
+  public CompletionResult complete(int caretOffset) {
+    return complete(caretOffset, UnaryOperator.identity());
+  }
+
+  /**
+   * @param caretOffset offset of the caret in the text
+   * @param options applies options to the completer, e.g. {@link Antlr4Completer#withFuzzyMatching(int)}
+   * @return completions at the caret
+   */
+  public CompletionResult complete(int caretOffset, UnaryOperator<Antlr4Completer> options) {
+    if (caretOffset < 0 || caretOffset > text.length()) {
+      throw new IndexOutOfBoundsException("Caret " + caretOffset + " outside of text of length " + text.length());
+    }
+    followReload();
+    // Tokens the lexer decided looking at text behind the caret may come out differently without that text
+    int tailIndex = firstTokenAffectedBy(caretOffset);
+    int tailOffset = (tailIndex == 0) ? 0 : start(tailIndex);
+    if (!errorOffsets.headSet(tailOffset).isEmpty()) {
+      return options.apply(engine.newCompleter(version, text.substring(0, caretOffset))).complete();
+    }
+
+    CompletionDfa.State kernel = kernelAt(tailIndex);
+    Antlr4Completer completer = options.apply(engine.newCompleter(version, text.substring(tailOffset, caretOffset)));
+    if (completer.needsWholeInput()) {
+      return options.apply(engine.newCompleter(version, text.substring(0, caretOffset))).complete();
+    }
+    CompletionResult tailResult = completer.startingFrom(kernel).complete();
+    if (!(tailResult.getTokens() instanceof TokenArrayList) || tailIndex == 0) {
+      return tailResult;
+    }
+    tokensShared = true;
+    return tailResult.withTokens(new PrefixTokenList(text, tokens.subList(0, tailIndex), pendingShiftIndex, pendingShift,
+        tailResult.getTokens(), version.getLexerWrapper().getVocabulary()));
+  }
+
+  /**
+   * Once the engine was reloaded, the tokens and checkpoints belong to the old grammar version, so the whole text is
+   * lexed again with the new one.
+   */
+  private void followReload() {
+    GrammarVersion currentVersion = engine.getVersion();
+    if (currentVersion == version) {
+      return;
+    }
+    version = currentVersion;
+    String oldText = text;
+    text = "";
+    tokens = new ArrayList<>();
+    tokensShared = false;
+    pendingShiftIndex = 0;
+    pendingShift = 0;
+    errorOffsets.clear();
+    checkpoints.clear();
+    replace(0, 0, oldText);
+  }
+
+  /**
+   * @return number of tokens the parser was simulated over by the last completion, to resume from a checkpoint
+   */
+  int getLastSimulatedTokenCount() {
+    return lastSimulatedTokenCount;
+  }
+
+  private CompletionDfa.State kernelAt(int tokenIndex) {
+    CompletionDfa completionDfa = version.getCompletionDfa();
+    Checkpoint checkpoint = new Checkpoint(0, 0, completionDfa.getStartState());
+    for (Checkpoint candidate : checkpoints) {
+      if (candidate.tokenIndex <= tokenIndex && candidate.tokenIndex >= checkpoint.tokenIndex) {
+        checkpoint = candidate;
+      }
+    }
+    CompletionDfa.State kernel = checkpoint.kernel;
+    int defaultChannelTokens = checkpoint.defaultChannelTokens;
+    lastSimulatedTokenCount = 0;
+    for (int i = checkpoint.tokenIndex; i < tokenIndex; ++i) {
+      LexedToken token = tokens.get(i);
+      if (token.channel != Token.DEFAULT_CHANNEL) {
+        continue;
+      }
+      kernel = completionDfa.advance(kernel, token.type);
+      ++defaultChannelTokens;
+      ++lastSimulatedTokenCount;
+      if (defaultChannelTokens % checkpointInterval == 0) {
+        addCheckpoint(new Checkpoint(i + 1, defaultChannelTokens, kernel));
+      }
+    }
+    return kernel;
+  }
+
+  private void addCheckpoint(Checkpoint newCheckpoint) {
+    for (Checkpoint checkpoint : checkpoints) {
+      if (checkpoint.tokenIndex == newCheckpoint.tokenIndex) {
+        return;
+      }
+    }
+    checkpoints.add(newCheckpoint);
+  }
+
+  private int firstTokenEndingAtOrAfter(int offset) {
+    int low = 0;
+    int high = tokens.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (end(middle) < offset) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @param offset offset of a change
+   * @return index of the first token whose lexing looked at the offset, stepped back to a token where lexing can be
+   * restarted, that is a token started in the default lexer mode
+   */
+  private int firstTokenAffectedBy(int offset) {
+    int tokenIndex = firstTokenEndingAtOrAfter(offset);
+    while (tokenIndex > 0 && lookaheadEnd(tokenIndex - 1) >= offset) {
+      --tokenIndex;
+    }
+    // A change in skipped text, e.g. whitespace, before the token is re-lexed from the token before
+    while (tokenIndex > 0 && tokenIndex < tokens.size() && start(tokenIndex) > offset) {
+      --tokenIndex;
+    }
+    while (tokenIndex > 0 && (tokenIndex == tokens.size() || !tokens.get(tokenIndex).restartable)) {
+      --tokenIndex;
+    }
+    return tokenIndex;
+  }
+
+  private Lexer createLexer(TextCharStream charStream, Set<Integer> errorOffsets) {
+    Lexer lexer = version.getLexerAndParserFactory().createLexer(charStream);
+    lexer.removeErrorListeners();
+    lexer.addErrorListener(new BaseErrorListener() {
+      @Override
+      public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine,
+                              String msg, RecognitionException e) {
+        int codePointIndex = (e instanceof LexerNoViableAltException)
+            ? ((LexerNoViableAltException) e).getStartIndex() : ((Lexer) recognizer)._tokenStartCharIndex;
+        errorOffsets.add(charStream.charOffsetOf(codePointIndex));
+      }
+    });
+    return lexer;
+  }
+
+  private static final class LexedToken {
+    final int type;
+    final int channel;
+    final int start;
+    final int end;
+    final int lookaheadEnd;
+    final boolean restartable;
+
+    LexedToken(int type, int channel, int start, int end, int lookaheadEnd, boolean restartable) {
+      this.type = type;
+      this.channel = channel;
+      this.start = start;
+      this.end = end;
+      this.lookaheadEnd = lookaheadEnd;
+      this.restartable = restartable;
+    }
+
+    LexedToken shiftedBy(int delta) {
+      int shiftedLookaheadEnd = (lookaheadEnd == Integer.MAX_VALUE) ? lookaheadEnd : lookaheadEnd + delta;
+      return (delta == 0) ? this : new LexedToken(type, channel, start + delta, end + delta, shiftedLookaheadEnd, restartable);
+    }
+
+    /**
+     * @param delta distance between the stored offsets of the old token and where it would be now
+     */
+    boolean isSameAs(LexedToken oldToken, int delta) {
+      return restartable && oldToken.restartable && type == oldToken.type && channel == oldToken.channel
+          && start == oldToken.start + delta && end == oldToken.end + delta;
+    }
+  }
+
+  /**
+   * Tokens of a result: a view of the document's default channel tokens before the re-lexed ones, followed by the
+   * tokens of the completed tail. The document copies its tokens before changing them while a view refers to them, so
+   * the view stays valid. Which head tokens are on the default channel is found on first access.
+   */
+  private static final class PrefixTokenList extends AbstractList<CompletionResult.InputToken> implements RandomAccess {
+    private final String text;
+    private final List<LexedToken> headTokens;
+    private final int shiftIndex;
+    private final int shift;
+    private final List<CompletionResult.InputToken> tailTokens;
+    private final Vocabulary vocabulary;
+    private int[] defaultChannelHeadIndices;
+
+    PrefixTokenList(String text, List<LexedToken> headTokens, int shiftIndex, int shift,
+                    List<CompletionResult.InputToken> tailTokens, Vocabulary vocabulary) {
+      this.text = text;
+      this.headTokens = headTokens;
+      this.shiftIndex = shiftIndex;
+      this.shift = shift;
+      this.tailTokens = tailTokens;
+      this.vocabulary = vocabulary;
+    }
+
+    @Override
+    public CompletionResult.InputToken get(int index) {
+      int[] headIndices = defaultChannelHeadIndices();
+      if (index >= headIndices.length) {
+        return tailTokens.get(index - headIndices.length);
+      }
+      int tokenIndex = headIndices[index];
+      LexedToken token = headTokens.get(tokenIndex);
+      int tokenShift = (tokenIndex >= shiftIndex) ? shift : 0;
+      return new CompletionResult.InputToken(vocabulary.getDisplayName(token.type),
+          text.substring(token.start + tokenShift, token.end + tokenShift));
+    }
+
+    @Override
+    public int size() {
+      return defaultChannelHeadIndices().length + tailTokens.size();
+    }
+
+    private int[] defaultChannelHeadIndices() {
+      if (defaultChannelHeadIndices == null) {
+        int[] indices = new int[headTokens.size()];
+        int count = 0;
+        for (int i = 0; i < headTokens.size(); ++i) {
+          if (headTokens.get(i).channel == Token.DEFAULT_CHANNEL) {
+            indices[count++] = i;
+          }
+        }
+        defaultChannelHeadIndices = Arrays.copyOf(indices, count);
+      }
+      return defaultChannelHeadIndices;
+    }
+  }
+
+  /**
+   * Reads the text from an offset on in place, decoding code points as the lexer reaches them, and records the furthest
+   * character the lexer looked at, so that an edit there re-lexes the token. Indices count code points from the offset.
+   */
+  private static final class TextCharStream implements CharStream {
+    private final String text;
+    private final int startOffset;
+    private int index;
+    private int charOffset;
+    int maxLookaheadIndex = -1;
+    boolean sawEnd;
+
+    TextCharStream(String text, int startOffset) {
+      this.text = text;
+      this.startOffset = startOffset;
+      this.charOffset = startOffset;
+    }
+
+    void resetLookahead() {
+      maxLookaheadIndex = -1;
+      sawEnd = false;
+    }
+
+    /**
+     * @return offset in the text of the code point at the given index, the text length beyond its end
+     */
+    int charOffsetOf(int codePointIndex) {
+      int offset = charOffset;
+      for (int i = index; i < codePointIndex && offset < text.length(); ++i) {
+        offset += Character.charCount(text.codePointAt(offset));
+      }
+      for (int i = index; i > codePointIndex; --i) {
+        offset -= Character.charCount(text.codePointBefore(offset));
+      }
+      return offset;
+    }
+
+    @Override
+    public int LA(int i) {
+      if (i == 0) {
+        return 0; // undefined
+      }
+      int codePointIndex = (i > 0) ? index + i - 1 : index + i;
+      if (codePointIndex < 0) {
+        return IntStream.EOF;
+      }
+      maxLookaheadIndex = Math.max(maxLookaheadIndex, codePointIndex);
+      int offset = charOffsetOf(codePointIndex);
+      if (offset >= text.length()) {
+        sawEnd = true;
+        return IntStream.EOF;
+      }
+      return text.codePointAt(offset);
+    }
+
+    @Override
+    public String getText(Interval interval) {
+      int stop = Math.max(interval.a, interval.b + 1);
+      return text.substring(charOffsetOf(interval.a), charOffsetOf(stop));
+    }
+
+    @Override
+    public void consume() {
+      if (charOffset >= text.length()) {
+        throw new IllegalStateException("cannot consume EOF");
+      }
+      charOffset += Character.charCount(text.codePointAt(charOffset));
+      ++index;
+    }
+
+    @Override
+    public int mark() {
+      return -1;
+    }
+
+    @Override
+    public void release(int marker) {
+    }
+
+    @Override
+    public int index() {
+      return index;
+    }
+
+    @Override
+    public void seek(int index) {
+      charOffset = charOffsetOf(index);
+      this.index = index;
+    }
+
+    @Override
+    public int size() {
+      return text.codePointCount(startOffset, text.length());
+    }
+
+    @Override
+    public String getSourceName() {
+      return IntStream.UNKNOWN_SOURCE_NAME;
+    }
+  }
+
+  private static final class Checkpoint {
+    final int tokenIndex;
+    final int defaultChannelTokens;
+    final CompletionDfa.State kernel;
+
+    Checkpoint(int tokenIndex, int defaultChannelTokens, CompletionDfa.State kernel) {
+      this.tokenIndex = tokenIndex;
+      this.defaultChannelTokens = defaultChannelTokens;
+      this.kernel = kernel;
+    }
+  }
+}
@@ -0,0 +1,393 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.impl.AtnFingerprint;
+import akovari.antlr4.autocomplete.impl.CacheSnapshot;
+import akovari.antlr4.autocomplete.impl.CompletionDfa;
+import akovari.antlr4.autocomplete.impl.CompletionTable;
+import akovari.antlr4.autocomplete.impl.LexerAndParserFactory;
+import akovari.antlr4.autocomplete.impl.LexerWrapper;
+import akovari.antlr4.autocomplete.impl.ParserWrapper;
+import akovari.antlr4.autocomplete.impl.PhraseIndex;
+import akovari.antlr4.autocomplete.impl.PrefixValidator;
+import akovari.antlr4.autocomplete.impl.UsageCounters;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Everything derived from one grammar that can be shared between completion requests: the analyzed ATNs, the
+ * completion table, the completion DFA, the prediction caches of validation and the token suggestion caches. An engine
+ * is thread-safe, each request gets its own {@link Antlr4Completer} from {@link #newCompleter(String)}. The grammar can
+ * be replaced while the engine serves, see {@link #reload(LexerAndParserFactory, Collection, Duration)}.
+ */
+public final class CompletionEngine {
+  private static final Logger logger = Logger.getLogger(Antlr4Completer.class.getName());
+  private static final int STEADY_ROUNDS = 10;
+  private static final double STEADY_IMPROVEMENT = 0.9;
+
+  private volatile GrammarVersion version;
+  private final Object reloadLock = new Object();
+  private volatile DegradationPolicy degradationPolicy;
+  private volatile Duration usageHalfLife;
+
+  public CompletionEngine(LexerAndParserFactory lexerAndParserFactory) {
+    this(lexerAndParserFactory, new LexerWrapper(lexerAndParserFactory));
+  }
+
+  CompletionEngine(LexerAndParserFactory lexerAndParserFactory, LexerWrapper lexerWrapper) {
+    this.version = new GrammarVersion(lexerAndParserFactory, lexerWrapper, null);
+  }
+
+  /**
+   * Uses completion data precomputed by {@link CompletionTableGenerator} instead of analyzing the ATNs. Tables
+   * generated next to the parser class are picked up automatically. A table generated from a different grammar
+   * version is ignored.
+   * @param completionTable the precomputed table
+   * @return this engine
+   */
+  public CompletionEngine withCompletionTable(CompletionTable completionTable) {
+    version.useCompletionTable(completionTable);
+    return this;
+  }
+
+  /**
+   * Writes the hot entries of the caches filled by completing, the token suggestion caches and the completion DFA, so
+   * that another process completing with the same grammar starts warm, see {@link #importCaches(InputStream)}.
+   * @param outputStream stream to write the snapshot to
+   */
+  public void exportCaches(OutputStream outputStream) throws IOException {
+    GrammarVersion current = version;
+    CacheSnapshot.of(current.getLexerWrapper(), current.getParserWrapper(), current.getCompletionDfa(),
+        Integer.MAX_VALUE).write(outputStream);
+  }
+
+  /**
+   * Like {@link #exportCaches(OutputStream)}, replacing the file at once, so that readers never see a partial file.
+   * @param file file to write the snapshot to
+   */
+  public void exportCaches(Path file) throws IOException {
+    Path tempFile = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      try (OutputStream out = Files.newOutputStream(tempFile)) {
+        exportCaches(out);
+      }
+      Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /**
+   * Fills the caches from a snapshot written by {@link #exportCaches(OutputStream)}, possibly by another process. A
+   * snapshot of a different grammar version is ignored.
+   * @param inputStream stream to read the snapshot from
+   * @return whether the snapshot was applied
+   */
+  public boolean importCaches(InputStream inputStream) throws IOException {
+    CacheSnapshot snapshot = CacheSnapshot.read(inputStream);
+    GrammarVersion current = version;
+    if (!snapshot.matches(current.getLexerWrapper().getAtn(), current.getParserWrapper().getAtn())) {
+      logger.warning("Ignoring cache snapshot of another grammar version for "
+          + current.getParserWrapper().getParserClass().getName());
+      return false;
+    }
+    snapshot.applyTo(current.getLexerWrapper(), current.getParserWrapper(), current.getCompletionDfa());
+    return true;
+  }
+
+  public boolean importCaches(Path file) throws IOException {
+    try (InputStream in = Files.newInputStream(file)) {
+      return importCaches(in);
+    }
+  }
+
+  /**
+   * Imports the caches from the file when it exists, and exports them into it when the JVM shuts down, so that restarts
+   * keep the caches warm.
+   * @param file snapshot file, e.g. in a directory kept between deployments
+   * @return handle that exports the caches right away and removes the shutdown hook when closed, e.g. once the engine
+   * is no longer used, so that the hook does not keep the engine reachable
+   */
+  public Closeable openCacheSnapshotFile(Path file) {
+    if (Files.exists(file)) {
+      try {
+        importCaches(file);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Ignoring unreadable cache snapshot " + file, e);
+      }
+    }
+    Thread shutdownHook = new Thread(() -> {
+      try {
+        exportCaches(file);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Could not write cache snapshot " + file, e);
+      }
+    }, "completion-cache-snapshot");
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+    AtomicBoolean closed = new AtomicBoolean();
+    return () -> {
+      if (!closed.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      } catch (IllegalStateException e) {
+        return; // shutting down, the hook exports the caches
+      }
+      exportCaches(file);
+    };
+  }
+
+  /**
+   * Lowers the quality of completions while the engine is under pressure, see {@link DegradationPolicy}.
+   * @param degradationPolicy the policy, or null to always complete at full quality
+   * @return this engine
+   */
+  public CompletionEngine withDegradationPolicy(DegradationPolicy degradationPolicy) {
+    this.degradationPolicy = degradationPolicy;
+    return this;
+  }
+
+  /**
+   * Counts which suggestions are accepted in which parser context, see
+   * {@link #recordAccepted(CompletionResult, String)}, and ranks the suggestions of later results by the counts, see
+   * {@link CompletionResult#getRankedSuggestions()}. Recording shares a lock with other recording threads, taken
+   * exclusively only while the counts are rescaled, once per 512 half-lives.
+   * @param halfLife time after which an acceptance counts half, so that ranking follows changing usage
+   * @return this engine
+   */
+  public CompletionEngine withUsageRanking(Duration halfLife) {
+    synchronized (reloadLock) {
+      this.usageHalfLife = halfLife;
+      version.countUsage(halfLife);
+    }
+    return this;
+  }
+
+  /**
+   * Counts the suggestion as accepted by the user in the context of the result. Ignored for results completed without
+   * usage ranking.
+   * @param result result the suggestion was taken from
+   * @param suggestion the accepted suggestion
+   */
+  public void recordAccepted(CompletionResult result, String suggestion) {
+    UsageCounters counters = result.getUsageCounters();
+    if (counters != null) {
+      counters.record(result.getCaretKernel(), result.getUntokenizedText() + suggestion);
+    }
+  }
+
+  /**
+   * Like {@link #warmUp(Collection, Duration, int)}, limited by time only.
+   */
+  public WarmUpReport warmUp(Collection<String> corpus, Duration budget) {
+    return warmUp(corpus, budget, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Completes representative inputs in rounds, so that the caches fill and the JIT compiles the completion paths before
+   * the first real request. Besides the corpus, each round completes the empty input and every single-token input
+   * derived from its suggestions. Steady state is reached once the shared caches stopped filling and no round got
+   * more than 10% faster than the fastest one for as many rounds as it took to get there, at least
+   * {@value #STEADY_ROUNDS}, then the warm-up stops and {@link #isWarm()} turns true. Warm-up completions are not
+   * recorded by the {@link DegradationPolicy}.
+   * @param corpus inputs like the ones users complete, e.g. sampled from logs
+   * @param budget time after which the warm-up stops, checked between completions
+   * @param maxRounds number of rounds after which the warm-up stops
+   * @return what the warm-up did and whether it reached steady state
+   */
+  public WarmUpReport warmUp(Collection<String> corpus, Duration budget, int maxRounds) {
+    return warmUp(version, corpus, budget, maxRounds);
+  }
+
+  private WarmUpReport warmUp(GrammarVersion version, Collection<String> corpus, Duration budget, int maxRounds) {
+    long startNanos = System.nanoTime();
+    long deadlineNanos = startNanos + budget.toNanos();
+    List<String> inputs = new ArrayList<>(corpus);
+    inputs.addAll(derivedWarmUpInputs(version));
+
+    int rounds = 0;
+    long completions = 0;
+    long firstRoundNanos = 0;
+    long lastRoundNanos = 0;
+    long fastestRoundNanos = Long.MAX_VALUE;
+    int fastestRound = 0;
+    long previousCacheMisses = -1;
+    Duration timeToSteadyState = null;
+    while (rounds < maxRounds && timeToSteadyState == null) {
+      long roundStartNanos = System.nanoTime();
+      long cacheMisses = 0;
+      boolean complete = true;
+      for (String input : inputs) {
+        if (System.nanoTime() - deadlineNanos >= 0) {
+          complete = false;
+          break;
+        }
+        // Bypasses newCompleter, so that the slow first rounds do not degrade the quality of real requests
+        CompletionStats stats = new Antlr4Completer(version, input).withStats().complete().getStats();
+        cacheMisses += stats.getCacheMisses();
+        completions++;
+      }
+      if (!complete) {
+        break;
+      }
+      lastRoundNanos = System.nanoTime() - roundStartNanos;
+      if (rounds++ == 0) {
+        firstRoundNanos = lastRoundNanos;
+      }
+      if (lastRoundNanos < STEADY_IMPROVEMENT * fastestRoundNanos) {
+        fastestRound = rounds;
+      }
+      fastestRoundNanos = Math.min(fastestRoundNanos, lastRoundNanos);
+      // Each request still misses its own caches, the shared caches are full once the misses stop dropping
+      boolean cachesFull = cacheMisses == previousCacheMisses;
+      previousCacheMisses = cacheMisses;
+      if (cachesFull && rounds - fastestRound >= Math.max(STEADY_ROUNDS, fastestRound)) {
+        timeToSteadyState = Duration.ofNanos(System.nanoTime() - startNanos);
+        version.setWarm();
+      }
+    }
+    WarmUpReport report = new WarmUpReport(inputs.size(), rounds, completions,
+        Duration.ofNanos(System.nanoTime() - startNanos), Duration.ofNanos(firstRoundNanos),
+        Duration.ofNanos(lastRoundNanos), timeToSteadyState);
+    logger.fine(() -> "Warm-up of " + version.getParserWrapper().getParserClass().getName() + ": " + report);
+    return report;
+  }
+
+  /**
+   * @return the empty input, and for each of its suggestions, the first character of it, the suggestion itself and the
+   * suggestion followed by a space
+   */
+  private Set<String> derivedWarmUpInputs(GrammarVersion version) {
+    Set<String> inputs = new LinkedHashSet<>();
+    inputs.add("");
+    for (String suggestion : new Antlr4Completer(version, "").complete().getSuggestions()) {
+      if (!suggestion.isEmpty()) {
+        inputs.add(suggestion.substring(0, suggestion.offsetByCodePoints(0, 1)));
+        inputs.add(suggestion);
+        inputs.add(suggestion + " ");
+      }
+    }
+    return inputs;
+  }
+
+  /**
+   * @return whether a warm-up of the current grammar version reached steady state, e.g. for a readiness probe
+   */
+  public boolean isWarm() {
+    return version.isWarm();
+  }
+
+  /**
+   * Replaces the grammar of the live engine without interrupting it. The new version is built and warmed up, see
+   * {@link #warmUp(Collection, Duration)}, while the current version keeps serving, then it is swapped in atomically:
+   * completers created afterwards use the new version, running requests finish on the old one. Caches follow the
+   * version fingerprint: the token suggestion caches are kept when the lexer did not change, everything derived from
+   * the parser is rebuilt, including the usage counts. The old version's caches are dropped once its running requests
+   * drained, see {@link GrammarReload#getDrained()}. Reloads are applied one at a time.
+   * @param lexerAndParserFactory factory of the new grammar version
+   * @param warmUpCorpus inputs to warm the new version up with
+   * @param warmUpBudget time the warm-up may take
+   * @return what was reloaded
+   */
+  public GrammarReload reload(LexerAndParserFactory lexerAndParserFactory, Collection<String> warmUpCorpus,
+                              Duration warmUpBudget) {
+    synchronized (reloadLock) {
+      GrammarVersion previous = version;
+      boolean lexerUnchanged = LexerWrapper.sharingKey(lexerAndParserFactory)
+          .equals(LexerWrapper.sharingKey(previous.getLexerAndParserFactory()));
+      LexerWrapper lexerWrapper = lexerUnchanged
+          ? new LexerWrapper(lexerAndParserFactory, previous.getLexerWrapper())
+          : new LexerWrapper(lexerAndParserFactory);
+      GrammarVersion next = new GrammarVersion(lexerAndParserFactory, lexerWrapper, usageHalfLife);
+      WarmUpReport warmUp = warmUp(next, warmUpCorpus, warmUpBudget, Integer.MAX_VALUE);
+      version = next;
+      logger.info("Reloaded grammar " + next.getParserWrapper().getGrammarName() + " from version "
+          + previous.getFingerprint() + " to " + next.getFingerprint());
+      return new GrammarReload(previous.getFingerprint(), next.getFingerprint(), lexerUnchanged, warmUp,
+          previous.retire(!lexerUnchanged));
+    }
+  }
+
+  /**
+   * Like {@link #reload(LexerAndParserFactory, Collection, Duration)}, building and warming the new version on the
+   * given executor.
+   */
+  public CompletableFuture<GrammarReload> reloadAsync(LexerAndParserFactory lexerAndParserFactory,
+                                                      Collection<String> warmUpCorpus, Duration warmUpBudget,
+                                                      Executor executor) {
+    return CompletableFuture.supplyAsync(() -> reload(lexerAndParserFactory, warmUpCorpus, warmUpBudget), executor);
+  }
+
+  /**
+   * @return fingerprint of the current grammar version, see {@link AtnFingerprint}
+   */
+  public String getFingerprint() {
+    return version.getFingerprint();
+  }
+
+  public Antlr4Completer newCompleter(String input) {
+    return newCompleter(version, input);
+  }
+
+  Antlr4Completer newCompleter(GrammarVersion version, String input) {
+    Antlr4Completer completer = new Antlr4Completer(version, input);
+    DegradationPolicy policy = degradationPolicy;
+    return (policy != null) ? completer.withDegradationPolicy(policy) : completer;
+  }
+
+  /**
+   * @return factory of the current grammar version
+   */
+  public LexerAndParserFactory getLexerAndParserFactory() {
+    return version.getLexerAndParserFactory();
+  }
+
+  GrammarVersion getVersion() {
+    return version;
+  }
+
+  LexerWrapper getLexerWrapper() {
+    return version.getLexerWrapper();
+  }
+
+  ParserWrapper getParserWrapper() {
+    return version.getParserWrapper();
+  }
+
+  CompletionDfa getCompletionDfa() {
+    return version.getCompletionDfa();
+  }
+
+  PrefixValidator getPrefixValidator() {
+    return version.getPrefixValidator();
+  }
+
+  PhraseIndex getPhraseIndex() {
+    return version.getPhraseIndex();
+  }
+
+  UsageCounters getUsageCounters() {
+    return version.getUsageCounters();
+  }
+
+  CompletionTable getCompletionTable() {
+    return version.getCompletionTable();
+  }
+}
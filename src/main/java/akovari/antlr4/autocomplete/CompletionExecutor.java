@@ -0,0 +1,436 @@
+package akovari.antlr4.autocomplete;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs completions of many tenants, e.g. customers of a service, on a fixed number of threads. Work comes in two
+ * priority classes: {@link Priority#INTERACTIVE} work, such as completions while typing, runs before
+ * {@link Priority#BACKGROUND} work, such as batch jobs, except for one background task after every
+ * {@value #INTERACTIVE_BURST} interactive ones, so background work never starves. Within a class, tenants share the
+ * threads by weight: each tenant is charged the time its tasks take divided by its weight, and the tenant charged
+ * least runs next, so one tenant replaying a large batch does not delay the others. Queues are bounded per class and
+ * per tenant, and work that does not fit is rejected right away with {@link RejectedExecutionException}, instead of
+ * waiting for a slot it would get too late. Queue waits are reported by {@link #getQueueStats(Priority)}.
+ */
+public final class CompletionExecutor implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(Antlr4Completer.class.getName());
+  private static final int INTERACTIVE_BURST = 8;
+  private static final long INITIAL_COST_NANOS = Duration.ofMillis(1).toNanos();
+  private static final double COST_SMOOTHING = 0.2;
+
+  public enum Priority {
+    INTERACTIVE, BACKGROUND
+  }
+
+  private final int maxQueuedPerClass;
+  private int maxQueuedPerTenant;
+  private final Map<String, Integer> weights = new ConcurrentHashMap<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition workAvailable = lock.newCondition();
+  private final PriorityClass[] classes = {new PriorityClass(), new PriorityClass()};
+  private final List<Thread> workers = new ArrayList<>();
+  private int interactiveStreak;
+  private boolean closed;
+
+  /**
+   * @param threads number of threads running completions
+   * @param maxQueuedPerClass maximum number of waiting tasks of each priority class
+   */
+  public CompletionExecutor(int threads, int maxQueuedPerClass) {
+    this.maxQueuedPerClass = maxQueuedPerClass;
+    this.maxQueuedPerTenant = maxQueuedPerClass;
+    for (int i = 0; i < threads; ++i) {
+      startWorker("completion-executor-" + (i + 1));
+    }
+  }
+
+  private void startWorker(String name) {
+    Thread worker = new Thread(this::work, name);
+    worker.setDaemon(true);
+    workers.add(worker);
+    worker.start();
+  }
+
+  /**
+   * @param maxQueuedPerTenant maximum number of waiting tasks of one tenant in each priority class, by default as many
+   * as the class holds
+   * @return this executor
+   */
+  public CompletionExecutor withMaxQueuedPerTenant(int maxQueuedPerTenant) {
+    lock.lock();
+    try {
+      this.maxQueuedPerTenant = maxQueuedPerTenant;
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+  /**
+   * @param tenant key of the tenant
+   * @param weight share of the tenant relative to the other tenants, 1 by default
+   * @return this executor
+   */
+  public CompletionExecutor withTenantWeight(String tenant, int weight) {
+    if (weight < 1) {
+      throw new IllegalArgumentException("Weight must be positive");
+    }
+    weights.put(tenant, weight);
+    return this;
+  }
+
+  /**
+   * Completes the input with the engine.
+   * @return future of the result, failed with {@link RejectedExecutionException} when the queue is full
+   */
+  public CompletableFuture<CompletionResult> complete(String tenant, Priority priority, CompletionEngine engine,
+                                                      String input) {
+    return complete(tenant, priority, engine, input, UnaryOperator.identity());
+  }
+
+  /**
+   * @param options options of the completer, e.g. {@code Antlr4Completer::withoutTokens}
+   */
+  public CompletableFuture<CompletionResult> complete(String tenant, Priority priority, CompletionEngine engine,
+                                                      String input, UnaryOperator<Antlr4Completer> options) {
+    return submit(tenant, priority, () -> options.apply(engine.newCompleter(input)).complete());
+  }
+
+  /**
+   * Runs any task, e.g. a completion of a {@link CompletionDocument}. A waiting task whose future is cancelled is
+   * skipped when its turn comes.
+   * @return future of the result, failed with {@link RejectedExecutionException} when the queue is full
+   */
+  public <T> CompletableFuture<T> submit(String tenant, Priority priority, Supplier<T> task) {
+    Task<T> queuedTask = new Task<>(tenant, task);
+    if (!enqueue(priority, queuedTask)) {
+      queuedTask.result.completeExceptionally(new RejectedExecutionException(
+          "Completion queue of " + priority + " work is full for tenant " + tenant));
+    }
+    return queuedTask.result;
+  }
+
+  /**
+   * @return executor running tasks on behalf of the tenant, e.g. for {@link CompletionScheduler} or
+   * {@link CompletionPrefetcher}, throwing {@link RejectedExecutionException} when the queue is full; failures of the
+   * tasks are logged, as nobody awaits them
+   */
+  public Executor asExecutor(String tenant, Priority priority) {
+    return runnable -> {
+      if (!enqueue(priority, new Task<>(tenant, () -> {
+        try {
+          runnable.run();
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Task of tenant " + tenant + " failed", e);
+          throw e;
+        }
+        return null;
+      }))) {
+        throw new RejectedExecutionException("Completion queue of " + priority + " work is full for tenant " + tenant);
+      }
+    };
+  }
+
+  /**
+   * @return snapshot of the queue of the priority class
+   */
+  public QueueStats getQueueStats(Priority priority) {
+    lock.lock();
+    try {
+      PriorityClass priorityClass = classes[priority.ordinal()];
+      return new QueueStats(priorityClass.queued, priorityClass.submitted, priorityClass.rejected,
+          priorityClass.started, priorityClass.totalWaitNanos, priorityClass.maxWaitNanos);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return number of waiting tasks of the tenant in the priority class
+   */
+  public int getQueued(String tenant, Priority priority) {
+    lock.lock();
+    try {
+      Tenant state = classes[priority.ordinal()].tenants.get(tenant);
+      return (state == null) ? 0 : state.queue.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Rejects new tasks and cancels waiting ones, running tasks finish.
+   */
+  @Override
+  public void close() {
+    List<Task<?>> cancelled = new ArrayList<>();
+    lock.lock();
+    try {
+      closed = true;
+      for (PriorityClass priorityClass : classes) {
+        for (Tenant tenant : priorityClass.tenants.values()) {
+          cancelled.addAll(tenant.queue);
+          tenant.queue.clear();
+        }
+        priorityClass.tenants.clear();
+        priorityClass.queued = 0;
+      }
+      workAvailable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    cancelled.forEach(task -> task.result.cancel(false));
+  }
+
+  private boolean enqueue(Priority priority, Task<?> task) {
+    lock.lock();
+    try {
+      PriorityClass priorityClass = classes[priority.ordinal()];
+      Tenant tenant = priorityClass.tenants.get(task.tenant);
+      int queuedOfTenant = (tenant == null) ? 0 : tenant.queue.size();
+      if (closed || priorityClass.queued >= maxQueuedPerClass || queuedOfTenant >= maxQueuedPerTenant) {
+        priorityClass.rejected++;
+        return false;
+      }
+      if (tenant == null) {
+        // A tenant becoming active starts at the current virtual time, so idle time is no credit
+        tenant = new Tenant(task.tenant, priorityClass.virtualTime);
+        priorityClass.tenants.put(task.tenant, tenant);
+      }
+      task.priorityClass = priorityClass;
+      task.enqueuedNanos = System.nanoTime();
+      tenant.queue.add(task);
+      priorityClass.queued++;
+      priorityClass.submitted++;
+      workAvailable.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void work() {
+    while (true) {
+      Task<?> task;
+      lock.lock();
+      try {
+        while ((task = nextTask()) == null) {
+          if (closed) {
+            return;
+          }
+          workAvailable.await();
+        }
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        lock.unlock();
+      }
+      try {
+        task.run();
+      } catch (Throwable e) {
+        // The task's future failed already, a new worker takes over while the error ends this one
+        replaceWorker();
+        throw e;
+      }
+    }
+  }
+
+  private void replaceWorker() {
+    lock.lock();
+    try {
+      Thread current = Thread.currentThread();
+      workers.remove(current);
+      if (!closed) {
+        startWorker(current.getName());
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private Task<?> nextTask() {
+    PriorityClass interactive = classes[Priority.INTERACTIVE.ordinal()];
+    PriorityClass background = classes[Priority.BACKGROUND.ordinal()];
+    boolean backgroundTurn = background.queued > 0 && (interactive.queued == 0 || interactiveStreak >= INTERACTIVE_BURST);
+    if (backgroundTurn) {
+      interactiveStreak = 0;
+      return background.poll();
+    } else if (interactive.queued > 0) {
+      interactiveStreak++;
+      return interactive.poll();
+    }
+    return null;
+  }
+
+  private void finished(Task<?> task, long nanos) {
+    lock.lock();
+    try {
+      Tenant tenant = task.tenantState;
+      double weight = weights.getOrDefault(tenant.name, 1);
+      // The dispatch charged the estimate, the actual time replaces it
+      tenant.virtualTime += (nanos - task.chargedNanos) / weight;
+      tenant.costNanos = (long) (COST_SMOOTHING * nanos + (1 - COST_SMOOTHING) * tenant.costNanos);
+      tenant.running--;
+      if (tenant.running == 0 && tenant.queue.isEmpty()) {
+        task.priorityClass.tenants.remove(tenant.name);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Snapshot of the queue of a priority class.
+   */
+  public static final class QueueStats {
+    private final int queued;
+    private final long submitted;
+    private final long rejected;
+    private final long started;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+
+    QueueStats(int queued, long submitted, long rejected, long started, long totalWaitNanos, long maxWaitNanos) {
+      this.queued = queued;
+      this.submitted = submitted;
+      this.rejected = rejected;
+      this.started = started;
+      this.totalWaitNanos = totalWaitNanos;
+      this.maxWaitNanos = maxWaitNanos;
+    }
+
+    /**
+     * @return number of waiting tasks
+     */
+    public int getQueued() {
+      return queued;
+    }
+
+    /**
+     * @return number of accepted tasks
+     */
+    public long getSubmitted() {
+      return submitted;
+    }
+
+    /**
+     * @return number of tasks rejected because the queue was full
+     */
+    public long getRejected() {
+      return rejected;
+    }
+
+    /**
+     * @return number of tasks taken from the queue
+     */
+    public long getStarted() {
+      return started;
+    }
+
+    public Duration getAverageWait() {
+      return Duration.ofNanos((started == 0) ? 0 : totalWaitNanos / started);
+    }
+
+    public Duration getMaxWait() {
+      return Duration.ofNanos(maxWaitNanos);
+    }
+
+    @Override
+    public String toString() {
+      return "QueueStats{" +
+          "queued=" + queued +
+          ", submitted=" + submitted +
+          ", rejected=" + rejected +
+          ", started=" + started +
+          ", averageWait=" + getAverageWait() +
+          ", maxWait=" + getMaxWait() +
+          '}';
+    }
+  }
+
+  private final class PriorityClass {
+    final Map<String, Tenant> tenants = new HashMap<>();
+    double virtualTime;
+    int queued;
+    long submitted;
+    long rejected;
+    long started;
+    long totalWaitNanos;
+    long maxWaitNanos;
+
+    Task<?> poll() {
+      Tenant next = null;
+      for (Tenant tenant : tenants.values()) {
+        if (!tenant.queue.isEmpty() && (next == null || tenant.virtualTime < next.virtualTime)) {
+          next = tenant;
+        }
+      }
+      Task<?> task = next.queue.poll();
+      queued--;
+      started++;
+      long waitNanos = System.nanoTime() - task.enqueuedNanos;
+      totalWaitNanos += waitNanos;
+      maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+      virtualTime = Math.max(virtualTime, next.virtualTime);
+      task.tenantState = next;
+      task.chargedNanos = next.costNanos;
+      next.virtualTime += next.costNanos / (double) weights.getOrDefault(next.name, 1);
+      next.running++;
+      return task;
+    }
+  }
+
+  private static final class Tenant {
+    final String name;
+    final Deque<Task<?>> queue = new ArrayDeque<>();
+    double virtualTime;
+    long costNanos = INITIAL_COST_NANOS;
+    int running;
+
+    Tenant(String name, double virtualTime) {
+      this.name = name;
+      this.virtualTime = virtualTime;
+    }
+  }
+
+  private final class Task<T> implements Runnable {
+    final String tenant;
+    final Supplier<T> supplier;
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    PriorityClass priorityClass;
+    Tenant tenantState;
+    long enqueuedNanos;
+    long chargedNanos;
+
+    Task(String tenant, Supplier<T> supplier) {
+      this.tenant = tenant;
+      this.supplier = supplier;
+    }
+
+    @Override
+    public void run() {
+      long startNanos = System.nanoTime();
+      try {
+        if (!result.isDone()) {
+          result.complete(supplier.get());
+        }
+      } catch (RuntimeException e) {
+        result.completeExceptionally(e);
+      } catch (Throwable e) {
+        // Callers awaiting the result must not wait forever
+        result.completeExceptionally(e);
+        throw e;
+      } finally {
+        finished(this, result.isCancelled() ? 0 : System.nanoTime() - startNanos);
+      }
+    }
+  }
+}
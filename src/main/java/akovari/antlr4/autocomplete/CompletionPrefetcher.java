@@ -0,0 +1,239 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.data.LRUCache;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Completes the inputs of one editing session, and while the user thinks about the next keystroke, completes the most
+ * likely next inputs in the background: the input followed by the first character of a suggestion, and the input with
+ * a suggestion accepted. When the next request matches one of them, its result comes from memory.
+ * <p>
+ * Prefetching runs on the given executor, preferably {@link #newPrefetchExecutor(int)}, whose threads have the lowest
+ * priority and whose queue drops the oldest work, so prefetching never delays foreground requests. Each request
+ * cancels the prefetches of the previous request, stopping those already running at their next cancellation check,
+ * see {@link Antlr4Completer#withCancellation(java.util.function.BooleanSupplier)}, which replaces a cancellation set
+ * by the options; a prefetch of the requested input that is already running is awaited instead of being repeated.
+ * Results are dropped once the engine was reloaded with another grammar version. Thread-safe.
+ */
+public final class CompletionPrefetcher implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(Antlr4Completer.class.getName());
+
+  private final CompletionEngine engine;
+  private final Executor executor;
+  private UnaryOperator<Antlr4Completer> options = UnaryOperator.identity();
+  private int maxPrefetches = 4;
+  private int cacheSize = 64;
+  private volatile LRUCache<String, CompletionResult> cache = new LRUCache<>(cacheSize);
+  private final Map<String, Prefetch> prefetches = new ConcurrentHashMap<>();
+  private volatile String cachedFingerprint;
+
+  public CompletionPrefetcher(CompletionEngine engine, Executor executor) {
+    this.engine = engine;
+    this.executor = executor;
+    this.cachedFingerprint = engine.getFingerprint();
+  }
+
+  /**
+   * @param threads number of prefetching threads
+   * @return executor of daemon threads with the lowest priority and a bounded queue dropping the oldest work
+   */
+  public static ExecutorService newPrefetchExecutor(int threads) {
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = runnable -> {
+      Thread thread = new Thread(runnable, "completion-prefetch-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    };
+    return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(16 * threads),
+        threadFactory, new ThreadPoolExecutor.DiscardOldestPolicy());
+  }
+
+  /**
+   * @param options options applied to every completer of the session, e.g. {@code Antlr4Completer::withoutTokens}
+   * @return this prefetcher
+   */
+  public CompletionPrefetcher withOptions(UnaryOperator<Antlr4Completer> options) {
+    this.options = options;
+    return this;
+  }
+
+  /**
+   * @param maxPrefetches number of next inputs completed in the background after each request, 4 by default
+   * @return this prefetcher
+   */
+  public CompletionPrefetcher withMaxPrefetches(int maxPrefetches) {
+    this.maxPrefetches = maxPrefetches;
+    return this;
+  }
+
+  /**
+   * @param cacheSize number of results kept for the session, 64 by default
+   * @return this prefetcher
+   */
+  public CompletionPrefetcher withCacheSize(int cacheSize) {
+    this.cacheSize = cacheSize;
+    this.cache = new LRUCache<>(cacheSize);
+    return this;
+  }
+
+  /**
+   * @param input text to complete
+   * @return completions of the input, from memory when prefetched
+   */
+  public CompletionResult complete(String input) {
+    Prefetch prefetchOfInput = prefetches.remove(input);
+    cancelPrefetches();
+    String fingerprint = engine.getFingerprint();
+    if (!fingerprint.equals(cachedFingerprint)) {
+      // Results of another grammar version, the engine was reloaded
+      cache = new LRUCache<>(cacheSize);
+      cachedFingerprint = fingerprint;
+      prefetchOfInput = null;
+    }
+    CompletionResult result = cache.get(input);
+    if (result == null && prefetchOfInput != null && !prefetchOfInput.cancelIfQueued()) {
+      result = prefetchOfInput.await();
+    }
+    if (result == null) {
+      result = options.apply(engine.newCompleter(input)).complete();
+      cache.put(input, result);
+    }
+    prefetchNextInputs(input, result);
+    return result;
+  }
+
+  /**
+   * Cancels the prefetches, those running stop at their next cancellation check.
+   */
+  public void cancelPrefetches() {
+    for (Iterator<Prefetch> it = prefetches.values().iterator(); it.hasNext(); ) {
+      it.next().cancel();
+      it.remove();
+    }
+  }
+
+  @Override
+  public void close() {
+    cancelPrefetches();
+  }
+
+  boolean isCached(String input) {
+    return cache.get(input) != null;
+  }
+
+  private void prefetchNextInputs(String input, CompletionResult result) {
+    List<String> suggestions = new ArrayList<>(result.getSuggestions());
+    suggestions.sort(Comparator.comparingInt(String::length).thenComparing(Comparator.naturalOrder()));
+    Set<String> nextInputs = new LinkedHashSet<>();
+    for (String suggestion : suggestions) {
+      if (!suggestion.isEmpty()) {
+        nextInputs.add(input + suggestion.substring(0, suggestion.offsetByCodePoints(0, 1)));
+      }
+    }
+    for (String suggestion : suggestions) {
+      nextInputs.add(input + suggestion);
+    }
+    int prefetchCount = 0;
+    for (String nextInput : nextInputs) {
+      if (prefetchCount == maxPrefetches) {
+        break;
+      }
+      if (cache.get(nextInput) != null) {
+        continue;
+      }
+      Prefetch prefetch = new Prefetch(nextInput);
+      if (prefetches.putIfAbsent(nextInput, prefetch) == null) {
+        try {
+          executor.execute(prefetch);
+        } catch (RejectedExecutionException e) {
+          // E.g. the executor was shut down, the next request completes its input in the foreground
+          logger.log(Level.FINE, "Prefetching completions of \"" + nextInput + "\" was rejected", e);
+          prefetch.cancel();
+          prefetches.remove(nextInput, prefetch);
+          break;
+        }
+      }
+      ++prefetchCount;
+    }
+  }
+
+  private final class Prefetch implements Runnable {
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int CANCELLED = 2;
+
+    private final String input;
+    private final String fingerprint = cachedFingerprint;
+    private final AtomicInteger state = new AtomicInteger(QUEUED);
+    private final CompletableFuture<CompletionResult> result = new CompletableFuture<>();
+
+    Prefetch(String input) {
+      this.input = input;
+    }
+
+    @Override
+    public void run() {
+      if (!state.compareAndSet(QUEUED, RUNNING)) {
+        return;
+      }
+      try {
+        CompletionResult completionResult = options.apply(engine.newCompleter(input))
+            .withCancellation(() -> state.get() == CANCELLED)
+            .complete();
+        if (state.get() != CANCELLED && fingerprint.equals(cachedFingerprint)
+            && fingerprint.equals(engine.getFingerprint())) {
+          cache.put(input, completionResult);
+        }
+        result.complete(completionResult);
+      } catch (CompletionCancelledException e) {
+        result.completeExceptionally(e);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Prefetching completions of \"" + input + "\" failed", e);
+        result.completeExceptionally(e);
+      } catch (Throwable e) {
+        // A request awaiting this prefetch must not wait forever
+        result.completeExceptionally(e);
+        throw e;
+      } finally {
+        prefetches.remove(input, this);
+      }
+    }
+
+    /**
+     * Cancels the prefetch, also when running.
+     */
+    void cancel() {
+      state.compareAndSet(QUEUED, CANCELLED);
+      state.compareAndSet(RUNNING, CANCELLED);
+    }
+
+    /**
+     * Cancels the prefetch unless it is running, so that it can be awaited.
+     * @return whether the prefetch was cancelled before it started
+     */
+    boolean cancelIfQueued() {
+      return state.compareAndSet(QUEUED, CANCELLED) || state.get() == CANCELLED;
+    }
+
+    /**
+     * @return result of the running prefetch, or null when it failed
+     */
+    CompletionResult await() {
+      try {
+        return result.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch (ExecutionException e) {
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,260 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.impl.AtnProfile;
+import akovari.antlr4.autocomplete.impl.LexerWrapper;
+import akovari.antlr4.autocomplete.impl.ParserWrapper;
+import org.antlr.v4.runtime.Vocabulary;
+import org.antlr.v4.runtime.atn.*;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+
+/**
+ * Finds the rules and ATN states that make completion expensive for a grammar. Run a workload through completers
+ * created with {@link Antlr4Completer#withProfiler(CompletionProfiler)}, then read the hot spots ranked by cost, or
+ * render the hot part of the ATNs with Graphviz:
+ * <pre>
+ * CompletionProfiler profiler = new CompletionProfiler(engine);
+ * for (String input : workload) {
+ *   engine.newCompleter(input).withProfiler(profiler).complete();
+ * }
+ * System.out.println(profiler.toReport(20));
+ * Files.writeString(Paths.get("hot.dot"), profiler.toDot(30));
+ * </pre>
+ * The time of a parser state is the time spent suggesting tokens with the caret in that state, the time of a lexer
+ * state is the time spent walking the lexer ATN from that token rule. Lexer walks served from the token suggestion
+ * caches count the visits of the walks they stand for, recorded when those walks ran under this profiler, while time is
+ * the time actually spent, so visits rank grammar cost and time ranks cost at the current cache state. A profiler may
+ * be shared by concurrent requests.
+ */
+public final class CompletionProfiler {
+  private final GrammarVersion version;
+  private final AtnProfile atnProfile;
+
+  /**
+   * @param engine engine whose current grammar version is profiled, completers of later versions are rejected
+   */
+  public CompletionProfiler(CompletionEngine engine) {
+    this.version = engine.getVersion();
+    this.atnProfile = new AtnProfile(version.getParserWrapper().getAtnStateCount(),
+        version.getLexerWrapper().getAtn().states.size());
+  }
+
+  boolean isFor(GrammarVersion version) {
+    return this.version == version;
+  }
+
+  AtnProfile getAtnProfile() {
+    return atnProfile;
+  }
+
+  /**
+   * @return visited states and rules, most expensive first
+   */
+  public List<HotSpot> getHotSpots() {
+    List<HotSpot> hotSpots = new ArrayList<>();
+    ParserWrapper parserWrapper = version.getParserWrapper();
+    LexerWrapper lexerWrapper = version.getLexerWrapper();
+    long[] parserRuleVisits = new long[parserWrapper.getAtn().ruleToStartState.length];
+    long[] parserRuleNanos = new long[parserRuleVisits.length];
+    for (int stateNumber = 0; stateNumber < atnProfile.getParserStateCount(); ++stateNumber) {
+      long visits = atnProfile.getParserStateVisits(stateNumber);
+      if (visits == 0) {
+        continue;
+      }
+      ATNState parserState = parserWrapper.getAtnState(stateNumber);
+      long nanos = atnProfile.getParserStateNanos(stateNumber);
+      hotSpots.add(new HotSpot(HotSpot.Kind.PARSER_STATE, parserWrapper.toString(parserState), stateNumber, visits, nanos));
+      parserRuleVisits[parserState.ruleIndex] += visits;
+      parserRuleNanos[parserState.ruleIndex] += nanos;
+    }
+    String[] lexerRuleNames = lexerWrapper.getRuleNames();
+    long[] lexerRuleVisits = new long[lexerRuleNames.length];
+    long[] lexerRuleNanos = new long[lexerRuleNames.length];
+    for (int stateNumber = 0; stateNumber < atnProfile.getLexerStateCount(); ++stateNumber) {
+      long visits = atnProfile.getLexerStateVisits(stateNumber);
+      long nanos = atnProfile.getLexerStateNanos(stateNumber);
+      if (visits == 0 && nanos == 0) {
+        continue;
+      }
+      ATNState lexerState = lexerWrapper.getAtn().states.get(stateNumber);
+      hotSpots.add(new HotSpot(HotSpot.Kind.LEXER_STATE, lexerWrapper.stateToString(lexerState), stateNumber, visits, nanos));
+      lexerRuleVisits[lexerState.ruleIndex] += visits;
+      lexerRuleNanos[lexerState.ruleIndex] += nanos;
+    }
+    for (int ruleIndex = 0; ruleIndex < parserRuleVisits.length; ++ruleIndex) {
+      if (parserRuleVisits[ruleIndex] > 0) {
+        hotSpots.add(new HotSpot(HotSpot.Kind.PARSER_RULE, parserWrapper.getRuleName(ruleIndex), -1,
+            parserRuleVisits[ruleIndex], parserRuleNanos[ruleIndex]));
+      }
+    }
+    for (int ruleIndex = 0; ruleIndex < lexerRuleVisits.length; ++ruleIndex) {
+      if (lexerRuleVisits[ruleIndex] > 0 || lexerRuleNanos[ruleIndex] > 0) {
+        hotSpots.add(new HotSpot(HotSpot.Kind.LEXER_RULE, lexerRuleNames[ruleIndex], -1, lexerRuleVisits[ruleIndex],
+            lexerRuleNanos[ruleIndex]));
+      }
+    }
+    hotSpots.sort(HotSpot.BY_COST);
+    return hotSpots;
+  }
+
+  public List<HotSpot> getHotSpots(HotSpot.Kind kind) {
+    List<HotSpot> hotSpots = new ArrayList<>(getHotSpots());
+    hotSpots.removeIf(hotSpot -> hotSpot.getKind() != kind);
+    return hotSpots;
+  }
+
+  /**
+   * Renders the most expensive hot spots of each kind as a text table.
+   * @param limit maximum number of hot spots per kind
+   * @return the report
+   */
+  public String toReport(int limit) {
+    StringBuilder report = new StringBuilder();
+    for (HotSpot.Kind kind : HotSpot.Kind.values()) {
+      report.append(String.format("%-12s %-30s %8s %12s %12s%n", kind, "name", "state", "visits", "time [us]"));
+      for (HotSpot hotSpot : truncate(getHotSpots(kind), limit)) {
+        report.append(String.format("%-12s %-30s %8s %12d %12d%n", "", hotSpot.getName(),
+            (hotSpot.getStateNumber() < 0) ? "" : String.valueOf(hotSpot.getStateNumber()), hotSpot.getVisits(),
+            hotSpot.getTime().toNanos() / 1000));
+      }
+    }
+    return report.toString();
+  }
+
+  /**
+   * Renders the most expensive parser and lexer states and the transitions between them as a Graphviz digraph. The
+   * more expensive a state, the deeper its color.
+   * @param limit maximum number of states per ATN
+   * @return the DOT source
+   */
+  public String toDot(int limit) {
+    StringBuilder dot = new StringBuilder("digraph hotspots {\n  node [shape=box, style=filled];\n");
+    List<HotSpot> parserStates = truncate(getHotSpots(HotSpot.Kind.PARSER_STATE), limit);
+    List<HotSpot> lexerStates = truncate(getHotSpots(HotSpot.Kind.LEXER_STATE), limit);
+    Vocabulary vocabulary = version.getLexerWrapper().getVocabulary();
+    appendCluster(dot, "parser", "p", parserStates, version.getParserWrapper().getAtn(),
+        label -> vocabulary.getDisplayName(label), version.getParserWrapper()::getRuleName);
+    appendCluster(dot, "lexer", "l", lexerStates, version.getLexerWrapper().getAtn(),
+        label -> "'" + new String(Character.toChars(label)) + "'", ruleIndex -> version.getLexerWrapper().getRuleNames()[ruleIndex]);
+    return dot.append("}\n").toString();
+  }
+
+  public void reset() {
+    atnProfile.reset();
+  }
+
+  private static void appendCluster(StringBuilder dot, String clusterName, String nodePrefix, List<HotSpot> hotSpots,
+                                    ATN atn, IntFunction<String> labelToString,
+                                    IntFunction<String> ruleName) {
+    dot.append("  subgraph cluster_").append(clusterName).append(" {\n    label=\"").append(clusterName).append("\";\n");
+    // Most states are only visited while walking, not timed, so the heat is the larger of both ratios
+    long maxNanos = hotSpots.stream().mapToLong(hotSpot -> hotSpot.nanos).max().orElse(0);
+    long maxVisits = hotSpots.stream().mapToLong(HotSpot::getVisits).max().orElse(0);
+    Set<Integer> hotStateNumbers = new HashSet<>();
+    for (HotSpot hotSpot : hotSpots) {
+      hotStateNumbers.add(hotSpot.getStateNumber());
+      double heat = Math.max((maxNanos == 0) ? 0 : (double) hotSpot.nanos / maxNanos,
+          (maxVisits == 0) ? 0 : (double) hotSpot.visits / maxVisits);
+      dot.append(String.format(Locale.ROOT, "    %s%d [label=\"%s\\n%s %d\\n%d visits, %d us\", fillcolor=\"0.000 %.3f 1.000\"];%n",
+          nodePrefix, hotSpot.getStateNumber(), escape(hotSpot.getName()),
+          atn.states.get(hotSpot.getStateNumber()).getClass().getSimpleName(), hotSpot.getStateNumber(),
+          hotSpot.getVisits(), hotSpot.getTime().toNanos() / 1000, heat));
+    }
+    IntPredicate isHot = hotStateNumbers::contains;
+    for (HotSpot hotSpot : hotSpots) {
+      for (Transition trans : atn.states.get(hotSpot.getStateNumber()).getTransitions()) {
+        if (isHot.test(trans.target.stateNumber)) {
+          dot.append(String.format("    %s%d -> %s%d [label=\"%s\"];%n", nodePrefix, hotSpot.getStateNumber(),
+              nodePrefix, trans.target.stateNumber, escape(transitionLabel(trans, labelToString, ruleName))));
+        }
+      }
+    }
+    dot.append("  }\n");
+  }
+
+  private static String transitionLabel(Transition trans, IntFunction<String> labelToString,
+                                        IntFunction<String> ruleName) {
+    if (trans instanceof RuleTransition) {
+      return ruleName.apply(((RuleTransition) trans).ruleIndex);
+    } else if (trans instanceof AtomTransition) {
+      return labelToString.apply(((AtomTransition) trans).label);
+    } else if (trans.isEpsilon()) {
+      return "";
+    }
+    return String.valueOf(trans.label());
+  }
+
+  private static String escape(String text) {
+    return text.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  private static <T> List<T> truncate(List<T> list, int limit) {
+    return list.subList(0, Math.min(limit, list.size()));
+  }
+
+  /**
+   * Visits and time of one ATN state or rule.
+   */
+  public static final class HotSpot {
+    static final Comparator<HotSpot> BY_COST = Comparator.comparingLong((HotSpot hotSpot) -> hotSpot.nanos).reversed()
+        .thenComparing(Comparator.comparingLong(HotSpot::getVisits).reversed());
+
+    public enum Kind {
+      PARSER_RULE, PARSER_STATE, LEXER_RULE, LEXER_STATE
+    }
+
+    private final Kind kind;
+    private final String name;
+    private final int stateNumber;
+    private final long visits;
+    private final long nanos;
+
+    HotSpot(Kind kind, String name, int stateNumber, long visits, long nanos) {
+      this.kind = kind;
+      this.name = name;
+      this.stateNumber = stateNumber;
+      this.visits = visits;
+      this.nanos = nanos;
+    }
+
+    public Kind getKind() {
+      return kind;
+    }
+
+    /**
+     * @return name of the rule, or of the rule containing the state
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return number of the ATN state, -1 for rules
+     */
+    public int getStateNumber() {
+      return stateNumber;
+    }
+
+    public long getVisits() {
+      return visits;
+    }
+
+    public Duration getTime() {
+      return Duration.ofNanos(nanos);
+    }
+
+    @Override
+    public String toString() {
+      return "HotSpot{" +
+          "kind=" + kind +
+          ", name='" + name + '\'' +
+          ", stateNumber=" + stateNumber +
+          ", visits=" + visits +
+          ", nanos=" + nanos +
+          '}';
+    }
+  }
+}
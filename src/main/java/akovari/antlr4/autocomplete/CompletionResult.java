@@ -1,8 +1,15 @@
 package akovari.antlr4.autocomplete;
 
+import akovari.antlr4.autocomplete.impl.UsageCounters;
+import org.antlr.v4.runtime.atn.ATNState;
+
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * Result of the autocomplete engine.
@@ -11,15 +18,88 @@ public final class CompletionResult {
   private final List<InputToken> tokens;
   private final String untokenizedText;
   private final Set<String> suggestions;
+  private final Set<String> replacements;
+  private final Set<CandidateRule> candidateRules;
+  private final CompletionStats stats;
+  private final Quality quality;
+  private final UsageCounters usageCounters;
+  private final Set<ATNState> caretKernel;
+
+  /**
+   * Levels of completion quality, each cheaper than the one before, see {@link DegradationPolicy}.
+   */
+  public enum Quality {
+    /**
+     * All suggestions, validated against the parser ATN.
+     */
+    FULL,
+    /**
+     * Suggestions are not validated, so some may not fit the preceding tokens.
+     */
+    UNVALIDATED,
+    /**
+     * Additionally, the lexer ATN walk stops after a fixed number of states, so some suggestions may be missing.
+     */
+    CAPPED,
+    /**
+     * Additionally, tokens are only suggested from the token suggestion caches, without walking the lexer ATN.
+     */
+    CACHED_ONLY
+  }
 
   public CompletionResult(List<InputToken> tokens, String untokenizedText, Set<String> suggestions) {
+    this(tokens, untokenizedText, suggestions, Collections.emptySet(), Collections.emptySet(), null, Quality.FULL);
+  }
+
+  CompletionResult(List<InputToken> tokens, String untokenizedText, Set<String> suggestions, Set<String> replacements,
+                   Set<CandidateRule> candidateRules, CompletionStats stats, Quality quality) {
+    this(tokens, untokenizedText, suggestions, replacements, candidateRules, stats, quality, null, null);
+  }
+
+  private CompletionResult(List<InputToken> tokens, String untokenizedText, Set<String> suggestions,
+                           Set<String> replacements, Set<CandidateRule> candidateRules, CompletionStats stats,
+                           Quality quality, UsageCounters usageCounters, Set<ATNState> caretKernel) {
     this.tokens = tokens;
     this.untokenizedText = untokenizedText;
     this.suggestions = suggestions;
+    this.replacements = replacements;
+    this.candidateRules = candidateRules;
+    this.stats = stats;
+    this.quality = quality;
+    this.usageCounters = usageCounters;
+    this.caretKernel = caretKernel;
   }
 
   /**
-   * List of tokens read from the input
+   * @param tokens tokens replacing the tokens of this result
+   * @return copy of this result with the given tokens
+   */
+  CompletionResult withTokens(List<InputToken> tokens) {
+    return new CompletionResult(tokens, untokenizedText, suggestions, replacements, candidateRules, stats, quality,
+        usageCounters, caretKernel);
+  }
+
+  /**
+   * @param usageCounters counters the suggestions are ranked by
+   * @param caretKernel parser states at the caret, the context of the counters
+   * @return copy of this result ranking its suggestions by usage
+   */
+  CompletionResult withUsage(UsageCounters usageCounters, Set<ATNState> caretKernel) {
+    return new CompletionResult(tokens, untokenizedText, suggestions, replacements, candidateRules, stats, quality,
+        usageCounters, caretKernel);
+  }
+
+  UsageCounters getUsageCounters() {
+    return usageCounters;
+  }
+
+  Set<ATNState> getCaretKernel() {
+    return caretKernel;
+  }
+
+  /**
+   * List of tokens read from the input. Tokens are created on access, the list is empty when tokens were turned off by
+   * {@link Antlr4Completer#withoutTokens()}.
    * @return the list of tokens
    */
   public List<InputToken> getTokens() {
@@ -42,12 +122,72 @@ public final class CompletionResult {
     return suggestions;
   }
 
+  /**
+   * Suggestions ordered by how often they were accepted in the same parser context, see
+   * {@link CompletionEngine#withUsageRanking(java.time.Duration)}. Alphabetical without usage ranking.
+   * @return list of suggestions, most used first
+   */
+  public List<String> getRankedSuggestions() {
+    return getTopSuggestions(suggestions.size());
+  }
+
+  /**
+   * Like {@link #getRankedSuggestions()}, selecting the k first without sorting the rest.
+   * @param k maximum number of suggestions
+   * @return list of at most k suggestions, most used first
+   */
+  public List<String> getTopSuggestions(int k) {
+    if (usageCounters == null) {
+      return suggestions.stream().sorted().limit(k).collect(Collectors.toList());
+    }
+    Map<String, String> tokenTexts = suggestions.stream()
+        .collect(Collectors.toMap(Function.identity(), suggestion -> untokenizedText + suggestion));
+    return usageCounters.top(caretKernel, tokenTexts, k);
+  }
+
+  /**
+   * Whole tokens replacing the untokenized text, rather than being appended to the input. Only found with
+   * case-insensitive or fuzzy matching, see {@link Antlr4Completer#withFuzzyMatching(int)}.
+   * @return set of replacements for the untokenized text
+   */
+  public Set<String> getReplacements() {
+    return replacements;
+  }
+
+  /**
+   * Preferred parser rules the caret sits inside, see {@link Antlr4Completer#withPreferredRules(String...)}.
+   * @return set of candidate rules, empty unless preferred rules were requested
+   */
+  public Set<CandidateRule> getCandidateRules() {
+    return candidateRules;
+  }
+
+  /**
+   * Phase timings and work counters, see {@link Antlr4Completer#withStats()}. Not part of equality.
+   * @return the statistics, or null when not requested
+   */
+  public CompletionStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Level the result was completed at, see {@link Antlr4Completer#withQuality(Quality)}. Not part of equality, neither
+   * is the usage ranking.
+   * @return the quality level
+   */
+  public Quality getQuality() {
+    return quality;
+  }
+
   @Override
   public String toString() {
     return "CompletionResult{" +
         "tokens=" + tokens +
         ", untokenizedText='" + untokenizedText + '\'' +
         ", suggestions=" + suggestions +
+        ", replacements=" + replacements +
+        ", candidateRules=" + candidateRules +
+        ", quality=" + quality +
         '}';
   }
 
@@ -58,12 +198,14 @@ public final class CompletionResult {
     CompletionResult that = (CompletionResult) o;
     return Objects.equals(tokens, that.tokens) &&
         Objects.equals(untokenizedText, that.untokenizedText) &&
-        Objects.equals(suggestions, that.suggestions);
+        Objects.equals(suggestions, that.suggestions) &&
+        Objects.equals(replacements, that.replacements) &&
+        Objects.equals(candidateRules, that.candidateRules);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(tokens, untokenizedText, suggestions);
+    return Objects.hash(tokens, untokenizedText, suggestions, replacements, candidateRules);
   }
 
   /**
@@ -108,4 +250,59 @@ public final class CompletionResult {
       return Objects.hash(type, text);
     }
   }
+
+  /**
+   * Parser rule expected at the caret, together with the index of the input token it starts at
+   */
+  public static final class CandidateRule {
+    private final String ruleName;
+    private final int ruleIndex;
+    private final int startTokenIndex;
+
+    public CandidateRule(String ruleName, int ruleIndex, int startTokenIndex) {
+      this.ruleName = ruleName;
+      this.ruleIndex = ruleIndex;
+      this.startTokenIndex = startTokenIndex;
+    }
+
+    public String getRuleName() {
+      return ruleName;
+    }
+
+    public int getRuleIndex() {
+      return ruleIndex;
+    }
+
+    /**
+     * Index into {@link CompletionResult#getTokens()} of the first token matched by the rule. Equals the number of
+     * tokens when the rule starts at the caret.
+     * @return the start token index
+     */
+    public int getStartTokenIndex() {
+      return startTokenIndex;
+    }
+
+    @Override
+    public String toString() {
+      return "CandidateRule{" +
+          "ruleName='" + ruleName + '\'' +
+          ", startTokenIndex=" + startTokenIndex +
+          '}';
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      CandidateRule that = (CandidateRule) o;
+      return ruleIndex == that.ruleIndex &&
+          startTokenIndex == that.startTokenIndex &&
+          Objects.equals(ruleName, that.ruleName);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(ruleName, ruleIndex, startTokenIndex);
+    }
+  }
 }
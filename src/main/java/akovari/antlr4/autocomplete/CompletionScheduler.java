@@ -0,0 +1,169 @@
+package akovari.antlr4.autocomplete;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
+
+/**
+ * Runs completions of many sessions, e.g. one per user or editor, at most one per session at a time, always for the
+ * latest request of the session. A new request aborts the running completion of its session in the middle of the ATN
+ * walk, see {@link Antlr4Completer#withCancellation(java.util.function.BooleanSupplier)}, and replaces a request still
+ * waiting for it. Aborted and replaced requests are answered as {@link Outcome#isSuperseded() superseded}, so CPU goes
+ * to the requests whose answers are shown. Thread-safe.
+ */
+public final class CompletionScheduler {
+  private final CompletionEngine engine;
+  private final Executor executor;
+  private final Map<String, Session> sessions = new HashMap<>();
+
+  /**
+   * @param engine engine completing all requests
+   * @param executor executor running the completions
+   */
+  public CompletionScheduler(CompletionEngine engine, Executor executor) {
+    this.engine = engine;
+    this.executor = executor;
+  }
+
+  /**
+   * @param sessionId identifies the session whose older requests this request supersedes
+   * @param input text to complete
+   * @return future of the outcome, never completed exceptionally by superseding
+   */
+  public CompletableFuture<Outcome> submit(String sessionId, String input) {
+    return submit(sessionId, input, UnaryOperator.identity());
+  }
+
+  /**
+   * @param options options of the completer, e.g. {@code Antlr4Completer::withoutTokens}
+   */
+  public CompletableFuture<Outcome> submit(String sessionId, String input, UnaryOperator<Antlr4Completer> options) {
+    Request request = new Request(sessionId, input, options);
+    synchronized (sessions) {
+      Session session = sessions.computeIfAbsent(sessionId, id -> new Session());
+      if (session.waiting != null) {
+        session.waiting.result.complete(Outcome.SUPERSEDED);
+      }
+      session.waiting = request;
+      if (session.running != null) {
+        session.running.cancelled = true;
+      } else {
+        startWaiting(session);
+      }
+    }
+    return request.result;
+  }
+
+  /**
+   * @return number of sessions with a running or waiting request
+   */
+  public int getActiveSessionCount() {
+    synchronized (sessions) {
+      return sessions.size();
+    }
+  }
+
+  private void startWaiting(Session session) {
+    Request request = session.waiting;
+    session.waiting = null;
+    session.running = request;
+    try {
+      executor.execute(request);
+    } catch (RuntimeException e) {
+      session.running = null;
+      sessions.remove(request.sessionId);
+      request.result.completeExceptionally(e);
+    }
+  }
+
+  private void finished(Request request) {
+    synchronized (sessions) {
+      Session session = sessions.get(request.sessionId);
+      session.running = null;
+      if (session.waiting != null) {
+        startWaiting(session);
+      } else {
+        sessions.remove(request.sessionId);
+      }
+    }
+  }
+
+  /**
+   * Answer of a scheduled request: either its completions or the information that a newer request of the same session
+   * superseded it.
+   */
+  public static final class Outcome {
+    private static final Outcome SUPERSEDED = new Outcome(null);
+
+    private final CompletionResult result;
+
+    private Outcome(CompletionResult result) {
+      this.result = result;
+    }
+
+    public boolean isSuperseded() {
+      return result == null;
+    }
+
+    /**
+     * @return completions of the request
+     * @throws IllegalStateException when the request was superseded
+     */
+    public CompletionResult getResult() {
+      if (result == null) {
+        throw new IllegalStateException("The request was superseded by a newer request of its session");
+      }
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return isSuperseded() ? "Outcome{superseded}" : "Outcome{" + result + "}";
+    }
+  }
+
+  private static final class Session {
+    Request running;
+    Request waiting;
+  }
+
+  private final class Request implements Runnable {
+    final String sessionId;
+    final String input;
+    final UnaryOperator<Antlr4Completer> options;
+    final CompletableFuture<Outcome> result = new CompletableFuture<>();
+    volatile boolean cancelled;
+
+    Request(String sessionId, String input, UnaryOperator<Antlr4Completer> options) {
+      this.sessionId = sessionId;
+      this.input = input;
+      this.options = options;
+    }
+
+    @Override
+    public void run() {
+      Outcome outcome = Outcome.SUPERSEDED;
+      Throwable failure = null;
+      try {
+        if (!cancelled) {
+          Antlr4Completer completer = options.apply(engine.newCompleter(input)).withCancellation(() -> cancelled);
+          outcome = new Outcome(completer.complete());
+        }
+      } catch (CompletionCancelledException e) {
+        outcome = Outcome.SUPERSEDED;
+      } catch (RuntimeException | Error e) {
+        failure = e;
+      } finally {
+        finished(this);
+      }
+      // Answered after the session moved on, so a caller reacting to the answer finds the session idle
+      if (failure != null) {
+        result.completeExceptionally(failure);
+      } else {
+        result.complete(outcome);
+      }
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.impl.CompletionCounters;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Phase timings and work counters of one completion, see {@link Antlr4Completer#withStats()}.
+ */
+public final class CompletionStats {
+  private final CompletionCounters counters;
+
+  CompletionStats(CompletionCounters counters) {
+    this.counters = counters;
+  }
+
+  /**
+   * @return time spent tokenizing the input
+   */
+  public Duration getTokenizationTime() {
+    return Duration.ofNanos(counters.tokenizationNanos);
+  }
+
+  /**
+   * @return time spent walking the parser ATN, excluding lexer suggestion and validation
+   */
+  public Duration getParserAtnTime() {
+    return Duration.ofNanos(counters.parserAtnNanos);
+  }
+
+  /**
+   * @return time spent walking the lexer ATN for suggestions
+   */
+  public Duration getLexerSuggestionTime() {
+    return Duration.ofNanos(counters.lexerSuggestionNanos);
+  }
+
+  /**
+   * @return time spent validating candidates by re-lexing and parsing them
+   */
+  public Duration getValidationTime() {
+    return Duration.ofNanos(counters.validationNanos);
+  }
+
+  /**
+   * @return parser ATN states visited, both walking from the caret and computing the parser states reached after the
+   * tokens; token sequences the shared {@link akovari.antlr4.autocomplete.impl.CompletionDfa} has seen before are
+   * walked without visiting any
+   */
+  public long getParserStatesVisited() {
+    return counters.parserStatesVisited;
+  }
+
+  public long getParserTransitionsFollowed() {
+    return counters.parserTransitionsFollowed;
+  }
+
+  public long getLexerStatesVisited() {
+    return counters.lexerStatesVisited;
+  }
+
+  public long getLexerTransitionsFollowed() {
+    return counters.lexerTransitionsFollowed;
+  }
+
+  /**
+   * @return candidates found in the lexer ATN, before validation
+   */
+  public long getCandidatesProduced() {
+    return counters.candidatesProduced;
+  }
+
+  /**
+   * @return candidates dropped by validation
+   */
+  public long getCandidatesRejected() {
+    return counters.candidatesRejected;
+  }
+
+  /**
+   * @return lookups answered by the token suggestion caches or by the suggestions memoized per parser state
+   */
+  public long getCacheHits() {
+    return counters.cacheHits;
+  }
+
+  public long getCacheMisses() {
+    return counters.cacheMisses;
+  }
+
+  /**
+   * All measurements by name, times in nanoseconds, e.g. to be sent to a metrics system.
+   * @return the measurements
+   */
+  public Map<String, Long> toMap() {
+    Map<String, Long> measurements = new LinkedHashMap<>();
+    measurements.put("tokenizationNanos", counters.tokenizationNanos);
+    measurements.put("parserAtnNanos", counters.parserAtnNanos);
+    measurements.put("lexerSuggestionNanos", counters.lexerSuggestionNanos);
+    measurements.put("validationNanos", counters.validationNanos);
+    measurements.put("parserStatesVisited", counters.parserStatesVisited);
+    measurements.put("parserTransitionsFollowed", counters.parserTransitionsFollowed);
+    measurements.put("lexerStatesVisited", counters.lexerStatesVisited);
+    measurements.put("lexerTransitionsFollowed", counters.lexerTransitionsFollowed);
+    measurements.put("candidatesProduced", counters.candidatesProduced);
+    measurements.put("candidatesRejected", counters.candidatesRejected);
+    measurements.put("cacheHits", counters.cacheHits);
+    measurements.put("cacheMisses", counters.cacheMisses);
+    return measurements;
+  }
+
+  @Override
+  public String toString() {
+    return "CompletionStats" + toMap();
+  }
+}
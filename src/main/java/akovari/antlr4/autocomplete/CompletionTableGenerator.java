@@ -0,0 +1,81 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.impl.*;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.atn.ATNState;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precomputes a {@link CompletionTable} at build time, so that the engine does not analyze the ATNs on every cold
+ * start. Run it from the build (see the antlr4-autocomplete-maven-plugin) or from the command line:
+ * <pre>
+ * java akovari.antlr4.autocomplete.CompletionTableGenerator my.Lexer my.Parser target/classes
+ * </pre>
+ * The table is written next to the parser class, where {@link Antlr4Completer} finds it at runtime.
+ */
+public class CompletionTableGenerator {
+  private final LexerAndParserFactory lexerAndParserFactory;
+
+  public CompletionTableGenerator(LexerAndParserFactory lexerAndParserFactory) {
+    this.lexerAndParserFactory = lexerAndParserFactory;
+  }
+
+  public CompletionTable generate() {
+    LexerWrapper lexerWrapper = new LexerWrapper(lexerAndParserFactory);
+    ParserWrapper parserWrapper = new ParserWrapper(lexerAndParserFactory, lexerWrapper.getVocabulary());
+
+    RuleFollowAnalyzer ruleFollowAnalyzer = new RuleFollowAnalyzer(parserWrapper);
+    RuleFollowAnalyzer.FollowSet[] followSets = new RuleFollowAnalyzer.FollowSet[parserWrapper.getAtnStateCount()];
+    for (int stateNumber = 0; stateNumber < followSets.length; ++stateNumber) {
+      ATNState parserState = parserWrapper.getAtnState(stateNumber);
+      followSets[stateNumber] = (parserState == null)
+          ? new RuleFollowAnalyzer.FollowSet() : ruleFollowAnalyzer.followSetOf(parserState);
+    }
+
+    Map<Integer, Integer> lexerRuleByTokenType = LexerWrapper.computeLexerRuleByTokenType(lexerWrapper.getAtn());
+    Map<Integer, List<String>> keywordsByTokenType = new HashMap<>();
+    for (int tokenType : lexerRuleByTokenType.keySet()) {
+      keywordsByTokenType.put(tokenType, lexerWrapper.getKeywordIndex().getKeywords(tokenType));
+    }
+
+    String fingerprint = AtnFingerprint.of(lexerWrapper.getAtn(), parserWrapper.getAtn());
+    return new CompletionTable(fingerprint, followSets, keywordsByTokenType, lexerRuleByTokenType);
+  }
+
+  /**
+   * Generates the table and writes it next to the parser class.
+   * @param outputDirectory class output directory, e.g. target/classes
+   * @return the written file
+   * @throws IOException when the table cannot be written
+   */
+  public Path generateInto(Path outputDirectory) throws IOException {
+    Class<? extends Parser> parserClass = lexerAndParserFactory.createParser(null).getClass();
+    Path tableFile = outputDirectory.resolve(CompletionTable.resourceNameFor(parserClass));
+    Files.createDirectories(tableFile.getParent());
+    try (OutputStream outputStream = Files.newOutputStream(tableFile)) {
+      generate().write(outputStream);
+    }
+    return tableFile;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 3) {
+      System.err.println("Usage: CompletionTableGenerator <lexer class> <parser class> <output directory>");
+      System.exit(2);
+    }
+    Class<? extends Lexer> lexerClass = Class.forName(args[0]).asSubclass(Lexer.class);
+    Class<? extends Parser> parserClass = Class.forName(args[1]).asSubclass(Parser.class);
+    Path tableFile = new CompletionTableGenerator(new ReflectionLexerAndParserFactory(lexerClass, parserClass))
+        .generateInto(Paths.get(args[2]));
+    System.out.println("Wrote " + tableFile);
+  }
+}
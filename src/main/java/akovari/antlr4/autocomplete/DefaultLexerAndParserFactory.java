@@ -1,6 +1,8 @@
 package akovari.antlr4.autocomplete;
 
 import akovari.antlr4.autocomplete.impl.LexerAndParserFactory;
+import akovari.antlr4.autocomplete.impl.SymbolProvider;
+import akovari.antlr4.autocomplete.impl.SymbolProviderRegistry;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.Parser;
@@ -16,6 +18,7 @@ import java.util.function.Predicate;
  */
 public class DefaultLexerAndParserFactory<L extends Lexer, P extends Parser> implements LexerAndParserFactory {
   private final Predicate<String> isValidState;
+  private final SymbolProviderRegistry symbolProviders = new SymbolProviderRegistry();
   private final Function<CharStream, L> lexerCtor;
   private final Function<TokenStream, P> parserCtor;
 
@@ -48,6 +51,33 @@ public class DefaultLexerAndParserFactory<L extends Lexer, P extends Parser> imp
     return isValidState.test(suggestion);
   }
 
+  /**
+   * Completes tokens of the given lexer rule from the symbol provider instead of the lexer ATN.
+   * @param lexerRuleName name of the lexer rule, as defined in the lexer grammar
+   * @param symbolProvider provider of the symbols
+   * @return this factory
+   */
+  public DefaultLexerAndParserFactory<L, P> withSymbolProvider(String lexerRuleName, SymbolProvider symbolProvider) {
+    symbolProviders.register(lexerRuleName, symbolProvider);
+    return this;
+  }
+
+  /**
+   * Completes tokens of the given type from the symbol provider instead of the lexer ATN.
+   * @param tokenType token type, as defined in the generated lexer
+   * @param symbolProvider provider of the symbols
+   * @return this factory
+   */
+  public DefaultLexerAndParserFactory<L, P> withSymbolProvider(int tokenType, SymbolProvider symbolProvider) {
+    symbolProviders.register(tokenType, symbolProvider);
+    return this;
+  }
+
+  @Override
+  public SymbolProvider getSymbolProvider(int tokenType, String lexerRuleName) {
+    return symbolProviders.find(tokenType, lexerRuleName);
+  }
+
   @Override
   public Parser createParser(TokenStream tokenStream) {
     return parserCtor.apply(tokenStream);
@@ -0,0 +1,120 @@
+package akovari.antlr4.autocomplete;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntSupplier;
+
+/**
+ * Trades suggestion quality for latency under load. The policy watches the latency of recent requests, smoothed
+ * exponentially, and optionally the depth of the queue in front of the engine. While the latency SLO is at risk, it
+ * steps down one {@link CompletionResult.Quality} level at a time, and once the pressure is gone it steps back up, at
+ * most one step per cooldown period, so that it does not flap. Attach it with
+ * {@link CompletionEngine#withDegradationPolicy(DegradationPolicy)}, results tell the level they were completed at,
+ * see {@link CompletionResult#getQuality()}. Thread-safe without locks, as every request reads the level and records
+ * its latency.
+ */
+public final class DegradationPolicy {
+  private static final double SMOOTHING = 0.2;
+  private static final double AT_RISK_FRACTION = 0.8;
+  private static final double RELIEVED_FRACTION = 0.4;
+
+  private final long latencySloNanos;
+  private IntSupplier queueDepth = () -> 0;
+  private int maxQueueDepth = Integer.MAX_VALUE;
+  private long cooldownNanos = Duration.ofSeconds(1).toNanos();
+
+  /**
+   * Bits of the smoothed latency in nanoseconds, a double, 0 before the first request.
+   */
+  private final AtomicLong averageLatencyBits = new AtomicLong(Double.doubleToRawLongBits(0));
+  private final AtomicReference<Level> level = new AtomicReference<>(
+      new Level(CompletionResult.Quality.FULL, System.nanoTime()));
+
+  /**
+   * @param latencySlo latency a completion should stay within
+   */
+  public DegradationPolicy(Duration latencySlo) {
+    this.latencySloNanos = latencySlo.toNanos();
+  }
+
+  /**
+   * Also steps down while more requests are waiting than the given depth, e.g. for the queue of the executor running
+   * the completions.
+   * @param queueDepth number of requests waiting
+   * @param maxQueueDepth largest number of waiting requests served at full quality
+   * @return this policy
+   */
+  public DegradationPolicy withQueueDepth(IntSupplier queueDepth, int maxQueueDepth) {
+    this.queueDepth = queueDepth;
+    this.maxQueueDepth = maxQueueDepth;
+    return this;
+  }
+
+  /**
+   * @param cooldown minimum time between two level changes, 1 second by default
+   * @return this policy
+   */
+  public DegradationPolicy withCooldown(Duration cooldown) {
+    this.cooldownNanos = cooldown.toNanos();
+    return this;
+  }
+
+  /**
+   * @return level the next request is completed at
+   */
+  public CompletionResult.Quality getQuality() {
+    return level.get().quality;
+  }
+
+  /**
+   * @return latency of recent requests, smoothed exponentially
+   */
+  public Duration getAverageLatency() {
+    return Duration.ofNanos((long) Double.longBitsToDouble(averageLatencyBits.get()));
+  }
+
+  /**
+   * Records the latency of a finished request and adapts the level.
+   * @param latencyNanos time the request took
+   */
+  public void recordLatency(long latencyNanos) {
+    double averageLatencyNanos = Double.longBitsToDouble(averageLatencyBits.updateAndGet(bits -> {
+      double average = Double.longBitsToDouble(bits);
+      return Double.doubleToRawLongBits(
+          (average == 0) ? latencyNanos : SMOOTHING * latencyNanos + (1 - SMOOTHING) * average);
+    }));
+    long now = System.nanoTime();
+    Level current = level.get();
+    if (now - current.changeNanos < cooldownNanos) {
+      return;
+    }
+    int waiting = queueDepth.getAsInt();
+    boolean atRisk = averageLatencyNanos > AT_RISK_FRACTION * latencySloNanos || waiting > maxQueueDepth;
+    boolean relieved = averageLatencyNanos < RELIEVED_FRACTION * latencySloNanos && waiting <= maxQueueDepth / 2;
+    CompletionResult.Quality[] levels = CompletionResult.Quality.values();
+    int ordinal = current.quality.ordinal();
+    if (atRisk && ordinal < levels.length - 1) {
+      ordinal++;
+    } else if (relieved && ordinal > 0) {
+      ordinal--;
+    } else {
+      return;
+    }
+    // Losing the race means another request changed the level just now, which starts a new cooldown anyway
+    level.compareAndSet(current, new Level(levels[ordinal], now));
+  }
+
+  /**
+   * Quality level and when it was set, replaced together.
+   */
+  private static final class Level {
+    final CompletionResult.Quality quality;
+    final long changeNanos;
+
+    Level(CompletionResult.Quality quality, long changeNanos) {
+      this.quality = quality;
+      this.changeNanos = changeNanos;
+    }
+  }
+}
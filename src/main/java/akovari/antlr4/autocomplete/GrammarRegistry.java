@@ -0,0 +1,214 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.impl.CacheEvictionEvent;
+import akovari.antlr4.autocomplete.impl.LexerAndParserFactory;
+import akovari.antlr4.autocomplete.impl.LexerWrapper;
+
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Serves completion engines for many grammars from one place. Engines are built on first use and cached. Grammars
+ * with identical lexers share the lexer caches. Engines of grammars that were not used for a while, or that exceed
+ * the number of active grammars, are only softly referenced afterwards, so the garbage collector reclaims them under
+ * memory pressure and they are rebuilt when needed again.
+ */
+public final class GrammarRegistry {
+  private static final Logger logger = Logger.getLogger(Antlr4Completer.class.getName());
+  private static final int IDLE_CHECKS_PER_TIMEOUT = 10;
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Map<Object, WeakReference<LexerWrapper>> lexersBySharingKey = new HashMap<>();
+  private final LongSupplier nanoClock;
+  private volatile long idleTimeoutNanos = Duration.ofMinutes(10).toNanos();
+  private volatile int maxActiveGrammars = Integer.MAX_VALUE;
+  private final AtomicInteger activeGrammars = new AtomicInteger();
+  private final AtomicLong nextIdleCheckNanos;
+
+  public GrammarRegistry() {
+    this(System::nanoTime);
+  }
+
+  GrammarRegistry(LongSupplier nanoClock) {
+    this.nanoClock = nanoClock;
+    this.nextIdleCheckNanos = new AtomicLong(nanoClock.getAsLong());
+  }
+
+  /**
+   * @param idleTimeout time after the last use of a grammar, when its engine becomes evictable; 10 minutes by default
+   * @return this registry
+   */
+  public GrammarRegistry withIdleTimeout(Duration idleTimeout) {
+    this.idleTimeoutNanos = idleTimeout.toNanos();
+    return this;
+  }
+
+  /**
+   * @param maxActiveGrammars number of most recently used grammars whose engines are never evicted; unlimited by
+   * default
+   * @return this registry
+   */
+  public GrammarRegistry withMaxActiveGrammars(int maxActiveGrammars) {
+    if (maxActiveGrammars < 1) {
+      throw new IllegalArgumentException("At least one grammar must stay active: " + maxActiveGrammars);
+    }
+    this.maxActiveGrammars = maxActiveGrammars;
+    return this;
+  }
+
+  /**
+   * Registers a grammar, replacing a grammar of the same name. Nothing is built until the grammar is used.
+   * @param grammarName name of the grammar, e.g. a SQL dialect
+   * @param lexerAndParserFactory supplier of the factory, called whenever the engine is (re)built
+   * @return this registry
+   */
+  public GrammarRegistry register(String grammarName, Supplier<? extends LexerAndParserFactory> lexerAndParserFactory) {
+    Entry replaced = entries.put(grammarName, new Entry(lexerAndParserFactory));
+    if (replaced != null) {
+      replaced.demote();
+    }
+    return this;
+  }
+
+  public GrammarRegistry register(String grammarName, LexerAndParserFactory lexerAndParserFactory) {
+    return register(grammarName, () -> lexerAndParserFactory);
+  }
+
+  public void unregister(String grammarName) {
+    Entry removed = entries.remove(grammarName);
+    if (removed != null) {
+      removed.demote();
+    }
+  }
+
+  public Set<String> getGrammarNames() {
+    return Collections.unmodifiableSet(new HashSet<>(entries.keySet()));
+  }
+
+  /**
+   * @return names of the grammars whose engines are currently held strongly
+   */
+  public Set<String> getActiveGrammars() {
+    Set<String> activeGrammars = new HashSet<>();
+    entries.forEach((grammarName, entry) -> {
+      if (entry.isActive()) {
+        activeGrammars.add(grammarName);
+      }
+    });
+    return Collections.unmodifiableSet(activeGrammars);
+  }
+
+  /**
+   * @param grammarName name of a registered grammar
+   * @return engine of the grammar, built when not cached
+   */
+  public CompletionEngine getEngine(String grammarName) {
+    Entry entry = entries.get(grammarName);
+    if (entry == null) {
+      throw new IllegalArgumentException("Unknown grammar: " + grammarName);
+    }
+    CompletionEngine engine = entry.acquire(grammarName);
+    long now = nanoClock.getAsLong();
+    long nextIdleCheck = nextIdleCheckNanos.get();
+    boolean idleCheckDue = now - nextIdleCheck >= 0 && nextIdleCheckNanos.compareAndSet(nextIdleCheck,
+        now + idleTimeoutNanos / IDLE_CHECKS_PER_TIMEOUT);
+    if (idleCheckDue || activeGrammars.get() > maxActiveGrammars) {
+      evictIdleEngines();
+    }
+    return engine;
+  }
+
+  public Antlr4Completer newCompleter(String grammarName, String input) {
+    return getEngine(grammarName).newCompleter(input);
+  }
+
+  /**
+   * Demotes engines idle for longer than the idle timeout, and the least recently used engines exceeding the maximum
+   * number of active grammars, to soft references. Called by {@link #getEngine(String)} whenever there are more active
+   * grammars than allowed, and otherwise at most ten times per idle timeout.
+   * @return number of demoted engines
+   */
+  public int evictIdleEngines() {
+    long now = nanoClock.getAsLong();
+    List<Map.Entry<String, Entry>> activeEntries = new ArrayList<>();
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      if (entry.getValue().isActive()) {
+        activeEntries.add(entry);
+      }
+    }
+    activeEntries.sort(Comparator.comparingLong(entry -> -entry.getValue().lastUsedNanos));
+    int evicted = 0;
+    for (int i = 0; i < activeEntries.size(); ++i) {
+      Entry entry = activeEntries.get(i).getValue();
+      boolean idle = now - entry.lastUsedNanos > idleTimeoutNanos;
+      if ((idle || i >= maxActiveGrammars) && entry.demote()) {
+        logger.fine("Evicted completion engine of grammar " + activeEntries.get(i).getKey());
+        CacheEvictionEvent.emit(activeEntries.get(i).getKey(), "engine", 1);
+        ++evicted;
+      }
+    }
+    return evicted;
+  }
+
+  private CompletionEngine buildEngine(LexerAndParserFactory lexerAndParserFactory) {
+    Object sharingKey = LexerWrapper.sharingKey(lexerAndParserFactory);
+    LexerWrapper lexerWrapper;
+    synchronized (lexersBySharingKey) {
+      lexersBySharingKey.values().removeIf(reference -> reference.get() == null);
+      WeakReference<LexerWrapper> sharedReference = lexersBySharingKey.get(sharingKey);
+      LexerWrapper shared = (sharedReference == null) ? null : sharedReference.get();
+      lexerWrapper = (shared == null)
+          ? new LexerWrapper(lexerAndParserFactory) : new LexerWrapper(lexerAndParserFactory, shared);
+      lexersBySharingKey.put(sharingKey, new WeakReference<>(lexerWrapper));
+    }
+    return new CompletionEngine(lexerAndParserFactory, lexerWrapper);
+  }
+
+  private final class Entry {
+    private final Supplier<? extends LexerAndParserFactory> lexerAndParserFactory;
+    private CompletionEngine engine;
+    private SoftReference<CompletionEngine> evictedEngine = new SoftReference<>(null);
+    private volatile long lastUsedNanos;
+
+    Entry(Supplier<? extends LexerAndParserFactory> lexerAndParserFactory) {
+      this.lexerAndParserFactory = lexerAndParserFactory;
+    }
+
+    synchronized CompletionEngine acquire(String grammarName) {
+      lastUsedNanos = nanoClock.getAsLong();
+      if (engine == null) {
+        CompletionEngine evicted = evictedEngine.get();
+        if (evicted == null) {
+          logger.fine("Building completion engine of grammar " + grammarName);
+          evicted = buildEngine(lexerAndParserFactory.get());
+        }
+        engine = evicted;
+        evictedEngine = new SoftReference<>(null);
+        activeGrammars.incrementAndGet();
+      }
+      return engine;
+    }
+
+    synchronized boolean isActive() {
+      return engine != null;
+    }
+
+    synchronized boolean demote() {
+      if (engine == null) {
+        return false;
+      }
+      evictedEngine = new SoftReference<>(engine);
+      engine = null;
+      activeGrammars.decrementAndGet();
+      return true;
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package akovari.antlr4.autocomplete;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Outcome of {@link CompletionEngine#reload(akovari.antlr4.autocomplete.impl.LexerAndParserFactory, Collection, Duration)}.
+ */
+public final class GrammarReload {
+  private final String previousFingerprint;
+  private final String fingerprint;
+  private final boolean lexerCachesKept;
+  private final WarmUpReport warmUp;
+  private final CompletableFuture<Void> drained;
+
+  GrammarReload(String previousFingerprint, String fingerprint, boolean lexerCachesKept, WarmUpReport warmUp,
+                CompletableFuture<Void> drained) {
+    this.previousFingerprint = previousFingerprint;
+    this.fingerprint = fingerprint;
+    this.lexerCachesKept = lexerCachesKept;
+    this.warmUp = warmUp;
+    this.drained = drained;
+  }
+
+  /**
+   * @return fingerprint of the replaced grammar version
+   */
+  public String getPreviousFingerprint() {
+    return previousFingerprint;
+  }
+
+  /**
+   * @return fingerprint of the grammar version serving now
+   */
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * @return whether the fingerprints differ, a reload of the same grammar still rebuilds the parser caches
+   */
+  public boolean isChanged() {
+    return !previousFingerprint.equals(fingerprint);
+  }
+
+  /**
+   * @return whether the lexer did not change, so the token suggestion caches were kept
+   */
+  public boolean isLexerCachesKept() {
+    return lexerCachesKept;
+  }
+
+  /**
+   * @return warm-up of the new version before it was swapped in
+   */
+  public WarmUpReport getWarmUp() {
+    return warmUp;
+  }
+
+  /**
+   * @return future completed once the requests running on the replaced version finished and its caches were dropped
+   */
+  public CompletableFuture<Void> getDrained() {
+    return drained;
+  }
+
+  @Override
+  public String toString() {
+    return "GrammarReload{" +
+        "previousFingerprint='" + previousFingerprint + '\'' +
+        ", fingerprint='" + fingerprint + '\'' +
+        ", lexerCachesKept=" + lexerCachesKept +
+        ", warmUp=" + warmUp +
+        ", drained=" + drained.isDone() +
+        '}';
+  }
+}
@@ -0,0 +1,222 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.impl.AtnFingerprint;
+import akovari.antlr4.autocomplete.impl.CompletionDfa;
+import akovari.antlr4.autocomplete.impl.CompletionTable;
+import akovari.antlr4.autocomplete.impl.LexerAndParserFactory;
+import akovari.antlr4.autocomplete.impl.LexerWrapper;
+import akovari.antlr4.autocomplete.impl.ParserWrapper;
+import akovari.antlr4.autocomplete.impl.PhraseIndex;
+import akovari.antlr4.autocomplete.impl.PrefixValidator;
+import akovari.antlr4.autocomplete.impl.UsageCounters;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Everything a {@link CompletionEngine} derives from one version of its grammar. A request completes on the version
+ * current when its completer was created, so a reload never mixes the data of two versions within a request. Once
+ * replaced, a version is retired: when its last request finished, its caches are dropped, so that the memory is released
+ * even while documents or results still refer to the version. Everything beyond the wrappers is built on
+ * first use, so that a version completing a single input, as the legacy {@link Antlr4Completer} constructor creates
+ * one, only builds what that completion needs.
+ */
+final class GrammarVersion {
+  private static final Logger logger = Logger.getLogger(Antlr4Completer.class.getName());
+
+  private final LexerAndParserFactory lexerAndParserFactory;
+  private final LexerWrapper lexerWrapper;
+  private final ParserWrapper parserWrapper;
+  private final Lazy<CompletionDfa> completionDfa;
+  private final Lazy<PrefixValidator> prefixValidator;
+  private final Lazy<PhraseIndex> phraseIndex;
+  private final Lazy<String> fingerprint;
+  private volatile CompletionTable completionTable;
+  private volatile boolean completionTableLookedUp;
+  private volatile UsageCounters usageCounters;
+  private volatile boolean warm;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private volatile boolean retired;
+  private volatile boolean releaseLexerCaches;
+  private final CompletableFuture<Void> drained = new CompletableFuture<>();
+
+  /**
+   * @param usageHalfLife half-life of the usage counters, null without usage ranking
+   */
+  GrammarVersion(LexerAndParserFactory lexerAndParserFactory, LexerWrapper lexerWrapper, Duration usageHalfLife) {
+    this.lexerAndParserFactory = lexerAndParserFactory;
+    this.lexerWrapper = lexerWrapper;
+    this.parserWrapper = new ParserWrapper(lexerAndParserFactory, lexerWrapper.getVocabulary());
+    this.completionDfa = new Lazy<>(() -> new CompletionDfa(parserWrapper));
+    this.prefixValidator = new Lazy<>(() -> new PrefixValidator(parserWrapper, lexerWrapper.getVocabulary()));
+    this.phraseIndex = new Lazy<>(() -> new PhraseIndex(lexerWrapper, parserWrapper));
+    this.fingerprint = new Lazy<>(() -> AtnFingerprint.of(lexerWrapper.getAtn(), parserWrapper.getAtn()));
+    if (usageHalfLife != null) {
+      countUsage(usageHalfLife);
+    }
+  }
+
+  /**
+   * @return whether the table was generated from this version and is used now
+   */
+  synchronized boolean useCompletionTable(CompletionTable completionTable) {
+    if (!completionTable.matches(lexerWrapper.getAtn(), parserWrapper.getAtn())) {
+      logger.warning("Ignoring stale completion table for " + parserWrapper.getParserClass().getName());
+      return false;
+    }
+    lexerWrapper.useCompletionTable(completionTable);
+    this.completionTable = completionTable;
+    this.completionTableLookedUp = true;
+    return true;
+  }
+
+  /**
+   * Starts counting usage afresh, counts of a previous version refer to parser states of another ATN.
+   */
+  void countUsage(Duration halfLife) {
+    this.usageCounters = new UsageCounters(halfLife, UsageCounters.DEFAULT_MAX_TOKENS_PER_CONTEXT);
+  }
+
+  /**
+   * Counts a request as running on this version, see {@link #exit()}.
+   */
+  void enter() {
+    inFlight.incrementAndGet();
+  }
+
+  void exit() {
+    if (inFlight.decrementAndGet() == 0 && retired) {
+      release();
+    }
+  }
+
+  /**
+   * Marks this version as replaced, releasing it once the running requests finished.
+   * @param releaseLexerCaches whether to drop the lexer caches as well, false when the next version keeps them
+   * @return future completed once released
+   */
+  CompletableFuture<Void> retire(boolean releaseLexerCaches) {
+    this.releaseLexerCaches = releaseLexerCaches;
+    retired = true;
+    if (inFlight.get() == 0) {
+      release();
+    }
+    return drained;
+  }
+
+  /**
+   * Also called whenever a request finishes on a version released already, as a completer created before the version
+   * was retired may still run and refill the caches; they are cleared again then.
+   */
+  private void release() {
+    completionDfa.drop();
+    prefixValidator.drop();
+    phraseIndex.drop();
+    UsageCounters counters = usageCounters;
+    if (counters != null) {
+      usageCounters = null;
+      counters.clear(); // results of this version may still hold the counters
+    }
+    if (releaseLexerCaches) {
+      lexerWrapper.clearCaches();
+    }
+    if (drained.complete(null)) {
+      logger.fine("Released grammar version " + getFingerprint());
+    }
+  }
+
+  LexerAndParserFactory getLexerAndParserFactory() {
+    return lexerAndParserFactory;
+  }
+
+  LexerWrapper getLexerWrapper() {
+    return lexerWrapper;
+  }
+
+  ParserWrapper getParserWrapper() {
+    return parserWrapper;
+  }
+
+  CompletionDfa getCompletionDfa() {
+    return completionDfa.get();
+  }
+
+  PrefixValidator getPrefixValidator() {
+    return prefixValidator.get();
+  }
+
+  PhraseIndex getPhraseIndex() {
+    return phraseIndex.get();
+  }
+
+  /**
+   * @return the table given to {@link #useCompletionTable(CompletionTable)}, or else the one generated next to the
+   * parser class, looked up on first use, null when there is none
+   */
+  CompletionTable getCompletionTable() {
+    if (!completionTableLookedUp) {
+      synchronized (this) {
+        if (!completionTableLookedUp) {
+          CompletionTable generatedTable = CompletionTable.findFor(parserWrapper.getParserClass());
+          if (generatedTable != null) {
+            useCompletionTable(generatedTable);
+          }
+          completionTableLookedUp = true;
+        }
+      }
+    }
+    return completionTable;
+  }
+
+  UsageCounters getUsageCounters() {
+    return usageCounters;
+  }
+
+  String getFingerprint() {
+    return fingerprint.get();
+  }
+
+  boolean isWarm() {
+    return warm;
+  }
+
+  void setWarm() {
+    this.warm = true;
+  }
+
+  /**
+   * A value built by the first thread that needs it.
+   */
+  private static final class Lazy<T> {
+    private final Supplier<T> builder;
+    private volatile T value;
+
+    Lazy(Supplier<T> builder) {
+      this.builder = builder;
+    }
+
+    T get() {
+      T result = value;
+      if (result == null) {
+        synchronized (this) {
+          result = value;
+          if (result == null) {
+            value = result = builder.get();
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Drops the value, the next {@link #get()} builds it again.
+     */
+    synchronized void drop() {
+      value = null;
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.impl.SymbolProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Symbol provider backed by a sorted array of names. Prefix lookups are a binary search, so they stay O(log n) for
+ * millions of names.
+ */
+public class InMemorySymbolProvider implements SymbolProvider {
+  private final String[] sortedSymbols;
+
+  /**
+   * @param symbols names to suggest, duplicates are removed
+   */
+  public InMemorySymbolProvider(Collection<String> symbols) {
+    this.sortedSymbols = symbols.stream().sorted().distinct().toArray(String[]::new);
+  }
+
+  @Override
+  public Collection<String> findSymbols(String prefix, int limit) {
+    List<String> symbols = new ArrayList<>();
+    for (int i = firstIndexNotBefore(prefix); i < sortedSymbols.length && symbols.size() < limit; ++i) {
+      if (!sortedSymbols[i].startsWith(prefix)) {
+        break;
+      }
+      symbols.add(sortedSymbols[i]);
+    }
+    return symbols;
+  }
+
+  /**
+   * @return number of distinct symbols held by this provider
+   */
+  public int size() {
+    return sortedSymbols.length;
+  }
+
+  private int firstIndexNotBefore(String prefix) {
+    int index = Arrays.binarySearch(sortedSymbols, prefix);
+    return (index >= 0) ? index : -(index + 1);
+  }
+}
@@ -1,6 +1,8 @@
 package akovari.antlr4.autocomplete;
 
 import akovari.antlr4.autocomplete.impl.LexerAndParserFactory;
+import akovari.antlr4.autocomplete.impl.SymbolProvider;
+import akovari.antlr4.autocomplete.impl.SymbolProviderRegistry;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.Parser;
@@ -17,6 +19,7 @@ public class ReflectionLexerAndParserFactory implements LexerAndParserFactory {
   private final Constructor<? extends Lexer> lexerCtr;
   private final Constructor<? extends Parser> parserCtr;
   private final Predicate<String> isValidState;
+  private final SymbolProviderRegistry symbolProviders = new SymbolProviderRegistry();
 
   /**
    * @param lexerClass - Antlr generated lexer class
@@ -47,6 +50,33 @@ public class ReflectionLexerAndParserFactory implements LexerAndParserFactory {
     return isValidState.test(suggestion);
   }
 
+  /**
+   * Completes tokens of the given lexer rule from the symbol provider instead of the lexer ATN.
+   * @param lexerRuleName name of the lexer rule, as defined in the lexer grammar
+   * @param symbolProvider provider of the symbols
+   * @return this factory
+   */
+  public ReflectionLexerAndParserFactory withSymbolProvider(String lexerRuleName, SymbolProvider symbolProvider) {
+    symbolProviders.register(lexerRuleName, symbolProvider);
+    return this;
+  }
+
+  /**
+   * Completes tokens of the given type from the symbol provider instead of the lexer ATN.
+   * @param tokenType token type, as defined in the generated lexer
+   * @param symbolProvider provider of the symbols
+   * @return this factory
+   */
+  public ReflectionLexerAndParserFactory withSymbolProvider(int tokenType, SymbolProvider symbolProvider) {
+    symbolProviders.register(tokenType, symbolProvider);
+    return this;
+  }
+
+  @Override
+  public SymbolProvider getSymbolProvider(int tokenType, String lexerRuleName) {
+    return symbolProviders.find(tokenType, lexerRuleName);
+  }
+
   @Override
   public Parser createParser(TokenStream tokenStream) {
     return create(parserCtr, tokenStream);
@@ -0,0 +1,84 @@
+package akovari.antlr4.autocomplete;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.Vocabulary;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Tokens of a completion result, kept as token types and offsets into the input. {@link CompletionResult.InputToken}
+ * objects are only created when accessed.
+ */
+final class TokenArrayList extends AbstractList<CompletionResult.InputToken> implements RandomAccess {
+  private final String input;
+  private final Vocabulary vocabulary;
+  private final int[] tokenTypes;
+  private final int[] startOffsets;
+  private final int[] endOffsets;
+
+  /**
+   * @param input the tokenized input
+   * @param tokens tokens of the input, in input order
+   * @param vocabulary vocabulary resolving the display names of token types
+   */
+  TokenArrayList(String input, List<? extends Token> tokens, Vocabulary vocabulary) {
+    this.input = input;
+    this.vocabulary = vocabulary;
+    this.tokenTypes = new int[tokens.size()];
+    this.startOffsets = new int[tokens.size()];
+    this.endOffsets = new int[tokens.size()];
+    // Token indices count code points, offsets count chars; tokens are in input order, so convert incrementally
+    int codePointIndex = 0;
+    int charIndex = 0;
+    for (int i = 0; i < tokenTypes.length; ++i) {
+      Token token = tokens.get(i);
+      tokenTypes[i] = token.getType();
+      charIndex = input.offsetByCodePoints(charIndex, token.getStartIndex() - codePointIndex);
+      codePointIndex = token.getStartIndex();
+      startOffsets[i] = charIndex;
+      charIndex = input.offsetByCodePoints(charIndex, token.getStopIndex() + 1 - codePointIndex);
+      codePointIndex = token.getStopIndex() + 1;
+      endOffsets[i] = charIndex;
+    }
+  }
+
+  /**
+   * @param input the tokenized input
+   * @param tokenTypes types of the tokens
+   * @param startOffsets start offsets of the tokens in the input
+   * @param endOffsets end offsets (exclusive) of the tokens in the input
+   * @param vocabulary vocabulary resolving the display names of token types
+   */
+  TokenArrayList(String input, int[] tokenTypes, int[] startOffsets, int[] endOffsets, Vocabulary vocabulary) {
+    this.input = input;
+    this.vocabulary = vocabulary;
+    this.tokenTypes = tokenTypes;
+    this.startOffsets = startOffsets;
+    this.endOffsets = endOffsets;
+  }
+
+  @Override
+  public CompletionResult.InputToken get(int index) {
+    return new CompletionResult.InputToken(vocabulary.getDisplayName(tokenTypes[index]),
+        input.substring(startOffsets[index], endOffsets[index]));
+  }
+
+  @Override
+  public int size() {
+    return tokenTypes.length;
+  }
+
+  int getTokenType(int index) {
+    return tokenTypes[index];
+  }
+
+  int getStartOffset(int index) {
+    return startOffsets[index];
+  }
+
+  int getEndOffset(int index) {
+    return endOffsets[index];
+  }
+}
@@ -0,0 +1,87 @@
+package akovari.antlr4.autocomplete;
+
+import java.time.Duration;
+
+/**
+ * Outcome of {@link CompletionEngine#warmUp(java.util.Collection, Duration, int)}.
+ */
+public final class WarmUpReport {
+  private final int inputs;
+  private final int rounds;
+  private final long completions;
+  private final Duration elapsed;
+  private final Duration firstRoundTime;
+  private final Duration lastRoundTime;
+  private final Duration timeToSteadyState;
+
+  WarmUpReport(int inputs, int rounds, long completions, Duration elapsed, Duration firstRoundTime,
+               Duration lastRoundTime, Duration timeToSteadyState) {
+    this.inputs = inputs;
+    this.rounds = rounds;
+    this.completions = completions;
+    this.elapsed = elapsed;
+    this.firstRoundTime = firstRoundTime;
+    this.lastRoundTime = lastRoundTime;
+    this.timeToSteadyState = timeToSteadyState;
+  }
+
+  /**
+   * @return number of inputs completed in each round, the corpus and the inputs derived from the grammar
+   */
+  public int getInputs() {
+    return inputs;
+  }
+
+  /**
+   * @return number of rounds over all inputs
+   */
+  public int getRounds() {
+    return rounds;
+  }
+
+  public long getCompletions() {
+    return completions;
+  }
+
+  public Duration getElapsed() {
+    return elapsed;
+  }
+
+  /**
+   * @return time the first round took, with cold caches and interpreted code
+   */
+  public Duration getFirstRoundTime() {
+    return firstRoundTime;
+  }
+
+  public Duration getLastRoundTime() {
+    return lastRoundTime;
+  }
+
+  /**
+   * @return whether the engine reached steady state before the budget was spent
+   */
+  public boolean isSteady() {
+    return timeToSteadyState != null;
+  }
+
+  /**
+   * @return time until steady state was reached, null when it was not
+   */
+  public Duration getTimeToSteadyState() {
+    return timeToSteadyState;
+  }
+
+  @Override
+  public String toString() {
+    return "WarmUpReport{" +
+        "inputs=" + inputs +
+        ", rounds=" + rounds +
+        ", completions=" + completions +
+        ", elapsed=" + elapsed +
+        ", firstRoundTime=" + firstRoundTime +
+        ", lastRoundTime=" + lastRoundTime +
+        ", timeToSteadyState=" + timeToSteadyState +
+        '}';
+  }
+}
@@ -1,96 +1,112 @@
 package akovari.antlr4.autocomplete.data;
 
-import java.util.HashMap;
 import java.util.Map;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Cache of bounded capacity evicting approximately the least recently used entries, with the CLOCK algorithm. One
+ * cache can be shared between threads: lookups take no lock, a hit only marks its entry as referenced. Entries queue
+ * up in insertion order, and a put beyond the capacity evicts from the head of the queue, moving referenced entries to
+ * the tail once, clearing their mark. Only evictions are serialized.
+ */
 public class LRUCache<K, V> {
-  private Node<K, V> lru;
-  private Node<K, V> mru;
-  private Map<K, Node<K, V>> container;
-  private int capacity;
-  private int currentSize;
+  private final Map<K, Node<K, V>> container = new ConcurrentHashMap<>();
+  private final ConcurrentLinkedQueue<Node<K, V>> clock = new ConcurrentLinkedQueue<>();
+  private final Object evictionLock = new Object();
+  private final int capacity;
+  private final Consumer<? super K> evictionListener;
 
   public LRUCache(int capacity) {
+    this(capacity, key -> {
+    });
+  }
+
+  /**
+   * @param capacity maximum number of entries
+   * @param evictionListener called with the key of every entry evicted to make room for another one
+   */
+  public LRUCache(int capacity, Consumer<? super K> evictionListener) {
+    this.evictionListener = evictionListener;
     this.capacity = capacity;
-    this.currentSize = 0;
-    lru = new Node<>(null, null, null, null);
-    mru = lru;
-    container = new HashMap<>();
   }
 
   public V get(K key) {
-    Node<K, V> tempNode = container.get(key);
-    if (tempNode == null) {
+    Node<K, V> node = container.get(key);
+    if (node == null) {
       return null;
     }
-    // If MRU leave the list as it is
-    else if (tempNode.key == mru.key) {
-      return mru.value;
+    if (!node.referenced) { // written only when it changes, so that hot entries are not written on every hit
+      node.referenced = true;
     }
+    return node.value;
+  }
 
-    // Get the next and prev nodes
-    Node<K, V> nextNode = tempNode.next;
-    Node<K, V> prevNode = tempNode.prev;
-
-    // If at the left-most, we update LRU
-    if (tempNode.key == lru.key) {
-      nextNode.prev = null;
-      lru = nextNode;
+  public void put(K key, V value) {
+    Node<K, V> node = new Node<>(key, value);
+    if (container.putIfAbsent(key, node) != null) {
+      return;
     }
-
-    // If we are in the middle, we need to update the items before and after our item
-    else {
-      prevNode.next = nextNode;
-      nextNode.prev = prevNode;
+    clock.offer(node);
+    if (container.size() > capacity) {
+      evict();
     }
-
-    // Finally move our item to the MRU
-    tempNode.prev = mru;
-    mru.next = tempNode;
-    mru = tempNode;
-    mru.next = null;
-
-    return tempNode.value;
-
   }
 
-  public void put(K key, V value) {
-    if (container.containsKey(key)) {
-      return;
+  private void evict() {
+    synchronized (evictionLock) {
+      // Every entry is moved to the tail at most once per eviction, even while other threads keep hitting it
+      int secondChances = container.size();
+      while (container.size() > capacity) {
+        Node<K, V> node = clock.poll();
+        if (node == null) {
+          return; // the entries beyond the capacity are still being queued by their putting threads
+        }
+        if (node.referenced && secondChances-- > 0) {
+          node.referenced = false;
+          clock.offer(node);
+        } else if (container.remove(node.key, node)) {
+          evictionListener.accept(node.key);
+        }
+      }
     }
+  }
 
-    // Put the new node at the right-most end of the linked-list
-    Node<K, V> myNode = new Node<K, V>(mru, null, key, value);
-    mru.next = myNode;
-    container.put(key, myNode);
-    mru = myNode;
+  public int size() {
+    return container.size();
+  }
 
-    // Delete the left-most entry and update the LRU pointer
-    if (currentSize == capacity) {
-      container.remove(lru.key);
-      lru = lru.next;
-      lru.prev = null;
+  /**
+   * Drops all entries, without calling the eviction listener. Entries put meanwhile may stay.
+   */
+  public void clear() {
+    synchronized (evictionLock) {
+      // Clock first: a concurrent put then leaves at worst a node without entry, which eviction skips, never an entry
+      // without node, which could not be evicted
+      clock.clear();
+      container.clear();
     }
+  }
 
-    // Update container size, for the first added entry update the LRU pointer
-    else if (currentSize < capacity) {
-      if (currentSize == 0) {
-        lru = myNode;
+  /**
+   * Visits all entries approximately from the least to the most recently used one, without marking them as used.
+   */
+  public void forEach(BiConsumer<? super K, ? super V> action) {
+    for (Node<K, V> node : clock) {
+      if (container.get(node.key) == node) {
+        action.accept(node.key, node.value);
       }
-      currentSize++;
     }
   }
 
-  // Node for doubly linked list
   private static class Node<T, U> {
-    T key;
-    U value;
-    Node<T, U> prev;
-    Node<T, U> next;
+    final T key;
+    final U value;
+    volatile boolean referenced;
 
-    public Node(Node<T, U> prev, Node<T, U> next, T key, U value) {
-      this.prev = prev;
-      this.next = next;
+    Node(T key, U value) {
       this.key = key;
       this.value = value;
     }
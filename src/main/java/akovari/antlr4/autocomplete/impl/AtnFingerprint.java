@@ -0,0 +1,45 @@
+package akovari.antlr4.autocomplete.impl;
+
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.ATNSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Identifies a grammar version by hashing its serialized ATNs, so that data derived from one version is never used
+ * with another.
+ */
+public final class AtnFingerprint {
+  private static final Map<ATN, String> fingerprintsByAtn = Collections.synchronizedMap(new WeakHashMap<>());
+
+  private AtnFingerprint() {
+  }
+
+  public static String of(ATN lexerAtn, ATN parserAtn) {
+    return of(lexerAtn) + ':' + of(parserAtn);
+  }
+
+  public static String of(ATN atn) {
+    return fingerprintsByAtn.computeIfAbsent(atn, AtnFingerprint::compute);
+  }
+
+  private static String compute(ATN atn) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+    byte[] hash = digest.digest(new String(ATNSerializer.getSerializedAsChars(atn)).getBytes(StandardCharsets.UTF_8));
+    StringBuilder hex = new StringBuilder();
+    for (int i = 0; i < 16; ++i) {
+      hex.append(String.format("%02x", hash[i]));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,94 @@
+package akovari.antlr4.autocomplete.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Visits and time per parser and lexer ATN state, accumulated over many completion requests, possibly from several
+ * threads. Time of a parser state is the time spent suggesting tokens with the caret in that state, time of a lexer
+ * state is the time spent walking the lexer ATN from that rule start state. Lexer walks served from the token
+ * suggestion caches are counted as the walks they stand for, so visits reflect the cost of the grammar over the
+ * workload rather than which cache keys happened to be cold.
+ */
+public class AtnProfile {
+  private final AtomicLongArray parserStateVisits;
+  private final AtomicLongArray parserStateNanos;
+  private final AtomicLongArray lexerStateVisits;
+  private final AtomicLongArray lexerStateNanos;
+  private final Map<Object, int[]> lexerFootprints = new ConcurrentHashMap<>();
+
+  public AtnProfile(int parserStateCount, int lexerStateCount) {
+    this.parserStateVisits = new AtomicLongArray(parserStateCount);
+    this.parserStateNanos = new AtomicLongArray(parserStateCount);
+    this.lexerStateVisits = new AtomicLongArray(lexerStateCount);
+    this.lexerStateNanos = new AtomicLongArray(lexerStateCount);
+  }
+
+  /**
+   * Called for the parser states expanded from the caret, and for those visited computing the transitions the
+   * {@link CompletionDfa} had not memoized yet.
+   */
+  public void visitParserState(int stateNumber) {
+    parserStateVisits.incrementAndGet(stateNumber);
+  }
+
+  public void addParserStateNanos(int stateNumber, long nanos) {
+    parserStateNanos.addAndGet(stateNumber, nanos);
+  }
+
+  public void visitLexerState(int stateNumber) {
+    lexerStateVisits.incrementAndGet(stateNumber);
+  }
+
+  public void addLexerStateNanos(int stateNumber, long nanos) {
+    lexerStateNanos.addAndGet(stateNumber, nanos);
+  }
+
+  /**
+   * @param cacheKey key of a token suggestion cache entry
+   * @return lexer states visited by the walk that filled the entry, null when it was not filled under this profile
+   */
+  public int[] getLexerFootprint(Object cacheKey) {
+    return lexerFootprints.get(cacheKey);
+  }
+
+  public void putLexerFootprint(Object cacheKey, int[] stateNumbers) {
+    lexerFootprints.put(cacheKey, stateNumbers);
+  }
+
+  public long getParserStateVisits(int stateNumber) {
+    return parserStateVisits.get(stateNumber);
+  }
+
+  public long getParserStateNanos(int stateNumber) {
+    return parserStateNanos.get(stateNumber);
+  }
+
+  public long getLexerStateVisits(int stateNumber) {
+    return lexerStateVisits.get(stateNumber);
+  }
+
+  public long getLexerStateNanos(int stateNumber) {
+    return lexerStateNanos.get(stateNumber);
+  }
+
+  public int getParserStateCount() {
+    return parserStateVisits.length();
+  }
+
+  public int getLexerStateCount() {
+    return lexerStateVisits.length();
+  }
+
+  public void reset() {
+    for (int i = 0; i < parserStateVisits.length(); ++i) {
+      parserStateVisits.set(i, 0);
+      parserStateNanos.set(i, 0);
+    }
+    for (int i = 0; i < lexerStateVisits.length(); ++i) {
+      lexerStateVisits.set(i, 0);
+      lexerStateNanos.set(i, 0);
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package akovari.antlr4.autocomplete.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of evicting cached completion data.
+ */
+@Name("akovari.antlr4.autocomplete.CacheEviction")
+@Label("Cache Eviction")
+@Category("ANTLR4 Autocomplete")
+@Description("Evicts cached completion data")
+public class CacheEvictionEvent extends Event {
+  @Label("Grammar")
+  public String grammar;
+
+  @Label("Cache")
+  public String cache;
+
+  @Label("Evicted Entries")
+  public int evictedEntries;
+
+  public static void emit(String grammar, String cache, int evictedEntries) {
+    CacheEvictionEvent event = new CacheEvictionEvent();
+    if (event.shouldCommit()) {
+      event.grammar = grammar;
+      event.cache = cache;
+      event.evictedEntries = evictedEntries;
+      event.commit();
+    }
+  }
+}
@@ -0,0 +1,265 @@
+package akovari.antlr4.autocomplete.impl;
+
+import akovari.antlr4.autocomplete.data.LRUCache;
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.javatuples.Triplet;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Hot entries of the caches a grammar fills while completing: the token suggestion caches of {@link LexerWrapper} and
+ * the states and transitions of the {@link CompletionDfa}. Written to a compact binary file, e.g. on shutdown, and
+ * read back by a new process, or another node, to complete warm from the first request. The snapshot is keyed by the
+ * {@link AtnFingerprint} of the grammar, so a snapshot of a different grammar version is never applied.
+ */
+public class CacheSnapshot {
+  private static final int MAGIC = 0x41434353;
+  private static final int FORMAT_VERSION = 2;
+  private static final int MAX_STRING_LENGTH = 16 * 1024;
+
+  private final String fingerprint;
+  private final int lexerStateCount;
+  private final int parserStateCount;
+  private final List<SuggestionEntry> tokenSuggestions;
+  private final List<SuggestionEntry> caseInsensitiveTokenSuggestions;
+  private final List<int[]> dfaKernels;
+  private final List<int[]> dfaTransitions;
+
+  private CacheSnapshot(String fingerprint, int lexerStateCount, int parserStateCount,
+                        List<SuggestionEntry> tokenSuggestions, List<SuggestionEntry> caseInsensitiveTokenSuggestions,
+                        List<int[]> dfaKernels, List<int[]> dfaTransitions) {
+    this.fingerprint = fingerprint;
+    this.lexerStateCount = lexerStateCount;
+    this.parserStateCount = parserStateCount;
+    this.tokenSuggestions = tokenSuggestions;
+    this.caseInsensitiveTokenSuggestions = caseInsensitiveTokenSuggestions;
+    this.dfaKernels = dfaKernels;
+    this.dfaTransitions = dfaTransitions;
+  }
+
+  /**
+   * @param maxEntries number of most recently used entries taken from each token suggestion cache
+   * @return snapshot of the current content of the caches
+   */
+  public static CacheSnapshot of(LexerWrapper lexerWrapper, ParserWrapper parserWrapper, CompletionDfa completionDfa,
+                                 int maxEntries) {
+    List<CompletionDfa.State> states = completionDfa.getCachedStates();
+    Map<CompletionDfa.State, Integer> stateIndices = new HashMap<>();
+    List<int[]> dfaKernels = new ArrayList<>();
+    for (CompletionDfa.State state : states) {
+      stateIndices.put(state, dfaKernels.size());
+      dfaKernels.add(state.getKernel().stream().mapToInt(parserState -> parserState.stateNumber).sorted().toArray());
+    }
+    List<int[]> dfaTransitions = new ArrayList<>();
+    for (CompletionDfa.State state : states) {
+      for (int tokenType = 0; tokenType <= completionDfa.getMaxTokenType(); ++tokenType) {
+        Integer targetIndex = stateIndices.get(completionDfa.getTransition(state, tokenType));
+        if (targetIndex != null) {
+          dfaTransitions.add(new int[]{stateIndices.get(state), tokenType, targetIndex});
+        }
+      }
+    }
+    return new CacheSnapshot(AtnFingerprint.of(lexerWrapper.getAtn(), parserWrapper.getAtn()),
+        lexerWrapper.getAtn().states.size(), parserWrapper.getAtn().states.size(), hottestEntries(lexerWrapper.tokenSuggestionCache, maxEntries),
+        hottestEntries(lexerWrapper.caseInsensitiveTokenSuggestionCache, maxEntries), dfaKernels, dfaTransitions);
+  }
+
+  private static List<SuggestionEntry> hottestEntries(LRUCache<Triplet<String, ATNState, String>, Set<String>> cache,
+                                                      int maxEntries) {
+    List<SuggestionEntry> entries = new ArrayList<>();
+    cache.forEach((key, wholeTokens) -> {
+      boolean writable = key.getValue0().length() <= MAX_STRING_LENGTH && key.getValue2().length() <= MAX_STRING_LENGTH
+          && wholeTokens.stream().allMatch(wholeToken -> wholeToken.length() <= MAX_STRING_LENGTH);
+      if (writable) {
+        entries.add(new SuggestionEntry(key.getValue0(), key.getValue1().stateNumber, key.getValue2(), wholeTokens));
+      }
+    });
+    // Least recently used first, which is also the order to put them back in
+    return entries.subList(Math.max(0, entries.size() - maxEntries), entries.size());
+  }
+
+  /**
+   * The state numbers in a snapshot were checked against its state counts when reading it, so the snapshot can be
+   * applied to every grammar it matches.
+   */
+  public boolean matches(ATN lexerAtn, ATN parserAtn) {
+    return lexerStateCount == lexerAtn.states.size() && parserStateCount == parserAtn.states.size()
+        && fingerprint.equals(AtnFingerprint.of(lexerAtn, parserAtn));
+  }
+
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * @return number of token suggestion cache entries and DFA states in the snapshot
+   */
+  public int size() {
+    return tokenSuggestions.size() + caseInsensitiveTokenSuggestions.size() + dfaKernels.size();
+  }
+
+  /**
+   * Puts the entries into the caches of a grammar the snapshot {@link #matches(ATN, ATN)}.
+   */
+  public void applyTo(LexerWrapper lexerWrapper, ParserWrapper parserWrapper, CompletionDfa completionDfa) {
+    ATN lexerAtn = lexerWrapper.getAtn();
+    for (SuggestionEntry entry : tokenSuggestions) {
+      lexerWrapper.tokenSuggestionCache.put(entry.toKey(lexerAtn), entry.wholeTokens);
+    }
+    for (SuggestionEntry entry : caseInsensitiveTokenSuggestions) {
+      lexerWrapper.caseInsensitiveTokenSuggestionCache.put(entry.toKey(lexerAtn), entry.wholeTokens);
+    }
+    List<CompletionDfa.State> states = new ArrayList<>();
+    for (int[] kernel : dfaKernels) {
+      Set<ATNState> parserStates = new HashSet<>();
+      for (int stateNumber : kernel) {
+        parserStates.add(parserWrapper.getAtnState(stateNumber));
+      }
+      states.add(completionDfa.stateOf(parserStates));
+    }
+    for (int[] transition : dfaTransitions) {
+      completionDfa.putTransition(states.get(transition[0]), transition[1], states.get(transition[2]));
+    }
+  }
+
+  public void write(OutputStream outputStream) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeUTF(fingerprint);
+    out.writeInt(lexerStateCount);
+    out.writeInt(parserStateCount);
+    writeEntries(out, tokenSuggestions);
+    writeEntries(out, caseInsensitiveTokenSuggestions);
+    out.writeInt(dfaKernels.size());
+    for (int[] kernel : dfaKernels) {
+      writeInts(out, kernel);
+    }
+    out.writeInt(dfaTransitions.size());
+    for (int[] transition : dfaTransitions) {
+      writeInts(out, transition);
+    }
+    out.flush();
+  }
+
+  public static CacheSnapshot read(InputStream inputStream) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a cache snapshot");
+    }
+    int formatVersion = in.readInt();
+    if (formatVersion != FORMAT_VERSION) {
+      throw new IOException("Unsupported cache snapshot format version " + formatVersion);
+    }
+    String fingerprint = in.readUTF();
+    int lexerStateCount = readCount(in);
+    int parserStateCount = readCount(in);
+    List<SuggestionEntry> tokenSuggestions = readEntries(in, lexerStateCount);
+    List<SuggestionEntry> caseInsensitiveTokenSuggestions = readEntries(in, lexerStateCount);
+    List<int[]> dfaKernels = new ArrayList<>();
+    for (int i = readCount(in); i > 0; --i) {
+      int[] kernel = readInts(in, parserStateCount);
+      for (int stateNumber : kernel) {
+        checkIndex(stateNumber, parserStateCount, "Parser state");
+      }
+      dfaKernels.add(kernel);
+    }
+    List<int[]> dfaTransitions = new ArrayList<>();
+    for (int i = readCount(in); i > 0; --i) {
+      int[] transition = readInts(in, 3);
+      if (transition.length != 3 || transition[1] < 0) {
+        throw new IOException("Corrupt DFA transition in cache snapshot");
+      }
+      checkIndex(transition[0], dfaKernels.size(), "DFA state");
+      checkIndex(transition[2], dfaKernels.size(), "DFA state");
+      dfaTransitions.add(transition);
+    }
+    return new CacheSnapshot(fingerprint, lexerStateCount, parserStateCount, tokenSuggestions,
+        caseInsensitiveTokenSuggestions, dfaKernels, dfaTransitions);
+  }
+
+  private static int readCount(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("Negative count " + count + " in cache snapshot");
+    }
+    return count;
+  }
+
+  private static void checkIndex(int index, int size, String what) throws IOException {
+    if (index < 0 || index >= size) {
+      throw new IOException(what + " " + index + " out of range in cache snapshot");
+    }
+  }
+
+  private static void writeEntries(DataOutputStream out, List<SuggestionEntry> entries) throws IOException {
+    out.writeInt(entries.size());
+    for (SuggestionEntry entry : entries) {
+      out.writeUTF(entry.tokenSoFar);
+      out.writeInt(entry.lexerStateNumber);
+      out.writeUTF(entry.remainingText);
+      out.writeInt(entry.wholeTokens.size());
+      for (String wholeToken : entry.wholeTokens) {
+        out.writeUTF(wholeToken);
+      }
+    }
+  }
+
+  private static List<SuggestionEntry> readEntries(DataInputStream in, int lexerStateCount) throws IOException {
+    List<SuggestionEntry> entries = new ArrayList<>();
+    for (int i = readCount(in); i > 0; --i) {
+      String tokenSoFar = in.readUTF();
+      int lexerStateNumber = in.readInt();
+      checkIndex(lexerStateNumber, lexerStateCount, "Lexer state");
+      String remainingText = in.readUTF();
+      Set<String> wholeTokens = new HashSet<>();
+      for (int j = readCount(in); j > 0; --j) {
+        wholeTokens.add(in.readUTF());
+      }
+      entries.add(new SuggestionEntry(tokenSoFar, lexerStateNumber, remainingText, Collections.unmodifiableSet(wholeTokens)));
+    }
+    return entries;
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+    out.writeInt(values.length);
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  /**
+   * @param maxLength bound of the length, so that a corrupt length fails instead of allocating a huge array
+   */
+  private static int[] readInts(DataInputStream in, int maxLength) throws IOException {
+    int length = readCount(in);
+    if (length > maxLength) {
+      throw new IOException("Array of " + length + " values in cache snapshot, at most " + maxLength + " expected");
+    }
+    int[] values = new int[length];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = in.readInt();
+    }
+    return values;
+  }
+
+  private static final class SuggestionEntry {
+    final String tokenSoFar;
+    final int lexerStateNumber;
+    final String remainingText;
+    final Set<String> wholeTokens;
+
+    SuggestionEntry(String tokenSoFar, int lexerStateNumber, String remainingText, Set<String> wholeTokens) {
+      this.tokenSoFar = tokenSoFar;
+      this.lexerStateNumber = lexerStateNumber;
+      this.remainingText = remainingText;
+      this.wholeTokens = wholeTokens;
+    }
+
+    Triplet<String, ATNState, String> toKey(ATN lexerAtn) {
+      return new Triplet<>(tokenSoFar, lexerAtn.states.get(lexerStateNumber), remainingText);
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package akovari.antlr4.autocomplete.impl;
+
+/**
+ * Work done by one completion request. Only allocated when statistics are requested, every update is guarded by a
+ * null check, so requests without statistics do no extra work.
+ */
+public class CompletionCounters {
+  public long tokenizationNanos;
+  public long parserAtnNanos;
+  public long lexerSuggestionNanos;
+  public long validationNanos;
+
+  public long parserStatesVisited;
+  public long parserTransitionsFollowed;
+  public long lexerStatesVisited;
+  public long lexerTransitionsFollowed;
+
+  public long candidatesProduced;
+  public long candidatesRejected;
+
+  public long cacheHits;
+  public long cacheMisses;
+}
@@ -0,0 +1,209 @@
+package akovari.antlr4.autocomplete.impl;
+
+import org.antlr.v4.runtime.atn.ATNState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Deterministic automaton over the kernels of {@link ParserStateSimulator}, built lazily the way ANTLR caches DFA
+ * states for prediction. A state is a canonical set of parser ATN states, its transitions on token types are memoized,
+ * so walking a known token sequence takes one binary search per token. Only the transitions taken are stored, most
+ * states are followed by a handful of the token types. Shared by all requests of a grammar and thread-safe; at most
+ * {@code maxStates} states are kept, transitions to further states are computed on every walk.
+ */
+public class CompletionDfa {
+  public static final int DEFAULT_MAX_STATES = 10_000;
+
+  private final ParserStateSimulator simulator;
+  private final int maxTokenType;
+  private final int maxStates;
+  private final Map<Set<ATNState>, State> states = new ConcurrentHashMap<>();
+  private final State startState;
+
+  public CompletionDfa(ParserWrapper parserWrapper) {
+    this(parserWrapper, DEFAULT_MAX_STATES);
+  }
+
+  public CompletionDfa(ParserWrapper parserWrapper, int maxStates) {
+    this.simulator = new ParserStateSimulator(parserWrapper);
+    this.maxTokenType = parserWrapper.getAtn().maxTokenType;
+    this.maxStates = maxStates;
+    this.startState = stateOf(simulator.initialKernel());
+  }
+
+  /**
+   * @return state before the first token
+   */
+  public State getStartState() {
+    return startState;
+  }
+
+  /**
+   * @param kernel parser ATN states to start from
+   * @return canonical state of the kernel
+   */
+  public State stateOf(Set<ATNState> kernel) {
+    State state = states.get(kernel);
+    if (state != null) {
+      return state;
+    }
+    if (states.size() >= maxStates) {
+      return new State(Collections.unmodifiableSet(new HashSet<>(kernel)), false);
+    }
+    State newState = new State(Collections.unmodifiableSet(new HashSet<>(kernel)), true);
+    state = states.putIfAbsent(newState.kernel, newState);
+    return (state != null) ? state : newState;
+  }
+
+  /**
+   * @param state state before the token
+   * @param tokenType type of the consumed token
+   * @return state right after consuming the token, with an empty kernel when the token cannot follow
+   */
+  public State advance(State state, int tokenType) {
+    return advance(state, tokenType, stateNumber -> {
+    });
+  }
+
+  /**
+   * @param stateVisitor called with the number of every parser ATN state visited computing a transition that was not
+   *                     memoized, a memoized transition visits no states
+   * @see #advance(State, int)
+   */
+  public State advance(State state, int tokenType, IntConsumer stateVisitor) {
+    if (!state.cached || tokenType < 0 || tokenType > maxTokenType) {
+      return stateOf(simulator.advance(state.kernel, tokenType, stateVisitor));
+    }
+    State target = state.getTransition(tokenType);
+    if (target == null) {
+      target = stateOf(simulator.advance(state.kernel, tokenType, stateVisitor));
+      if (!target.cached) {
+        return target; // memoizing it would grow the automaton past the bound
+      }
+      target = state.putTransition(tokenType, target);
+    }
+    return target;
+  }
+
+  /**
+   * @return cached states, see {@link CacheSnapshot}
+   */
+  List<State> getCachedStates() {
+    return new ArrayList<>(states.values());
+  }
+
+  /**
+   * @return memoized target of the transition, null when not known yet
+   */
+  State getTransition(State state, int tokenType) {
+    return state.cached ? state.getTransition(tokenType) : null;
+  }
+
+  /**
+   * Memoizes a transition computed elsewhere, see {@link CacheSnapshot}.
+   */
+  void putTransition(State state, int tokenType, State target) {
+    if (state.cached && target.cached && tokenType >= 0 && tokenType <= maxTokenType) {
+      state.putTransition(tokenType, target);
+    }
+  }
+
+  int getMaxTokenType() {
+    return maxTokenType;
+  }
+
+  /**
+   * @return number of cached states
+   */
+  public int size() {
+    return states.size();
+  }
+
+  /**
+   * Drops the cached states, e.g. once the grammar version is replaced. Walks running meanwhile stay correct, they
+   * just do not find their states memoized.
+   */
+  public void clear() {
+    states.clear();
+    if (startState.cached) {
+      startState.transitions = Transitions.NONE;
+      states.put(startState.kernel, startState);
+    }
+  }
+
+  public static final class State {
+    private final Set<ATNState> kernel;
+    private volatile Transitions transitions = Transitions.NONE;
+    private final boolean cached;
+
+    private State(Set<ATNState> kernel, boolean cached) {
+      this.kernel = kernel;
+      this.cached = cached;
+    }
+
+    private State getTransition(int tokenType) {
+      Transitions current = transitions;
+      int index = Arrays.binarySearch(current.tokenTypes, tokenType);
+      return (index >= 0) ? current.targets[index] : null;
+    }
+
+    /**
+     * @return the memoized target, racing threads compute equal targets and whichever is stored first is canonical
+     */
+    private synchronized State putTransition(int tokenType, State target) {
+      Transitions current = transitions;
+      int index = Arrays.binarySearch(current.tokenTypes, tokenType);
+      if (index >= 0) {
+        return current.targets[index];
+      }
+      int insertionIndex = -index - 1;
+      int size = current.tokenTypes.length;
+      int[] tokenTypes = new int[size + 1];
+      State[] targets = new State[size + 1];
+      System.arraycopy(current.tokenTypes, 0, tokenTypes, 0, insertionIndex);
+      System.arraycopy(current.targets, 0, targets, 0, insertionIndex);
+      tokenTypes[insertionIndex] = tokenType;
+      targets[insertionIndex] = target;
+      System.arraycopy(current.tokenTypes, insertionIndex, tokenTypes, insertionIndex + 1, size - insertionIndex);
+      System.arraycopy(current.targets, insertionIndex, targets, insertionIndex + 1, size - insertionIndex);
+      transitions = new Transitions(tokenTypes, targets);
+      return target;
+    }
+
+    /**
+     * @return parser ATN states reached, unmodifiable
+     */
+    public Set<ATNState> getKernel() {
+      return kernel;
+    }
+
+    @Override
+    public String toString() {
+      return kernel.toString();
+    }
+  }
+
+  /**
+   * Memoized transitions of a state, sorted by token type. Replaced as a whole when one is added, so lookups take no
+   * lock.
+   */
+  private static final class Transitions {
+    static final Transitions NONE = new Transitions(new int[0], new State[0]);
+
+    final int[] tokenTypes;
+    final State[] targets;
+
+    Transitions(int[] tokenTypes, State[] targets) {
+      this.tokenTypes = tokenTypes;
+      this.targets = targets;
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package akovari.antlr4.autocomplete.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of one completion request.
+ */
+@Name("akovari.antlr4.autocomplete.Completion")
+@Label("Completion")
+@Category("ANTLR4 Autocomplete")
+@Description("Suggests completions for one input")
+public class CompletionEvent extends GrammarEvent {
+  @Label("Input Length")
+  public int inputLength;
+
+  @Label("Tokens")
+  public int tokens;
+
+  @Label("Suggestions")
+  public int suggestions;
+}
@@ -0,0 +1,166 @@
+package akovari.antlr4.autocomplete.impl;
+
+import akovari.antlr4.autocomplete.Antlr4Completer;
+import org.antlr.v4.runtime.atn.ATN;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Completion data derived from the lexer and parser ATNs ahead of time, so that no ATN analysis is needed at runtime:
+ * follow sets of all parser states, the keywords of every token type and the lexer rule of every token type. A table
+ * is bound to the ATNs it was generated from by their fingerprint, stale tables are ignored by the engine.
+ */
+public class CompletionTable {
+  private static final Logger logger = Logger.getLogger(Antlr4Completer.class.getName());
+
+  public static final String RESOURCE_SUFFIX = ".completion-table";
+  private static final int MAGIC = 0x41434354;
+  private static final int FORMAT_VERSION = 1;
+
+  private static final ClassValue<Optional<CompletionTable>> tablesByParserClass = new ClassValue<>() {
+    @Override
+    protected Optional<CompletionTable> computeValue(Class<?> parserClass) {
+      return Optional.ofNullable(loadResource(parserClass));
+    }
+  };
+
+  private final String fingerprint;
+  private final RuleFollowAnalyzer.FollowSet[] followSets;
+  private final Map<Integer, List<String>> keywordsByTokenType;
+  private final Map<Integer, Integer> lexerRuleByTokenType;
+
+  public CompletionTable(String fingerprint, RuleFollowAnalyzer.FollowSet[] followSets,
+                         Map<Integer, List<String>> keywordsByTokenType, Map<Integer, Integer> lexerRuleByTokenType) {
+    this.fingerprint = fingerprint;
+    this.followSets = followSets;
+    this.keywordsByTokenType = keywordsByTokenType;
+    this.lexerRuleByTokenType = lexerRuleByTokenType;
+  }
+
+  /**
+   * @param parserClass generated parser class
+   * @return the table generated next to the parser class, or null when there is none
+   */
+  public static CompletionTable findFor(Class<?> parserClass) {
+    return tablesByParserClass.get(parserClass).orElse(null);
+  }
+
+  /**
+   * @param parserClass generated parser class
+   * @return class path resource name of the table generated for the parser class
+   */
+  public static String resourceNameFor(Class<?> parserClass) {
+    return parserClass.getName().replace('.', '/') + RESOURCE_SUFFIX;
+  }
+
+  private static CompletionTable loadResource(Class<?> parserClass) {
+    try (InputStream inputStream = parserClass.getResourceAsStream('/' + resourceNameFor(parserClass))) {
+      return (inputStream == null) ? null : read(inputStream);
+    } catch (IOException e) {
+      logger.warning("Ignoring unreadable completion table of " + parserClass.getName() + ": " + e);
+      return null;
+    }
+  }
+
+  public boolean matches(ATN lexerAtn, ATN parserAtn) {
+    return fingerprint.equals(AtnFingerprint.of(lexerAtn, parserAtn));
+  }
+
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  public RuleFollowAnalyzer.FollowSet getFollowSet(int parserStateNumber) {
+    return followSets[parserStateNumber];
+  }
+
+  /**
+   * @return keywords by token type, with null values for token types whose language cannot be enumerated
+   */
+  public Map<Integer, List<String>> getKeywordsByTokenType() {
+    return keywordsByTokenType;
+  }
+
+  public Map<Integer, Integer> getLexerRuleByTokenType() {
+    return lexerRuleByTokenType;
+  }
+
+  public void write(OutputStream outputStream) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeUTF(fingerprint);
+    out.writeInt(followSets.length);
+    for (RuleFollowAnalyzer.FollowSet followSet : followSets) {
+      writeInts(out, followSet.tokenTypes);
+      writeInts(out, followSet.enteredRules);
+    }
+    out.writeInt(keywordsByTokenType.size());
+    for (Map.Entry<Integer, List<String>> keywords : keywordsByTokenType.entrySet()) {
+      out.writeInt(keywords.getKey());
+      out.writeBoolean(keywords.getValue() != null);
+      if (keywords.getValue() != null) {
+        out.writeInt(keywords.getValue().size());
+        for (String keyword : keywords.getValue()) {
+          out.writeUTF(keyword);
+        }
+      }
+    }
+    out.writeInt(lexerRuleByTokenType.size());
+    for (Map.Entry<Integer, Integer> lexerRule : lexerRuleByTokenType.entrySet()) {
+      out.writeInt(lexerRule.getKey());
+      out.writeInt(lexerRule.getValue());
+    }
+    out.flush();
+  }
+
+  public static CompletionTable read(InputStream inputStream) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a completion table");
+    }
+    int formatVersion = in.readInt();
+    if (formatVersion != FORMAT_VERSION) {
+      throw new IOException("Unsupported completion table format version " + formatVersion);
+    }
+    String fingerprint = in.readUTF();
+    RuleFollowAnalyzer.FollowSet[] followSets = new RuleFollowAnalyzer.FollowSet[in.readInt()];
+    for (int i = 0; i < followSets.length; ++i) {
+      followSets[i] = new RuleFollowAnalyzer.FollowSet(readInts(in), readInts(in));
+    }
+    Map<Integer, List<String>> keywordsByTokenType = new HashMap<>();
+    for (int i = in.readInt(); i > 0; --i) {
+      int tokenType = in.readInt();
+      List<String> keywords = null;
+      if (in.readBoolean()) {
+        keywords = new ArrayList<>();
+        for (int j = in.readInt(); j > 0; --j) {
+          keywords.add(in.readUTF());
+        }
+      }
+      keywordsByTokenType.put(tokenType, keywords);
+    }
+    Map<Integer, Integer> lexerRuleByTokenType = new HashMap<>();
+    for (int i = in.readInt(); i > 0; --i) {
+      lexerRuleByTokenType.put(in.readInt(), in.readInt());
+    }
+    return new CompletionTable(fingerprint, followSets, keywordsByTokenType, lexerRuleByTokenType);
+  }
+
+  private static void writeInts(DataOutputStream out, Set<Integer> values) throws IOException {
+    out.writeInt(values.size());
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  private static Set<Integer> readInts(DataInputStream in) throws IOException {
+    Set<Integer> values = new HashSet<>();
+    for (int i = in.readInt(); i > 0; --i) {
+      values.add(in.readInt());
+    }
+    return values;
+  }
+}
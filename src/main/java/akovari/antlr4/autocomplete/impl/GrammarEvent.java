@@ -0,0 +1,26 @@
+package akovari.antlr4.autocomplete.impl;
+
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * Flight Recorder event concerning one grammar.
+ */
+public abstract class GrammarEvent extends Event {
+  @Label("Grammar")
+  public String grammar;
+
+  @Label("Grammar Fingerprint")
+  public String grammarFingerprint;
+
+  /**
+   * Fills in the grammar identity and commits the event, when the event is recorded.
+   */
+  public void commit(ParserWrapper parserWrapper, LexerWrapper lexerWrapper) {
+    if (shouldCommit()) {
+      grammar = parserWrapper.getGrammarName();
+      grammarFingerprint = AtnFingerprint.of(lexerWrapper.getAtn(), parserWrapper.getAtn());
+      commit();
+    }
+  }
+}
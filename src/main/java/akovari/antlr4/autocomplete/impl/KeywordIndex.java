@@ -0,0 +1,319 @@
+package akovari.antlr4.autocomplete.impl;
+
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.atn.NotSetTransition;
+import org.antlr.v4.runtime.atn.RuleStopState;
+import org.antlr.v4.runtime.atn.RuleTransition;
+import org.antlr.v4.runtime.atn.Transition;
+import org.antlr.v4.runtime.atn.WildcardTransition;
+import org.antlr.v4.runtime.misc.IntervalSet;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Trie of the keywords a lexer can produce, keyed by case-folded code points. Keywords of a token type are enumerated
+ * once, walking sets of lexer ATN configurations, so casing variants such as {@code fragment A: 'A' | 'a'} collapse
+ * into one canonical keyword (upper case when both casings are accepted) instead of being enumerated 2^n times.
+ * Token types with an infinite or very large language are not indexed and are still completed from the lexer ATN.
+ * Thread-safe: a token type is enumerated once, by the first thread that needs it, lookups take no lock.
+ */
+public class KeywordIndex {
+  private static final int MAX_SET_SIZE = 64;
+  private static final int MAX_KEYWORDS_PER_TOKEN_TYPE = 256;
+  private static final int MAX_KEYWORD_LENGTH = 64;
+  private static final int MAX_RULE_DEPTH = 32;
+  /**
+   * Stands for a token type that is not indexed, as concurrent maps hold no nulls.
+   */
+  private static final List<String> NOT_INDEXED = Collections.unmodifiableList(new ArrayList<>());
+
+  private final LexerWrapper lexerWrapper;
+  private final TrieNode root = new TrieNode();
+  private final Map<Integer, List<String>> keywordsByTokenType = new ConcurrentHashMap<>();
+
+  public KeywordIndex(LexerWrapper lexerWrapper) {
+    this.lexerWrapper = lexerWrapper;
+  }
+
+  /**
+   * @param tokenType type of the token
+   * @return whether the keywords of the token type are indexed, enumerating them on first use
+   */
+  public boolean isIndexed(int tokenType) {
+    return getKeywords(tokenType) != null;
+  }
+
+  /**
+   * @param tokenType type of the token
+   * @return canonical keywords of the token type, or null when its language cannot be enumerated
+   */
+  public List<String> getKeywords(int tokenType) {
+    List<String> keywords = keywordsByTokenType.get(tokenType);
+    if (keywords == null) {
+      // Keywords are in the trie before the entry is visible, so a lookup never sees them half added
+      keywords = keywordsByTokenType.computeIfAbsent(tokenType, (key) -> addToTrie(key, enumerateKeywords(key)));
+    }
+    return (keywords == NOT_INDEXED) ? null : keywords;
+  }
+
+  /**
+   * Adds already enumerated keywords of a token type, e.g. loaded from a precomputed table.
+   * @param tokenType type of the token
+   * @param keywords canonical keywords, or null when the token type should not be indexed
+   */
+  public void addKeywords(int tokenType, List<String> keywords) {
+    keywordsByTokenType.put(tokenType, addToTrie(tokenType, keywords));
+  }
+
+  private List<String> addToTrie(int tokenType, List<String> keywords) {
+    if (keywords == null) {
+      return NOT_INDEXED;
+    }
+    for (String keyword : keywords) {
+      TrieNode node = root;
+      for (int codePoint : keyword.codePoints().toArray()) {
+        node = node.children.computeIfAbsent(fold(codePoint), (key) -> new TrieNode());
+      }
+      node.keywordsByTokenType.put(tokenType, keyword);
+    }
+    return keywords;
+  }
+
+  /**
+   * Finds keywords of the given token types, such that the partial token is within maxEdits edits of one of their
+   * prefixes. Matching is case-insensitive.
+   */
+  public Set<String> find(String partialToken, Collection<Integer> tokenTypes, int maxEdits) {
+    Set<String> keywords = new HashSet<>();
+    if (tokenTypes.isEmpty()) {
+      return keywords;
+    }
+    for (int tokenType : tokenTypes) {
+      getKeywords(tokenType);
+    }
+    LevenshteinAutomaton automaton = new LevenshteinAutomaton(fold(partialToken), maxEdits);
+    collectMatches(root, automaton.start(), automaton, tokenTypes, keywords);
+    return keywords;
+  }
+
+  public static int fold(int codePoint) {
+    return Character.toLowerCase(Character.toUpperCase(codePoint));
+  }
+
+  public static int[] fold(String text) {
+    return text.codePoints().map(KeywordIndex::fold).toArray();
+  }
+
+  public static String foldCase(String text) {
+    int[] codePoints = fold(text);
+    return new String(codePoints, 0, codePoints.length);
+  }
+
+  private void collectMatches(TrieNode node, LevenshteinAutomaton.State state, LevenshteinAutomaton automaton,
+                              Collection<Integer> tokenTypes, Set<String> keywords) {
+    if (state.isMatch()) {
+      collectAll(node, tokenTypes, keywords);
+      return;
+    }
+    if (!state.canMatch()) {
+      return;
+    }
+    for (Map.Entry<Integer, TrieNode> child : node.children.entrySet()) {
+      collectMatches(child.getValue(), automaton.step(state, child.getKey()), automaton, tokenTypes, keywords);
+    }
+  }
+
+  private void collectAll(TrieNode node, Collection<Integer> tokenTypes, Set<String> keywords) {
+    for (Map.Entry<Integer, String> keyword : node.keywordsByTokenType.entrySet()) {
+      if (tokenTypes.contains(keyword.getKey())) {
+        keywords.add(keyword.getValue());
+      }
+    }
+    for (TrieNode child : node.children.values()) {
+      collectAll(child, tokenTypes, keywords);
+    }
+  }
+
+  private List<String> enumerateKeywords(int tokenType) {
+    ATNState startState = lexerWrapper.findStateByTokenType(tokenType);
+    Set<String> keywords = new LinkedHashSet<>();
+    try {
+      enumerate(Collections.singleton(new Config(startState, null, 0)), new StringBuilder(), new HashSet<>(), keywords);
+    } catch (NotEnumerableException e) {
+      return null;
+    }
+    return Collections.unmodifiableList(new ArrayList<>(keywords));
+  }
+
+  private void enumerate(Set<Config> configs, StringBuilder tokenSoFar, Set<Set<Config>> closuresOnPath, Set<String> keywords) {
+    Closure closure = closure(configs);
+    if (closure.accepting && tokenSoFar.length() > 0) {
+      keywords.add(tokenSoFar.toString());
+      if (keywords.size() > MAX_KEYWORDS_PER_TOKEN_TYPE) {
+        throw new NotEnumerableException();
+      }
+    }
+    if (closure.configs.isEmpty()) {
+      return;
+    }
+    if (tokenSoFar.length() >= MAX_KEYWORD_LENGTH || !closuresOnPath.add(closure.configs)) {
+      throw new NotEnumerableException(); // the language is infinite
+    }
+    try {
+      for (CharGroup group : groupByFoldedCodePoint(closure.configs).values()) {
+        int length = tokenSoFar.length();
+        tokenSoFar.appendCodePoint(group.canonicalCodePoint());
+        enumerate(group.targets, tokenSoFar, closuresOnPath, keywords);
+        tokenSoFar.setLength(length);
+      }
+    } finally {
+      closuresOnPath.remove(closure.configs);
+    }
+  }
+
+  private Closure closure(Set<Config> configs) {
+    Closure closure = new Closure();
+    Set<Config> visited = new HashSet<>(configs);
+    Deque<Config> pending = new ArrayDeque<>(configs);
+    while (!pending.isEmpty()) {
+      Config config = pending.pop();
+      if (!lexerWrapper.isValidSuggestion(lexerWrapper.stateToString(config.state))) {
+        continue;
+      }
+      if (config.state instanceof RuleStopState) {
+        if (config.returnStack == null) {
+          closure.accepting = true;
+        } else {
+          Config returned = new Config(config.returnStack.followState, config.returnStack.next, config.depth - 1);
+          if (visited.add(returned)) {
+            pending.push(returned);
+          }
+        }
+        continue;
+      }
+      for (Transition trans : config.state.getTransitions()) {
+        Config next;
+        if (trans instanceof RuleTransition) {
+          if (config.depth >= MAX_RULE_DEPTH) {
+            throw new NotEnumerableException();
+          }
+          ReturnStack returnStack = new ReturnStack(((RuleTransition) trans).followState, config.returnStack);
+          next = new Config(trans.target, returnStack, config.depth + 1);
+        } else if (trans.isEpsilon()) {
+          next = new Config(trans.target, config.returnStack, config.depth);
+        } else {
+          closure.configs.add(config);
+          continue;
+        }
+        if (visited.add(next)) {
+          pending.push(next);
+        }
+      }
+    }
+    return closure;
+  }
+
+  private Map<Integer, CharGroup> groupByFoldedCodePoint(Set<Config> configs) {
+    Map<Integer, CharGroup> groups = new TreeMap<>();
+    for (Config config : configs) {
+      for (Transition trans : config.state.getTransitions()) {
+        if (trans.isEpsilon()) {
+          continue;
+        }
+        IntervalSet label = trans.label();
+        if (trans instanceof NotSetTransition || trans instanceof WildcardTransition || label == null
+            || label.size() > MAX_SET_SIZE) {
+          throw new NotEnumerableException();
+        }
+        for (int codePoint : label.toList()) {
+          CharGroup group = groups.computeIfAbsent(fold(codePoint), (key) -> new CharGroup());
+          group.codePoints.add(codePoint);
+          group.targets.add(new Config(trans.target, config.returnStack, config.depth));
+        }
+      }
+    }
+    return groups;
+  }
+
+  private static class TrieNode {
+    private final Map<Integer, TrieNode> children = new ConcurrentSkipListMap<>();
+    private final Map<Integer, String> keywordsByTokenType = new ConcurrentHashMap<>();
+  }
+
+  private static class Closure {
+    private final Set<Config> configs = new HashSet<>();
+    private boolean accepting;
+  }
+
+  private static class CharGroup {
+    private final Set<Integer> codePoints = new TreeSet<>();
+    private final Set<Config> targets = new HashSet<>();
+
+    private int canonicalCodePoint() {
+      for (int codePoint : codePoints) {
+        if (codePoints.contains(Character.toUpperCase(codePoint))) {
+          return Character.toUpperCase(codePoint);
+        }
+      }
+      return codePoints.iterator().next();
+    }
+  }
+
+  private static final class ReturnStack {
+    private final ATNState followState;
+    private final ReturnStack next;
+
+    private ReturnStack(ATNState followState, ReturnStack next) {
+      this.followState = followState;
+      this.next = next;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof ReturnStack)) return false;
+      ReturnStack that = (ReturnStack) o;
+      return followState.stateNumber == that.followState.stateNumber && Objects.equals(next, that.next);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(followState.stateNumber, next);
+    }
+  }
+
+  private static final class Config {
+    private final ATNState state;
+    private final ReturnStack returnStack;
+    private final int depth;
+
+    private Config(ATNState state, ReturnStack returnStack, int depth) {
+      this.state = state;
+      this.returnStack = returnStack;
+      this.depth = depth;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Config)) return false;
+      Config that = (Config) o;
+      return state.stateNumber == that.state.stateNumber && Objects.equals(returnStack, that.returnStack);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(state.stateNumber, returnStack);
+    }
+  }
+
+  private static class NotEnumerableException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private NotEnumerableException() {
+      super(null, null, false, false);
+    }
+  }
+}
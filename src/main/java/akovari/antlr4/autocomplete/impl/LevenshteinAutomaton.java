@@ -0,0 +1,109 @@
+package akovari.antlr4.autocomplete.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Automaton accepting every text within a bounded edit distance of a query. States are rows of the edit distance
+ * matrix capped at maxEdits + 1, compiled lazily into a DFA: each distinct row is interned once and its transitions
+ * are memoized per code point, with all code points absent from the query sharing a single transition.
+ */
+public class LevenshteinAutomaton {
+  private static final int OTHER_CODE_POINT = -1;
+
+  private final int[] query;
+  private final int maxEdits;
+  private final Map<Row, State> statesByRow = new HashMap<>();
+  private final State startState;
+
+  public class State {
+    private final int[] row;
+    private final Map<Integer, State> transitions = new HashMap<>();
+
+    private State(int[] row) {
+      this.row = row;
+    }
+
+    /**
+     * @return whether the whole query is within the edit distance of the text read so far
+     */
+    public boolean isMatch() {
+      return row[query.length] <= maxEdits;
+    }
+
+    /**
+     * @return whether some continuation of the text read so far can still match the query
+     */
+    public boolean canMatch() {
+      return Arrays.stream(row).min().orElse(0) <= maxEdits;
+    }
+  }
+
+  public LevenshteinAutomaton(int[] query, int maxEdits) {
+    this.query = query;
+    this.maxEdits = maxEdits;
+    int[] startRow = new int[query.length + 1];
+    for (int i = 0; i < startRow.length; ++i) {
+      startRow[i] = Math.min(i, maxEdits + 1);
+    }
+    this.startState = intern(startRow);
+  }
+
+  public State start() {
+    return startState;
+  }
+
+  public State step(State state, int codePoint) {
+    int transitionKey = isInQuery(codePoint) ? codePoint : OTHER_CODE_POINT;
+    State next = state.transitions.get(transitionKey);
+    if (next == null) {
+      next = intern(nextRow(state.row, codePoint));
+      state.transitions.put(transitionKey, next);
+    }
+    return next;
+  }
+
+  private int[] nextRow(int[] row, int codePoint) {
+    int[] next = new int[row.length];
+    next[0] = Math.min(row[0] + 1, maxEdits + 1);
+    for (int i = 1; i < row.length; ++i) {
+      int substitution = row[i - 1] + (query[i - 1] == codePoint ? 0 : 1);
+      int insertion = row[i] + 1;
+      int deletion = next[i - 1] + 1;
+      next[i] = Math.min(Math.min(substitution, insertion), Math.min(deletion, maxEdits + 1));
+    }
+    return next;
+  }
+
+  private boolean isInQuery(int codePoint) {
+    for (int queryCodePoint : query) {
+      if (queryCodePoint == codePoint) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private State intern(int[] row) {
+    return statesByRow.computeIfAbsent(new Row(row), (key) -> new State(row));
+  }
+
+  private static final class Row {
+    private final int[] values;
+
+    private Row(int[] values) {
+      this.values = values;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Row && Arrays.equals(values, ((Row) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(values);
+    }
+  }
+}
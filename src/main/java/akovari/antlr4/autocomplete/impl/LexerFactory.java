@@ -7,4 +7,13 @@ public interface LexerFactory {
   Lexer createLexer(CharStream input);
 
   boolean isValidSuggestion(String suggestion);
+
+  /**
+   * @param tokenType type of the expected token
+   * @param lexerRuleName name of the lexer rule defining the token, null for tokens without a symbolic name
+   * @return provider completing the token from an external source, or null to complete it from the lexer ATN
+   */
+  default SymbolProvider getSymbolProvider(int tokenType, String lexerRuleName) {
+    return null;
+  }
 }
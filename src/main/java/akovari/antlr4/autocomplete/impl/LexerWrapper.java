@@ -1,33 +1,90 @@
 package akovari.antlr4.autocomplete.impl;
 
+import akovari.antlr4.autocomplete.data.LRUCache;
 import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.ATN;
 import org.antlr.v4.runtime.atn.ATNState;
 import org.antlr.v4.runtime.atn.AtomTransition;
 import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.javatuples.Pair;
 import org.javatuples.Triplet;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class LexerWrapper {
+  private static final int TOKEN_SUGGESTION_CACHE_CAPACITY = 10_000;
+
   private final LexerFactory lexerFactory;
-  private Lexer cachedLexer;
-  private final Map<AtomTransition, String> transitionNameCache = new HashMap<>();
-  final Map<Triplet<String, ATNState, String>, Set<String>> tokenSuggestionCache = new HashMap<>();
+  private final Lexer cachedLexer;
+  private final Map<AtomTransition, String> transitionNameCache;
+  final LRUCache<Triplet<String, ATNState, String>, Set<String>> tokenSuggestionCache;
+  final LRUCache<Triplet<String, ATNState, String>, Set<String>> caseInsensitiveTokenSuggestionCache;
+  private final TokenTypeData tokenTypeData;
 
   public static class TokenizationResult {
     public List<? extends Token> tokens;
     public String untokenizedText = "";
   }
 
+  /**
+   * Data on token types that a completion table replaces, held apart so that wrappers sharing it see the replacement.
+   * Built on first use.
+   */
+  private static final class TokenTypeData {
+    volatile KeywordIndex keywordIndex;
+    volatile Map<Integer, Integer> lexerRuleByTokenType;
+  }
+
   public LexerWrapper(LexerFactory lexerFactory) {
     super();
     this.lexerFactory = lexerFactory;
+    this.cachedLexer = createLexer("");
+    this.transitionNameCache = new ConcurrentHashMap<>();
+    this.tokenSuggestionCache = new LRUCache<>(TOKEN_SUGGESTION_CACHE_CAPACITY,
+        key -> CacheEvictionEvent.emit(cachedLexer.getGrammarFileName(), "tokenSuggestion", 1));
+    this.caseInsensitiveTokenSuggestionCache = new LRUCache<>(TOKEN_SUGGESTION_CACHE_CAPACITY,
+        key -> CacheEvictionEvent.emit(cachedLexer.getGrammarFileName(), "caseInsensitiveTokenSuggestion", 1));
+    this.tokenTypeData = new TokenTypeData();
+  }
+
+  /**
+   * Wraps another lexer with the same ATN, sharing everything derived from the ATN with the given wrapper. Tokenizing
+   * and symbol providers stay with the given factory.
+   * @param lexerFactory factory of the other lexer
+   * @param sharedWith wrapper whose ATN derived data is shared, see {@link #sharingKey()}
+   */
+  public LexerWrapper(LexerFactory lexerFactory, LexerWrapper sharedWith) {
+    super();
+    this.lexerFactory = lexerFactory;
+    this.cachedLexer = sharedWith.cachedLexer;
+    this.transitionNameCache = sharedWith.transitionNameCache;
+    this.tokenSuggestionCache = sharedWith.tokenSuggestionCache;
+    this.caseInsensitiveTokenSuggestionCache = sharedWith.caseInsensitiveTokenSuggestionCache;
+    this.tokenTypeData = sharedWith.tokenTypeData;
+  }
+
+  /**
+   * Wrappers with equal keys produce the same suggestions for the same lexer ATN state, so their ATN derived data can
+   * be shared: the key is made of the ATN fingerprint and of which lexer rules are valid suggestions.
+   * @param lexerFactory factory of the lexer
+   * @return the sharing key
+   */
+  public static Object sharingKey(LexerFactory lexerFactory) {
+    Lexer lexer = lexerFactory.createLexer(toCharStream(""));
+    String[] ruleNames = lexer.getRuleNames();
+    BitSet validSuggestions = new BitSet(ruleNames.length);
+    for (int ruleNumber = 0; ruleNumber < ruleNames.length; ++ruleNumber) {
+      validSuggestions.set(ruleNumber, lexerFactory.isValidSuggestion(ruleNames[ruleNumber]));
+    }
+    return new Pair<>(AtnFingerprint.of(lexer.getATN()), validSuggestions);
   }
 
   public TokenizationResult tokenizeNonDefaultChannel(String input) {
@@ -44,14 +101,98 @@ public class LexerWrapper {
     return getCachedLexer().getATN().ruleToStartState[ruleNumber];
   }
 
+  public ATNState findStateByTokenType(int tokenType) {
+    return findStateByRuleNumber(getRuleNumberOfTokenType(tokenType));
+  }
+
+  public int getRuleNumberOfTokenType(int tokenType) {
+    return getLexerRuleByTokenType().getOrDefault(tokenType, tokenType - 1); // Count from 0 not from 1
+  }
+
+  private Map<Integer, Integer> getLexerRuleByTokenType() {
+    Map<Integer, Integer> lexerRuleByTokenType = tokenTypeData.lexerRuleByTokenType;
+    if (lexerRuleByTokenType == null) {
+      synchronized (tokenTypeData) {
+        lexerRuleByTokenType = tokenTypeData.lexerRuleByTokenType;
+        if (lexerRuleByTokenType == null) {
+          tokenTypeData.lexerRuleByTokenType = lexerRuleByTokenType = computeLexerRuleByTokenType(getAtn());
+        }
+      }
+    }
+    return lexerRuleByTokenType;
+  }
+
+  public static Map<Integer, Integer> computeLexerRuleByTokenType(ATN lexerAtn) {
+    Map<Integer, Integer> result = new HashMap<>();
+    for (int ruleNumber = 0; ruleNumber < lexerAtn.ruleToTokenType.length; ++ruleNumber) {
+      int tokenType = lexerAtn.ruleToTokenType[ruleNumber];
+      if (tokenType > 0) { // fragments have no token type
+        result.putIfAbsent(tokenType, ruleNumber);
+      }
+    }
+    return result;
+  }
+
+  public ATN getAtn() {
+    return getCachedLexer().getATN();
+  }
+
+  /**
+   * Takes the token to rule map and the keywords from a precomputed table, for the wrappers sharing the ATN derived
+   * data as well. Keywords of token types whose rule is not a valid suggestion are skipped, they are enumerated again
+   * on demand.
+   */
+  public void useCompletionTable(CompletionTable completionTable) {
+    synchronized (tokenTypeData) {
+      tokenTypeData.lexerRuleByTokenType = completionTable.getLexerRuleByTokenType();
+      KeywordIndex newKeywordIndex = new KeywordIndex(this);
+      completionTable.getKeywordsByTokenType().forEach((tokenType, keywords) -> {
+        if (isValidSuggestion(getRuleNames()[getRuleNumberOfTokenType(tokenType)])) {
+          newKeywordIndex.addKeywords(tokenType, keywords);
+        }
+      });
+      tokenTypeData.keywordIndex = newKeywordIndex;
+    }
+  }
+
+  /**
+   * Drops the token suggestion caches and the keyword index, for this wrapper and the wrappers sharing them, e.g. once
+   * no grammar version uses the lexer any more. They are filled again on demand.
+   */
+  public void clearCaches() {
+    tokenSuggestionCache.clear();
+    caseInsensitiveTokenSuggestionCache.clear();
+    transitionNameCache.clear();
+    synchronized (tokenTypeData) {
+      tokenTypeData.keywordIndex = null;
+    }
+  }
+
+  /**
+   * @return number of entries in the token suggestion caches
+   */
+  public int getTokenSuggestionCacheSize() {
+    return tokenSuggestionCache.size() + caseInsensitiveTokenSuggestionCache.size();
+  }
+
   public Vocabulary getVocabulary() {
     return getCachedLexer().getVocabulary();
   }
 
-  private Lexer getCachedLexer() {
-    if (cachedLexer == null) {
-      cachedLexer = createLexer("");
+  public KeywordIndex getKeywordIndex() {
+    KeywordIndex keywordIndex = tokenTypeData.keywordIndex;
+    if (keywordIndex == null) {
+      synchronized (tokenTypeData) {
+        keywordIndex = tokenTypeData.keywordIndex;
+        if (keywordIndex == null) {
+          tokenTypeData.keywordIndex = keywordIndex = new KeywordIndex(this);
+        }
+      }
     }
+    return keywordIndex;
+  }
+
+  private Lexer getCachedLexer() {
     return cachedLexer;
   }
 
@@ -60,10 +201,23 @@ public class LexerWrapper {
     lexer.removeErrorListeners();
     final TokenizationResult result = new TokenizationResult();
     ANTLRErrorListener newErrorListener = new BaseErrorListener() {
+      private int untokenizedStart = -1;
+      private int untokenizedEnd = -1;
+
       @Override
       public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
                               int charPositionInLine, String msg, RecognitionException e) throws ParseCancellationException {
-        result.untokenizedText = input.substring(charPositionInLine); // intended side effect
+        if (!(e instanceof LexerNoViableAltException)) {
+          result.untokenizedText = input.substring(charPositionInLine); // intended side effect
+          return;
+        }
+        // The lexer reports every character it cannot match separately, contiguous errors make up one partial token
+        int errorStart = ((LexerNoViableAltException) e).getStartIndex();
+        if (untokenizedStart < 0 || errorStart > untokenizedEnd) {
+          untokenizedStart = errorStart;
+        }
+        untokenizedEnd = Math.max(errorStart + 1, e.getInputStream().index());
+        result.untokenizedText = input.substring(input.offsetByCodePoints(0, untokenizedStart)); // intended side effect
       }
     };
     lexer.addErrorListener(newErrorListener);
@@ -93,6 +247,10 @@ public class LexerWrapper {
     return lexerFactory.isValidSuggestion(suggestion);
   }
 
+  public SymbolProvider getSymbolProvider(int tokenType) {
+    return lexerFactory.getSymbolProvider(tokenType, getVocabulary().getSymbolicName(tokenType));
+  }
+
   public String getAddedTextFor(AtomTransition transition) {
     return transitionNameCache.computeIfAbsent(transition, (t) -> new String(Character.toChars(t.label)));
   }
@@ -0,0 +1,95 @@
+package akovari.antlr4.autocomplete.impl;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.*;
+import org.antlr.v4.runtime.misc.IntervalSet;
+
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Simulates the parser ATN walk of {@link akovari.antlr4.autocomplete.Antlr4Completer} on sets of states. Rule stop
+ * states lead to the follow states of all callers, so the walk keeps no call stack, and the states reached after a
+ * token (the kernel) are all that is needed to continue the walk from there. Walking from every kernel state finds the
+ * same suggestions as walking from the start state over all preceding tokens.
+ */
+public class ParserStateSimulator {
+  private final ParserWrapper parserWrapper;
+
+  public ParserStateSimulator(ParserWrapper parserWrapper) {
+    this.parserWrapper = parserWrapper;
+  }
+
+  /**
+   * @return kernel before the first token
+   */
+  public Set<ATNState> initialKernel() {
+    return Collections.singleton(parserWrapper.getAtnState(0));
+  }
+
+  /**
+   * @param kernel states reached before the token
+   * @param tokenType type of the consumed token
+   * @return states reached right after consuming the token, empty when the token cannot follow
+   */
+  public Set<ATNState> advance(Set<ATNState> kernel, int tokenType) {
+    return advance(kernel, tokenType, stateNumber -> {
+    });
+  }
+
+  /**
+   * @param stateVisitor called with the number of every state expanded
+   * @see #advance(Set, int)
+   */
+  public Set<ATNState> advance(Set<ATNState> kernel, int tokenType, IntConsumer stateVisitor) {
+    Set<ATNState> nextKernel = new HashSet<>();
+    Set<ATNState> closure = new HashSet<>(kernel);
+    Deque<ATNState> statesToExpand = new ArrayDeque<>(kernel);
+    while (!statesToExpand.isEmpty()) {
+      ATNState parserState = statesToExpand.pop();
+      stateVisitor.accept(parserState.stateNumber);
+      for (Transition trans : parserState.getTransitions()) {
+        if (trans.isEpsilon()) {
+          if (closure.add(trans.target)) {
+            statesToExpand.push(trans.target);
+          }
+        } else if (trans instanceof AtomTransition) {
+          if (((AtomTransition) trans).label == tokenType) {
+            nextKernel.add(trans.target);
+          }
+        } else if (((SetTransition) trans).label().contains(tokenType)) {
+          nextKernel.add(trans.target);
+        }
+      }
+    }
+    return nextKernel;
+  }
+
+  /**
+   * @param kernel states reached before the next token
+   * @return token types that can follow the kernel, including {@link Token#EOF} when the input can end there
+   */
+  public IntervalSet nextTokenTypes(Set<ATNState> kernel) {
+    IntervalSet tokenTypes = new IntervalSet();
+    Set<ATNState> closure = new HashSet<>(kernel);
+    Deque<ATNState> statesToExpand = new ArrayDeque<>(kernel);
+    while (!statesToExpand.isEmpty()) {
+      ATNState parserState = statesToExpand.pop();
+      if (parserState instanceof RuleStopState && parserState.getNumberOfTransitions() == 0) {
+        tokenTypes.add(Token.EOF); // end of the start rule
+      }
+      for (Transition trans : parserState.getTransitions()) {
+        if (trans.isEpsilon()) {
+          if (closure.add(trans.target)) {
+            statesToExpand.push(trans.target);
+          }
+        } else if (trans instanceof NotSetTransition || trans instanceof WildcardTransition) {
+          tokenTypes.addAll(IntervalSet.of(Token.MIN_USER_TOKEN_TYPE, parserWrapper.getAtn().maxTokenType));
+        } else {
+          tokenTypes.addAll(trans.label());
+        }
+      }
+    }
+    return tokenTypes;
+  }
+}
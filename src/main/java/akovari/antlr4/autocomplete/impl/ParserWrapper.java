@@ -18,6 +18,8 @@ public class ParserWrapper {
 
   private final ATN parserAtn;
   private final String[] parserRuleNames;
+  private final Class<? extends Parser> parserClass;
+  private final String grammarName;
 
   public ParserWrapper(ParserFactory parserFactory, Vocabulary lexerVocabulary) {
     this.lexerVocabulary = lexerVocabulary;
@@ -25,6 +27,8 @@ public class ParserWrapper {
     Parser parserForAtnOnly = parserFactory.createParser(null);
     this.parserAtn = parserForAtnOnly.getATN();
     this.parserRuleNames = parserForAtnOnly.getRuleNames();
+    this.parserClass = parserForAtnOnly.getClass();
+    this.grammarName = parserForAtnOnly.getGrammarFileName();
     logger.fine("Parser rule names: " + StringUtils.join(parserForAtnOnly.getRuleNames(), ", "));
   }
 
@@ -47,4 +51,47 @@ public class ParserWrapper {
   public ATNState getAtnState(int stateNumber) {
     return parserAtn.states.get(stateNumber);
   }
+
+  public int getAtnStateCount() {
+    return parserAtn.states.size();
+  }
+
+  public ATN getAtn() {
+    return parserAtn;
+  }
+
+  public Class<? extends Parser> getParserClass() {
+    return parserClass;
+  }
+
+  /**
+   * @return file name of the grammar, identifying it in diagnostics
+   */
+  public String getGrammarName() {
+    return grammarName;
+  }
+
+  public ATNState getRuleStartState(int ruleIndex) {
+    return parserAtn.ruleToStartState[ruleIndex];
+  }
+
+  public ATNState getRuleStopState(int ruleIndex) {
+    return parserAtn.ruleToStopState[ruleIndex];
+  }
+
+  public String[] getRuleNames() {
+    return parserRuleNames;
+  }
+
+  public String getRuleName(int ruleIndex) {
+    return this.parserRuleNames[ruleIndex];
+  }
+
+  public int getRuleIndex(String ruleName) {
+    int ruleIndex = Arrays.asList(this.parserRuleNames).indexOf(ruleName);
+    if (ruleIndex < 0) {
+      throw new IllegalArgumentException("Unknown parser rule: " + ruleName);
+    }
+    return ruleIndex;
+  }
 }
@@ -0,0 +1,142 @@
+package akovari.antlr4.autocomplete.impl;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.misc.IntervalSet;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Phrases the grammar forces after a token: when a parser state, after consuming a token, can only continue with one
+ * keyword, and then again with one keyword, and so on, the keywords form a phrase such as {@code ORDER BY} or
+ * {@code IS NOT NULL}, which can be suggested together with the token. Phrases are computed once per (caret parser
+ * state, token type) and shared by all requests. The walk leaves rules to every caller, like
+ * {@link ParserStateSimulator}, so a keyword is only forced when it is the only continuation in every context.
+ */
+public class PhraseIndex {
+  public static final int MAX_PHRASE_TOKENS = 8;
+
+  private final LexerWrapper lexerWrapper;
+  private final ParserStateSimulator simulator;
+  private final Map<Long, Phrase> phrases = new ConcurrentHashMap<>();
+
+  public PhraseIndex(LexerWrapper lexerWrapper, ParserWrapper parserWrapper) {
+    this.lexerWrapper = lexerWrapper;
+    this.simulator = new ParserStateSimulator(parserWrapper);
+  }
+
+  /**
+   * @param caretState parser state before the suggested token
+   * @param tokenType type of the suggested token
+   * @return keywords forced after the suggested token, at most {@link #MAX_PHRASE_TOKENS} of them
+   */
+  public Phrase phraseAfter(ATNState caretState, int tokenType) {
+    long key = ((long) caretState.stateNumber << 32) | (tokenType & 0xffffffffL);
+    return phrases.computeIfAbsent(key, k -> computePhrase(caretState, tokenType));
+  }
+
+  /**
+   * Drops the computed phrases, e.g. once the grammar version is replaced.
+   */
+  public void clear() {
+    phrases.clear();
+  }
+
+  private Phrase computePhrase(ATNState caretState, int tokenType) {
+    List<String> keywords = new ArrayList<>();
+    List<String> separators = new ArrayList<>();
+    Set<ATNState> kernel = simulator.advance(Collections.singleton(caretState), tokenType);
+    int previousTokenType = tokenType;
+    while (keywords.size() < MAX_PHRASE_TOKENS && !kernel.isEmpty()) {
+      IntervalSet nextTokenTypes = simulator.nextTokenTypes(kernel);
+      if (nextTokenTypes.size() != 1 || nextTokenTypes.contains(Token.EOF)) {
+        break;
+      }
+      int nextTokenType = nextTokenTypes.getMinElement();
+      List<String> nextKeywords = lexerWrapper.getKeywordIndex().getKeywords(nextTokenType);
+      if (nextKeywords == null || nextKeywords.size() != 1) {
+        break; // not a keyword, e.g. an identifier
+      }
+      String keyword = nextKeywords.get(0);
+      String separator;
+      if (keywords.isEmpty()) {
+        separator = null; // depends on the text of the suggested token
+      } else {
+        separator = separatorBetween(keywords.get(keywords.size() - 1), previousTokenType, keyword, nextTokenType);
+        if (separator == null) {
+          break;
+        }
+      }
+      keywords.add(keyword);
+      separators.add(separator);
+      previousTokenType = nextTokenType;
+      kernel = simulator.advance(kernel, nextTokenType);
+    }
+    return new Phrase(keywords, separators);
+  }
+
+  /**
+   * @return separator keeping both keywords apart when lexed, null when there is none
+   */
+  private String separatorBetween(String first, int firstTokenType, String second, int secondTokenType) {
+    for (String separator : separatorsToTry(first, second)) {
+      List<? extends Token> tokens = lexerWrapper.tokenizeNonDefaultChannel(first + separator + second).tokens;
+      if (tokens.size() == 2 && tokens.get(0).getType() == firstTokenType && tokens.get(1).getType() == secondTokenType) {
+        return separator;
+      }
+    }
+    return null;
+  }
+
+  private static List<String> separatorsToTry(String first, String second) {
+    boolean words = isWordCharacter(first.codePointBefore(first.length())) && isWordCharacter(second.codePointAt(0));
+    return words ? Arrays.asList(" ", "") : Arrays.asList("", " ");
+  }
+
+  private static boolean isWordCharacter(int codePoint) {
+    return Character.isLetterOrDigit(codePoint) || codePoint == '_';
+  }
+
+  /**
+   * Keywords following a suggested token, with the separators between them.
+   */
+  public static final class Phrase {
+    private final List<String> keywords;
+    private final List<String> separators;
+
+    Phrase(List<String> keywords, List<String> separators) {
+      this.keywords = keywords;
+      this.separators = separators;
+    }
+
+    public boolean isEmpty() {
+      return keywords.isEmpty();
+    }
+
+    /**
+     * @return forced keywords, in order
+     */
+    public List<String> getKeywords() {
+      return Collections.unmodifiableList(keywords);
+    }
+
+    /**
+     * @param suggestion suggested text completing the token the phrase follows
+     * @param tokenText whole text of that token
+     * @param maxKeywords maximum number of keywords to append
+     * @return the suggestion followed by up to maxKeywords keywords of the phrase
+     */
+    public String appendTo(String suggestion, String tokenText, int maxKeywords) {
+      StringBuilder text = new StringBuilder(suggestion);
+      for (int i = 0; i < Math.min(maxKeywords, keywords.size()); ++i) {
+        String separator = separators.get(i);
+        if (separator == null) {
+          separator = separatorsToTry(tokenText, keywords.get(i)).get(0);
+        }
+        text.append(separator).append(keywords.get(i));
+      }
+      return text.toString();
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package akovari.antlr4.autocomplete.impl;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.ParserATNSimulator;
+import org.antlr.v4.runtime.atn.PredictionContextCache;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tells whether tokens are a prefix of some input of the grammar, using ANTLR's own {@link ParserInterpreter}, so that
+ * rule calls, precedence predicates and all transition kinds are handled the way the parser would. Input that ends
+ * before the grammar is done fails at EOF, anything failing earlier is not a prefix.
+ * <p>
+ * Prediction runs in SLL mode first and retries in full LL mode when SLL fails before EOF. The {@link DFA} per
+ * decision and the {@link PredictionContextCache} are shared by all parses, which makes warm validations cheap.
+ * Semantic predicates other than precedence are taken to be true. Thread-safe.
+ */
+public class PrefixValidator {
+  private final ATN atn;
+  private final Vocabulary vocabulary;
+  private final List<String> ruleNames;
+  private final String grammarName;
+  private final int startRuleIndex;
+  private final DFA[] decisionToDFA;
+  private final PredictionContextCache sharedContextCache = new PredictionContextCache();
+
+  public PrefixValidator(ParserWrapper parserWrapper, Vocabulary vocabulary) {
+    this.atn = parserWrapper.getAtn();
+    this.vocabulary = vocabulary;
+    this.ruleNames = Arrays.asList(parserWrapper.getRuleNames());
+    this.grammarName = parserWrapper.getGrammarName();
+    this.startRuleIndex = parserWrapper.getAtnState(0).ruleIndex;
+    this.decisionToDFA = new DFA[atn.getNumberOfDecisions()];
+    for (int decision = 0; decision < decisionToDFA.length; ++decision) {
+      decisionToDFA[decision] = new DFA(atn.getDecisionState(decision), decision);
+    }
+  }
+
+  /**
+   * @param tokens default channel tokens, without EOF
+   * @return whether the tokens can be continued to an input of the start rule
+   */
+  public boolean isViablePrefix(List<? extends Token> tokens) {
+    return parsesUpToEof(tokens, PredictionMode.SLL) || parsesUpToEof(tokens, PredictionMode.LL);
+  }
+
+  private boolean parsesUpToEof(List<? extends Token> tokens, PredictionMode predictionMode) {
+    CommonTokenStream tokenStream = new CommonTokenStream(new ListTokenSource(tokens));
+    ParserInterpreter parser = new ParserInterpreter(grammarName, vocabulary, ruleNames, atn, tokenStream);
+    parser.setInterpreter(new ParserATNSimulator(parser, atn, decisionToDFA, sharedContextCache));
+    parser.getInterpreter().setPredictionMode(predictionMode);
+    parser.setErrorHandler(new BailErrorStrategy());
+    parser.removeErrorListeners();
+    parser.setBuildParseTree(false);
+    try {
+      parser.parse(startRuleIndex);
+      return tokenStream.LA(1) == Token.EOF;
+    } catch (ParseCancellationException e) {
+      if (!(e.getCause() instanceof RecognitionException)) {
+        throw e;
+      }
+      Token offendingToken = ((RecognitionException) e.getCause()).getOffendingToken();
+      return offendingToken != null && offendingToken.getType() == Token.EOF;
+    }
+  }
+}
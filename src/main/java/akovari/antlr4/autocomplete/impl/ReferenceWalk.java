@@ -0,0 +1,300 @@
+package akovari.antlr4.autocomplete.impl;
+
+import akovari.antlr4.autocomplete.Antlr4Completer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.atn.AtomTransition;
+import org.antlr.v4.runtime.atn.SetTransition;
+import org.antlr.v4.runtime.atn.Transition;
+import org.antlr.v4.runtime.misc.Interval;
+import org.javatuples.Triplet;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * The original completion algorithm, kept apart from everything the faster modes share, so that it can serve as the
+ * reference they are tested against: walks the parser ATN recursively from the start state over all tokens, collects
+ * the token types following the caret states by following epsilon transitions through every rule stop state, expands
+ * them through the lexer ATN, and keeps the suggestions whose token follows the caret state. It uses no completion
+ * table, no completion DFA, and no cache outlasting the walk. Only tokenizing and the rule of a token type are taken
+ * from the {@link LexerWrapper}. Slow, and not thread-safe, each walk completes one input.
+ */
+public class ReferenceWalk {
+  private static final Logger logger = Logger.getLogger(Antlr4Completer.class.getName());
+
+  private final ParserWrapper parserWrapper;
+  private final LexerWrapper lexerWrapper;
+  private final String input;
+
+  private final Map<ATNState, Integer> parserStateToTokenListIndexWhereLastVisited = new HashMap<>();
+  private final Map<Triplet<String, ATNState, String>, Set<String>> tokenSuggestionCache = new HashMap<>();
+
+  public ReferenceWalk(LexerWrapper lexerWrapper, ParserWrapper parserWrapper, String input) {
+    this.lexerWrapper = lexerWrapper;
+    this.parserWrapper = parserWrapper;
+    this.input = input;
+  }
+
+  /**
+   * @param tokenizationResult the input tokenized by the lexer wrapper
+   * @return suggestions at the end of the input
+   */
+  public Set<String> suggest(LexerWrapper.TokenizationResult tokenizationResult) {
+    ATNState initialState = this.parserWrapper.getAtnState(0);
+    logger.fine("Parser initial state: " + initialState);
+    return Collections.unmodifiableSet(parseAndCollectTokenSuggestions(initialState, tokenizationResult, 0));
+  }
+
+  /**
+   * Recursive through the parser ATN to process all tokens. When successful (out of tokens) - collect completion
+   * suggestions.
+   */
+  private Set<String> parseAndCollectTokenSuggestions(ATNState parserState, LexerWrapper.TokenizationResult tokenizationResult, int tokenListIndex) {
+    Set<String> candidates = new HashSet<>();
+    if (didVisitParserStateOnThisTokenIndex(parserState, tokenListIndex)) {
+      return candidates;
+    }
+    Integer previousTokenListIndexForThisState = setParserStateLastVisitedOnThisTokenIndex(parserState, tokenListIndex);
+    try {
+      if (!haveMoreTokens(tokenizationResult, tokenListIndex)) { // stop condition for recursion
+        candidates.addAll(suggestNextTokensForParserState(parserState, tokenizationResult));
+        return candidates;
+      }
+      for (Transition trans : parserState.getTransitions()) {
+        if (trans.isEpsilon()) {
+          candidates.addAll(handleEpsilonTransition(trans, tokenizationResult, tokenListIndex));
+        } else if (trans instanceof AtomTransition) {
+          candidates.addAll(handleAtomicTransition((AtomTransition) trans, tokenizationResult, tokenListIndex));
+        } else {
+          candidates.addAll(handleSetTransition((SetTransition) trans, tokenizationResult, tokenListIndex));
+        }
+      }
+    } finally {
+      setParserStateLastVisitedOnThisTokenIndex(parserState, previousTokenListIndexForThisState);
+    }
+    return candidates;
+  }
+
+  private boolean didVisitParserStateOnThisTokenIndex(ATNState parserState, Integer currentTokenListIndex) {
+    Integer lastVisitedThisStateAtTokenListIndex = parserStateToTokenListIndexWhereLastVisited.get(parserState);
+    return currentTokenListIndex.equals(lastVisitedThisStateAtTokenListIndex);
+  }
+
+  private Integer setParserStateLastVisitedOnThisTokenIndex(ATNState parserState, Integer tokenListIndex) {
+    if (tokenListIndex == null) {
+      return parserStateToTokenListIndexWhereLastVisited.remove(parserState);
+    } else {
+      return parserStateToTokenListIndexWhereLastVisited.put(parserState, tokenListIndex);
+    }
+  }
+
+  private boolean haveMoreTokens(LexerWrapper.TokenizationResult tokenizationResult, int tokenListIndex) {
+    return tokenListIndex < tokenizationResult.tokens.size();
+  }
+
+  private Set<String> handleEpsilonTransition(Transition trans, LexerWrapper.TokenizationResult tokenizationResult, int tokenListIndex) {
+    // Epsilon transitions don't consume a token, so don't move the index
+    return parseAndCollectTokenSuggestions(trans.target, tokenizationResult, tokenListIndex);
+  }
+
+  private Set<String> handleAtomicTransition(AtomTransition trans, LexerWrapper.TokenizationResult tokenizationResult, int tokenListIndex) {
+    int nextTokenType = tokenizationResult.tokens.get(tokenListIndex).getType();
+    if (trans.label == nextTokenType) {
+      return parseAndCollectTokenSuggestions(trans.target, tokenizationResult, tokenListIndex + 1);
+    }
+    return Collections.emptySet();
+  }
+
+  private Set<String> handleSetTransition(SetTransition trans, LexerWrapper.TokenizationResult tokenizationResult, int tokenListIndex) {
+    Set<String> candidates = new HashSet<>();
+    int nextTokenType = tokenizationResult.tokens.get(tokenListIndex).getType();
+    for (int transitionTokenType : trans.label().toList()) {
+      if (transitionTokenType == nextTokenType) {
+        candidates.addAll(parseAndCollectTokenSuggestions(trans.target, tokenizationResult, tokenListIndex + 1));
+      }
+    }
+    return candidates;
+  }
+
+  private Set<String> suggestNextTokensForParserState(ATNState parserState, LexerWrapper.TokenizationResult tokenizationResult) {
+    Set<Integer> transitionLabels = new HashSet<>();
+    fillParserTransitionLabels(parserState, transitionLabels, new HashSet<>());
+    Collection<String> suggestions = new LexerWalk(tokenizationResult.untokenizedText).suggest(transitionLabels);
+    return parseSuggestionsAndAddValidOnes(parserState, suggestions, tokenizationResult);
+  }
+
+  private void fillParserTransitionLabels(ATNState parserState, Collection<Integer> result, Set<TransitionWrapper> visitedTransitions) {
+    for (Transition trans : parserState.getTransitions()) {
+      TransitionWrapper transWrapper = new TransitionWrapper(parserState, trans);
+      if (visitedTransitions.contains(transWrapper)) {
+        continue;
+      }
+      if (trans.isEpsilon()) {
+        try {
+          visitedTransitions.add(transWrapper);
+          fillParserTransitionLabels(trans.target, result, visitedTransitions);
+        } finally {
+          visitedTransitions.remove(transWrapper);
+        }
+      } else if (trans instanceof AtomTransition) {
+        int label = ((AtomTransition) trans).label;
+        if (label >= 1) { // EOF would be -1
+          result.add(label);
+        }
+      } else if (trans instanceof SetTransition) {
+        for (Interval interval : trans.label().getIntervals()) {
+          for (int i = interval.a; i <= interval.b; ++i) {
+            result.add(i);
+          }
+        }
+      }
+    }
+  }
+
+  private Set<String> parseSuggestionsAndAddValidOnes(ATNState parserState, Collection<String> suggestions, LexerWrapper.TokenizationResult tokenizationResult) {
+    Set<String> candidates = new HashSet<>();
+    for (String suggestion : suggestions) {
+      Token addedToken = getAddedToken(suggestion, tokenizationResult);
+      if (isParseableWithAddedToken(parserState, addedToken, new HashSet<>())) {
+        candidates.add(suggestion);
+      }
+    }
+    return candidates;
+  }
+
+  private Token getAddedToken(String suggestedCompletion, LexerWrapper.TokenizationResult tokenizationResult) {
+    String completedText = this.input + suggestedCompletion;
+    List<? extends Token> completedTextTokens = this.lexerWrapper.tokenizeNonDefaultChannel(completedText).tokens;
+    if (completedTextTokens.size() <= tokenizationResult.tokens.size()) {
+      return null; // Completion didn't yield whole token, could be just a token fragment
+    }
+    return completedTextTokens.get(completedTextTokens.size() - 1);
+  }
+
+  private boolean isParseableWithAddedToken(ATNState parserState, Token newToken, Set<TransitionWrapper> visitedTransitions) {
+    if (newToken == null) {
+      return false;
+    }
+    for (Transition parserTransition : parserState.getTransitions()) {
+      if (parserTransition.isEpsilon()) { // Recurse through any epsilon transitionsStr
+        TransitionWrapper transWrapper = new TransitionWrapper(parserState, parserTransition);
+        if (visitedTransitions.contains(transWrapper)) {
+          continue;
+        }
+        visitedTransitions.add(transWrapper);
+        try {
+          if (isParseableWithAddedToken(parserTransition.target, newToken, visitedTransitions)) {
+            return true;
+          }
+        } finally {
+          visitedTransitions.remove(transWrapper);
+        }
+      } else if (parserTransition instanceof AtomTransition) {
+        AtomTransition parserAtomTransition = (AtomTransition) parserTransition;
+        if (parserAtomTransition.label == newToken.getType()) {
+          return true;
+        }
+      } else if (parserTransition instanceof SetTransition) {
+        SetTransition parserSetTransition = (SetTransition) parserTransition;
+        for (int transitionTokenType : parserSetTransition.label().toList()) {
+          if (transitionTokenType == newToken.getType()) {
+            return true;
+          }
+        }
+      } else {
+        throw new IllegalStateException("Unexpected: " + parserWrapper.toString(parserTransition));
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The original lexer ATN expansion of {@link TokenSuggester}: every path through the rule of a token type that
+   * matches the partial token is a suggestion.
+   */
+  private class LexerWalk {
+    private final Set<Integer> visitedLexerStates = new HashSet<>();
+    private final String origPartialToken;
+
+    LexerWalk(String origPartialToken) {
+      this.origPartialToken = origPartialToken;
+    }
+
+    Collection<String> suggest(Collection<Integer> nextParserTransitionLabels) {
+      Set<String> suggestions = new HashSet<>();
+      for (int nextParserTransitionLabel : nextParserTransitionLabels) {
+        ATNState lexerState = lexerWrapper.findStateByTokenType(nextParserTransitionLabel);
+        suggestions.addAll(suggest("", lexerState, origPartialToken));
+      }
+      return suggestions;
+    }
+
+    private Set<String> suggest(String tokenSoFar, ATNState lexerState, String remainingText) {
+      return tokenSuggestionCache.computeIfAbsent(new Triplet<>(tokenSoFar, lexerState, remainingText), this::suggest);
+    }
+
+    private Set<String> suggest(Triplet<String, ATNState, String> args) {
+      Set<String> suggestions = new HashSet<>();
+      String tokenSoFar = args.getValue0();
+      ATNState lexerState = args.getValue1();
+      String remainingText = args.getValue2();
+
+      int stateNumber = lexerState.stateNumber;
+      if (!lexerWrapper.isValidSuggestion(lexerWrapper.stateToString(lexerState))) {
+        return suggestions;
+      }
+      if (visitedLexerStates.contains(stateNumber)) {
+        return suggestions; // avoid infinite loop and stack overflow
+      }
+      visitedLexerStates.add(stateNumber);
+      try {
+        Transition[] transitions = lexerState.getTransitions();
+        boolean tokenNotEmpty = tokenSoFar.length() > 0;
+        boolean noMoreCharactersInToken = (transitions.length == 0);
+
+        if (tokenNotEmpty && noMoreCharactersInToken) {
+          suggestions.add(chopOffCommonStart(tokenSoFar, this.origPartialToken));
+          return suggestions;
+        }
+        for (Transition trans : transitions) {
+          suggestions.addAll(suggestViaLexerTransition(tokenSoFar, remainingText, trans));
+        }
+      } finally {
+        visitedLexerStates.remove(stateNumber);
+      }
+      return suggestions;
+    }
+
+    private Set<String> suggestViaLexerTransition(String tokenSoFar, String remainingText, Transition trans) {
+      Set<String> suggestions = new HashSet<>();
+      if (trans.isEpsilon()) {
+        suggestions.addAll(suggest(new Triplet<>(tokenSoFar, trans.target, remainingText)));
+      } else if (trans instanceof AtomTransition) {
+        String newTokenChar = lexerWrapper.getAddedTextFor((AtomTransition) trans);
+        if (remainingText.isEmpty() || remainingText.startsWith(newTokenChar)) {
+          suggestions.addAll(suggestViaNonEpsilonLexerTransition(tokenSoFar, remainingText, newTokenChar, trans.target));
+        }
+      } else if (trans instanceof SetTransition) {
+        for (Integer symbol : trans.label().toList()) {
+          String charStr = new String(Character.toChars(symbol));
+          if (remainingText.isEmpty() || remainingText.startsWith(charStr)) {
+            suggestions.addAll(suggestViaNonEpsilonLexerTransition(tokenSoFar, remainingText, charStr, trans.target));
+          }
+        }
+      }
+      return suggestions;
+    }
+
+    private Set<String> suggestViaNonEpsilonLexerTransition(String tokenSoFar, String remainingText,
+                                                            String newTokenChar, ATNState targetState) {
+      String newRemainingText = (remainingText.length() > 0) ? remainingText.substring(1) : remainingText;
+      return suggest(new Triplet<>(tokenSoFar + newTokenChar, targetState, newRemainingText));
+    }
+
+    private String chopOffCommonStart(String a, String b) {
+      int charsToChopOff = Math.min(b.length(), a.length());
+      return a.substring(charsToChopOff);
+    }
+  }
+}
@@ -0,0 +1,216 @@
+package akovari.antlr4.autocomplete.impl;
+
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.atn.AtomTransition;
+import org.antlr.v4.runtime.atn.RuleStopState;
+import org.antlr.v4.runtime.atn.RuleTransition;
+import org.antlr.v4.runtime.atn.SetTransition;
+import org.antlr.v4.runtime.atn.Transition;
+import org.antlr.v4.runtime.misc.Interval;
+
+import java.util.*;
+
+/**
+ * Collects the token types, and the parser rules entered on the way, that can follow a parser ATN state without
+ * consuming any more input. What a called rule starts with, and whether it can end without a token, only depends on
+ * the rule, so it is memoized per rule and a rule reached repeatedly from the caret is only analyzed once per
+ * completion. The memo is keyed by the rule alone, not by the token index the rule starts at: the walk consumes no
+ * input and evaluates no predicates, so what a rule starts with is the same wherever it starts.
+ */
+public class RuleFollowAnalyzer {
+  private final ParserWrapper parserWrapper;
+  private final CompletionTable completionTable;
+  private final Map<Integer, RuleFollow> ruleFollowCache = new HashMap<>();
+
+  public static class FollowSet {
+    public final Set<Integer> tokenTypes;
+    public final Set<Integer> enteredRules;
+    /**
+     * Number of calling rules that are left before the first of the token types can follow, 0 when one can follow
+     * within the rule of the state, or when the calling rules are not known.
+     */
+    public final int rulesLeft;
+
+    public FollowSet() {
+      this(new HashSet<>(), new HashSet<>());
+    }
+
+    public FollowSet(Set<Integer> tokenTypes, Set<Integer> enteredRules) {
+      this(tokenTypes, enteredRules, 0);
+    }
+
+    public FollowSet(Set<Integer> tokenTypes, Set<Integer> enteredRules, int rulesLeft) {
+      this.tokenTypes = tokenTypes;
+      this.enteredRules = enteredRules;
+      this.rulesLeft = rulesLeft;
+    }
+
+    private void addAll(FollowSet other) {
+      tokenTypes.addAll(other.tokenTypes);
+      enteredRules.addAll(other.enteredRules);
+    }
+  }
+
+  /**
+   * What a walk within one rule reached: the tokens and rules it starts with, and whether it reached the rule stop state.
+   */
+  private static class RuleFollow {
+    final FollowSet followSet = new FollowSet();
+    boolean reachesRuleStop;
+    /**
+     * Rules called on the way, at any depth, that were left without consuming a token, so their callers elsewhere
+     * continue as well when leaving to all callers.
+     */
+    final Set<Integer> leftRules = new HashSet<>();
+    /**
+     * Rules not entered again because they were being analyzed further up the walk, so the result may miss what they
+     * add and is not memoized.
+     */
+    final Set<Integer> cutRules = new HashSet<>();
+  }
+
+  public RuleFollowAnalyzer(ParserWrapper parserWrapper) {
+    this(parserWrapper, null);
+  }
+
+  /**
+   * @param completionTable precomputed follow sets to use instead of analyzing the parser ATN, may be null
+   */
+  public RuleFollowAnalyzer(ParserWrapper parserWrapper, CompletionTable completionTable) {
+    this.parserWrapper = parserWrapper;
+    this.completionTable = completionTable;
+  }
+
+  /**
+   * Without the calling rules, leaving a rule continues at the follow states of all its callers, the rule of the state
+   * as well as any rule called on the way that ends without a token.
+   */
+  public FollowSet followSetOf(ATNState parserState) {
+    if (completionTable != null) {
+      return completionTable.getFollowSet(parserState.stateNumber);
+    }
+    RuleFollow follow = new RuleFollow();
+    walkRule(parserState, follow, new HashSet<>(), true);
+    return follow.followSet;
+  }
+
+  /**
+   * @param returnStates follow states of the calling rules, innermost first, leaving the outermost rule ends the input
+   */
+  public FollowSet followSetOf(ATNState parserState, List<ATNState> returnStates) {
+    FollowSet result = new FollowSet();
+    int rulesLeft = returnStates.size() + 1;
+    ATNState fromState = parserState;
+    for (int depth = 0; ; ++depth) {
+      RuleFollow follow = new RuleFollow();
+      walkRule(fromState, follow, new HashSet<>(), false);
+      result.addAll(follow.followSet);
+      if (rulesLeft > depth && !follow.followSet.tokenTypes.isEmpty()) {
+        rulesLeft = depth;
+      }
+      if (!follow.reachesRuleStop || depth == returnStates.size()) {
+        break;
+      }
+      fromState = returnStates.get(depth);
+    }
+    return new FollowSet(result.tokenTypes, result.enteredRules, rulesLeft);
+  }
+
+  /**
+   * @return what the rule starts with, null when the rule is being analyzed further up the walk already
+   */
+  private RuleFollow ruleFollow(int ruleIndex, Set<Integer> calledRules) {
+    RuleFollow follow = ruleFollowCache.get(ruleIndex);
+    if (follow != null) {
+      return follow;
+    }
+    if (!calledRules.add(ruleIndex)) {
+      return null;
+    }
+    try {
+      follow = new RuleFollow();
+      walkRule(parserWrapper.getRuleStartState(ruleIndex), follow, calledRules, false);
+      // A recursive call adds nothing the rule does not start with already
+      follow.cutRules.remove(ruleIndex);
+      if (follow.cutRules.isEmpty()) {
+        ruleFollowCache.put(ruleIndex, follow);
+      }
+      return follow;
+    } finally {
+      calledRules.remove(ruleIndex);
+    }
+  }
+
+  /**
+   * Follows the epsilon transitions from the given state, entering called rules through their memoized follows.
+   * @param leaveToAllCallers whether to go on from the rule stop state to the follow states of all callers, rather than
+   *                          to stop there
+   */
+  private void walkRule(ATNState fromState, RuleFollow result, Set<Integer> calledRules, boolean leaveToAllCallers) {
+    Set<Integer> visitedStates = new HashSet<>();
+    Deque<ATNState> pendingStates = new ArrayDeque<>();
+    pendingStates.push(fromState);
+    visitedStates.add(fromState.stateNumber);
+    while (!pendingStates.isEmpty()) {
+      ATNState parserState = pendingStates.pop();
+      if (parserState instanceof RuleStopState) {
+        result.reachesRuleStop = true;
+        if (!leaveToAllCallers) {
+          continue;
+        }
+      }
+      for (Transition trans : parserState.getTransitions()) {
+        if (trans instanceof RuleTransition) {
+          int ruleIndex = trans.target.ruleIndex;
+          result.followSet.enteredRules.add(ruleIndex);
+          RuleFollow calledRule = ruleFollow(ruleIndex, calledRules);
+          if (calledRule == null) {
+            result.cutRules.add(ruleIndex);
+            continue;
+          }
+          result.followSet.addAll(calledRule.followSet);
+          result.cutRules.addAll(calledRule.cutRules);
+          result.leftRules.addAll(calledRule.leftRules);
+          if (calledRule.reachesRuleStop) {
+            result.leftRules.add(ruleIndex);
+          }
+          ATNState followState = ((RuleTransition) trans).followState;
+          if (calledRule.reachesRuleStop && visitedStates.add(followState.stateNumber)) {
+            pendingStates.push(followState);
+          }
+          if (leaveToAllCallers) {
+            // The stop state leads to the follow states of the other callers of the left rules
+            for (int leftRule : calledRule.leftRules) {
+              pushRuleStopState(leftRule, visitedStates, pendingStates);
+            }
+            if (calledRule.reachesRuleStop) {
+              pushRuleStopState(ruleIndex, visitedStates, pendingStates);
+            }
+          }
+        } else if (trans.isEpsilon()) {
+          if (visitedStates.add(trans.target.stateNumber)) {
+            pendingStates.push(trans.target);
+          }
+        } else if (trans instanceof AtomTransition) {
+          int label = ((AtomTransition) trans).label;
+          if (label >= 1) { // EOF would be -1
+            result.followSet.tokenTypes.add(label);
+          }
+        } else if (trans instanceof SetTransition) {
+          for (Interval interval : trans.label().getIntervals()) {
+            for (int i = interval.a; i <= interval.b; ++i) {
+              result.followSet.tokenTypes.add(i);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private void pushRuleStopState(int ruleIndex, Set<Integer> visitedStates, Deque<ATNState> pendingStates) {
+    ATNState ruleStopState = parserWrapper.getRuleStopState(ruleIndex);
+    if (visitedStates.add(ruleStopState.stateNumber)) {
+      pendingStates.push(ruleStopState);
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package akovari.antlr4.autocomplete.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of expanding the tokens expected in one parser state into validated suggestions.
+ */
+@Name("akovari.antlr4.autocomplete.SuggestionExpansion")
+@Label("Suggestion Expansion")
+@Category("ANTLR4 Autocomplete")
+@Description("Walks the lexer ATN for the tokens expected in a parser state and validates the candidates")
+public class SuggestionExpansionEvent extends GrammarEvent {
+  @Label("Parser State")
+  public int parserState;
+
+  @Label("Input Length")
+  public int inputLength;
+
+  @Label("Expected Token Types")
+  public int expectedTokenTypes;
+
+  @Label("Candidates")
+  public int candidates;
+
+  @Label("Suggestions")
+  public int suggestions;
+}
@@ -0,0 +1,25 @@
+package akovari.antlr4.autocomplete.impl;
+
+import org.javatuples.Pair;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Batches symbol provider lookups of one completion, so every provider is asked at most once per prefix no matter
+ * how many token types and parser states it serves.
+ */
+public class SymbolBatch {
+  private final int limit;
+  private final Map<Pair<SymbolProvider, String>, Collection<String>> symbolsByProviderAndPrefix = new HashMap<>();
+
+  public SymbolBatch(int limit) {
+    this.limit = limit;
+  }
+
+  public Collection<String> findSymbols(SymbolProvider symbolProvider, String prefix) {
+    return symbolsByProviderAndPrefix.computeIfAbsent(new Pair<>(symbolProvider, prefix),
+        (key) -> symbolProvider.findSymbols(prefix, limit));
+  }
+}
@@ -0,0 +1,16 @@
+package akovari.antlr4.autocomplete.impl;
+
+import java.util.Collection;
+
+/**
+ * Supplies completions for identifier-like tokens from an external source, such as a catalog of table names, in
+ * place of walking the lexer ATN.
+ */
+public interface SymbolProvider {
+  /**
+   * @param prefix already typed part of the symbol, possibly empty
+   * @param limit maximum number of symbols to return
+   * @return symbols starting with the prefix, including the prefix itself
+   */
+  Collection<String> findSymbols(String prefix, int limit);
+}
@@ -0,0 +1,28 @@
+package akovari.antlr4.autocomplete.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Symbol providers registered per token type or per lexer rule name. A provider registered for the token type wins.
+ */
+public class SymbolProviderRegistry {
+  private final Map<Integer, SymbolProvider> providersByTokenType = new ConcurrentHashMap<>();
+  private final Map<String, SymbolProvider> providersByRuleName = new ConcurrentHashMap<>();
+
+  public void register(int tokenType, SymbolProvider symbolProvider) {
+    providersByTokenType.put(tokenType, symbolProvider);
+  }
+
+  public void register(String lexerRuleName, SymbolProvider symbolProvider) {
+    providersByRuleName.put(lexerRuleName, symbolProvider);
+  }
+
+  public SymbolProvider find(int tokenType, String lexerRuleName) {
+    SymbolProvider symbolProvider = providersByTokenType.get(tokenType);
+    if (symbolProvider == null && lexerRuleName != null) {
+      symbolProvider = providersByRuleName.get(lexerRuleName);
+    }
+    return symbolProvider;
+  }
+}
@@ -1,6 +1,8 @@
 package akovari.antlr4.autocomplete.impl;
 
 import akovari.antlr4.autocomplete.Antlr4Completer;
+import akovari.antlr4.autocomplete.CompletionCancelledException;
+import akovari.antlr4.autocomplete.data.LRUCache;
 import org.antlr.v4.runtime.atn.ATNState;
 import org.antlr.v4.runtime.atn.AtomTransition;
 import org.antlr.v4.runtime.atn.SetTransition;
@@ -8,6 +10,7 @@ import org.antlr.v4.runtime.atn.Transition;
 import org.javatuples.Triplet;
 
 import java.util.*;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -22,33 +25,260 @@ public class TokenSuggester {
 
   private final Set<Integer> visitedLexerStates = new HashSet<>();
   private final String origPartialToken;
+  private final SymbolBatch symbolBatch;
+  private boolean caseInsensitive;
+  private int maxEditDistance;
+  private final Set<String> replacements = new HashSet<>();
+  private final Map<String, String> replacementsByCaseAdaptedSuggestion = new HashMap<>();
+  private CompletionCounters counters;
+  private AtnProfile atnProfile;
+  private int[] profiledStates = new int[16];
+  private int profiledStateCount;
+  private BooleanSupplier cancellation;
+  private int maxLexerStates = Integer.MAX_VALUE;
+  private int lexerStatesVisited;
+  private boolean truncated;
+  private boolean cachedOnly;
 
   public TokenSuggester(String origPartialToken, LexerWrapper lexerWrapper) {
+    this(origPartialToken, lexerWrapper, new SymbolBatch(0));
+  }
+
+  public TokenSuggester(String origPartialToken, LexerWrapper lexerWrapper, SymbolBatch symbolBatch) {
     this.origPartialToken = origPartialToken;
     this.lexerWrapper = lexerWrapper;
+    this.symbolBatch = symbolBatch;
+  }
+
+  /**
+   * Matches the partial token case-insensitively, and when maxEditDistance is positive also with up to that many
+   * edits, collapsing casing variants of a token into one suggestion. Tokens that do not extend the partial token
+   * exactly are reported by {@link #getReplacements()}.
+   */
+  public TokenSuggester withCaseInsensitiveMatching(int maxEditDistance) {
+    this.caseInsensitive = true;
+    this.maxEditDistance = maxEditDistance;
+    return this;
+  }
+
+  /**
+   * Counts visited lexer states, followed transitions and cache lookups into the given counters.
+   */
+  public TokenSuggester withCounters(CompletionCounters counters) {
+    this.counters = counters;
+    return this;
+  }
+
+  /**
+   * Records visits and time per lexer ATN state into the given profile. A walk served from the token suggestion
+   * caches counts the visits of the walk it stands for, see {@link AtnProfile#getLexerFootprint(Object)}.
+   */
+  public TokenSuggester withProfile(AtnProfile atnProfile) {
+    this.atnProfile = atnProfile;
+    return this;
+  }
+
+  /**
+   * Aborts the lexer ATN walk with {@link CompletionCancelledException} once the given check returns true. Nothing
+   * from an aborted walk is cached.
+   */
+  public TokenSuggester withCancellation(BooleanSupplier cancellation) {
+    this.cancellation = cancellation;
+    return this;
+  }
+
+  /**
+   * Stops walking the lexer ATN after the given number of states, suggesting only the tokens found so far. Nothing
+   * from a walk stopped this way is cached.
+   */
+  public TokenSuggester withMaxLexerStates(int maxLexerStates) {
+    this.maxLexerStates = maxLexerStates;
+    return this;
+  }
+
+  /**
+   * Suggests tokens from the token suggestion caches only, without walking the lexer ATN on a cache miss.
+   */
+  public TokenSuggester withCachedSuggestionsOnly() {
+    this.cachedOnly = true;
+    return this;
   }
 
   public Collection<String> suggest(Collection<Integer> nextParserTransitionLabels) {
     Set<String> suggestions = new HashSet<>();
     logTokensUsedForSuggestion(nextParserTransitionLabels);
+    Set<Integer> keywordTokenTypes = new HashSet<>();
     for (int nextParserTransitionLabel : nextParserTransitionLabels) {
-      int nextTokenRuleNumber = nextParserTransitionLabel - 1; // Count from 0 not from 1
-      ATNState lexerState = this.lexerWrapper.findStateByRuleNumber(nextTokenRuleNumber);
-      suggestions.addAll(suggest("", lexerState, origPartialToken));
+      SymbolProvider symbolProvider = this.lexerWrapper.getSymbolProvider(nextParserTransitionLabel);
+      if (symbolProvider != null) {
+        suggestions.addAll(suggestFromSymbolProvider(symbolProvider));
+        continue;
+      }
+      if (caseInsensitive && lexerWrapper.getKeywordIndex().isIndexed(nextParserTransitionLabel)) {
+        keywordTokenTypes.add(nextParserTransitionLabel);
+        continue;
+      }
+      ATNState lexerState = this.lexerWrapper.findStateByTokenType(nextParserTransitionLabel);
+      long startNanos = (atnProfile != null) ? System.nanoTime() : 0;
+      try {
+        for (String wholeToken : suggestWholeTokens("", lexerState, origPartialToken)) {
+          suggestions.add(addSuggestedToken(wholeToken));
+        }
+      } finally {
+        if (atnProfile != null) {
+          atnProfile.addLexerStateNanos(lexerState.stateNumber, System.nanoTime() - startNanos);
+          flushProfiledStates();
+        }
+      }
+    }
+    if (caseInsensitive) {
+      // Case-insensitive suggestions are whole tokens, which still need to be told apart from the partial token
+      Set<String> wholeTokens = new HashSet<>(suggestions);
+      wholeTokens.addAll(lexerWrapper.getKeywordIndex().find(origPartialToken, keywordTokenTypes, maxEditDistance));
+      suggestions = splitIntoSuggestionsAndReplacements(wholeTokens);
     }
     return Collections.unmodifiableSet(suggestions);
   }
 
-  private void logTokensUsedForSuggestion(Collection<Integer> ruleIndices) {
+  /**
+   * @return whole tokens to replace the partial token with, found by case-insensitive or fuzzy matching
+   */
+  public Set<String> getReplacements() {
+    return Collections.unmodifiableSet(replacements);
+  }
+
+  /**
+   * A token matching the partial token in all but casing is suggested both as a replacement, and as a completion
+   * continuing in the casing typed so far, in case the lexer accepts that casing as well.
+   * @return replacements by the completions suggested in the typed casing
+   */
+  public Map<String, String> getReplacementsByCaseAdaptedSuggestion() {
+    return Collections.unmodifiableMap(replacementsByCaseAdaptedSuggestion);
+  }
+
+  private Set<String> splitIntoSuggestionsAndReplacements(Set<String> wholeTokens) {
+    Map<String, String> tokensByFoldedText = new HashMap<>();
+    for (String token : wholeTokens) {
+      tokensByFoldedText.merge(KeywordIndex.foldCase(token), token, this::preferredCasing);
+    }
+    Set<String> suggestions = new HashSet<>();
+    for (String token : tokensByFoldedText.values()) {
+      if (token.startsWith(origPartialToken)) {
+        if (token.length() > origPartialToken.length()) {
+          suggestions.add(chopOffCommonStart(token, origPartialToken));
+        }
+      } else {
+        replacements.add(token);
+        String caseAdaptedSuggestion = continueInTypedCasing(token);
+        if (caseAdaptedSuggestion != null) {
+          suggestions.add(caseAdaptedSuggestion);
+          replacementsByCaseAdaptedSuggestion.put(caseAdaptedSuggestion, token);
+        }
+      }
+    }
+    return suggestions;
+  }
+
+  private String continueInTypedCasing(String token) {
+    if (token.length() <= origPartialToken.length()
+        || !token.regionMatches(true, 0, origPartialToken, 0, origPartialToken.length())) {
+      return null;
+    }
+    String continuation = token.substring(origPartialToken.length());
+    boolean typedLowerCase = origPartialToken.equals(origPartialToken.toLowerCase(Locale.ROOT));
+    boolean typedUpperCase = origPartialToken.equals(origPartialToken.toUpperCase(Locale.ROOT));
+    if (typedLowerCase && !typedUpperCase) {
+      return continuation.toLowerCase(Locale.ROOT);
+    } else if (typedUpperCase && !typedLowerCase) {
+      return continuation.toUpperCase(Locale.ROOT);
+    }
+    return continuation;
+  }
+
+  private String preferredCasing(String a, String b) {
+    boolean aExtendsPartialToken = a.startsWith(origPartialToken);
+    if (aExtendsPartialToken != b.startsWith(origPartialToken)) {
+      return aExtendsPartialToken ? a : b;
+    }
+    return (a.compareTo(b) <= 0) ? a : b;
+  }
+
+  private Set<String> suggestFromSymbolProvider(SymbolProvider symbolProvider) {
+    Set<String> suggestions = new HashSet<>();
+    for (String symbol : symbolBatch.findSymbols(symbolProvider, origPartialToken)) {
+      if (symbol.length() > origPartialToken.length() && symbol.startsWith(origPartialToken)) {
+        suggestions.add(addSuggestedToken(symbol));
+      }
+    }
+    return suggestions;
+  }
+
+  private void logTokensUsedForSuggestion(Collection<Integer> tokenTypes) {
     if (!logger.isLoggable(Level.FINE)) {
       return;
     }
-    String ruleNames = ruleIndices.stream().map(r -> lexerWrapper.getRuleNames()[r - 1]).collect(Collectors.joining(" "));
+    String ruleNames = tokenTypes.stream().map(t -> lexerWrapper.getRuleNames()[lexerWrapper.getRuleNumberOfTokenType(t)]).collect(Collectors.joining(" "));
     logger.fine("Suggesting tokens for lexer rules: " + ruleNames);
   }
 
-  private Set<String> suggest(String tokenSoFar, ATNState lexerState, String remainingText) {
-    return lexerWrapper.tokenSuggestionCache.computeIfAbsent(new Triplet<>(tokenSoFar, lexerState, remainingText), this::suggest);
+  /**
+   * The caches are shared by all requests of a grammar, so they hold whole tokens, which do not depend on the partial
+   * token of the request.
+   */
+  private Set<String> suggestWholeTokens(String tokenSoFar, ATNState lexerState, String remainingText) {
+    LRUCache<Triplet<String, ATNState, String>, Set<String>> cache = caseInsensitive
+        ? lexerWrapper.caseInsensitiveTokenSuggestionCache : lexerWrapper.tokenSuggestionCache;
+    Triplet<String, ATNState, String> key = new Triplet<>(tokenSoFar, lexerState, remainingText);
+    Set<String> wholeTokens = cache.get(key);
+    if (counters != null) {
+      if (wholeTokens == null) {
+        counters.cacheMisses++;
+      } else {
+        counters.cacheHits++;
+      }
+    }
+    if (wholeTokens == null && cachedOnly) {
+      return Collections.emptySet();
+    }
+    if (wholeTokens == null) {
+      int footprintStart = profiledStateCount;
+      wholeTokens = suggest(key);
+      if (!truncated) {
+        cache.put(key, wholeTokens);
+        if (atnProfile != null) {
+          atnProfile.putLexerFootprint(footprintKey(key),
+              Arrays.copyOfRange(profiledStates, footprintStart, profiledStateCount));
+        }
+      }
+    } else if (atnProfile != null) {
+      int[] footprint = atnProfile.getLexerFootprint(footprintKey(key));
+      if (footprint == null) {
+        recordProfiledState(lexerState.stateNumber); // cached before profiling, the walk is not known
+      } else {
+        for (int stateNumber : footprint) {
+          recordProfiledState(stateNumber);
+        }
+      }
+    }
+    return wholeTokens;
+  }
+
+  private Object footprintKey(Triplet<String, ATNState, String> key) {
+    return Arrays.asList(caseInsensitive, key);
+  }
+
+  private void recordProfiledState(int stateNumber) {
+    if (profiledStateCount == profiledStates.length) {
+      profiledStates = Arrays.copyOf(profiledStates, 2 * profiledStates.length);
+    }
+    profiledStates[profiledStateCount++] = stateNumber;
+  }
+
+  private void flushProfiledStates() {
+    for (int i = 0; i < profiledStateCount; ++i) {
+      atnProfile.visitLexerState(profiledStates[i]);
+    }
+    profiledStateCount = 0;
   }
 
   private Set<String> suggest(Triplet<String, ATNState, String> args) {
@@ -68,10 +298,26 @@ public class TokenSuggester {
       return suggestions; // avoid infinite loop and stack overflow
     }
 
-    logger.fine(
-        "SUGGEST: tokenSoFar=" + tokenSoFar + " remainingText=" + remainingText + " lexerState=" + stateName);
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine(
+          "SUGGEST: tokenSoFar=" + tokenSoFar + " remainingText=" + remainingText + " lexerState=" + stateName);
+    }
 
+    if (cancellation != null && cancellation.getAsBoolean()) {
+      throw new CompletionCancelledException();
+    }
+    if (lexerStatesVisited >= maxLexerStates) {
+      truncated = true;
+      return suggestions;
+    }
+    ++lexerStatesVisited;
     visitedLexerStates.add(stateNumber);
+    if (counters != null) {
+      counters.lexerStatesVisited++;
+    }
+    if (atnProfile != null) {
+      recordProfiledState(stateNumber);
+    }
 
     try {
       Transition[] transitions = lexerState.getTransitions();
@@ -79,7 +325,7 @@ public class TokenSuggester {
       boolean noMoreCharactersInToken = (transitions.length == 0);
 
       if (tokenNotEmpty && noMoreCharactersInToken) {
-        suggestions.add(addSuggestedToken(tokenSoFar));
+        suggestions.add(tokenSoFar);
         return suggestions;
       }
 
@@ -95,15 +341,20 @@ public class TokenSuggester {
 
   private Set<String> suggestViaLexerTransition(String tokenSoFar, String remainingText, Transition trans) {
     Set<String> suggestions = new HashSet<>();
+    if (counters != null) {
+      counters.lexerTransitionsFollowed++;
+    }
     if (trans.isEpsilon()) {
       suggestions.addAll(suggest(new Triplet<>(tokenSoFar, trans.target, remainingText)));
     } else if (trans instanceof AtomTransition) {
       String newTokenChar = lexerWrapper.getAddedTextFor((AtomTransition) trans);
 
-      if (remainingText.isEmpty() || remainingText.startsWith(newTokenChar)) {
-        logger.fine("LEXER TOKEN: " + newTokenChar + " remaining=" + remainingText);
+      if (remainingText.isEmpty() || startsWith(remainingText, newTokenChar)) {
+        if (logger.isLoggable(Level.FINE)) {
+          logger.fine("LEXER TOKEN: " + newTokenChar + " remaining=" + remainingText);
+        }
         suggestions.addAll(suggestViaNonEpsilonLexerTransition(tokenSoFar, remainingText, newTokenChar, trans.target));
-      } else {
+      } else if (logger.isLoggable(Level.FINE)) {
         logger.fine("NONMATCHING LEXER TOKEN: " + newTokenChar + " remaining=" + remainingText);
       }
     } else if (trans instanceof SetTransition) {
@@ -113,7 +364,7 @@ public class TokenSuggester {
         char[] charArr = Character.toChars(symbol);
         String charStr = new String(charArr);
 
-        if (remainingText.isEmpty() || remainingText.startsWith(charStr)) {
+        if (remainingText.isEmpty() || startsWith(remainingText, charStr)) {
           suggestions.addAll(suggestViaNonEpsilonLexerTransition(tokenSoFar, remainingText, charStr, trans.target));
         }
       }
@@ -124,10 +375,20 @@ public class TokenSuggester {
   private Set<String> suggestViaNonEpsilonLexerTransition(String tokenSoFar, String remainingText,
                                                           String newTokenChar, ATNState targetState) {
     String newRemainingText = (remainingText.length() > 0) ? remainingText.substring(1) : remainingText;
-    return suggest(new Triplet<>(tokenSoFar + newTokenChar, targetState, newRemainingText));
+    return suggestWholeTokens(tokenSoFar + newTokenChar, targetState, newRemainingText);
+  }
+
+  private boolean startsWith(String remainingText, String tokenChar) {
+    if (caseInsensitive) {
+      return remainingText.regionMatches(true, 0, tokenChar, 0, tokenChar.length());
+    }
+    return remainingText.startsWith(tokenChar);
   }
 
   private String addSuggestedToken(String tokenToAdd) {
+    if (caseInsensitive) {
+      return tokenToAdd; // told apart from the partial token once all tokens are collected
+    }
     return chopOffCommonStart(tokenToAdd, this.origPartialToken);
   }
 
@@ -0,0 +1,24 @@
+package akovari.antlr4.autocomplete.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of tokenizing the input of a completion request.
+ */
+@Name("akovari.antlr4.autocomplete.Tokenization")
+@Label("Tokenization")
+@Category("ANTLR4 Autocomplete")
+@Description("Tokenizes the input of a completion request")
+public class TokenizationEvent extends GrammarEvent {
+  @Label("Input Length")
+  public int inputLength;
+
+  @Label("Tokens")
+  public int tokens;
+
+  @Label("Untokenized Length")
+  public int untokenizedLength;
+}
@@ -0,0 +1,209 @@
+package akovari.antlr4.autocomplete.impl;
+
+import akovari.antlr4.autocomplete.data.LRUCache;
+import org.antlr.v4.runtime.atn.ATNState;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * How often each token was accepted in each parser context, the context being the parser states at the caret, see
+ * {@link CompletionDfa.State#getKernel()}. Counts decay with a half-life, so recent usage outranks old usage. Decay
+ * never touches the counters: an acceptance adds 2^(t / half-life) for the time t since the counters were created, so
+ * older acceptances weigh exponentially less, and scores of one context compare like decayed counts. Each counter is a
+ * {@link DoubleAdder}, striped across the threads adding to it, so threads accepting the same token do not contend.
+ * Recording shares a read lock, which rescaling takes exclusively, so that no acceptance weighed against the old
+ * landmark lands in a rescaled counter. Contexts are kept in an {@link LRUCache}, so contexts not completed in for long are dropped
+ * once there are too many. Thread-safe.
+ */
+public class UsageCounters {
+  public static final int DEFAULT_MAX_TOKENS_PER_CONTEXT = 256;
+  public static final int DEFAULT_MAX_CONTEXTS = 4096;
+
+  /**
+   * Weights stay far below the largest double, about 2^1024, older weights are rescaled once this exponent is reached.
+   */
+  private static final double MAX_WEIGHT_EXPONENT = 512;
+
+  private final double halfLifeNanos;
+  private final int maxTokensPerContext;
+  private final LRUCache<Set<ATNState>, ContextCounters> contexts;
+  private volatile long landmarkNanos = System.nanoTime();
+  private final StampedLock rescaleLock = new StampedLock();
+
+  /**
+   * @param halfLife time after which an acceptance counts half
+   * @param maxTokensPerContext number of tokens counted per context, the least used half is dropped beyond it
+   */
+  public UsageCounters(Duration halfLife, int maxTokensPerContext) {
+    this(halfLife, maxTokensPerContext, DEFAULT_MAX_CONTEXTS);
+  }
+
+  /**
+   * @param halfLife time after which an acceptance counts half
+   * @param maxTokensPerContext number of tokens counted per context, the least used half is dropped beyond it
+   * @param maxContexts number of contexts counted, the least recently used ones are dropped beyond it
+   */
+  public UsageCounters(Duration halfLife, int maxTokensPerContext, int maxContexts) {
+    if (halfLife.isNegative() || halfLife.isZero()) {
+      throw new IllegalArgumentException("Half-life must be positive");
+    }
+    this.halfLifeNanos = halfLife.toNanos();
+    this.maxTokensPerContext = maxTokensPerContext;
+    this.contexts = new LRUCache<>(maxContexts);
+  }
+
+  /**
+   * @param context parser states at the caret
+   * @param tokenText whole text of the accepted token
+   */
+  public void record(Set<ATNState> context, String tokenText) {
+    if ((System.nanoTime() - landmarkNanos) / halfLifeNanos > MAX_WEIGHT_EXPONENT) {
+      rescale();
+    }
+    long stamp = rescaleLock.readLock();
+    try {
+      add(context, tokenText, Math.pow(2, (System.nanoTime() - landmarkNanos) / halfLifeNanos));
+    } finally {
+      rescaleLock.unlockRead(stamp);
+    }
+  }
+
+  private void add(Set<ATNState> context, String tokenText, double weight) {
+    ContextCounters counters = contexts.get(context);
+    if (counters == null) {
+      counters = new ContextCounters();
+      contexts.put(context, counters);
+      ContextCounters added = contexts.get(context); // put by another thread meanwhile
+      if (added != null) {
+        counters = added;
+      }
+    }
+    DoubleAdder counter = counters.tokens.get(tokenText);
+    if (counter == null) {
+      if (counters.tokens.size() >= maxTokensPerContext) {
+        counters.prune(maxTokensPerContext / 2);
+      }
+      counter = counters.tokens.computeIfAbsent(tokenText, t -> new DoubleAdder());
+    }
+    counter.add(weight);
+  }
+
+  /**
+   * @param context parser states at the caret
+   * @param tokenText whole text of a token
+   * @return decayed number of acceptances, comparable to the scores of other tokens of the context, 0 when never accepted
+   */
+  public double score(Set<ATNState> context, String tokenText) {
+    ContextCounters counters = contexts.get(context);
+    DoubleAdder counter = (counters == null) ? null : counters.tokens.get(tokenText);
+    return (counter == null) ? 0 : counter.sum();
+  }
+
+  /**
+   * @param context parser states at the caret
+   * @param tokenTexts whole texts of the tokens to rank, by suggestion
+   * @param k number of suggestions to select
+   * @return the k suggestions whose tokens were accepted most, most accepted first, ties in alphabetical order
+   */
+  public List<String> top(Set<ATNState> context, Map<String, String> tokenTexts, int k) {
+    ContextCounters counters = contexts.get(context);
+    Comparator<Ranked> best = Comparator.comparingDouble((Ranked ranked) -> ranked.score).reversed()
+        .thenComparing(ranked -> ranked.suggestion);
+    // Selects with a heap of the k best seen so far, its head being the worst of them
+    PriorityQueue<Ranked> heap = new PriorityQueue<>(Math.max(1, Math.min(k, tokenTexts.size())), best.reversed());
+    for (Map.Entry<String, String> entry : tokenTexts.entrySet()) {
+      DoubleAdder counter = (counters == null) ? null : counters.tokens.get(entry.getValue());
+      Ranked ranked = new Ranked(entry.getKey(), (counter == null) ? 0 : counter.sum());
+      if (heap.size() < k) {
+        heap.add(ranked);
+      } else if (k > 0 && best.compare(ranked, heap.peek()) < 0) {
+        heap.poll();
+        heap.add(ranked);
+      }
+    }
+    List<String> top = new ArrayList<>(heap.size());
+    while (!heap.isEmpty()) {
+      top.add(heap.poll().suggestion);
+    }
+    Collections.reverse(top);
+    return top;
+  }
+
+  /**
+   * @return number of contexts with counts
+   */
+  public int getContextCount() {
+    return contexts.size();
+  }
+
+  /**
+   * Drops all counts, e.g. once the grammar version is replaced.
+   */
+  public void clear() {
+    contexts.clear();
+  }
+
+  /**
+   * Moves the landmark to now, scaling the counters down by the weight of the time passed. Happens once per
+   * {@link #MAX_WEIGHT_EXPONENT} half-lives, recording waits meanwhile.
+   */
+  private void rescale() {
+    long stamp = rescaleLock.writeLock();
+    try {
+      long now = System.nanoTime();
+      double exponent = (now - landmarkNanos) / halfLifeNanos;
+      if (exponent <= MAX_WEIGHT_EXPONENT) {
+        return; // rescaled by another thread
+      }
+      double factor = Math.pow(2, -exponent);
+      contexts.forEach((context, counters) -> counters.tokens.replaceAll((tokenText, counter) -> {
+        DoubleAdder scaled = new DoubleAdder();
+        scaled.add(counter.sum() * factor);
+        return scaled;
+      }));
+      landmarkNanos = now;
+    } finally {
+      rescaleLock.unlockWrite(stamp);
+    }
+  }
+
+  private static final class ContextCounters {
+    final Map<String, DoubleAdder> tokens = new ConcurrentHashMap<>();
+    final AtomicBoolean pruning = new AtomicBoolean();
+
+    /**
+     * Drops the least accepted tokens, keeping the given number. Only one thread prunes a context, the others go on
+     * recording.
+     */
+    void prune(int keep) {
+      if (!pruning.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        List<Map.Entry<String, Double>> scores = new ArrayList<>();
+        tokens.forEach((tokenText, counter) -> scores.add(new AbstractMap.SimpleEntry<>(tokenText, counter.sum())));
+        scores.sort(Map.Entry.comparingByValue());
+        for (int i = 0; i < scores.size() - keep; ++i) {
+          tokens.remove(scores.get(i).getKey());
+        }
+      } finally {
+        pruning.set(false);
+      }
+    }
+  }
+
+  private static final class Ranked {
+    final String suggestion;
+    final double score;
+
+    Ranked(String suggestion, double score) {
+      this.suggestion = suggestion;
+      this.score = score;
+    }
+  }
+}
@@ -1,6 +1,9 @@
 package akovari.antlr4.autocomplete;
 
+import akovari.antlr4.autocomplete.impl.CompletionDfa;
+import akovari.antlr4.autocomplete.impl.CompletionTable;
 import akovari.antlr4.autocomplete.impl.LexerAndParserFactory;
+import akovari.antlr4.autocomplete.impl.SymbolProvider;
 import org.antlr.runtime.RecognitionException;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.Lexer;
@@ -12,18 +15,34 @@ import org.apache.commons.lang3.StringUtils;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.UnaryOperator;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class Antlr4CompleterTest {
   private LexerAndParserFactory lexerAndParserFactory;
   private Set<String> suggestedCompletions;
+  private Set<String> replacements;
+  private Set<CompletionResult.CandidateRule> candidateRules;
+  private List<CompletionResult.InputToken> tokens;
+  private CompletionStats stats;
+  private final Map<String, SymbolProvider> symbolProviders = new HashMap<>();
 
   @BeforeClass
   public static void initLogging() {
@@ -240,6 +259,223 @@ public class Antlr4CompleterTest {
     givenGrammar("r: A B? EOF", "A: 'A'", "B: 'B'").whenInput("A").thenExpect("B");
   }
 
+  @Test
+  public void suggest_withOptionalRuleOfSeveralCallers_shouldSuggestWhatFollowsAnyCaller() {
+    givenGrammar("r: 'A' x 'B' | 'C' x 'D'", "x: 'X'?").whenInput("A").thenExpect("X", "B", "D");
+  }
+
+  @Test
+  public void suggest_withPreferredRuleAtCaret_shouldReportRule() {
+    givenGrammar("r: 'SELECT' column 'FROM' table", "column: ID", "table: ID", "ID: [a-z]+", "WS: ' ' -> skip")
+        .whenInputWithPreferredRules("SELECT a FROM ", "column", "table").thenExpectRules("table@3");
+  }
+
+  @Test
+  public void suggest_withCaretInsidePreferredRule_shouldReportRuleWithItsStartToken() {
+    givenGrammar("r: 'A' q", "q: 'B' 'C'", "WS: ' ' -> skip")
+        .whenInputWithPreferredRules("A B ", "q").thenExpectRules("q@1").thenExpect("C");
+  }
+
+  @Test
+  public void suggest_withPreferredRuleFollowingOtherCaller_shouldNotReportRule() {
+    givenGrammar("r: 'A' x 'B' | 'C' x t", "x: 'X'", "t: 'T'", "WS: ' ' -> skip")
+        .whenInputWithPreferredRules("A X ", "t").thenExpectRules()
+        .whenInputWithPreferredRules("C X ", "t").thenExpectRules("t@2");
+  }
+
+  @Test
+  public void suggest_withPreferredRuleFinished_shouldNotReportRule() {
+    givenGrammar("r: 'A' q 'Z' | 'B' q 'Y'", "q: 'Q' 'R'", "WS: ' ' -> skip")
+        .whenInputWithPreferredRules("A Q ", "q").thenExpectRules("q@1")
+        .whenInputWithPreferredRules("A Q R ", "q").thenExpectRules();
+  }
+
+  @Test
+  public void suggest_withPreferredRuleNotExpected_shouldNotReportRule() {
+    givenGrammar("r: 'A' q", "q: 'B' 'C'", "WS: ' ' -> skip")
+        .whenInputWithPreferredRules("", "q").thenExpectRules().thenExpect("A");
+  }
+
+  @Test
+  public void suggest_withSymbolProvider_shouldSuggestSymbols() {
+    givenGrammar("r: 'FROM' ID", "ID: [a-z]+", "WS: ' ' -> skip")
+        .givenSymbols("ID", "orders", "owners", "users").whenInput("FROM ").thenExpect("orders", "owners", "users");
+  }
+
+  @Test
+  public void suggest_withSymbolProviderAndPartialIdentifier_shouldCompleteIdentifier() {
+    givenGrammar("r: 'FROM' ID", "ID: [a-z]+", "WS: ' ' -> skip")
+        .givenSymbols("ID", "orders", "owners", "users").whenInput("FROM o").thenExpect("rders", "wners");
+  }
+
+  @Test
+  public void suggest_withSymbolProviderAndSymbolLimit_shouldCallProviderOnce() {
+    int[] calls = new int[1];
+    symbolProviders.put("ID", (prefix, limit) -> {
+      calls[0]++;
+      return Arrays.asList("a", "b", "c").subList(0, limit);
+    });
+    givenGrammar("r: 'X' ID | 'X' ID ID", "ID: [a-z]+", "WS: ' ' -> skip");
+    Antlr4Completer completer = new Antlr4Completer(this.lexerAndParserFactory, "X ").withSymbolLimit(2);
+    suggestedCompletions = completer.complete().getSuggestions();
+    thenExpect("a", "b");
+    assertEquals(1, calls[0]);
+  }
+
+  @Test
+  public void suggest_withCaseInsensitiveMatching_shouldCollapseCasingVariants() {
+    givenGrammar("r: AB", "AB: A B", "fragment A: 'A' | 'a'", "fragment B: 'B' | 'b'")
+        .whenInput("", Antlr4Completer::withCaseInsensitiveMatching).thenExpect("AB");
+  }
+
+  @Test
+  public void suggest_withCaseInsensitiveMatching_shouldContinueInTypedCasing() {
+    givenGrammar("r: SELECT", "SELECT: S E L E C T", "fragment S: 'S' | 's'", "fragment E: 'E' | 'e'",
+        "fragment L: 'L' | 'l'", "fragment C: 'C' | 'c'", "fragment T: 'T' | 't'")
+        .whenInput("sel", Antlr4Completer::withCaseInsensitiveMatching).thenExpectReplacements().thenExpect("ect");
+  }
+
+  @Test
+  public void suggest_withCaseInsensitiveMatchingAndCaseSensitiveKeyword_shouldSuggestReplacement() {
+    givenGrammar("r: 'SELECT' 'A'")
+        .whenInput("sel", Antlr4Completer::withCaseInsensitiveMatching).thenExpectReplacements("SELECT").thenExpect();
+  }
+
+  @Test
+  public void suggest_withFuzzyMatching_shouldSuggestKeywordsWithinEditDistance() {
+    givenGrammar("r: 'SELECT' | 'DELETE' | 'INSERT'")
+        .whenInput("slect", completer -> completer.withFuzzyMatching(1)).thenExpectReplacements("SELECT").thenExpect();
+  }
+
+  @Test
+  public void suggest_withFuzzyMatchingAndExactPrefix_shouldSuggestCompletion() {
+    givenGrammar("r: 'SELECT' | 'SET'")
+        .whenInput("SEL", completer -> completer.withFuzzyMatching(1)).thenExpectReplacements("SET").thenExpect("ECT");
+  }
+
+  @Test
+  public void suggest_withCompletionTable_shouldSuggestSameAsRuntimeAnalysis() {
+    givenGrammar("r: 'SELECT' (ID | 'FROM' ID) ('WHERE' ID)?", "ID: [a-z]+", "WS: [ \\t] -> skip");
+    for (String input : Arrays.asList("", "SEL", "SELECT ", "SELECT FROM x", "SELECT x WH")) {
+      Set<String> runtimeSuggestions = whenInput(input).suggestedCompletions;
+      whenInput(input, engineWithCompletionTable(generateCompletionTable()), UnaryOperator.identity())
+          .thenExpect(runtimeSuggestions.toArray(new String[0]));
+    }
+  }
+
+  @Test
+  public void suggest_withCompletionTableAndCaseInsensitiveMatching_shouldUseTableKeywords() {
+    givenGrammar("r: 'SELECT' | 'DELETE'")
+        .whenInput("sel", engineWithCompletionTable(generateCompletionTable()),
+            Antlr4Completer::withCaseInsensitiveMatching)
+        .thenExpectReplacements("SELECT").thenExpect();
+  }
+
+  @Test
+  public void suggest_withStaleCompletionTable_shouldFallBackToRuntimeAnalysis() {
+    CompletionTable staleTable = givenGrammar("r: 'AB' 'EF'").generateCompletionTable();
+    givenGrammar("r: 'AB' 'CD'");
+    whenInput("AB", engineWithCompletionTable(staleTable), UnaryOperator.identity()).thenExpect("CD");
+  }
+
+  @Test
+  public void suggest_shouldReportInputTokens() {
+    givenGrammar("r: 'A' ID ID", "ID: [a-z\\u00e9\\u{1F600}]+", "WS: [ \\t] -> skip")
+        .whenInput("A  \uD83D\uDE00b c\u00e9 d", UnaryOperator.identity())
+        .thenExpectTokens("'A':A", "ID:\uD83D\uDE00b", "ID:c\u00e9", "ID:d");
+  }
+
+  @Test
+  public void suggest_withPhrases_shouldAppendForcedKeywords() {
+    String[] grammar = {"r: 'SELECT' ID 'FROM' ID ('ORDER' 'BY' ID | 'WHERE' ID 'IS' 'NOT' 'NULL')?", "ID: [a-z]+",
+        "WS: [ ] -> skip"};
+    givenGrammar(grammar).whenInput("SELECT a FROM b ", UnaryOperator.identity()).thenExpect("ORDER", "WHERE");
+    givenGrammar(grammar).whenInput("SELECT a FROM b ", completer -> completer.withPhrases(3))
+        .thenExpect("ORDER BY", "WHERE");
+    givenGrammar(grammar).whenInput("SELECT a FROM b WHERE c I", completer -> completer.withPhrases(3))
+        .thenExpect("S NOT NULL");
+    givenGrammar(grammar).whenInput("SELECT a FROM b WHERE c ", completer -> completer.withPhrases(2))
+        .thenExpect("IS NOT");
+  }
+
+  @Test
+  public void suggest_withPhrases_shouldStopAtChoices() {
+    givenGrammar("r: 'A' ('(' ')' | '(' 'X' ')') 'B'?").whenInput("A", completer -> completer.withPhrases(4))
+        .thenExpect("(");
+    givenGrammar("r: 'A' '(' ')' 'B'?").whenInput("A", completer -> completer.withPhrases(4)).thenExpect("()");
+  }
+
+  @Test
+  public void suggest_withInterpreterValidation_shouldKnowTheCallingRule() {
+    givenGrammar("r: 'A' c 'X' | 'B' c 'Y'", "c: 'C'").whenInput("AC", UnaryOperator.identity()).thenExpect("X", "Y");
+    givenGrammar("r: 'A' c 'X' | 'B' c 'Y'", "c: 'C'").whenInput("AC", Antlr4Completer::withInterpreterValidation)
+        .thenExpect("X");
+  }
+
+  @Test
+  public void suggest_withInterpreterValidation_shouldHandlePrecedenceAndPredicates() {
+    givenGrammar("r: e ';'", "e: e '*' e | e '+' e | {true}? 'x' | '(' e ')'")
+        .whenInput("x+", Antlr4Completer::withInterpreterValidation).thenExpect("x", "(");
+    givenGrammar("r: e ';'", "e: e '*' e | e '+' e | {true}? 'x' | '(' e ')'")
+        .whenInput("(x", Antlr4Completer::withInterpreterValidation).thenExpect("*", "+", ")");
+  }
+
+  @Test
+  public void suggest_withoutTokens_shouldNotReportTokens() {
+    givenGrammar("r: 'A' 'B'").whenInput("A", Antlr4Completer::withoutTokens).thenExpectTokens().thenExpect("B");
+  }
+
+  @Test
+  public void suggest_withStats_shouldCountWork() {
+    givenGrammar("r: 'AB' ('CD' | 'CE' | 'X')").whenInput("ABC", Antlr4Completer::withStats).thenExpect("D", "E");
+    assertEquals(2, stats.getCandidatesProduced());
+    assertEquals(0, stats.getCandidatesRejected());
+    assertTrue(stats.getParserStatesVisited() > 0);
+    assertTrue(stats.getParserTransitionsFollowed() > 0);
+    assertTrue(stats.getLexerStatesVisited() > 0);
+    assertTrue(stats.getLexerTransitionsFollowed() > 0);
+    assertTrue(stats.getCacheMisses() > 0);
+    assertEquals(12, stats.toMap().size());
+  }
+
+  @Test
+  public void suggest_withSharedEngine_shouldReuseCompletionDfaStates() {
+    CompletionEngine engine = new CompletionEngine(TestGrammars.load("r: ('A' 'B')* 'C'", "WS: [ ] -> skip"));
+    assertEquals(Collections.singleton("B"), engine.newCompleter("A B A ").complete().getSuggestions());
+    int dfaStates = engine.getCompletionDfa().size();
+    assertEquals(Collections.singleton("B"), engine.newCompleter("A B A B A B A ").complete().getSuggestions());
+    assertEquals(dfaStates, engine.getCompletionDfa().size());
+  }
+
+  @Test
+  public void suggest_withStats_shouldCountParserStatesVisitedByCompletionDfaMisses() {
+    CompletionEngine engine = new CompletionEngine(TestGrammars.load("r: ('A' 'B')* 'C'", "WS: [ ] -> skip"));
+    long cold = engine.newCompleter("A B A ").withStats().complete().getStats().getParserStatesVisited();
+    long warm = engine.newCompleter("A B A ").withStats().complete().getStats().getParserStatesVisited();
+    assertTrue(warm > 0);
+    assertTrue(cold > warm);
+  }
+
+  @Test
+  public void completionDfa_overMaxStates_shouldStillFindParserStates() {
+    CompletionEngine engine = new CompletionEngine(TestGrammars.load("r: 'A' 'B' 'C' 'D'", "WS: [ ] -> skip"));
+    CompletionDfa boundedDfa = new CompletionDfa(engine.getParserWrapper(), 2);
+    CompletionDfa.State unboundedState = engine.getCompletionDfa().getStartState();
+    CompletionDfa.State boundedState = boundedDfa.getStartState();
+    for (int tokenType = 1; tokenType <= 4; ++tokenType) {
+      unboundedState = engine.getCompletionDfa().advance(unboundedState, tokenType);
+      boundedState = boundedDfa.advance(boundedState, tokenType);
+      assertEquals(unboundedState.getKernel(), boundedState.getKernel());
+    }
+    assertEquals(2, boundedDfa.size());
+  }
+
+  @Test
+  public void suggest_withoutStats_shouldNotReportStats() {
+    givenGrammar("r: 'AB' 'CD'").whenInput("AB", UnaryOperator.identity()).thenExpect("CD");
+    assertNull(stats);
+  }
+
   // @Test
   // public void suggest_withMultipleParseOptions_shouldSuggestAll() {
   // // Currently failing due to weird AST created by antlr4. Parser state 11
@@ -279,16 +515,74 @@ public class Antlr4CompleterTest {
     logger.fine(header + parserAtn + middle + lexerAtn + footer);
   }
 
+  private Antlr4CompleterTest givenSymbols(String lexerRuleName, String... symbols) {
+    symbolProviders.put(lexerRuleName, new InMemorySymbolProvider(Arrays.asList(symbols)));
+    return this;
+  }
+
   private Antlr4CompleterTest whenInput(String input) {
     Antlr4Completer completer = new Antlr4Completer(this.lexerAndParserFactory, input);
     suggestedCompletions = completer.complete().getSuggestions();
     return this;
   }
 
+  private Antlr4CompleterTest whenInputWithPreferredRules(String input, String... preferredRules) {
+    return whenInput(input, completer -> completer.withPreferredRules(preferredRules));
+  }
+
+  private Antlr4CompleterTest whenInput(String input, UnaryOperator<Antlr4Completer> options) {
+    return whenInput(input, new CompletionEngine(this.lexerAndParserFactory), options);
+  }
+
+  private Antlr4CompleterTest whenInput(String input, CompletionEngine engine, UnaryOperator<Antlr4Completer> options) {
+    CompletionResult result = options.apply(engine.newCompleter(input)).complete();
+    suggestedCompletions = result.getSuggestions();
+    replacements = result.getReplacements();
+    candidateRules = result.getCandidateRules();
+    tokens = result.getTokens();
+    stats = result.getStats();
+    return this;
+  }
+
+  private CompletionEngine engineWithCompletionTable(CompletionTable completionTable) {
+    return new CompletionEngine(this.lexerAndParserFactory).withCompletionTable(completionTable);
+  }
+
+  private CompletionTable generateCompletionTable() {
+    try {
+      ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+      new CompletionTableGenerator(this.lexerAndParserFactory).generate().write(tableBytes);
+      return CompletionTable.read(new ByteArrayInputStream(tableBytes.toByteArray()));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   private void thenExpect(String... expectedCompletions) {
     assertEquals(Arrays.stream(expectedCompletions).collect(Collectors.toSet()), this.suggestedCompletions);
   }
 
+  private Antlr4CompleterTest thenExpectReplacements(String... expectedReplacements) {
+    assertEquals(Arrays.stream(expectedReplacements).collect(Collectors.toSet()), this.replacements);
+    return this;
+  }
+
+  private Antlr4CompleterTest thenExpectTokens(String... expectedTypesAndTexts) {
+    List<String> actualTokens = this.tokens.stream()
+        .map(token -> token.getType() + ":" + token.getText())
+        .collect(Collectors.toList());
+    assertEquals(Arrays.asList(expectedTypesAndTexts), actualTokens);
+    return this;
+  }
+
+  private Antlr4CompleterTest thenExpectRules(String... expectedRulesAtStartTokens) {
+    Set<String> actualRules = this.candidateRules.stream()
+        .map(rule -> rule.getRuleName() + "@" + rule.getStartTokenIndex())
+        .collect(Collectors.toSet());
+    assertEquals(Arrays.stream(expectedRulesAtStartTokens).collect(Collectors.toSet()), actualRules);
+    return this;
+  }
+
   private LexerAndParserFactory loadGrammar(String... grammarLines) {
     String firstLine = "grammar testgrammar;\n";
     String grammarText = firstLine + StringUtils.join(Arrays.asList(grammarLines), ";\n") + ";\n";
@@ -311,6 +605,11 @@ public class Antlr4CompleterTest {
         public boolean isValidSuggestion(String suggestion) {
           return true;
         }
+
+        @Override
+        public SymbolProvider getSymbolProvider(int tokenType, String lexerRuleName) {
+          return symbolProviders.get(lexerRuleName);
+        }
       };
     } catch (RecognitionException e) {
       throw new IllegalArgumentException(e);
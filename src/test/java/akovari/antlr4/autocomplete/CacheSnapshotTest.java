@@ -0,0 +1,106 @@
+package akovari.antlr4.autocomplete;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CacheSnapshotTest {
+  private static final String[] GRAMMAR = {
+      "r: ('SELECT' | 'SET') ID 'FROM' ID ('WHERE' ID '=' ID)?",
+      "ID: [a-z]+",
+      "WS: [ ] -> skip"};
+  private static final String[] INPUTS = {"", "S", "SE", "SELECT a ", "SELECT a F", "SELECT a FROM b ", "SET x FROM y W"};
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void importCaches_fromWarmEngine_shouldCompleteWithoutWalkingTheLexer() throws IOException {
+    CompletionEngine warmEngine = warmEngine();
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    warmEngine.exportCaches(snapshot);
+
+    CompletionEngine newEngine = new CompletionEngine(TestGrammars.load(GRAMMAR));
+    assertTrue(newEngine.importCaches(new ByteArrayInputStream(snapshot.toByteArray())));
+    assertEquals(warmEngine.getCompletionDfa().size(), newEngine.getCompletionDfa().size());
+    for (String input : INPUTS) {
+      CompletionResult result = newEngine.newCompleter(input).withStats().complete();
+      assertEquals(warmEngine.newCompleter(input).complete(), result);
+      assertEquals(0, result.getStats().getLexerStatesVisited());
+    }
+  }
+
+  @Test
+  public void importCaches_ofOtherGrammarVersion_shouldBeIgnored() throws IOException {
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    warmEngine().exportCaches(snapshot);
+    CompletionEngine otherEngine = new CompletionEngine(TestGrammars.load(
+        "r: ('SELECT' | 'SET') ID 'FROM' ID", "ID: [a-z]+", "WS: [ ] -> skip"));
+    int dfaStates = otherEngine.getCompletionDfa().size();
+    assertFalse(otherEngine.importCaches(new ByteArrayInputStream(snapshot.toByteArray())));
+    assertEquals(dfaStates, otherEngine.getCompletionDfa().size());
+  }
+
+  @Test
+  public void exportCaches_toFile_shouldBeImportable() throws IOException {
+    Path file = temporaryFolder.getRoot().toPath().resolve("sql.cache");
+    warmEngine().exportCaches(file);
+    CompletionEngine newEngine = new CompletionEngine(TestGrammars.load(GRAMMAR));
+    assertTrue(newEngine.importCaches(file));
+    assertEquals(0, newEngine.newCompleter("SELECT a F").withStats().complete().getStats().getLexerStatesVisited());
+  }
+
+  @Test
+  public void openCacheSnapshotFile_whenClosed_shouldExportCaches() throws IOException {
+    Path file = temporaryFolder.getRoot().toPath().resolve("sql.cache");
+    CompletionEngine engine = new CompletionEngine(TestGrammars.load(GRAMMAR));
+    Closeable snapshotFile = engine.openCacheSnapshotFile(file);
+    try {
+      for (String input : INPUTS) {
+        engine.newCompleter(input).complete();
+      }
+    } finally {
+      snapshotFile.close();
+    }
+    CompletionEngine newEngine = new CompletionEngine(TestGrammars.load(GRAMMAR));
+    newEngine.openCacheSnapshotFile(file).close();
+    assertEquals(engine.getCompletionDfa().size(), newEngine.getCompletionDfa().size());
+  }
+
+  @Test(expected = IOException.class)
+  public void importCaches_withStateOutOfRange_shouldFail() throws IOException {
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(snapshot);
+    out.writeInt(0x41434353);
+    out.writeInt(2);
+    out.writeUTF("fingerprint");
+    out.writeInt(10); // lexer states
+    out.writeInt(10); // parser states
+    out.writeInt(0);
+    out.writeInt(0);
+    out.writeInt(1); // DFA states
+    out.writeInt(1);
+    out.writeInt(10);
+    out.writeInt(0);
+    new CompletionEngine(TestGrammars.load(GRAMMAR)).importCaches(new ByteArrayInputStream(snapshot.toByteArray()));
+  }
+
+  private static CompletionEngine warmEngine() {
+    CompletionEngine engine = new CompletionEngine(TestGrammars.load(GRAMMAR));
+    for (String input : INPUTS) {
+      engine.newCompleter(input).complete();
+    }
+    return engine;
+  }
+}
@@ -0,0 +1,68 @@
+package akovari.antlr4.autocomplete;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class CompletionCostAnalyzerTest {
+  private final CompletionCostAnalyzer.Report report = new CompletionCostAnalyzer(TestGrammars.load(
+      "statement: 'SELECT' expr (',' expr)* ('FROM' ID)? | 'SET' ID '=' NUMBER",
+      "expr: expr ('+' | '*') expr | '(' expr ')' | ID | NUMBER",
+      "hint: HINT?",
+      "HINT: 'FAST' | 'SLOW'",
+      "NUMBER: DIGIT DIGIT",
+      "fragment DIGIT: [0-9]",
+      "ID: [a-z]+",
+      "WS: [ ] -> skip")).analyze();
+
+  @Test
+  public void analyze_shouldReportLexerLanguages() {
+    CompletionCostAnalyzer.LexerRuleCost hint = report.getLexerRule("HINT");
+    assertEquals(2, hint.getLanguageSize());
+    assertFalse(hint.isHuge());
+    assertFalse(hint.hitsLoopGuard());
+
+    CompletionCostAnalyzer.LexerRuleCost number = report.getLexerRule("NUMBER");
+    assertEquals(100, number.getLanguageSize());
+    assertEquals(0, number.getSetTransitions());
+    assertTrue(number.hitsLoopGuard()); // DIGIT returns to both of its calls
+
+    CompletionCostAnalyzer.LexerRuleCost id = report.getLexerRule("ID");
+    assertTrue(id.isInfinite());
+    assertTrue(id.isHuge());
+    assertEquals(26, id.getMaxSetTransitionSize());
+    assertTrue(id.hitsLoopGuard());
+    assertEquals(0, report.getLexerRule("DIGIT").getTokenType());
+  }
+
+  @Test
+  public void analyze_shouldReportParserRules() {
+    assertEquals(Collections.singletonList(Collections.singletonList("expr")), report.getLeftRecursiveCycles());
+    assertTrue(report.getParserRule("expr").isLeftRecursive());
+    assertFalse(report.getParserRule("statement").isLeftRecursive());
+    assertTrue(report.getParserRule("hint").isNullable());
+    assertFalse(report.getParserRule("statement").isNullable());
+    assertTrue(report.getParserRule("expr").getExpansion() > report.getParserRule("hint").getExpansion());
+    assertEquals(report.getMaxExpansion(), report.getHighFanOutStates().get(0).getClosureSize());
+    for (int i = 1; i < report.getHighFanOutStates().size(); ++i) {
+      assertTrue(report.getHighFanOutStates().get(i - 1).getClosureSize()
+          >= report.getHighFanOutStates().get(i).getClosureSize());
+    }
+  }
+
+  @Test
+  public void getViolations_shouldApplyThresholds() {
+    assertTrue(report.getViolations(Long.MAX_VALUE, Long.MAX_VALUE).isEmpty());
+    assertEquals(Arrays.asList("Lexer rule NUMBER has 100 words, more than 10"),
+        report.getViolations(Long.MAX_VALUE, 10));
+    assertFalse(report.getViolations(report.getMaxExpansion() - 1, Long.MAX_VALUE).isEmpty());
+    String json = report.toJson();
+    assertTrue(json.startsWith("{\n  \"fingerprint\": \""));
+    assertTrue(json.contains("{\"name\": \"ID\", \"tokenType\": "));
+    assertTrue(json.contains("\"infinite\": true, \"huge\": true, \"languageSize\": -1"));
+    assertTrue(json.contains("\"leftRecursiveCycles\": [\n    [\"expr\"]\n  ]"));
+  }
+}
@@ -0,0 +1,103 @@
+package akovari.antlr4.autocomplete;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompletionDocumentTest {
+  private final CompletionEngine engine = new CompletionEngine(TestGrammars.load(
+      "script: statement*",
+      "statement: 'SELECT' expr (',' expr)* ('FROM' ID)? ';' | 'SET' ID '=' expr ';'",
+      "expr: ID | NUMBER | STRING | expr '+' expr | '(' expr ')'",
+      "ID: [a-z]+",
+      "NUMBER: [0-9]+",
+      "STRING: '\\'' ~'\\''* '\\''",
+      "COMMENT: '/*' .*? '*/' -> channel(HIDDEN)",
+      "WS: [ \\n] -> skip"));
+
+  @Test
+  public void complete_shouldMatchCompletingTheTextBeforeTheCaret() {
+    CompletionDocument document = new CompletionDocument(engine, "SELECT a, 'x' FROM t; SET b = (1 + c);")
+        .withCheckpointInterval(3);
+    for (int caret = 0; caret <= document.getText().length(); ++caret) {
+      assertSameAsCompleter(document, caret);
+    }
+  }
+
+  @Test
+  public void complete_afterRandomEdits_shouldMatchCompletingTheTextBeforeTheCaret() {
+    String[] fragments = {"SELECT ", "SET ", "a", "bc", " ", "1", "23", "'", "'s'", ",", "+", "(", ")", ";", "FROM ",
+        "/*", "*/", "=", "\n", "S", "E"};
+    Random random = new Random(42);
+    CompletionDocument document = new CompletionDocument(engine, "SELECT a FROM t; SET x = 1;")
+        .withCheckpointInterval(2);
+    for (int edit = 0; edit < 300; ++edit) {
+      String text = document.getText();
+      int offset = random.nextInt(text.length() + 1);
+      int length = random.nextInt(3) == 0 ? random.nextInt(Math.min(4, text.length() - offset) + 1) : 0;
+      document.replace(offset, length, fragments[random.nextInt(fragments.length)]);
+      assertSameAsCompleter(document, random.nextInt(document.getText().length() + 1));
+      assertSameAsCompleter(document, document.getText().length());
+    }
+  }
+
+  @Test
+  public void complete_inLongDocument_shouldResumeFromCheckpoint() {
+    // No left recursion, so the recursive reference walk stays linear on long inputs
+    CompletionEngine listEngine = new CompletionEngine(TestGrammars.load(
+        "script: statement*",
+        "statement: 'SELECT' ID (',' ID)* 'FROM' ID ';' | 'SET' ID '=' ID ';'",
+        "ID: [a-z]+",
+        "WS: [ ] -> skip"));
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 30; ++i) {
+      text.append("SELECT a, b FROM t; ");
+    }
+    CompletionDocument document = new CompletionDocument(listEngine, text.toString()).withCheckpointInterval(16);
+    document.complete(document.getText().length());
+    document.insert(document.getText().length(), "SET x = ");
+    String textBeforeCaret = document.getText();
+    assertEquals(listEngine.newCompleter(textBeforeCaret).complete(), document.complete(textBeforeCaret.length()));
+    assertTrue(document.getLastSimulatedTokenCount() <= 16 + 4);
+    document.insert(text.length() / 2, "SET y = z; ");
+    textBeforeCaret = document.getText().substring(0, text.length() / 2 + 4);
+    assertEquals(listEngine.newCompleter(textBeforeCaret).complete(), document.complete(textBeforeCaret.length()));
+  }
+
+  @Test
+  public void complete_thenEdit_shouldKeepTheTokensOfTheResult() {
+    CompletionDocument document = new CompletionDocument(engine, "SELECT a FROM t; SET b = c /* d */ + ")
+        .withCheckpointInterval(2);
+    String textBeforeCaret = document.getText();
+    CompletionResult result = document.complete(textBeforeCaret.length());
+    document.insert(0, "SET x = 1; ");
+    document.replace(document.getText().length() - 3, 3, "; SELECT");
+    assertEquals(engine.newCompleter(textBeforeCaret).complete().getTokens(), result.getTokens());
+  }
+
+  @Test
+  public void complete_withPreferredRules_shouldTrackRulesFromTheStart() {
+    CompletionDocument document = new CompletionDocument(engine, "SELECT a, b FROM t; SELECT (a + ");
+    CompletionResult result = document.complete(document.getText().length(), completer -> completer.withPreferredRules("expr"));
+    assertEquals(engine.newCompleter(document.getText()).withPreferredRules("expr").complete(), result);
+  }
+
+  @Test
+  public void replace_inSkippedTextBeforeLastToken_shouldRelexFromTheTokenBefore() {
+    CompletionDocument document = new CompletionDocument(engine, "SELECT  a");
+    document.replace(7, 2, "");
+    assertEquals("SELECT ", document.getText());
+    assertSameAsCompleter(document, document.getText().length());
+    document.replace(6, 1, "  b");
+    assertSameAsCompleter(document, document.getText().length());
+  }
+
+  private void assertSameAsCompleter(CompletionDocument document, int caret) {
+    String textBeforeCaret = document.getText().substring(0, caret);
+    assertEquals("Completing \"" + textBeforeCaret + "\"", engine.newCompleter(textBeforeCaret).complete(),
+        document.complete(caret));
+  }
+}
@@ -0,0 +1,76 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.impl.LexerAndParserFactory;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class CompletionEventTest {
+  @Test
+  public void complete_withRecording_shouldEmitEvents() throws Exception {
+    LexerAndParserFactory factory = TestGrammars.load("r: 'AB' ('CD' | 'CE')");
+    Path recordingFile = Files.createTempFile("completion", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("akovari.antlr4.autocomplete.Completion");
+      recording.enable("akovari.antlr4.autocomplete.Tokenization");
+      recording.enable("akovari.antlr4.autocomplete.SuggestionExpansion");
+      recording.start();
+      new Antlr4Completer(factory, "ABC").complete();
+      recording.stop();
+      recording.dump(recordingFile);
+    }
+    List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile).stream()
+        .filter(event -> event.getEventType().getName().startsWith("akovari.antlr4.autocomplete."))
+        .collect(Collectors.toList());
+    Files.delete(recordingFile);
+
+    RecordedEvent completion = single(events, "akovari.antlr4.autocomplete.Completion");
+    assertEquals(3, completion.getInt("inputLength"));
+    assertEquals(1, completion.getInt("tokens"));
+    assertEquals(2, completion.getInt("suggestions"));
+    assertEquals(completion.getString("grammarFingerprint"),
+        single(events, "akovari.antlr4.autocomplete.Tokenization").getString("grammarFingerprint"));
+    assertEquals(2, single(events, "akovari.antlr4.autocomplete.SuggestionExpansion").getInt("suggestions"));
+  }
+
+  @Test
+  public void getEngine_beyondMaxActiveGrammars_shouldEmitCacheEviction() throws Exception {
+    GrammarRegistry registry = new GrammarRegistry().withMaxActiveGrammars(1)
+        .register("first", TestGrammars.load("r: 'A'"))
+        .register("second", TestGrammars.load("r: 'B'"));
+    Path recordingFile = Files.createTempFile("eviction", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("akovari.antlr4.autocomplete.CacheEviction");
+      recording.start();
+      registry.getEngine("first");
+      registry.getEngine("second");
+      recording.stop();
+      recording.dump(recordingFile);
+    }
+    List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile).stream()
+        .filter(event -> event.getEventType().getName().equals("akovari.antlr4.autocomplete.CacheEviction"))
+        .filter(event -> "engine".equals(event.getString("cache")))
+        .collect(Collectors.toList());
+    Files.delete(recordingFile);
+
+    assertEquals(1, events.size());
+    assertEquals("first", events.get(0).getString("grammar"));
+    assertEquals(1, events.get(0).getInt("evictedEntries"));
+  }
+
+  private static RecordedEvent single(List<RecordedEvent> events, String eventName) {
+    List<RecordedEvent> matchingEvents = events.stream()
+        .filter(event -> event.getEventType().getName().equals(eventName))
+        .collect(Collectors.toList());
+    assertEquals(1, matchingEvents.size());
+    return matchingEvents.get(0);
+  }
+}
@@ -0,0 +1,182 @@
+package akovari.antlr4.autocomplete;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class CompletionExecutorTest {
+  private final CompletionExecutor executor = new CompletionExecutor(1, 100);
+  private final List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+  @After
+  public void tearDown() {
+    executor.close();
+  }
+
+  @Test
+  public void submit_shouldRunInteractiveWorkFirst() throws Exception {
+    CountDownLatch release = blockWorker();
+    List<CompletableFuture<String>> futures = new ArrayList<>();
+    for (int i = 0; i < 3; ++i) {
+      futures.add(record("batch", CompletionExecutor.Priority.BACKGROUND, "background" + i));
+    }
+    for (int i = 0; i < 3; ++i) {
+      futures.add(record("user", CompletionExecutor.Priority.INTERACTIVE, "interactive" + i));
+    }
+    release.countDown();
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+    assertEquals(List.of("interactive0", "interactive1", "interactive2", "background0", "background1", "background2"),
+        order);
+  }
+
+  @Test
+  public void submit_shouldShareBetweenTenants() throws Exception {
+    CountDownLatch release = blockWorker();
+    List<CompletableFuture<String>> futures = new ArrayList<>();
+    for (int i = 0; i < 20; ++i) {
+      futures.add(sleepAndRecord("replay", CompletionExecutor.Priority.INTERACTIVE, "replay" + i));
+    }
+    futures.add(sleepAndRecord("typist", CompletionExecutor.Priority.INTERACTIVE, "typist0"));
+    futures.add(sleepAndRecord("typist", CompletionExecutor.Priority.INTERACTIVE, "typist1"));
+    release.countDown();
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+    assertTrue(order.toString(), order.indexOf("typist1") < 6);
+  }
+
+  @Test
+  public void submit_shouldShareByWeight() throws Exception {
+    executor.withTenantWeight("gold", 3);
+    CountDownLatch release = blockWorker();
+    List<CompletableFuture<String>> futures = new ArrayList<>();
+    for (int i = 0; i < 24; ++i) {
+      futures.add(sleepAndRecord("gold", CompletionExecutor.Priority.BACKGROUND, "gold"));
+      futures.add(sleepAndRecord("bronze", CompletionExecutor.Priority.BACKGROUND, "bronze"));
+    }
+    release.countDown();
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+    long goldFirst = order.subList(0, 24).stream().filter("gold"::equals).count();
+    // Task durations vary on a loaded machine, only the direction of the share is certain
+    assertTrue(order.toString(), goldFirst > 12);
+  }
+
+  @Test
+  public void submit_whenSaturated_shouldRejectRightAway() throws Exception {
+    CompletionExecutor smallExecutor = new CompletionExecutor(1, 2).withMaxQueuedPerTenant(1);
+    try {
+      CountDownLatch release = new CountDownLatch(1);
+      CountDownLatch started = new CountDownLatch(1);
+      smallExecutor.submit("a", CompletionExecutor.Priority.BACKGROUND, () -> {
+        started.countDown();
+        return await(release);
+      });
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      CompletableFuture<String> queued = smallExecutor.submit("a", CompletionExecutor.Priority.BACKGROUND, () -> "a");
+      CompletableFuture<String> sameTenant = smallExecutor.submit("a", CompletionExecutor.Priority.BACKGROUND, () -> "a");
+      CompletableFuture<String> otherTenant = smallExecutor.submit("b", CompletionExecutor.Priority.BACKGROUND, () -> "b");
+      CompletableFuture<String> full = smallExecutor.submit("c", CompletionExecutor.Priority.BACKGROUND, () -> "c");
+      assertTrue(sameTenant.isCompletedExceptionally());
+      assertTrue(full.isCompletedExceptionally());
+      try {
+        smallExecutor.asExecutor("d", CompletionExecutor.Priority.BACKGROUND).execute(() -> {
+        });
+        fail("Expected rejection");
+      } catch (RejectedExecutionException e) {
+        // expected
+      }
+      Thread.sleep(20);
+      release.countDown();
+      assertEquals("a", queued.get(10, TimeUnit.SECONDS));
+      assertEquals("b", otherTenant.get(10, TimeUnit.SECONDS));
+      CompletionExecutor.QueueStats stats = smallExecutor.getQueueStats(CompletionExecutor.Priority.BACKGROUND);
+      assertEquals(3, stats.getSubmitted());
+      assertEquals(3, stats.getRejected());
+      assertEquals(3, stats.getStarted());
+      assertTrue(stats.getMaxWait().compareTo(Duration.ofMillis(20)) >= 0);
+      assertEquals(0, smallExecutor.getQueueStats(CompletionExecutor.Priority.INTERACTIVE).getSubmitted());
+    } finally {
+      smallExecutor.close();
+    }
+  }
+
+  @Test
+  public void submit_whenTaskFails_shouldCompleteExceptionallyAndKeepWorking() throws Exception {
+    CompletableFuture<String> failed = executor.submit("user", CompletionExecutor.Priority.INTERACTIVE, () -> {
+      throw new IllegalStateException("failed");
+    });
+    try {
+      failed.get(10, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    assertEquals("next", record("user", CompletionExecutor.Priority.INTERACTIVE, "next").get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void submit_whenTaskThrowsError_shouldFailTheFutureAndKeepWorking() throws Exception {
+    CompletableFuture<String> failed = executor.submit("user", CompletionExecutor.Priority.INTERACTIVE, () -> {
+      throw new AssertionError("failed");
+    });
+    try {
+      failed.get(10, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof AssertionError);
+    }
+    assertEquals("next", record("user", CompletionExecutor.Priority.INTERACTIVE, "next").get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void complete_shouldCompleteWithTheEngine() throws Exception {
+    CompletionEngine engine = new CompletionEngine(TestGrammars.load("r: 'A' 'B'"));
+    assertEquals(Collections.singleton("B"),
+        executor.complete("user", CompletionExecutor.Priority.INTERACTIVE, engine, "A").get(10, TimeUnit.SECONDS)
+            .getSuggestions());
+  }
+
+  private CountDownLatch blockWorker() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    executor.submit("blocker", CompletionExecutor.Priority.INTERACTIVE, () -> {
+      started.countDown();
+      return await(release);
+    });
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    return release;
+  }
+
+  private CompletableFuture<String> record(String tenant, CompletionExecutor.Priority priority, String name) {
+    return executor.submit(tenant, priority, () -> {
+      order.add(name);
+      return name;
+    });
+  }
+
+  private CompletableFuture<String> sleepAndRecord(String tenant, CompletionExecutor.Priority priority, String name) {
+    return executor.submit(tenant, priority, () -> {
+      order.add(name);
+      try {
+        Thread.sleep(2);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return name;
+    });
+  }
+
+  private static String await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return "blocker";
+  }
+}
@@ -0,0 +1,100 @@
+package akovari.antlr4.autocomplete;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompletionPrefetcherTest {
+  private final CompletionEngine engine = new CompletionEngine(TestGrammars.load(
+      "r: ('SELECT' | 'SET') ID 'FROM' ID",
+      "ID: [a-z]+",
+      "WS: [ ] -> skip"));
+
+  @Test
+  public void complete_afterPrefetch_shouldServeNextKeystrokeFromMemory() {
+    CompletionPrefetcher prefetcher = new CompletionPrefetcher(engine, Runnable::run);
+    assertEquals(engine.newCompleter("SE").complete(), prefetcher.complete("SE"));
+    assertTrue(prefetcher.isCached("SEL"));
+    assertTrue(prefetcher.isCached("SET"));
+    assertTrue(prefetcher.isCached("SELECT"));
+    assertEquals(engine.newCompleter("SEL").complete(), prefetcher.complete("SEL"));
+  }
+
+  @Test
+  public void complete_withQueuedPrefetches_shouldCancelThemOnNextRequest() {
+    List<Runnable> queue = new ArrayList<>();
+    CompletionPrefetcher prefetcher = new CompletionPrefetcher(engine, queue::add).withMaxPrefetches(2);
+    prefetcher.complete("SE");
+    assertEquals(2, queue.size());
+    prefetcher.complete("SELECT a ");
+    queue.forEach(Runnable::run);
+    assertFalse(prefetcher.isCached("SEL"));
+    assertFalse(prefetcher.isCached("SET"));
+    assertTrue(prefetcher.isCached("SELECT a F"));
+  }
+
+  @Test
+  public void complete_withRunningPrefetch_shouldCancelItOnNextRequest() throws InterruptedException {
+    Thread foreground = Thread.currentThread();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (CompletionPrefetcher prefetcher = new CompletionPrefetcher(engine, executor).withMaxPrefetches(1)
+        .withOptions(completer -> {
+          if (Thread.currentThread() != foreground) {
+            started.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          return completer;
+        })) {
+      prefetcher.complete("SE");
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      prefetcher.complete("SELECT a ");
+      release.countDown();
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+      assertFalse(prefetcher.isCached("SET"));
+      assertTrue(prefetcher.isCached("SELECT a F"));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void complete_withRejectingExecutor_shouldCompleteInForeground() {
+    CompletionPrefetcher prefetcher = new CompletionPrefetcher(engine, runnable -> {
+      throw new RejectedExecutionException();
+    });
+    assertEquals(engine.newCompleter("SE").complete(), prefetcher.complete("SE"));
+    assertFalse(prefetcher.isCached("SEL"));
+    assertEquals(engine.newCompleter("SEL").complete(), prefetcher.complete("SEL"));
+  }
+
+  @Test
+  public void complete_withLowPriorityExecutor_shouldMatchForegroundCompletion() throws InterruptedException {
+    java.util.concurrent.ExecutorService executor = CompletionPrefetcher.newPrefetchExecutor(2);
+    try (CompletionPrefetcher prefetcher = new CompletionPrefetcher(engine, executor)) {
+      String input = "";
+      for (String keystroke : new String[]{"S", "E", "L", "E", "C", "T", " ", "a", " ", "F"}) {
+        input += keystroke;
+        assertEquals(engine.newCompleter(input).complete(), prefetcher.complete(input));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
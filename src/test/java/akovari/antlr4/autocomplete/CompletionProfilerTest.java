@@ -0,0 +1,73 @@
+package akovari.antlr4.autocomplete;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompletionProfilerTest {
+  private final CompletionEngine engine = new CompletionEngine(TestGrammars.load(
+      "r: 'SELECT' column (',' column)* 'FROM' ID",
+      "column: ID | '*'",
+      "ID: [a-z]+",
+      "WS: [ ] -> skip"));
+  private final CompletionProfiler profiler = new CompletionProfiler(engine);
+
+  @Test
+  public void getHotSpots_shouldRankVisitedRulesByCost() {
+    runWorkload("SELECT a, b, c F", "SELECT ", "SELECT a FROM x");
+    List<CompletionProfiler.HotSpot> parserRules = profiler.getHotSpots(CompletionProfiler.HotSpot.Kind.PARSER_RULE);
+    assertEquals(2, parserRules.size());
+    assertTrue(parserRules.stream().anyMatch(rule -> rule.getName().equals("column")));
+    assertTrue(parserRules.stream().allMatch(rule -> rule.getVisits() > 0 && rule.getStateNumber() == -1));
+    List<CompletionProfiler.HotSpot> lexerRules = profiler.getHotSpots(CompletionProfiler.HotSpot.Kind.LEXER_RULE);
+    assertTrue(lexerRules.stream().anyMatch(rule -> rule.getName().equals("ID")));
+    List<CompletionProfiler.HotSpot> hotSpots = profiler.getHotSpots();
+    for (int i = 1; i < hotSpots.size(); ++i) {
+      assertTrue(hotSpots.get(i - 1).getTime().compareTo(hotSpots.get(i).getTime()) >= 0);
+    }
+  }
+
+  @Test
+  public void getHotSpots_withCachedLexerWalks_shouldCountTheWalksTheyStandFor() {
+    runWorkload("SELECT a, ");
+    long coldVisits = lexerRuleVisits();
+    runWorkload("SELECT a, ");
+    assertEquals(2 * coldVisits, lexerRuleVisits());
+  }
+
+  @Test
+  public void toDot_shouldRenderHotStates() {
+    runWorkload("SELECT a, b, c F");
+    String dot = profiler.toDot(10);
+    assertTrue(dot.startsWith("digraph hotspots {"));
+    assertTrue(dot.contains("subgraph cluster_parser"));
+    assertTrue(dot.contains("subgraph cluster_lexer"));
+    assertTrue(dot.contains(" -> "));
+    assertTrue(profiler.toReport(5).contains("PARSER_RULE"));
+  }
+
+  @Test
+  public void reset_shouldClearProfile() {
+    runWorkload("SELECT ");
+    profiler.reset();
+    assertTrue(profiler.getHotSpots().isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void withProfiler_ofAnotherEngine_shouldFail() {
+    new Antlr4Completer(engine.getLexerAndParserFactory(), "").withProfiler(profiler);
+  }
+
+  private long lexerRuleVisits() {
+    return profiler.getHotSpots(CompletionProfiler.HotSpot.Kind.LEXER_RULE).stream()
+        .mapToLong(CompletionProfiler.HotSpot::getVisits).sum();
+  }
+
+  private void runWorkload(String... inputs) {
+    for (String input : inputs) {
+      engine.newCompleter(input).withProfiler(profiler).complete();
+    }
+  }
+}
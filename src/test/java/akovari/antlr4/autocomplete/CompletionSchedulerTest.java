@@ -0,0 +1,78 @@
+package akovari.antlr4.autocomplete;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.*;
+import java.util.function.UnaryOperator;
+
+import static org.junit.Assert.*;
+
+public class CompletionSchedulerTest {
+  private final CompletionEngine engine = new CompletionEngine(TestGrammars.load(
+      "r: 'SELECT' ID 'FROM' ID",
+      "ID: [a-z]+",
+      "WS: [ ] -> skip"));
+  private final ExecutorService executor = Executors.newFixedThreadPool(2);
+  private final CompletionScheduler scheduler = new CompletionScheduler(engine, executor);
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final CountDownLatch released = new CountDownLatch(1);
+
+  @After
+  public void shutDownExecutor() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void complete_withCancellation_shouldAbortTheWalk() {
+    try {
+      engine.newCompleter("SELECT a ").withCancellation(() -> true).complete();
+      fail("Expected the completion to be cancelled");
+    } catch (CompletionCancelledException expected) {
+      // expected
+    }
+  }
+
+  @Test
+  public void submit_whileRunning_shouldAbortTheRunningRequest() throws Exception {
+    CompletableFuture<CompletionScheduler.Outcome> first = scheduler.submit("alice", "SELECT a ", this::blockUntilReleased);
+    started.await();
+    CompletableFuture<CompletionScheduler.Outcome> second = scheduler.submit("alice", "SELECT a F");
+    released.countDown();
+    assertTrue(first.get(10, TimeUnit.SECONDS).isSuperseded());
+    assertEquals(engine.newCompleter("SELECT a F").complete(), second.get(10, TimeUnit.SECONDS).getResult());
+  }
+
+  @Test
+  public void submit_whileWaiting_shouldReplaceTheWaitingRequest() throws Exception {
+    CompletableFuture<CompletionScheduler.Outcome> first = scheduler.submit("alice", "SELECT a ", this::blockUntilReleased);
+    started.await();
+    CompletableFuture<CompletionScheduler.Outcome> second = scheduler.submit("alice", "SELECT a F");
+    CompletableFuture<CompletionScheduler.Outcome> third = scheduler.submit("alice", "SELECT a FR");
+    assertTrue(second.get(10, TimeUnit.SECONDS).isSuperseded());
+    released.countDown();
+    assertTrue(first.get(10, TimeUnit.SECONDS).isSuperseded());
+    assertEquals(engine.newCompleter("SELECT a FR").complete(), third.get(10, TimeUnit.SECONDS).getResult());
+  }
+
+  @Test
+  public void submit_fromOtherSession_shouldNotSupersede() throws Exception {
+    CompletableFuture<CompletionScheduler.Outcome> alice = scheduler.submit("alice", "SELECT a ", this::blockUntilReleased);
+    started.await();
+    CompletableFuture<CompletionScheduler.Outcome> bob = scheduler.submit("bob", "SELECT a F");
+    assertEquals(engine.newCompleter("SELECT a F").complete(), bob.get(10, TimeUnit.SECONDS).getResult());
+    released.countDown();
+    assertEquals(engine.newCompleter("SELECT a ").complete(), alice.get(10, TimeUnit.SECONDS).getResult());
+    assertEquals(0, scheduler.getActiveSessionCount());
+  }
+
+  private Antlr4Completer blockUntilReleased(Antlr4Completer completer) {
+    started.countDown();
+    try {
+      released.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return completer;
+  }
+}
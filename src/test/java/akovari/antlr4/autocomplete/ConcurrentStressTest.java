@@ -0,0 +1,180 @@
+package akovari.antlr4.autocomplete;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs overlapping completions of random grammars on shared engines from many threads and checks every result against
+ * a single-threaded run. Caches are cold at the start of each run, so threads race to fill the completion DFA, the
+ * token suggestion caches, the phrase index and the validation caches, and the engines of each grammar share their
+ * lexer caches through a {@link GrammarRegistry}. Since every shared cache memoizes a function of its key, a result
+ * that differs from the single-threaded one means a racing update was seen half done. Throughput is logged as the
+ * threads scale from 1 to {@code -Dstress.threads=<count>}, reproduce a failure with {@code -Dstress.seed=<seed>}.
+ * Takes seconds, so it only runs with {@code -Dlong.tests=true}.
+ */
+public class ConcurrentStressTest {
+  private static final Logger logger = Logger.getLogger(Antlr4Completer.class.getName());
+  private static final long SEED = Long.getLong("stress.seed", 20190707L);
+  private static final int MAX_THREADS = Integer.getInteger("stress.threads",
+      Math.max(4, Runtime.getRuntime().availableProcessors()));
+  private static final int GRAMMARS = Integer.getInteger("stress.grammars", 8);
+  private static final int INPUTS_PER_GRAMMAR = 12;
+  private static final int ROUNDS = 3;
+
+  private static final Map<String, UnaryOperator<Antlr4Completer>> MODES = new LinkedHashMap<>();
+
+  static {
+    MODES.put("default", UnaryOperator.identity());
+    MODES.put("phrases", completer -> completer.withPhrases(3));
+    MODES.put("interpreter validation", Antlr4Completer::withInterpreterValidation);
+    MODES.put("case-insensitive", Antlr4Completer::withCaseInsensitiveMatching);
+    MODES.put("fuzzy", completer -> completer.withFuzzyMatching(1));
+    MODES.put("preferred rules", completer -> completer.withPreferredRules("r0"));
+  }
+
+  @BeforeClass
+  public static void onlyWithLongTests() {
+    assumeTrue(Boolean.getBoolean("long.tests"));
+  }
+
+  @Test
+  public void sharedEngines_shouldCompleteLikeASingleThread() throws Exception {
+    List<RandomGrammar> grammars = new ArrayList<>();
+    List<Request> requests = new ArrayList<>();
+    for (int i = 0; i < GRAMMARS; ++i) {
+      RandomGrammar grammar = new RandomGrammar(new Random(SEED + i));
+      grammars.add(grammar);
+      for (int j = 0; j < INPUTS_PER_GRAMMAR; ++j) {
+        String input = grammar.randomInput();
+        for (String mode : MODES.keySet()) {
+          requests.add(new Request(i, input, mode));
+        }
+      }
+    }
+
+    GrammarRegistry sequentialRegistry = registryOf(grammars);
+    Map<Request, CompletionResult> expected = new HashMap<>();
+    for (Request request : requests) {
+      expected.put(request, request.complete(sequentialRegistry, "a"));
+    }
+
+    List<Integer> threadCounts = new ArrayList<>();
+    for (int threads = 1; threads < MAX_THREADS; threads *= 2) {
+      threadCounts.add(threads);
+    }
+    threadCounts.add(MAX_THREADS);
+    StringBuilder report = new StringBuilder("Threads  Completions/s  Speedup\n");
+    double singleThreadThroughput = 0;
+    for (int threads : threadCounts) {
+      GrammarRegistry registry = registryOf(grammars);
+      double throughput = run(registry, requests, expected, threads);
+      if (threads == 1) {
+        singleThreadThroughput = throughput;
+      }
+      report.append(String.format("%7d  %13.0f  %7.2f%n", threads, throughput, throughput / singleThreadThroughput));
+      for (int i = 0; i < grammars.size(); ++i) {
+        // Racing threads agree on one canonical state per kernel, so the automata end up like the sequential one
+        int expectedDfaSize = sequentialRegistry.getEngine("a" + i).getCompletionDfa().size();
+        assertEquals("completion DFA, " + threads + " threads, grammar:\n" + grammars.get(i), expectedDfaSize,
+            registry.getEngine("a" + i).getCompletionDfa().size());
+        assertEquals("completion DFA, " + threads + " threads, grammar:\n" + grammars.get(i), expectedDfaSize,
+            registry.getEngine("b" + i).getCompletionDfa().size());
+      }
+    }
+    logger.info(report.toString());
+  }
+
+  /**
+   * Completes every request {@link #ROUNDS} times on each engine of its grammar, in a shuffled order shared by all
+   * threads, so that threads overlap on the same grammars and inputs.
+   * @return completions per second
+   */
+  private static double run(GrammarRegistry registry, List<Request> requests, Map<Request, CompletionResult> expected,
+                            int threads) throws Exception {
+    List<Request> schedule = new ArrayList<>();
+    List<String> engineCopies = new ArrayList<>();
+    for (int round = 0; round < ROUNDS; ++round) {
+      for (String engineCopy : Arrays.asList("a", "b")) {
+        schedule.addAll(requests);
+        engineCopies.addAll(Collections.nCopies(requests.size(), engineCopy));
+      }
+    }
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < schedule.size(); ++i) {
+      order.add(i);
+    }
+    Collections.shuffle(order, new Random(SEED + threads));
+    AtomicInteger next = new AtomicInteger();
+    CyclicBarrier start = new CyclicBarrier(threads);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> workers = new ArrayList<>();
+      long startNanos = System.nanoTime();
+      for (int thread = 0; thread < threads; ++thread) {
+        workers.add(executor.submit(() -> {
+          start.await();
+          for (int i = next.getAndIncrement(); i < order.size(); i = next.getAndIncrement()) {
+            Request request = schedule.get(order.get(i));
+            CompletionResult result = request.complete(registry, engineCopies.get(order.get(i)));
+            assertEquals(threads + " threads, " + request, expected.get(request), result);
+            assertEquals(threads + " threads, " + request, expected.get(request).getReplacements(),
+                result.getReplacements());
+          }
+          return null;
+        }));
+      }
+      for (Future<?> worker : workers) {
+        worker.get(5, TimeUnit.MINUTES);
+      }
+      return schedule.size() * 1e9 / (System.nanoTime() - startNanos);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return registry with two engines per grammar, loaded separately, sharing their lexer caches
+   */
+  private static GrammarRegistry registryOf(List<RandomGrammar> grammars) {
+    GrammarRegistry registry = new GrammarRegistry();
+    for (int i = 0; i < grammars.size(); ++i) {
+      RandomGrammar grammar = grammars.get(i);
+      registry.register("a" + i, grammar::load);
+      registry.register("b" + i, grammar::load);
+    }
+    return registry;
+  }
+
+  private static final class Request {
+    final int grammarIndex;
+    final String input;
+    final String mode;
+
+    Request(int grammarIndex, String input, String mode) {
+      this.grammarIndex = grammarIndex;
+      this.input = input;
+      this.mode = mode;
+    }
+
+    /**
+     * @param engineCopy which of the two engines of the grammar completes, "a" or "b"
+     */
+    CompletionResult complete(GrammarRegistry registry, String engineCopy) {
+      return MODES.get(mode).apply(registry.newCompleter(engineCopy + grammarIndex, input)).complete();
+    }
+
+    @Override
+    public String toString() {
+      return mode + " mode, input '" + input + "', grammar " + grammarIndex;
+    }
+  }
+}
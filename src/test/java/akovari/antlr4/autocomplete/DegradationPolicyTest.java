@@ -0,0 +1,86 @@
+package akovari.antlr4.autocomplete;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DegradationPolicyTest {
+  private static final long SLO_NANOS = Duration.ofMillis(10).toNanos();
+
+  private final DegradationPolicy policy = new DegradationPolicy(Duration.ofNanos(SLO_NANOS)).withCooldown(Duration.ZERO);
+
+  @Test
+  public void recordLatency_shouldStepDownUnderPressureAndRecover() {
+    policy.recordLatency(2 * SLO_NANOS);
+    assertEquals(CompletionResult.Quality.UNVALIDATED, policy.getQuality());
+    policy.recordLatency(2 * SLO_NANOS);
+    policy.recordLatency(2 * SLO_NANOS);
+    policy.recordLatency(2 * SLO_NANOS);
+    assertEquals(CompletionResult.Quality.CACHED_ONLY, policy.getQuality());
+    for (int i = 0; i < 50; ++i) {
+      policy.recordLatency(SLO_NANOS / 100);
+    }
+    assertEquals(CompletionResult.Quality.FULL, policy.getQuality());
+    assertTrue(policy.getAverageLatency().toNanos() < SLO_NANOS / 2);
+  }
+
+  @Test
+  public void recordLatency_shouldStepDownWhileTheQueueIsDeep() {
+    AtomicInteger queueDepth = new AtomicInteger(100);
+    policy.withQueueDepth(queueDepth::get, 10);
+    policy.recordLatency(SLO_NANOS / 100);
+    assertEquals(CompletionResult.Quality.UNVALIDATED, policy.getQuality());
+    queueDepth.set(8);
+    policy.recordLatency(SLO_NANOS / 100);
+    assertEquals(CompletionResult.Quality.UNVALIDATED, policy.getQuality());
+    queueDepth.set(2);
+    policy.recordLatency(SLO_NANOS / 100);
+    assertEquals(CompletionResult.Quality.FULL, policy.getQuality());
+  }
+
+  @Test
+  public void recordLatency_withinCooldown_shouldKeepTheLevel() {
+    DegradationPolicy slowPolicy = new DegradationPolicy(Duration.ofNanos(SLO_NANOS)).withCooldown(Duration.ofHours(1));
+    slowPolicy.recordLatency(10 * SLO_NANOS);
+    assertEquals(CompletionResult.Quality.FULL, slowPolicy.getQuality());
+  }
+
+  @Test
+  public void complete_shouldReportTheQualityLevel() {
+    CompletionEngine engine = new CompletionEngine(TestGrammars.load("r: 'SELECT' ('ALL' | 'DISTINCT') ID", "ID: [a-z]+",
+        "WS: [ ] -> skip"));
+    CompletionResult cold = engine.newCompleter("SELECT ").withQuality(CompletionResult.Quality.CACHED_ONLY).complete();
+    assertEquals(CompletionResult.Quality.CACHED_ONLY, cold.getQuality());
+    assertTrue(cold.getSuggestions().isEmpty());
+
+    CompletionResult capped = engine.newCompleter("SELECT ").withQuality(CompletionResult.Quality.CAPPED).complete();
+    assertEquals(new HashSet<>(Arrays.asList("ALL", "DISTINCT")), capped.getSuggestions());
+    CompletionResult warm = engine.newCompleter("SELECT ").withQuality(CompletionResult.Quality.CACHED_ONLY).complete();
+    assertEquals(capped.getSuggestions(), warm.getSuggestions());
+
+    engine.withDegradationPolicy(policy);
+    policy.recordLatency(2 * SLO_NANOS);
+    CompletionResult degraded = engine.newCompleter("SELECT ").complete();
+    assertEquals(CompletionResult.Quality.UNVALIDATED, degraded.getQuality());
+    assertEquals(capped.getSuggestions(), degraded.getSuggestions());
+    assertEquals(CompletionResult.Quality.FULL, engine.newCompleter("SELECT ").withQuality(CompletionResult.Quality.FULL)
+        .complete().getQuality());
+  }
+
+  @Test
+  public void complete_whenCancelled_shouldRecordTheLatency() {
+    CompletionEngine engine = new CompletionEngine(TestGrammars.load("r: 'SELECT' ID", "ID: [a-z]+", "WS: [ ] -> skip"))
+        .withDegradationPolicy(policy);
+    try {
+      engine.newCompleter("SELECT ").withCancellation(() -> true).complete();
+      fail();
+    } catch (CompletionCancelledException e) {
+      assertTrue(policy.getAverageLatency().toNanos() > 0);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.impl.LexerAndParserFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Completes random inputs of random grammars in every fast mode and compares the suggestions with the reference walk,
+ * see {@link Antlr4Completer#withReferenceWalk()}. Reproduce a failure with {@code -Dfuzz.seed=<seed>}, fuzz longer
+ * with {@code -Dfuzz.grammars=<count>}. Takes seconds, so it only runs with {@code -Dlong.tests=true}.
+ */
+public class DifferentialFuzzTest {
+  private static final long SEED = Long.getLong("fuzz.seed", 20190623L);
+  private static final int GRAMMARS = Integer.getInteger("fuzz.grammars", 40);
+  private static final int INPUTS_PER_GRAMMAR = 15;
+
+  private int inputsWithSuggestions;
+
+  @BeforeClass
+  public static void onlyWithLongTests() {
+    assumeTrue(Boolean.getBoolean("long.tests"));
+  }
+
+  @Test
+  public void fastModes_shouldSuggestLikeTheReferenceWalk() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int i = 0; i < GRAMMARS; ++i) {
+        long seed = SEED + i;
+        fuzz(seed, new RandomGrammar(new Random(seed)), executor);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    // Most inputs are prefixes of sentences, so most of them have suggestions to compare
+    assertTrue(inputsWithSuggestions > GRAMMARS * INPUTS_PER_GRAMMAR / 2);
+  }
+
+  private void fuzz(long seed, RandomGrammar grammar, ExecutorService executor) throws Exception {
+    Random random = new Random(seed);
+    List<String> inputs = new ArrayList<>();
+    for (int i = 0; i < INPUTS_PER_GRAMMAR; ++i) {
+      inputs.add(grammar.randomInput());
+    }
+    LexerAndParserFactory factory = grammar.load();
+    List<CompletionResult> expected = new ArrayList<>();
+    for (String input : inputs) {
+      // A fresh engine, so that no cache filled by another input is involved
+      expected.add(new CompletionEngine(factory).newCompleter(input).withReferenceWalk().complete());
+      if (!expected.get(expected.size() - 1).getSuggestions().isEmpty()) {
+        ++inputsWithSuggestions;
+      }
+    }
+
+    // Parallel: cold caches filled concurrently
+    CompletionEngine parallelEngine = new CompletionEngine(factory);
+    List<Future<CompletionResult>> parallelResults = new ArrayList<>();
+    for (String input : inputs) {
+      parallelResults.add(executor.submit(() -> parallelEngine.newCompleter(input).complete()));
+    }
+    for (int i = 0; i < inputs.size(); ++i) {
+      assertSame("parallel", seed, grammar, inputs.get(i), expected.get(i), parallelResults.get(i).get());
+    }
+
+    // Cached: completion DFA and token suggestion caches warm from all inputs before
+    CompletionEngine engine = new CompletionEngine(factory);
+    CompletionDocument document = new CompletionDocument(engine, "").withCheckpointInterval(1 + random.nextInt(4));
+    for (int round = 0; round < 2; ++round) {
+      for (int i = 0; i < inputs.size(); ++i) {
+        String input = inputs.get(i);
+        assertSame("cached", seed, grammar, input, expected.get(i), engine.newCompleter(input).complete());
+        // Incremental: the document is edited into the input, keeping the common prefix
+        String text = document.getText();
+        int commonPrefix = 0;
+        while (commonPrefix < Math.min(text.length(), input.length())
+            && text.charAt(commonPrefix) == input.charAt(commonPrefix)) {
+          ++commonPrefix;
+        }
+        document.replace(commonPrefix, text.length() - commonPrefix, input.substring(commonPrefix));
+        assertSame("incremental", seed, grammar, input, expected.get(i), document.complete(input.length()));
+      }
+    }
+
+    // Precomputed: completion table generated at build time
+    CompletionEngine tableEngine = new CompletionEngine(factory)
+        .withCompletionTable(new CompletionTableGenerator(factory).generate());
+    for (int i = 0; i < inputs.size(); ++i) {
+      assertSame("precomputed", seed, grammar, inputs.get(i), expected.get(i),
+          tableEngine.newCompleter(inputs.get(i)).complete());
+    }
+
+    // Snapshot: caches imported from the warm engine
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    engine.exportCaches(snapshot);
+    CompletionEngine importingEngine = new CompletionEngine(factory);
+    assertTrue(importingEngine.importCaches(new ByteArrayInputStream(snapshot.toByteArray())));
+    for (int i = 0; i < inputs.size(); ++i) {
+      assertSame("snapshot", seed, grammar, inputs.get(i), expected.get(i),
+          importingEngine.newCompleter(inputs.get(i)).complete());
+    }
+  }
+
+  private static void assertSame(String mode, long seed, RandomGrammar grammar, String input, CompletionResult expected,
+                                 CompletionResult actual) {
+    String message = mode + " mode differs from the reference walk, seed " + seed + ", input '" + input + "', grammar:\n"
+        + grammar;
+    assertEquals(message, expected.getUntokenizedText(), actual.getUntokenizedText());
+    assertEquals(message, expected.getSuggestions(), actual.getSuggestions());
+  }
+}
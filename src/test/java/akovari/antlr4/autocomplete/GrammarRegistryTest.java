@@ -0,0 +1,98 @@
+package akovari.antlr4.autocomplete;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class GrammarRegistryTest {
+  private long now;
+  private final GrammarRegistry registry = new GrammarRegistry(() -> now);
+
+  @Test
+  public void getEngine_shouldBuildLazilyAndOnce() {
+    AtomicInteger builds = new AtomicInteger();
+    registry.register("ab", () -> {
+      builds.incrementAndGet();
+      return TestGrammars.load("r: 'AB' 'CD'");
+    });
+    assertEquals(0, builds.get());
+    CompletionEngine engine = registry.getEngine("ab");
+    assertSame(engine, registry.getEngine("ab"));
+    assertEquals(1, builds.get());
+  }
+
+  @Test
+  public void newCompleter_shouldCompleteWithRegisteredGrammar() {
+    registry.register("ab", TestGrammars.load("r: 'AB' 'CD'")).register("ef", TestGrammars.load("r: 'EF' 'GH'"));
+    assertEquals(Set.of("CD"), registry.newCompleter("ab", "AB").complete().getSuggestions());
+    assertEquals(Set.of("GH"), registry.newCompleter("ef", "EF").complete().getSuggestions());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void getEngine_withUnknownGrammar_shouldFail() {
+    registry.getEngine("unknown");
+  }
+
+  @Test
+  public void getEngine_withIdenticalLexers_shouldShareLexerCaches() {
+    registry.register("v1", TestGrammars.load("r: 'A' 'B'")).register("v2", TestGrammars.load("r: 'A' 'B' | 'B' 'A'"))
+        .register("other", TestGrammars.load("r: 'A' 'C'"));
+    CompletionEngine v1 = registry.getEngine("v1");
+    CompletionEngine v2 = registry.getEngine("v2");
+    CompletionEngine other = registry.getEngine("other");
+    assertSame(v1.getLexerWrapper().getKeywordIndex(), v2.getLexerWrapper().getKeywordIndex());
+    assertNotSame(v1.getLexerWrapper().getKeywordIndex(), other.getLexerWrapper().getKeywordIndex());
+    assertEquals(Set.of("B"), v1.newCompleter("A").complete().getSuggestions());
+    assertEquals(Set.of("A"), v2.newCompleter("B").complete().getSuggestions());
+  }
+
+  @Test
+  public void withCompletionTable_withSharedLexer_shouldApplyToEveryEngineSharingIt() {
+    registry.register("v1", TestGrammars.load("r: 'A' 'B'")).register("v2", TestGrammars.load("r: 'A' 'B' | 'B' 'A'"));
+    CompletionEngine v1 = registry.getEngine("v1");
+    CompletionEngine v2 = registry.getEngine("v2");
+    v1.withCompletionTable(new CompletionTableGenerator(v1.getLexerAndParserFactory()).generate());
+    assertSame(v1.getLexerWrapper().getKeywordIndex(), v2.getLexerWrapper().getKeywordIndex());
+    assertEquals(Set.of("A"), v2.newCompleter("B").complete().getSuggestions());
+  }
+
+  @Test
+  public void evictIdleEngines_shouldDemoteIdleEngines() {
+    registry.withIdleTimeout(Duration.ofSeconds(10))
+        .register("ab", TestGrammars.load("r: 'AB' 'CD'")).register("ef", TestGrammars.load("r: 'EF' 'GH'"));
+    registry.getEngine("ab");
+    now += Duration.ofSeconds(5).toNanos();
+    registry.getEngine("ef");
+    now += Duration.ofSeconds(6).toNanos();
+    assertEquals(1, registry.evictIdleEngines());
+    assertEquals(Collections.singleton("ef"), registry.getActiveGrammars());
+    assertEquals(Set.of("CD"), registry.newCompleter("ab", "AB").complete().getSuggestions());
+    assertEquals(Set.of("ab", "ef"), registry.getActiveGrammars());
+  }
+
+  @Test
+  public void getEngine_afterIdleTimeout_shouldDemoteIdleEngines() {
+    registry.withIdleTimeout(Duration.ofSeconds(10))
+        .register("ab", TestGrammars.load("r: 'AB' 'CD'")).register("ef", TestGrammars.load("r: 'EF' 'GH'"));
+    registry.getEngine("ab");
+    now += Duration.ofSeconds(11).toNanos();
+    registry.getEngine("ef");
+    assertEquals(Collections.singleton("ef"), registry.getActiveGrammars());
+  }
+
+  @Test
+  public void getEngine_withMaxActiveGrammars_shouldDemoteLeastRecentlyUsed() {
+    registry.withMaxActiveGrammars(2).register("ab", TestGrammars.load("r: 'AB' 'CD'"))
+        .register("ef", TestGrammars.load("r: 'EF' 'GH'")).register("ij", TestGrammars.load("r: 'IJ' 'KL'"));
+    for (String grammarName : new String[] {"ab", "ef", "ij"}) {
+      now += 1;
+      registry.getEngine(grammarName);
+    }
+    assertEquals(Set.of("ef", "ij"), registry.getActiveGrammars());
+  }
+}
@@ -0,0 +1,196 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.impl.CompletionDfa;
+import akovari.antlr4.autocomplete.impl.KeywordIndex;
+import akovari.antlr4.autocomplete.impl.LexerAndParserFactory;
+import akovari.antlr4.autocomplete.impl.PhraseIndex;
+import akovari.antlr4.autocomplete.impl.PrefixValidator;
+import akovari.antlr4.autocomplete.impl.UsageCounters;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class GrammarReloadTest {
+  private static final String[] LEXER = {"A: 'A'", "B: 'B'", "C: 'C'", "WS: [ ] -> skip"};
+
+  private final LexerAndParserFactory versionB = grammar("r: A B");
+  private final LexerAndParserFactory versionC = grammar("r: A C");
+  private final CompletionEngine engine = new CompletionEngine(versionB);
+
+  @Test
+  public void reload_shouldSwapTheGrammarAndKeepTheLexerCaches() throws Exception {
+    Antlr4Completer oldCompleter = engine.newCompleter("A ");
+    String oldFingerprint = engine.getFingerprint();
+
+    GrammarReload reload = engine.reload(versionC, Collections.singletonList("A "), Duration.ofSeconds(5));
+    assertTrue(reload.isChanged());
+    assertTrue(reload.isLexerCachesKept());
+    assertEquals(oldFingerprint, reload.getPreviousFingerprint());
+    assertEquals(engine.getFingerprint(), reload.getFingerprint());
+    assertTrue(reload.getWarmUp().getCompletions() > 0);
+    assertTrue(reload.getDrained().isDone());
+    assertSame(versionC, engine.getLexerAndParserFactory());
+
+    assertEquals(Collections.singleton("C"), engine.newCompleter("A ").complete().getSuggestions());
+    // A completer sticks to the version it was created with
+    assertEquals(Collections.singleton("B"), oldCompleter.complete().getSuggestions());
+
+    GrammarReload lexerChange = engine.reload(grammar("r: A 'D'"), Collections.emptyList(), Duration.ZERO);
+    assertFalse(lexerChange.isLexerCachesKept());
+    assertEquals(Collections.singleton("D"), engine.newCompleter("A ").complete().getSuggestions());
+  }
+
+  @Test
+  public void complete_withCompleterOfReleasedVersion_shouldNotKeepItsCaches() throws Exception {
+    Antlr4Completer oldCompleter = engine.newCompleter("A ");
+    CompletionDfa oldDfa = engine.getCompletionDfa();
+    int emptyDfaStates = oldDfa.size();
+    assertTrue(engine.reload(versionC, Collections.emptyList(), Duration.ZERO).getDrained().isDone());
+
+    assertEquals(Collections.singleton("B"), oldCompleter.complete().getSuggestions());
+    assertEquals(emptyDfaStates, oldDfa.size());
+  }
+
+  @Test
+  public void reload_shouldReleaseTheOldVersionOnceRequestsDrained() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Antlr4Completer runningCompleter = engine.newCompleter("A ").withCancellation(() -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return false;
+    });
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<CompletionResult> running = executor.submit(runningCompleter::complete);
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+
+      GrammarReload reload = engine.reloadAsync(versionC, Collections.emptyList(), Duration.ZERO, executor)
+          .get(10, TimeUnit.SECONDS);
+      assertEquals(Collections.singleton("C"), engine.newCompleter("A ").complete().getSuggestions());
+      assertFalse(reload.getDrained().isDone());
+
+      release.countDown();
+      assertEquals(Collections.singleton("B"), running.get(10, TimeUnit.SECONDS).getSuggestions());
+      reload.getDrained().get(10, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void reload_shouldEmptyTheCachesOfTheOldVersionOnceRequestsDrained() throws Exception {
+    engine.withUsageRanking(Duration.ofHours(1));
+    CompletionResult accepted = engine.newCompleter("A ").withInterpreterValidation().withPhrases(2)
+        .withCaseInsensitiveMatching().complete();
+    engine.recordAccepted(accepted, "B");
+    engine.newCompleter("A ").complete();
+    GrammarVersion old = engine.getVersion();
+    CompletionDfa oldDfa = old.getCompletionDfa();
+    PrefixValidator oldValidator = old.getPrefixValidator();
+    PhraseIndex oldPhraseIndex = old.getPhraseIndex();
+    UsageCounters oldCounters = old.getUsageCounters();
+    KeywordIndex oldKeywordIndex = old.getLexerWrapper().getKeywordIndex();
+    assertTrue(old.getLexerWrapper().getTokenSuggestionCacheSize() > 0);
+    assertTrue(oldCounters.score(accepted.getCaretKernel(), "B") > 0);
+
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Antlr4Completer runningCompleter = engine.newCompleter("A ").withCancellation(() -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return false;
+    });
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<CompletionResult> running = executor.submit(runningCompleter::complete);
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      GrammarReload reload = engine.reload(grammar("r: A 'D'"), Collections.emptyList(), Duration.ZERO);
+      assertFalse(reload.isLexerCachesKept());
+      assertFalse(reload.getDrained().isDone());
+      assertSame(oldDfa, old.getCompletionDfa());
+
+      release.countDown();
+      running.get(10, TimeUnit.SECONDS);
+      reload.getDrained().get(10, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+    assertNull(old.getUsageCounters());
+    assertEquals(0, oldCounters.score(accepted.getCaretKernel(), "B"), 0);
+    assertEquals(0, old.getLexerWrapper().getTokenSuggestionCacheSize());
+    assertNotSame(oldKeywordIndex, old.getLexerWrapper().getKeywordIndex());
+    assertNotSame(oldDfa, old.getCompletionDfa());
+    assertNotSame(oldValidator, old.getPrefixValidator());
+    assertNotSame(oldPhraseIndex, old.getPhraseIndex());
+  }
+
+  @Test
+  public void reload_shouldBeFollowedByDocumentsAndPrefetchers() throws Exception {
+    CompletionDocument document = new CompletionDocument(engine, "A ");
+    assertEquals(Collections.singleton("B"), document.complete(2).getSuggestions());
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (CompletionPrefetcher prefetcher = new CompletionPrefetcher(engine, executor)) {
+      assertEquals(Collections.singleton("B"), prefetcher.complete("A ").getSuggestions());
+
+      engine.reload(versionC, Collections.emptyList(), Duration.ZERO);
+      assertEquals(Collections.singleton("C"), document.complete(2).getSuggestions());
+      document.insert(2, "C");
+      assertEquals(Collections.emptySet(), document.complete(3).getSuggestions());
+      assertEquals(Collections.singleton("C"), prefetcher.complete("A ").getSuggestions());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void reload_whileCompleting_shouldAnswerFromOneVersion() throws Exception {
+    AtomicBoolean stop = new AtomicBoolean();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Integer>> completers = new ArrayList<>();
+      for (int thread = 0; thread < 4; ++thread) {
+        completers.add(executor.submit(() -> {
+          int completions = 0;
+          while (!stop.get()) {
+            Set<String> suggestions = engine.newCompleter("A ").complete().getSuggestions();
+            assertTrue(suggestions.toString(), suggestions.equals(Collections.singleton("B"))
+                || suggestions.equals(Collections.singleton("C")));
+            ++completions;
+          }
+          return completions;
+        }));
+      }
+      for (int i = 0; i < 20; ++i) {
+        engine.reload((i % 2 == 0) ? versionC : versionB, Collections.singletonList("A "), Duration.ofMillis(5));
+      }
+      stop.set(true);
+      for (Future<Integer> completer : completers) {
+        assertTrue(completer.get(10, TimeUnit.SECONDS) > 0);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(Collections.singleton("B"), engine.newCompleter("A ").complete().getSuggestions());
+  }
+
+  private static LexerAndParserFactory grammar(String parserRule) {
+    List<String> lines = new ArrayList<>();
+    lines.add(parserRule);
+    lines.addAll(Arrays.asList(LEXER));
+    return TestGrammars.load(lines.toArray(new String[0]));
+  }
+}
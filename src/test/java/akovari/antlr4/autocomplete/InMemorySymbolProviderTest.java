@@ -0,0 +1,44 @@
+package akovari.antlr4.autocomplete;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class InMemorySymbolProviderTest {
+  private final InMemorySymbolProvider provider = new InMemorySymbolProvider(
+      Arrays.asList("customers", "orders", "order_items", "owners", "orders"));
+
+  @Test
+  public void findSymbols_withPrefix_shouldReturnSortedMatches() {
+    assertEquals(Arrays.asList("order_items", "orders"), provider.findSymbols("order", 10));
+  }
+
+  @Test
+  public void findSymbols_withEmptyPrefix_shouldReturnDistinctSymbols() {
+    assertEquals(Arrays.asList("customers", "order_items", "orders", "owners"), provider.findSymbols("", 10));
+  }
+
+  @Test
+  public void findSymbols_withLimit_shouldStopAtLimit() {
+    assertEquals(Collections.singletonList("order_items"), provider.findSymbols("o", 1));
+  }
+
+  @Test
+  public void findSymbols_withoutMatch_shouldReturnNothing() {
+    assertEquals(Collections.emptyList(), provider.findSymbols("x", 10));
+  }
+
+  @Test
+  public void findSymbols_withManySymbols_shouldFindPrefixRange() {
+    List<String> symbols = IntStream.range(0, 1_000_000).mapToObj(i -> "t" + i).collect(Collectors.toList());
+    InMemorySymbolProvider largeProvider = new InMemorySymbolProvider(symbols);
+    assertEquals(1_000_000, largeProvider.size());
+    assertEquals(Arrays.asList("t99999", "t999990"), largeProvider.findSymbols("t99999", 2));
+  }
+}
@@ -0,0 +1,132 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.impl.LexerAndParserFactory;
+
+import java.util.*;
+
+/**
+ * Random small grammar over a fixed vocabulary of keywords, identifiers and numbers, with random inputs derived from
+ * it. Every alternative starts with a token, so grammars are never left-recursive and the reference walk stays fast.
+ */
+class RandomGrammar {
+  private static final String[] KEYWORDS = {
+      "SELECT", "FROM", "WHERE", "AND", "OR", "NOT", "ORDER", "BY", "IS", "NULL", "(", ")", ",", "=", ";"};
+  private static final String[] IDS = {"a", "b", "xy", "abc"};
+  private static final String[] NUMBERS = {"1", "42"};
+  private static final int MAX_INPUT_TOKENS = 8;
+
+  private final Random random;
+  private final List<List<List<Element>>> rules = new ArrayList<>();
+
+  RandomGrammar(Random random) {
+    this.random = random;
+    int ruleCount = 1 + random.nextInt(4);
+    for (int ruleIndex = 0; ruleIndex < ruleCount; ++ruleIndex) {
+      List<List<Element>> alternatives = new ArrayList<>();
+      for (int i = 1 + random.nextInt(3); i > 0; --i) {
+        alternatives.add(randomAlternative(ruleCount));
+      }
+      rules.add(alternatives);
+    }
+  }
+
+  private List<Element> randomAlternative(int ruleCount) {
+    List<Element> elements = new ArrayList<>();
+    elements.add(new Element(randomToken(), ""));
+    for (int i = random.nextInt(4); i > 0; --i) {
+      if (random.nextInt(4) == 0) {
+        elements.add(new Element("r" + random.nextInt(ruleCount), ""));
+      } else {
+        elements.add(new Element(randomToken(), new String[]{"", "", "?", "*", "+"}[random.nextInt(5)]));
+      }
+    }
+    return elements;
+  }
+
+  private String randomToken() {
+    int choice = random.nextInt(KEYWORDS.length + 2);
+    if (choice == KEYWORDS.length) {
+      return "ID";
+    } else if (choice == KEYWORDS.length + 1) {
+      return "NUMBER";
+    }
+    return "'" + KEYWORDS[choice] + "'";
+  }
+
+  LexerAndParserFactory load() {
+    return TestGrammars.load(grammarLines());
+  }
+
+  String[] grammarLines() {
+    List<String> lines = new ArrayList<>();
+    for (int ruleIndex = 0; ruleIndex < rules.size(); ++ruleIndex) {
+      StringJoiner alternatives = new StringJoiner(" | ", "r" + ruleIndex + ": ", "");
+      for (List<Element> alternative : rules.get(ruleIndex)) {
+        StringJoiner elements = new StringJoiner(" ");
+        alternative.forEach(element -> elements.add(element.atom + element.suffix));
+        alternatives.add(elements.toString());
+      }
+      lines.add(alternatives.toString());
+    }
+    lines.add("ID: [a-z]+");
+    lines.add("NUMBER: [0-9]+");
+    lines.add("WS: [ ] -> skip");
+    return lines.toArray(new String[0]);
+  }
+
+  /**
+   * @return prefix of a sentence of the grammar, cut at a random character, sometimes with a random token inserted
+   */
+  String randomInput() {
+    List<String> tokens = new ArrayList<>();
+    derive(0, tokens);
+    if (!tokens.isEmpty() && random.nextInt(4) == 0) {
+      tokens.add(random.nextInt(tokens.size()), KEYWORDS[random.nextInt(KEYWORDS.length)]);
+    }
+    String sentence = String.join(" ", tokens) + " ";
+    return sentence.substring(0, random.nextInt(sentence.length() + 1));
+  }
+
+  private void derive(int ruleIndex, List<String> tokens) {
+    List<List<Element>> alternatives = rules.get(ruleIndex);
+    for (Element element : alternatives.get(random.nextInt(alternatives.size()))) {
+      int repetitions = 1;
+      if (element.suffix.equals("?")) {
+        repetitions = random.nextInt(2);
+      } else if (element.suffix.equals("*")) {
+        repetitions = random.nextInt(3);
+      } else if (element.suffix.equals("+")) {
+        repetitions = 1 + random.nextInt(2);
+      }
+      for (int i = 0; i < repetitions; ++i) {
+        if (tokens.size() >= MAX_INPUT_TOKENS) {
+          return; // only prefixes are completed, so the sentence need not end
+        }
+        if (element.atom.startsWith("r")) {
+          derive(Integer.parseInt(element.atom.substring(1)), tokens);
+        } else if (element.atom.equals("ID")) {
+          tokens.add(IDS[random.nextInt(IDS.length)]);
+        } else if (element.atom.equals("NUMBER")) {
+          tokens.add(NUMBERS[random.nextInt(NUMBERS.length)]);
+        } else {
+          tokens.add(element.atom.substring(1, element.atom.length() - 1));
+        }
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.join(";\n", grammarLines());
+  }
+
+  private static final class Element {
+    final String atom;
+    final String suffix;
+
+    Element(String atom, String suffix) {
+      this.atom = atom;
+      this.suffix = suffix;
+    }
+  }
+}
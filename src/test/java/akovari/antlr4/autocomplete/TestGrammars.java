@@ -0,0 +1,45 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.impl.LexerAndParserFactory;
+import org.antlr.runtime.RecognitionException;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.tool.Grammar;
+import org.antlr.v4.tool.LexerGrammar;
+
+/**
+ * Creates interpreted lexers and parsers for grammars given as text.
+ */
+public class TestGrammars {
+  /**
+   * @param grammarLines rules of a combined grammar, without the grammar header and the trailing semicolons
+   * @return factory of the interpreted lexer and parser
+   */
+  public static LexerAndParserFactory load(String... grammarLines) {
+    String grammarText = "grammar testgrammar;\n" + String.join(";\n", grammarLines) + ";\n";
+    try {
+      LexerGrammar lg = new LexerGrammar(grammarText);
+      Grammar g = new Grammar(grammarText);
+      return new LexerAndParserFactory() {
+        @Override
+        public Parser createParser(TokenStream tokenStream) {
+          return g.createParserInterpreter(tokenStream);
+        }
+
+        @Override
+        public Lexer createLexer(CharStream input) {
+          return lg.createLexerInterpreter(input);
+        }
+
+        @Override
+        public boolean isValidSuggestion(String suggestion) {
+          return true;
+        }
+      };
+    } catch (RecognitionException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+}
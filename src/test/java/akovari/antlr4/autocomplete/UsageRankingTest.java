@@ -0,0 +1,108 @@
+package akovari.antlr4.autocomplete;
+
+import akovari.antlr4.autocomplete.impl.UsageCounters;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.atn.BasicState;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class UsageRankingTest {
+  private final CompletionEngine engine = new CompletionEngine(TestGrammars.load(
+      "r: 'SELECT' column 'FROM' table", "column: 'ALL' | 'NAME' | 'PRICE'", "table: 'ITEMS' | 'ORDERS' | 'PRICES'",
+      "WS: [ ] -> skip")).withUsageRanking(Duration.ofDays(1));
+
+  @Test
+  public void getRankedSuggestions_shouldRankByAcceptancesInTheContext() {
+    CompletionResult columns = engine.newCompleter("SELECT ").complete();
+    engine.recordAccepted(columns, "PRICE");
+    engine.recordAccepted(columns, "PRICE");
+    engine.recordAccepted(columns, "NAME");
+    CompletionResult tables = engine.newCompleter("SELECT ALL FROM ").complete();
+    engine.recordAccepted(tables, "ORDERS");
+
+    assertEquals(Arrays.asList("PRICE", "NAME", "ALL"), engine.newCompleter("SELECT ").complete().getRankedSuggestions());
+    assertEquals(Arrays.asList("ORDERS", "ITEMS", "PRICES"),
+        engine.newCompleter("SELECT NAME FROM ").complete().getRankedSuggestions());
+    // A partial token counts as the whole token
+    engine.recordAccepted(engine.newCompleter("SELECT ALL FROM P").complete(), "RICES");
+    assertEquals(Arrays.asList("PRICES", "ORDERS", "ITEMS"),
+        engine.newCompleter("SELECT ALL FROM ").complete().getRankedSuggestions());
+    assertEquals(Collections.singletonList("PRICE"), engine.newCompleter("SELECT ").complete().getTopSuggestions(1));
+  }
+
+  @Test
+  public void getRankedSuggestions_withoutUsageRanking_shouldSortAlphabetically() {
+    CompletionEngine plainEngine = new CompletionEngine(engine.getLexerAndParserFactory());
+    CompletionResult result = plainEngine.newCompleter("SELECT ").complete();
+    plainEngine.recordAccepted(result, "PRICE");
+    assertEquals(Arrays.asList("ALL", "NAME", "PRICE"), plainEngine.newCompleter("SELECT ").complete()
+        .getRankedSuggestions());
+    assertEquals(Arrays.asList("ALL", "NAME"), result.getTopSuggestions(2));
+  }
+
+  @Test
+  public void getRankedSuggestions_shouldFavorRecentUsage() throws Exception {
+    CompletionEngine decayingEngine = new CompletionEngine(engine.getLexerAndParserFactory())
+        .withUsageRanking(Duration.ofMillis(20));
+    CompletionResult columns = decayingEngine.newCompleter("SELECT ").complete();
+    for (int i = 0; i < 10; ++i) {
+      decayingEngine.recordAccepted(columns, "NAME");
+    }
+    Thread.sleep(200); // 10 half-lives, 10 old acceptances weigh about 0.01 now
+    decayingEngine.recordAccepted(columns, "PRICE");
+    assertEquals(Arrays.asList("PRICE", "NAME", "ALL"),
+        decayingEngine.newCompleter("SELECT ").complete().getRankedSuggestions());
+  }
+
+  @Test
+  public void record_inManyContexts_shouldKeepTheRecentlyUsedOnes() {
+    UsageCounters counters = new UsageCounters(Duration.ofDays(365), 8, 16);
+    Set<ATNState> hot = Collections.singleton(new BasicState());
+    for (int i = 0; i < 1000; ++i) {
+      BasicState state = new BasicState();
+      state.stateNumber = i;
+      counters.record(Collections.singleton(state), "cold");
+      counters.record(hot, "hot");
+    }
+    assertTrue(counters.getContextCount() <= 16);
+    assertEquals(1000, counters.score(hot, "hot"), 1);
+  }
+
+  @Test
+  public void record_fromManyThreads_shouldCountEveryAcceptance() throws Exception {
+    UsageCounters counters = new UsageCounters(Duration.ofDays(365), 8);
+    Set<ATNState> context = Collections.emptySet();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 8; ++thread) {
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < 10_000; ++i) {
+            counters.record(context, "hot");
+            counters.record(context, "cold" + (i % 50));
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    // Decay over the test is negligible with a half-life of a year
+    assertEquals(80_000, counters.score(context, "hot"), 1);
+    Map<String, String> tokenTexts = new HashMap<>();
+    for (String token : Arrays.asList("hot", "cold1", "unknown", "other")) {
+      tokenTexts.put(token, token);
+    }
+    assertEquals(Arrays.asList("hot"), counters.top(context, tokenTexts, 1));
+    assertEquals(Arrays.asList("other", "unknown"), counters.top(context, Map.of("other", "other", "unknown", "unknown"), 5));
+  }
+}
@@ -0,0 +1,45 @@
+package akovari.antlr4.autocomplete;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class WarmUpTest {
+  private final CompletionEngine engine = new CompletionEngine(TestGrammars.load(
+      "r: 'SELECT' ('ALL' | 'DISTINCT') ID (',' ID)* 'FROM' ID", "ID: [a-z]+", "WS: [ ] -> skip"));
+
+  @Test
+  public void warmUp_shouldReachSteadyStateAndFillTheCaches() {
+    WarmUpReport report = engine.warmUp(Arrays.asList("SELECT ALL a, b ", "SELECT DISTINCT a FR"), Duration.ofSeconds(30));
+    assertTrue(report.toString(), report.isSteady());
+    assertTrue(engine.isWarm());
+    assertTrue(report.getRounds() >= 3);
+    assertEquals(report.getRounds() * (long) report.getInputs(), report.getCompletions());
+    // The corpus, the empty input, and the derived inputs "S", "SELECT" and "SELECT "
+    assertEquals(6, report.getInputs());
+    CompletionResult result = engine.newCompleter("SELECT ").withStats().complete();
+    assertEquals(new HashSet<>(Arrays.asList("ALL", "DISTINCT")), result.getSuggestions());
+    CompletionResult cold = new CompletionEngine(engine.getLexerAndParserFactory()).newCompleter("SELECT ").withStats()
+        .complete();
+    assertTrue(result.getStats().getCacheMisses() < cold.getStats().getCacheMisses());
+  }
+
+  @Test
+  public void warmUp_shouldStopAtTheBudget() {
+    WarmUpReport rounds = engine.warmUp(Collections.singletonList("SELECT ALL a "), Duration.ofSeconds(30), 2);
+    assertEquals(2, rounds.getRounds());
+    assertFalse(rounds.isSteady());
+    assertNull(rounds.getTimeToSteadyState());
+    assertFalse(engine.isWarm());
+
+    WarmUpReport time = new CompletionEngine(engine.getLexerAndParserFactory())
+        .warmUp(Collections.singletonList("SELECT ALL a "), Duration.ZERO);
+    assertEquals(0, time.getRounds());
+    assertEquals(0, time.getCompletions());
+  }
+}